@@ -0,0 +1,112 @@
+package pl.wharyo.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.impl.ShapefileFeatureDAO;
+import pl.wharyo.exceptions.LayerNameNotSupportedException;
+import pl.wharyo.model.Feature;
+import pl.wharyo.services.FeatureService;
+
+/**
+ * Cost of finding DAO for layer name. DAOs used by {@link FeatureService} do no work
+ * besides answering which layers they support, so only routing is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FeatureServiceRoutingBenchmark {
+
+	private static final int DAO_COUNT = 4;
+
+	@Param({"100", "1000"})
+	public int layers;
+
+	private FeatureService service;
+	private String routedLayer;
+	private File shapeHome;
+	private ShapefileFeatureDAO shapefileDao;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		List<FeatureDAO> daos = new ArrayList<FeatureDAO>();
+		for (int i = 0; i < DAO_COUNT; i++) {
+			daos.add(layerPrefixDao("dao" + i + "_"));
+		}
+		service = new FeatureService();
+		service.setDaos(daos);
+		routedLayer = "dao" + (DAO_COUNT - 1) + "_layer";
+
+		// empty layer directories are enough, supportsLayer looks only at directory names
+		shapeHome = File.createTempFile("wharyo-benchmark", "");
+		shapeHome.delete();
+		for (int i = 0; i < layers; i++) {
+			new File(shapeHome, "layer" + i).mkdirs();
+		}
+		shapefileDao = new ShapefileFeatureDAO(shapeHome.getAbsolutePath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		shapefileDao.dispose();
+		LayerGenerator.deleteDirectory(shapeHome);
+	}
+
+	@Benchmark
+	public Feature routedLayer() throws Exception {
+		return service.getFeature(1L, routedLayer);
+	}
+
+	@Benchmark
+	public boolean unknownLayer() throws Exception {
+		try {
+			service.getFeature(1L, "unknown_layer");
+			return true;
+		} catch (LayerNameNotSupportedException e) {
+			return false;
+		}
+	}
+
+	@Benchmark
+	public boolean shapefileSupportsLayer() {
+		return shapefileDao.supportsLayer("layer" + (layers - 1));
+	}
+
+	/**
+	 * DAO which supports layers starting with given prefix and returns null for everything else.
+	 */
+	private static FeatureDAO layerPrefixDao(final String prefix) {
+		InvocationHandler handler = new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getName().equals("supportsLayer")) {
+					return ((String) args[0]).startsWith(prefix);
+				}
+				return null;
+			}
+		};
+		return (FeatureDAO) Proxy.newProxyInstance(FeatureDAO.class.getClassLoader(), new Class<?>[] {FeatureDAO.class}, handler);
+	}
+}
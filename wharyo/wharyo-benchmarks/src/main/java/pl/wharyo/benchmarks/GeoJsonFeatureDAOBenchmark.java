@@ -0,0 +1,72 @@
+package pl.wharyo.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.impl.GeoJsonFeatureDAO;
+
+/**
+ * Reading of generated GeoJSON layers. Layer is read as a whole, because file has to be
+ * parsed from the beginning on every request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GeoJsonFeatureDAOBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int size;
+
+	private String layerName;
+	private GeoJsonFeatureDAO dao;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		layerName = "json_" + size;
+		LayerGenerator.geoJson(LayerGenerator.dataDirectory(), layerName, size);
+		dao = new GeoJsonFeatureDAO(LayerGenerator.dataDirectory().getAbsolutePath());
+		random = new Random(size);
+	}
+
+	@Benchmark
+	public void getFeatures(Blackhole blackhole) throws Exception {
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), layerName);
+		try {
+			while (cursor.hasNext()) {
+				blackhole.consume(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Benchmark
+	public void getFeaturesInBBox(Blackhole blackhole) throws Exception {
+		// 10 km square, a few hundred features of the largest layer
+		double x = 170000 + random.nextDouble() * 680000;
+		double y = 140000 + random.nextDouble() * 630000;
+		blackhole.consume(dao.getFeaturesInBBox(new Envelope(x, x + 10000, y, y + 10000), layerName));
+	}
+}
@@ -0,0 +1,222 @@
+package pl.wharyo.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.feature.SchemaException;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Generates synthetic layers with the same attributes as test layers (id, name, count, date).
+ * Data depends only on layer size, so every run measures the same files. Generated layers
+ * are kept in data directory and reused by later runs.
+ */
+public final class LayerGenerator {
+
+	/** Directory for generated layers, can be changed with <i>wharyo.benchmark.dir</i> system property. */
+	public static final String DATA_DIR_PROPERTY = "wharyo.benchmark.dir";
+	public static final String TYPE_SPEC = "the_geom:Polygon:srid=2180,id:Long,name:String,count:Double,date:Date";
+
+	private static final long SEED = 2180L;
+	// EPSG:2180 extent of Poland
+	private static final double MIN_X = 170000;
+	private static final double MIN_Y = 140000;
+	private static final double RANGE_X = 690000;
+	private static final double RANGE_Y = 640000;
+	private static final double FEATURE_SIZE = 20;
+
+	private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+	private LayerGenerator() {
+	}
+
+	public static File dataDirectory() {
+		File dir = new File(System.getProperty(DATA_DIR_PROPERTY, "target/benchmark-data"));
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * Creates shapefile <i>home/layerName/layerName.shp</i> with features having ids from 1 to size.
+	 * Existing layer is left untouched.
+	 */
+	public static void shapefile(File home, String layerName, int size) throws IOException {
+		File layerDir = new File(home, layerName);
+		if (layerDir.isDirectory()) {
+			return;
+		}
+		// generated next to target directory and renamed, so interrupted run doesn't leave broken layer
+		File tmpDir = new File(home, layerName + ".tmp");
+		deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+
+		Map<String, Serializable> params = new HashMap<String, Serializable>();
+		params.put("url", new File(tmpDir, layerName + ".shp").toURI().toURL());
+		params.put("create spatial index", Boolean.FALSE);
+		DataStore dataStore = new ShapefileDataStoreFactory().createNewDataStore(params);
+		try {
+			dataStore.createSchema(createType(layerName));
+			FeatureWriter<SimpleFeatureType, SimpleFeature> writer = dataStore.getFeatureWriterAppend(layerName, Transaction.AUTO_COMMIT);
+			try {
+				Random random = new Random(SEED);
+				for (int i = 1; i <= size; i++) {
+					SimpleFeature feature = writer.next();
+					feature.setDefaultGeometry(polygon(random));
+					feature.setAttribute("id", Long.valueOf(i));
+					feature.setAttribute("name", "name" + i);
+					feature.setAttribute("count", random.nextDouble() * 1000);
+					feature.setAttribute("date", date(random));
+					writer.write();
+				}
+			} finally {
+				writer.close();
+			}
+		} finally {
+			dataStore.dispose();
+		}
+		rename(tmpDir, layerDir);
+	}
+
+	/**
+	 * Creates GeoJSON layer <i>home/layerName/layerName.geojson</i> with the same features
+	 * as {@link #shapefile(File, String, int)} would create. Existing layer is left untouched.
+	 */
+	public static void geoJson(File home, String layerName, int size) throws IOException {
+		File layerDir = new File(home, layerName);
+		if (layerDir.isDirectory()) {
+			return;
+		}
+		File tmpDir = new File(home, layerName + ".tmp");
+		deleteDirectory(tmpDir);
+		tmpDir.mkdirs();
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(tmpDir, layerName + ".geojson")), "UTF-8"));
+		try {
+			writer.write("{\n\"type\": \"FeatureCollection\",\n");
+			writer.write("\"crs\": { \"type\": \"name\", \"properties\": { \"name\": \"urn:ogc:def:crs:EPSG::2180\" } },\n");
+			writer.write("\"features\": [\n");
+			Random random = new Random(SEED);
+			for (int i = 1; i <= size; i++) {
+				Polygon polygon = polygon(random);
+				double count = random.nextDouble() * 1000;
+				Date date = date(random);
+				writer.write("{ \"type\": \"Feature\", \"properties\": { \"id\": " + i + ", \"name\": \"name" + i + "\", \"count\": " + count
+						+ ", \"date\": \"" + new java.sql.Date(date.getTime()) + "\" }, \"geometry\": { \"type\": \"Polygon\", \"coordinates\": [ [ ");
+				Coordinate[] coordinates = polygon.getExteriorRing().getCoordinates();
+				for (int j = 0; j < coordinates.length; j++) {
+					writer.write((j > 0 ? ", [ " : "[ ") + coordinates[j].x + ", " + coordinates[j].y + " ]");
+				}
+				writer.write(" ] ] } }" + (i < size ? ",\n" : "\n"));
+			}
+			writer.write("]\n}\n");
+		} finally {
+			writer.close();
+		}
+		rename(tmpDir, layerDir);
+	}
+
+	/**
+	 * Copies layer to new temporary home directory, so benchmarks which modify data
+	 * always start from the generated state.
+	 */
+	public static File workingCopy(File home, String layerName) throws IOException {
+		File copyHome = File.createTempFile("wharyo-benchmark", "");
+		copyHome.delete();
+		File copyDir = new File(copyHome, layerName);
+		copyDir.mkdirs();
+		for (File file: new File(home, layerName).listFiles()) {
+			copyFile(file, new File(copyDir, file.getName()));
+		}
+		return copyHome;
+	}
+
+	public static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file: files) {
+				if (file.isDirectory()) {
+					deleteDirectory(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+
+	public static Polygon polygon(Random random) {
+		double x = MIN_X + random.nextDouble() * RANGE_X;
+		double y = MIN_Y + random.nextDouble() * RANGE_Y;
+		Coordinate[] coordinates = new Coordinate[] {
+				new Coordinate(x, y),
+				new Coordinate(x, y + FEATURE_SIZE),
+				new Coordinate(x + FEATURE_SIZE, y + FEATURE_SIZE),
+				new Coordinate(x + FEATURE_SIZE, y),
+				new Coordinate(x, y)};
+		return geometryFactory.createPolygon(geometryFactory.createLinearRing(coordinates), null);
+	}
+
+	private static SimpleFeatureType createType(String layerName) throws IOException {
+		try {
+			return DataUtilities.createType(layerName, TYPE_SPEC);
+		} catch (SchemaException e) {
+			throw new IOException("Wrong feature type specification: " + TYPE_SPEC);
+		}
+	}
+
+	private static Date date(Random random) {
+		Calendar calendar = new GregorianCalendar(2000, 0, 1);
+		calendar.add(Calendar.DAY_OF_YEAR, random.nextInt(6000));
+		return calendar.getTime();
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			throw new IOException("Couldn't move generated layer to: " + to);
+		}
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(from));
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+			try {
+				byte[] buff = new byte[64 * 1024];
+				int length;
+				while ((length = in.read(buff)) > 0) {
+					out.write(buff, 0, length);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
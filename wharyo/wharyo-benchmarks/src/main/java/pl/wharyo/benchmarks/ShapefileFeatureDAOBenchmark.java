@@ -0,0 +1,116 @@
+package pl.wharyo.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pl.wharyo.dao.impl.ShapefileFeatureDAO;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Single feature operations of {@link ShapefileFeatureDAO} on generated layers of growing size.
+ * Writing benchmarks work on a copy of the layer made for each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShapefileFeatureDAOBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int size;
+
+	private File home;
+	private String layerName;
+	private ShapefileFeatureDAO dao;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		layerName = "shp_" + size;
+		LayerGenerator.shapefile(LayerGenerator.dataDirectory(), layerName, size);
+		home = LayerGenerator.workingCopy(LayerGenerator.dataDirectory(), layerName);
+		dao = new ShapefileFeatureDAO(home.getAbsolutePath());
+		random = new Random(size);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dao.dispose();
+		LayerGenerator.deleteDirectory(home);
+	}
+
+	@Benchmark
+	public Feature getFeatureById() throws Exception {
+		return dao.getFeatureById(randomId(), layerName);
+	}
+
+	@Benchmark
+	public Long createFeature() throws Exception {
+		return dao.createFeature(newFeature(), layerName);
+	}
+
+	@Benchmark
+	public void updateFeatureAttributes() throws Exception {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute count = new Attribute("count", AttributeType.DOUBLE);
+		count.setValue(random.nextDouble() * 1000);
+		attributes.add(count);
+		dao.updateFeatureAttributes(randomId(), attributes, layerName);
+	}
+
+	@Benchmark
+	public void deleteFeature(DeletedFeature deleted) throws Exception {
+		dao.deleteFeature(deleted.id, layerName);
+	}
+
+	/**
+	 * Creates feature before each delete, so every invocation removes existing feature
+	 * and layer size stays the same.
+	 */
+	@State(Scope.Thread)
+	public static class DeletedFeature {
+
+		Long id;
+
+		@Setup(Level.Invocation)
+		public void create(ShapefileFeatureDAOBenchmark benchmark) throws Exception {
+			id = benchmark.dao.createFeature(benchmark.newFeature(), benchmark.layerName);
+		}
+	}
+
+	private Long randomId() {
+		return Long.valueOf(1 + random.nextInt(size));
+	}
+
+	private Feature newFeature() throws Exception {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute name = new Attribute("name", AttributeType.TEXT);
+		name.setValue("benchmark");
+		attributes.add(name);
+		Attribute count = new Attribute("count", AttributeType.DOUBLE);
+		count.setValue(random.nextDouble() * 1000);
+		attributes.add(count);
+		return new Feature(LayerGenerator.polygon(random), attributes);
+	}
+}
@@ -0,0 +1,367 @@
+package pl.wharyo.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import pl.wharyo.model.Feature;
+
+/**
+ * Features by layer name and id, bounded by total weight (vertex count) of cached features.
+ * Eviction follows W-TinyLFU: new features enter small LRU window, features pushed out of it
+ * get into main space only when they were asked for more often than features they would
+ * replace. Main space is segmented LRU, features read again there are protected from
+ * eviction. How often feature was asked for is estimated by count-min sketch, which also
+ * remembers features which aren't cached anymore. Features expire after given time, so changes
+ * made to data source behind application's back are seen eventually. Layer names are case
+ * insensitive, feature cached under one spelling is found by invalidation under other one.
+ * All methods are synchronized, cache is used around reads from data sources, so they
+ * dominate anyway.
+ */
+final class FeatureCache {
+
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+	/** Expected average weight of feature, it's used only to size frequency sketch. */
+	private static final int AVERAGE_WEIGHT = 32;
+
+	private final long maxWeight;
+	private final long maxWindowWeight;
+	private final long maxProtectedWeight;
+	private final long ttl;
+	private final Map<Key, Node> nodes = new HashMap<Key, Node>();
+	private final NodeList window = new NodeList();
+	private final NodeList probation = new NodeList();
+	private final NodeList protectedList = new NodeList();
+	private final FrequencySketch sketch;
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+	/** Increased by every invalidation, so reads which started before it aren't cached. */
+	private long stamp;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param ttl how long (ms) feature stays cached, 0 for no limit
+	 */
+	FeatureCache(long maxWeight, long ttl) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("Cache weight has to be positive");
+		} else if (ttl < 0) {
+			throw new IllegalArgumentException("Cache ttl cannot be negative");
+		}
+		this.maxWeight = maxWeight;
+		this.ttl = ttl;
+		this.maxWindowWeight = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+		this.maxProtectedWeight = (maxWeight - maxWindowWeight) * PROTECTED_PERCENT / 100;
+		this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxWeight / AVERAGE_WEIGHT)));
+	}
+
+	static int weigh(Feature feature) {
+		return 1 + (feature.getGeom() == null ? 0 : feature.getGeom().getNumPoints());
+	}
+
+	/**
+	 * @return cached feature or null, feature is shared with cache
+	 */
+	synchronized Feature get(String layerName, long id) {
+		Key key = new Key(layerName, id);
+		sketch.increment(key.hashCode());
+		Node node = nodes.get(key);
+		if (node != null && ttl > 0 && System.currentTimeMillis() >= node.expires) {
+			nodes.remove(key);
+			unlink(node);
+			node = null;
+		}
+		// same layer spelled differently is read again, its feature replaces cached one
+		if (node == null || !node.layerName.equals(layerName)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		onHit(node);
+		return node.feature;
+	}
+
+	/**
+	 * @return stamp to pass to {@link #put(String, long, Feature, long)}, taken before feature is read
+	 */
+	synchronized long stamp() {
+		return stamp;
+	}
+
+	/**
+	 * Caches feature unless cache was invalidated since given stamp was taken, then feature may be out of date.
+	 */
+	synchronized void put(String layerName, long id, Feature feature, long readStamp) {
+		if (readStamp != stamp) {
+			return;
+		}
+		int weight = weigh(feature);
+		if (weight > maxWeight) {
+			return;
+		}
+		Key key = new Key(layerName, id);
+		Node node = nodes.remove(key);
+		if (node != null) {
+			unlink(node);
+		}
+		node = new Node(key, layerName, feature, weight, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+		nodes.put(key, node);
+		node.list = window;
+		window.addLast(node);
+		windowWeight += weight;
+		evict();
+	}
+
+	synchronized void invalidate(String layerName, long id) {
+		stamp++;
+		Node node = nodes.remove(new Key(layerName, id));
+		if (node != null) {
+			unlink(node);
+		}
+	}
+
+	/**
+	 * Drops features of layer with given name, case insensitive.
+	 */
+	synchronized void invalidateLayer(String layerName) {
+		stamp++;
+		String normalized = Key.normalize(layerName);
+		Iterator<Node> iterator = nodes.values().iterator();
+		while (iterator.hasNext()) {
+			Node node = iterator.next();
+			if (node.key.layerName.equals(normalized)) {
+				iterator.remove();
+				unlink(node);
+			}
+		}
+	}
+
+	synchronized void clear() {
+		stamp++;
+		nodes.clear();
+		window.clear();
+		probation.clear();
+		protectedList.clear();
+		windowWeight = 0;
+		probationWeight = 0;
+		protectedWeight = 0;
+	}
+
+	synchronized FeatureCacheStatistics getStatistics() {
+		return new FeatureCacheStatistics(hits, misses, evictions, nodes.size(), windowWeight + probationWeight + protectedWeight, maxWeight);
+	}
+
+	private void onHit(Node node) {
+		if (node.list == probation) {
+			probation.remove(node);
+			probationWeight -= node.weight;
+			node.list = protectedList;
+			protectedList.addLast(node);
+			protectedWeight += node.weight;
+			while (protectedWeight > maxProtectedWeight && protectedList.first != node) {
+				Node demoted = protectedList.first;
+				protectedList.remove(demoted);
+				protectedWeight -= demoted.weight;
+				demoted.list = probation;
+				probation.addLast(demoted);
+				probationWeight += demoted.weight;
+			}
+		} else {
+			node.list.remove(node);
+			node.list.addLast(node);
+		}
+	}
+
+	/**
+	 * Moves features over window limit to probation, then while cache is too heavy, lets
+	 * each of them compete with least recently used feature of probation.
+	 */
+	private void evict() {
+		Node candidate = null;
+		while (windowWeight > maxWindowWeight) {
+			Node node = window.first;
+			window.remove(node);
+			windowWeight -= node.weight;
+			node.list = probation;
+			probation.addLast(node);
+			probationWeight += node.weight;
+			if (candidate == null) {
+				candidate = node;
+			}
+		}
+		while (windowWeight + probationWeight + protectedWeight > maxWeight) {
+			Node victim = probation.first;
+			if (victim == null) {
+				victim = protectedList.first != null ? protectedList.first : window.first;
+			} else if (candidate != null && candidate != victim) {
+				// candidates were added after all older probation features
+				if (sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+					victim = candidate;
+				}
+			}
+			if (victim == candidate) {
+				candidate = candidate.next;
+			}
+			nodes.remove(victim.key);
+			unlink(victim);
+			evictions++;
+		}
+	}
+
+	private void unlink(Node node) {
+		node.list.remove(node);
+		if (node.list == window) {
+			windowWeight -= node.weight;
+		} else if (node.list == probation) {
+			probationWeight -= node.weight;
+		} else {
+			protectedWeight -= node.weight;
+		}
+	}
+
+	private static class Key {
+		private final String layerName;
+		private final long id;
+
+		private Key(String layerName, long id) {
+			this.layerName = normalize(layerName);
+			this.id = id;
+		}
+
+		private static String normalize(String layerName) {
+			return layerName.toLowerCase(Locale.ENGLISH);
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return id == other.id && layerName.equals(other.layerName);
+		}
+
+		public int hashCode() {
+			return 31 * layerName.hashCode() + (int) (id ^ (id >>> 32));
+		}
+	}
+
+	private static class Node {
+		private final Key key;
+		/** Layer name as it was given when feature was cached. */
+		private final String layerName;
+		private final Feature feature;
+		private final int weight;
+		private final long expires;
+		private NodeList list;
+		private Node previous;
+		private Node next;
+
+		private Node(Key key, String layerName, Feature feature, int weight, long expires) {
+			this.key = key;
+			this.layerName = layerName;
+			this.feature = feature;
+			this.weight = weight;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Doubly linked list of nodes, from least to most recently used.
+	 */
+	private static class NodeList {
+		private Node first;
+		private Node last;
+
+		private void addLast(Node node) {
+			node.previous = last;
+			node.next = null;
+			if (last == null) {
+				first = node;
+			} else {
+				last.next = node;
+			}
+			last = node;
+		}
+
+		private void remove(Node node) {
+			if (node.previous == null) {
+				first = node.next;
+			} else {
+				node.previous.next = node.next;
+			}
+			if (node.next == null) {
+				last = node.previous;
+			} else {
+				node.next.previous = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+		}
+
+		private void clear() {
+			first = null;
+			last = null;
+		}
+	}
+
+	/**
+	 * Count-min sketch with four rows of counters saturating at 15. Counters are halved after
+	 * every ten times more increments than there are counters in row, so old popularity fades.
+	 */
+	private static class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb18e9d37, 0x5a6f7e2b, 0xe3b5c1d9 };
+		private static final int MAX_COUNT = 15;
+
+		private final byte[][] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		private FrequencySketch(int width) {
+			int size = Integer.highestOneBit(width - 1) << 1;
+			this.counters = new byte[SEEDS.length][size];
+			this.mask = size - 1;
+			this.sampleSize = 10 * size;
+		}
+
+		private void increment(int hash) {
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				if (counters[i][index] < MAX_COUNT) {
+					counters[i][index]++;
+				}
+			}
+			if (++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		private int frequency(int hash) {
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, counters[i][index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		private void reset() {
+			for (byte[] row: counters) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) (row[i] >> 1);
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
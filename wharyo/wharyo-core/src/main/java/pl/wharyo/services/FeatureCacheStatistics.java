@@ -0,0 +1,64 @@
+package pl.wharyo.services;
+
+/**
+ * Usage of feature cache of {@link FeatureService}, counted since cache was created.
+ * Weight of feature is its vertex count plus one.
+ */
+public class FeatureCacheStatistics {
+
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final int size;
+	private final long weight;
+	private final long maxWeight;
+
+	public FeatureCacheStatistics(long hits, long misses, long evictions, int size, long weight, long maxWeight) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.size = size;
+		this.weight = weight;
+		this.maxWeight = maxWeight;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return how many features were dropped to make room for others, invalidated ones aren't counted
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return number of cached features
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	public long getWeight() {
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public double getHitRate() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	public String toString() {
+		return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", features: " + size
+				+ ", weight: " + weight + "/" + maxWeight;
+	}
+}
@@ -1,45 +1,328 @@
 package pl.wharyo.services;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
 import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.LayerChangeNotifier;
+import pl.wharyo.exceptions.BrokenFeatureException;
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
 import pl.wharyo.exceptions.LayerNameNotSupportedException;
+import pl.wharyo.exceptions.UnsupportedAttributeType;
 import pl.wharyo.model.Feature;
 import pl.wharyo.model.attributes.Attribute;
 
 @Service
-public class FeatureService {
+public class FeatureService implements InitializingBean, DisposableBean {
+	
+	public static final long DEFAULT_ROUTE_TTL = 60 * 1000L;
+	/** Total vertex count of features kept in cache by default. */
+	public static final long DEFAULT_CACHE_WEIGHT = 1000000L;
+	public static final long DEFAULT_CACHE_TTL = 5 * 60 * 1000L;
+	public static final int DEFAULT_FAN_OUT_THREADS = 8;
+	public static final long DEFAULT_LAYER_TIMEOUT = 10 * 1000L;
+	public static final int DEFAULT_MAX_QUEUED_LAYERS = 1000;
+	private static final int MAX_ROUTES = 10000;
+	/** Features read from layers and not yet taken by caller of multi layer read. */
+	private static final int FAN_OUT_QUEUE_SIZE = 1000;
 	
 	@Autowired
 	private List<FeatureDAO> daos;
 	
-	public Long createFeature(List<Attribute> attributes, Geometry geom, String layerName) throws LayerNameNotSupportedException {
+	/**
+	 * Layer name to DAO which serves it. Layers which no DAO supports are kept as well
+	 * (with null DAO), so unknown names don't hit data sources on every request.
+	 */
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private volatile long routeTtl = DEFAULT_ROUTE_TTL;
+	/** Features read by {@link #getFeature(Long, String)}, null when caching is off. */
+	private volatile FeatureCache cache = new FeatureCache(DEFAULT_CACHE_WEIGHT, DEFAULT_CACHE_TTL);
+	private long cacheWeight = DEFAULT_CACHE_WEIGHT;
+	private long cacheTtl = DEFAULT_CACHE_TTL;
+	private volatile boolean cacheCopies = true;
+	private int fanOutThreads = DEFAULT_FAN_OUT_THREADS;
+	private int maxQueuedLayers = DEFAULT_MAX_QUEUED_LAYERS;
+	private volatile long layerTimeout = DEFAULT_LAYER_TIMEOUT;
+	/** Reads layers of multi layer requests, created on first such request. */
+	private ThreadPoolExecutor fanOutExecutor;
+	private final LayerChangeListener routeInvalidator = new LayerChangeListener() {
+		public void layerChanged(String layerName) {
+			invalidateLayer(layerName);
+		}
+		public void allLayersChanged() {
+			invalidateAllLayers();
+		}
+	};
+	
+	/**
+	 * Subscribes to layer changes of DAOs which can report them.
+	 */
+	public void afterPropertiesSet() {
+		if (daos == null) {
+			return;
+		}
+		for (FeatureDAO dao: daos) {
+			if (dao instanceof LayerChangeNotifier) {
+				((LayerChangeNotifier) dao).addLayerChangeListener(routeInvalidator);
+			}
+		}
+	}
+	
+	public Long createFeature(List<Attribute> attributes, Geometry geom, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
 		Feature feature = new Feature();
 		feature.setAttributes(attributes);
 		feature.setGeom(geom);
 		FeatureDAO dao = chooseFeatureDAO(layerName);
 		Long id = dao.createFeature(feature, layerName);
+		invalidateFeature(layerName, id);
 		return id;
 	}
 	
-	public Feature getFeature(Long id, String layerName) throws LayerNameNotSupportedException {
+	/**
+	 * Reads feature through cache. Unless cache copies are turned off, every call returns
+	 * new copy of cached feature, so caller is free to change it.
+	 */
+	public Feature getFeature(Long id, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		FeatureCache cache = this.cache;
+		if (cache == null || id == null) {
+			return dao.getFeatureById(id, layerName);
+		}
+		boolean copies = cacheCopies;
+		Feature feature = cache.get(layerName, id);
+		if (feature != null) {
+			return copies ? feature.copy() : feature;
+		}
+		long stamp = cache.stamp();
+		feature = dao.getFeatureById(id, layerName);
+		if (feature != null) {
+			cache.put(layerName, id, copies ? feature.copy() : feature, stamp);
+		}
+		return feature;
+	}
+	
+	/**
+	 * Reads feature with given attributes only, e.g. for attribute table. Projected features
+	 * are not cached, they are read straight from data source.
+	 * @param attributeNames names of attributes to read or null for all of them
+	 */
+	public Feature getFeature(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		if (attributeNames == null && withGeometry) {
+			return getFeature(id, layerName);
+		}
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		return dao.getFeatureById(id, attributeNames, withGeometry, layerName);
+	}
+	
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		return dao.getFeaturesInBBox(bbox, layerName);
+	}
+	
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		return dao.getFeaturesIntersecting(geometry, layerName);
+	}
+	
+	/**
+	 * Streams features of given layer. Returned cursor must be closed by caller.
+	 */
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		return dao.getFeatures(query, layerName);
+	}
+	
+	/**
+	 * Reads features of many layers concurrently, on pool of at most {@link #getFanOutThreads()}
+	 * threads shared by all requests. Features are returned as soon as any layer reads them,
+	 * so whole read takes about as long as reading of the slowest layer. Layer which isn't read
+	 * in {@link #getLayerTimeout()} since this call is abandoned and reported by
+	 * {@link MultiLayerFeatureCursor#getFailedLayers()}, like layers whose reading failed. When more
+	 * than {@link #getMaxQueuedLayers()} layers wait for a thread, further ones are reported there
+	 * with {@link RejectedExecutionException} instead of being read.
+	 * Returned cursor must be closed by caller.
+	 * @param query query applied to every layer
+	 * @throws LayerNameNotSupportedException when any of layers isn't supported, nothing is read then
+	 */
+	public MultiLayerFeatureCursor getFeatures(FeatureQuery query, List<String> layerNames) throws LayerNameNotSupportedException {
+		if (layerNames == null) {
+			throw new IllegalArgumentException("Layer names cannot be null");
+		}
+		Map<String, FeatureDAO> layers = new LinkedHashMap<String, FeatureDAO>();
+		for (String layerName: new LinkedHashSet<String>(layerNames)) {
+			layers.put(layerName, chooseFeatureDAO(layerName));
+		}
+		ThreadPoolExecutor executor = getFanOutExecutor();
+		long timeout = layerTimeout;
+		MultiLayerFeatureCursor cursor = new MultiLayerFeatureCursor(FAN_OUT_QUEUE_SIZE);
+		for (Map.Entry<String, FeatureDAO> layer: layers.entrySet()) {
+			cursor.start(executor, layer.getKey(), layer.getValue(), query, timeout);
+		}
+		return cursor;
+	}
+	
+	/**
+	 * Reads features of many layers whose envelopes intersect given one, see {@link #getFeatures(FeatureQuery, List)}.
+	 */
+	public MultiLayerFeatureCursor getFeaturesInBBox(Envelope bbox, List<String> layerNames) throws LayerNameNotSupportedException {
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(bbox);
+		return getFeatures(query, layerNames);
+	}
+	
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		BatchResult result = dao.createFeatures(features, layerName);
+		for (Long id: result.getIds()) {
+			invalidateFeature(layerName, id);
+		}
+		return result;
+	}
+	
+	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		try {
+			dao.updateFeatureAttributes(id, attributes, layerName);
+		} finally {
+			// failed write may still have reached data source
+			invalidateFeature(layerName, id);
+		}
+	}
+	
+	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
 		FeatureDAO dao = chooseFeatureDAO(layerName);
-		return dao.getFeatureById(id, layerName);
+		try {
+			dao.updateFeatureGeometry(id, geometry, layerName);
+		} finally {
+			invalidateFeature(layerName, id);
+		}
+	}
+	
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		try {
+			return dao.updateFeatures(features, layerName);
+		} finally {
+			// also when batch failed half way
+			if (features != null) {
+				for (Feature feature: features) {
+					if (feature != null) {
+						invalidateFeature(layerName, feature.getId());
+					}
+				}
+			}
+		}
+	}
+	
+	public void deleteFeature(Long id, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		try {
+			dao.deleteFeature(id, layerName);
+		} finally {
+			invalidateFeature(layerName, id);
+		}
+	}
+	
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerNameNotSupportedException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		FeatureDAO dao = chooseFeatureDAO(layerName);
+		try {
+			return dao.deleteFeatures(ids, layerName);
+		} finally {
+			if (ids != null) {
+				for (Long id: ids) {
+					invalidateFeature(layerName, id);
+				}
+			}
+		}
 	}
 
+	/**
+	 * Forgets which DAO serves given layer (names are case insensitive), it's resolved again
+	 * on next use, and drops cached features of the layer.
+	 */
+	public void invalidateLayer(String layerName) {
+		if (layerName == null) {
+			return;
+		}
+		for (String name: routes.keySet()) {
+			if (name.equalsIgnoreCase(layerName)) {
+				routes.remove(name);
+			}
+		}
+		FeatureCache cache = this.cache;
+		if (cache != null) {
+			cache.invalidateLayer(layerName);
+		}
+	}
+	
+	public void invalidateAllLayers() {
+		routes.clear();
+		FeatureCache cache = this.cache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+	
+	private void invalidateFeature(String layerName, Long id) {
+		FeatureCache cache = this.cache;
+		if (cache != null && id != null) {
+			cache.invalidate(layerName, id);
+		}
+	}
+	
 	private FeatureDAO chooseFeatureDAO(String layerName) throws LayerNameNotSupportedException {
+		if (StringUtils.isEmpty(layerName)) {
+			throw new LayerNameNotSupportedException("Couldn't find data manager for given layer name");
+		}
+		long now = System.currentTimeMillis();
+		Route route = routes.get(layerName);
+		if (route == null || route.expires < now) {
+			FeatureDAO dao = findFeatureDAO(layerName);
+			route = new Route(dao, now + routeTtl);
+			if (dao != null || routes.size() < MAX_ROUTES) {
+				routes.put(layerName, route);
+			}
+		}
+		if (route.dao == null) {
+			throw new LayerNameNotSupportedException("Couldn't find data manager for given layer name");
+		}
+		return route.dao;
+	}
+	
+	private FeatureDAO findFeatureDAO(String layerName) {
 		for (FeatureDAO dao: daos) {
 			if (dao.supportsLayer(layerName)) {
 				return dao;
 			}
 		}
-		throw new LayerNameNotSupportedException("Couldn't find data manager for given layer name");
+		return null;
 	}
 
 	public List<FeatureDAO> getDaos() {
@@ -47,6 +330,173 @@ public class FeatureService {
 	}
 
 	public void setDaos(List<FeatureDAO> daos) {
+		if (this.daos != null) {
+			for (FeatureDAO dao: this.daos) {
+				if (dao instanceof LayerChangeNotifier) {
+					((LayerChangeNotifier) dao).removeLayerChangeListener(routeInvalidator);
+				}
+			}
+		}
 		this.daos = daos;
+		invalidateAllLayers();
+		afterPropertiesSet();
+	}
+	
+	public long getRouteTtl() {
+		return routeTtl;
+	}
+	
+	/**
+	 * @param routeTtl how long (ms) layer stays assigned to its DAO without asking DAOs again
+	 */
+	public void setRouteTtl(long routeTtl) {
+		this.routeTtl = routeTtl;
+	}
+	
+	/**
+	 * @return statistics of feature cache or null when caching is off
+	 */
+	public FeatureCacheStatistics getCacheStatistics() {
+		FeatureCache cache = this.cache;
+		return cache == null ? null : cache.getStatistics();
+	}
+	
+	public synchronized long getCacheWeight() {
+		return cacheWeight;
+	}
+	
+	/**
+	 * Replaces feature cache with empty one.
+	 * @param cacheWeight total vertex count of cached features, 0 turns caching off
+	 */
+	public synchronized void setCacheWeight(long cacheWeight) {
+		this.cacheWeight = cacheWeight;
+		this.cache = cacheWeight > 0 ? new FeatureCache(cacheWeight, cacheTtl) : null;
+	}
+	
+	public synchronized long getCacheTtl() {
+		return cacheTtl;
+	}
+	
+	/**
+	 * Replaces feature cache with empty one.
+	 * @param cacheTtl how long (ms) feature stays cached, 0 for no limit. Cache is invalidated by writes
+	 * made through this service and by layer changes DAOs report, other changes are seen after this time.
+	 */
+	public synchronized void setCacheTtl(long cacheTtl) {
+		if (cacheTtl < 0) {
+			throw new IllegalArgumentException("Cache ttl cannot be negative");
+		}
+		this.cacheTtl = cacheTtl;
+		this.cache = cacheWeight > 0 ? new FeatureCache(cacheWeight, cacheTtl) : null;
+	}
+	
+	public boolean isCacheCopies() {
+		return cacheCopies;
+	}
+	
+	/**
+	 * @param cacheCopies whether cache keeps and hands out copies of features (default), when off
+	 * features returned by {@link #getFeature(Long, String)} are shared and mustn't be changed
+	 */
+	public void setCacheCopies(boolean cacheCopies) {
+		this.cacheCopies = cacheCopies;
+	}
+	
+	public synchronized int getFanOutThreads() {
+		return fanOutThreads;
+	}
+	
+	/**
+	 * @param fanOutThreads how many layers can be read at once by all multi layer reads
+	 */
+	public synchronized void setFanOutThreads(int fanOutThreads) {
+		if (fanOutThreads <= 0) {
+			throw new IllegalArgumentException("Thread count has to be positive");
+		}
+		this.fanOutThreads = fanOutThreads;
+		if (fanOutExecutor != null) {
+			if (fanOutThreads > fanOutExecutor.getMaximumPoolSize()) {
+				fanOutExecutor.setMaximumPoolSize(fanOutThreads);
+				fanOutExecutor.setCorePoolSize(fanOutThreads);
+			} else {
+				fanOutExecutor.setCorePoolSize(fanOutThreads);
+				fanOutExecutor.setMaximumPoolSize(fanOutThreads);
+			}
+		}
+	}
+	
+	public synchronized int getMaxQueuedLayers() {
+		return maxQueuedLayers;
+	}
+	
+	/**
+	 * @param maxQueuedLayers how many layers of multi layer reads can wait for a thread,
+	 * it's used by pool created after this call
+	 */
+	public synchronized void setMaxQueuedLayers(int maxQueuedLayers) {
+		if (maxQueuedLayers <= 0) {
+			throw new IllegalArgumentException("Queue size has to be positive");
+		}
+		this.maxQueuedLayers = maxQueuedLayers;
+		if (fanOutExecutor != null) {
+			// reads already queued are finished by old pool
+			fanOutExecutor.shutdown();
+			fanOutExecutor = null;
+		}
+	}
+	
+	public long getLayerTimeout() {
+		return layerTimeout;
+	}
+	
+	/**
+	 * @param layerTimeout how long (ms) single layer of multi layer read can be read, 0 for no limit
+	 */
+	public void setLayerTimeout(long layerTimeout) {
+		this.layerTimeout = layerTimeout;
+	}
+	
+	/**
+	 * Stops threads reading layers of multi layer requests, reads in progress are interrupted.
+	 */
+	public synchronized void destroy() {
+		if (fanOutExecutor != null) {
+			fanOutExecutor.shutdownNow();
+			fanOutExecutor = null;
+		}
+	}
+	
+	private synchronized ThreadPoolExecutor getFanOutExecutor() {
+		if (fanOutExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			final int queueSize = maxQueuedLayers;
+			fanOutExecutor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "wharyo-fan-out-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+					if (executor.isShutdown()) {
+						throw new RejectedExecutionException("Multi layer reads are stopped");
+					}
+					throw new RejectedExecutionException("Too many layers wait to be read, limit is " + queueSize);
+				}
+			});
+			fanOutExecutor.allowCoreThreadTimeOut(true);
+		}
+		return fanOutExecutor;
+	}
+	
+	private static class Route {
+		private final FeatureDAO dao;
+		private final long expires;
+		
+		private Route(FeatureDAO dao, long expires) {
+			this.dao = dao;
+			this.expires = expires;
+		}
 	}
 }
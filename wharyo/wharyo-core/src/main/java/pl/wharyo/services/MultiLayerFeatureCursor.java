@@ -0,0 +1,257 @@
+package pl.wharyo.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.model.Feature;
+
+/**
+ * Features of many layers read concurrently, in order they arrive from layers. Each layer
+ * is read by its own task, tasks hand features over through bounded queue, so they wait
+ * when caller reads slower than layers are read. Layer which isn't read completely before
+ * its deadline is abandoned, features it returned so far stay returned. Task stops at the
+ * deadline on its own too, so it doesn't hold pool thread when caller stopped reading.
+ * Like every cursor it must be closed, closing stops reading of all layers.
+ */
+public class MultiLayerFeatureCursor implements FeatureCursor {
+
+	private static final Logger logger = Logger.getLogger(MultiLayerFeatureCursor.class);
+	private static final long OFFER_WAIT_MILLIS = 50;
+
+	private final BlockingQueue<Item> queue;
+	private final List<LayerRead> reads = new ArrayList<LayerRead>();
+	private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+	private int running;
+	private Item current;
+	private String layerName;
+	private volatile boolean closed;
+
+	MultiLayerFeatureCursor(int queueSize) {
+		this.queue = new ArrayBlockingQueue<Item>(queueSize);
+	}
+
+	/**
+	 * @param timeout how long (ms) layer can be read, 0 for no limit
+	 */
+	void start(ExecutorService executor, String layerName, FeatureDAO dao, FeatureQuery query, long timeout) {
+		LayerRead read = new LayerRead(layerName, dao, query, timeout);
+		reads.add(read);
+		running++;
+		try {
+			read.future = executor.submit(read);
+		} catch (RejectedExecutionException e) {
+			logger.warn("Layer " + layerName + " wasn't read: " + e.getMessage());
+			finish(read, e);
+		}
+	}
+
+	public boolean hasNext() {
+		if (current != null) {
+			return true;
+		}
+		while (running > 0 && !closed) {
+			long wait = timeOutExpired();
+			if (running == 0) {
+				break;
+			}
+			Item item;
+			try {
+				item = queue.poll(wait, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (item == null || item.read.done) {
+				// nothing yet or leftover of abandoned layer
+				continue;
+			} else if (item.feature == null) {
+				finish(item.read, item.read.error);
+				continue;
+			}
+			current = item;
+			return true;
+		}
+		close();
+		return false;
+	}
+
+	public Feature next() throws NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Feature feature = current.feature;
+		layerName = current.read.layerName;
+		current = null;
+		return feature;
+	}
+
+	/**
+	 * @return name of layer of feature last returned by {@link #next()}
+	 */
+	public String getLayerName() {
+		return layerName;
+	}
+
+	/**
+	 * Layers whose reading failed or timed out (with {@link TimeoutException}), so far.
+	 * It's complete when cursor returned all features.
+	 */
+	public Map<String, Exception> getFailedLayers() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (LayerRead read: reads) {
+			cancel(read);
+		}
+		running = 0;
+		current = null;
+		queue.clear();
+	}
+
+	/**
+	 * Abandons layers read longer than they could.
+	 * @return time (ns) till nearest deadline of layers still read
+	 */
+	private long timeOutExpired() {
+		long now = System.nanoTime();
+		long wait = Long.MAX_VALUE;
+		for (LayerRead read: reads) {
+			if (read.done || read.timeout <= 0) {
+				continue;
+			}
+			long left = read.deadline - now;
+			if (left <= 0) {
+				cancel(read);
+				finish(read, new TimeoutException("Layer " + read.layerName + " wasn't read in " + read.timeout + " ms"));
+				logger.warn("Reading of layer " + read.layerName + " timed out");
+			} else {
+				wait = Math.min(wait, left);
+			}
+		}
+		return wait;
+	}
+
+	private void finish(LayerRead read, Exception error) {
+		read.done = true;
+		running--;
+		if (error != null) {
+			failures.put(read.layerName, error);
+		}
+	}
+
+	private void cancel(LayerRead read) {
+		read.cancelled = true;
+		if (read.future != null) {
+			read.future.cancel(true);
+		}
+	}
+
+	private static class Item {
+		private final LayerRead read;
+		/** Null marks that layer was read to the end. */
+		private final Feature feature;
+
+		private Item(LayerRead read, Feature feature) {
+			this.read = read;
+			this.feature = feature;
+		}
+	}
+
+	/**
+	 * Reads single layer on executor thread. Fields which are not volatile belong to caller thread,
+	 * except error, which is written before end of layer is queued.
+	 */
+	private class LayerRead implements Runnable {
+		private final String layerName;
+		private final FeatureDAO dao;
+		private final FeatureQuery query;
+		private final long timeout;
+		private final long deadline;
+		private volatile boolean cancelled;
+		private Future<?> future;
+		private Exception error;
+		private boolean done;
+
+		private LayerRead(String layerName, FeatureDAO dao, FeatureQuery query, long timeout) {
+			this.layerName = layerName;
+			this.dao = dao;
+			this.query = query;
+			this.timeout = timeout;
+			this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		}
+
+		public void run() {
+			if (isExpired()) {
+				// waited for thread too long, caller reports timeout
+				return;
+			}
+			FeatureCursor cursor = null;
+			try {
+				cursor = dao.getFeatures(query, layerName);
+				while (!cancelled && !isExpired() && cursor.hasNext()) {
+					if (!offer(new Item(this, cursor.next()))) {
+						return;
+					}
+				}
+			} catch (Exception e) {
+				if (!cancelled) {
+					logger.warn("Couldn't read layer " + layerName, e);
+				}
+				error = e;
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+			}
+			offer(new Item(this, null));
+		}
+
+		/**
+		 * @return false when reading was stopped or deadline passed before feature was queued
+		 */
+		private boolean offer(Item item) {
+			try {
+				while (!cancelled && !closed) {
+					long wait = TimeUnit.MILLISECONDS.toNanos(OFFER_WAIT_MILLIS);
+					if (timeout > 0) {
+						wait = Math.min(wait, deadline - System.nanoTime());
+						if (wait <= 0) {
+							return false;
+						}
+					}
+					if (queue.offer(item, wait, TimeUnit.NANOSECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+
+		private boolean isExpired() {
+			return timeout > 0 && deadline - System.nanoTime() <= 0;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package pl.wharyo.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import pl.wharyo.model.Feature;
+
+public class FeatureCacheTest {
+
+	private static final String LAYER_NAME = "roads";
+
+	private final GeometryFactory factory = new GeometryFactory();
+
+	@Test
+	public void get_cachedFeature_shouldReturnItAndCountHit() {
+		FeatureCache cache = new FeatureCache(100, 0);
+		Feature feature = createFeature(1L);
+		assertNull(cache.get(LAYER_NAME, 1L));
+		cache.put(LAYER_NAME, 1L, feature, cache.stamp());
+		assertSame(feature, cache.get(LAYER_NAME, 1L));
+		assertNull(cache.get(LAYER_NAME, 2L));
+		assertNull(cache.get("rivers", 1L));
+
+		FeatureCacheStatistics statistics = cache.getStatistics();
+		assertEquals(1, statistics.getHits());
+		assertEquals(3, statistics.getMisses());
+		assertEquals(1, statistics.getSize());
+		assertEquals(FeatureCache.weigh(feature), statistics.getWeight());
+	}
+
+	@Test
+	public void put_invalidatedSinceStampWasTaken_shouldNotCache() {
+		FeatureCache cache = new FeatureCache(100, 0);
+		long stamp = cache.stamp();
+		// feature written while it was read, what was read may be out of date
+		cache.invalidate(LAYER_NAME, 1L);
+		cache.put(LAYER_NAME, 1L, createFeature(1L), stamp);
+		assertNull(cache.get(LAYER_NAME, 1L));
+
+		cache.put(LAYER_NAME, 1L, createFeature(1L), cache.stamp());
+		assertNotNull(cache.get(LAYER_NAME, 1L));
+	}
+
+	@Test
+	public void invalidate_layerNameInOtherCase_shouldDropFeature() {
+		FeatureCache cache = new FeatureCache(100, 0);
+		cache.put("Roads", 1L, createFeature(1L), cache.stamp());
+		cache.put("Roads", 2L, createFeature(2L), cache.stamp());
+		cache.invalidate("ROADS", 1L);
+		assertNull(cache.get("Roads", 1L));
+		assertNotNull(cache.get("Roads", 2L));
+
+		cache.invalidateLayer("roads");
+		assertNull(cache.get("Roads", 2L));
+		assertEquals(0, cache.getStatistics().getSize());
+		assertEquals(0, cache.getStatistics().getWeight());
+	}
+
+	@Test
+	public void get_layerNameInOtherCase_shouldMiss() {
+		FeatureCache cache = new FeatureCache(100, 0);
+		cache.put("Roads", 1L, createFeature(1L), cache.stamp());
+		assertNull(cache.get("roads", 1L));
+
+		Feature feature = createFeature(1L);
+		cache.put("roads", 1L, feature, cache.stamp());
+		assertSame(feature, cache.get("roads", 1L));
+		assertEquals(1, cache.getStatistics().getSize());
+	}
+
+	@Test
+	public void get_expiredFeature_shouldReturnNull() throws InterruptedException {
+		FeatureCache cache = new FeatureCache(100, 1);
+		cache.put(LAYER_NAME, 1L, createFeature(1L), cache.stamp());
+		Thread.sleep(20);
+		assertNull(cache.get(LAYER_NAME, 1L));
+		assertEquals(0, cache.getStatistics().getSize());
+	}
+
+	@Test
+	public void put_overMaxWeight_shouldEvict() {
+		FeatureCache cache = new FeatureCache(20, 0);
+		for (long id = 0; id < 100; id++) {
+			cache.get(LAYER_NAME, id);
+			cache.put(LAYER_NAME, id, createFeature(id), cache.stamp());
+		}
+		FeatureCacheStatistics statistics = cache.getStatistics();
+		assertTrue(statistics.getWeight() <= 20);
+		assertEquals(100 - statistics.getSize(), statistics.getEvictions());
+	}
+
+	@Test
+	public void put_scanOfFeaturesReadOnce_shouldNotEvictFrequentlyReadOnes() {
+		FeatureCache cache = new FeatureCache(100, 0);
+		for (long id = 0; id < 20; id++) {
+			cache.get(LAYER_NAME, id);
+			cache.put(LAYER_NAME, id, createFeature(id), cache.stamp());
+		}
+		for (int i = 0; i < 5; i++) {
+			for (long id = 0; id < 20; id++) {
+				assertNotNull(cache.get(LAYER_NAME, id));
+			}
+		}
+		for (long id = 1000; id < 1500; id++) {
+			cache.get(LAYER_NAME, id);
+			cache.put(LAYER_NAME, id, createFeature(id), cache.stamp());
+		}
+		for (long id = 0; id < 20; id++) {
+			assertNotNull(cache.get(LAYER_NAME, id));
+		}
+		assertTrue(cache.getStatistics().getEvictions() > 0);
+		assertTrue(cache.getStatistics().getWeight() <= 100);
+	}
+
+	@Test
+	public void put_featureHeavierThanCache_shouldNotCache() {
+		FeatureCache cache = new FeatureCache(1, 0);
+		cache.put(LAYER_NAME, 1L, createFeature(1L), cache.stamp());
+		assertNull(cache.get(LAYER_NAME, 1L));
+		assertEquals(0, cache.getStatistics().getWeight());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void constructor_negativeTtl_shouldThrowException() {
+		new FeatureCache(100, -1);
+	}
+
+	private Feature createFeature(long id) {
+		Feature feature = new Feature();
+		feature.setId(id);
+		feature.setGeom(factory.createPoint(new Coordinate(id, id)));
+		return feature;
+	}
+}
@@ -0,0 +1,245 @@
+package pl.wharyo.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
+
+public class FeatureServiceTest {
+
+	private static final String LAYER_NAME = "roads";
+
+	private final GeometryFactory factory = new GeometryFactory();
+	private InMemoryFeatureDAO dao;
+	private FeatureService service;
+	private Long id;
+
+	@Before
+	public void setUp() throws Exception {
+		dao = new InMemoryFeatureDAO(LAYER_NAME, "rivers");
+		service = new FeatureService();
+		service.setDaos(Arrays.<FeatureDAO>asList(dao));
+		id = service.createFeature(Collections.singletonList(createAttribute("name", "first")), factory.createPoint(new Coordinate(1, 1)), LAYER_NAME);
+	}
+
+	@After
+	public void tearDown() {
+		service.destroy();
+	}
+
+	// feature cache
+
+	@Test
+	public void getFeature_readTwice_shouldReadDataSourceOnce() throws Exception {
+		assertEquals("first", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+		service.getFeature(id, LAYER_NAME).getAttribute("name").setValue("changed by caller");
+		assertEquals("first", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+		assertEquals(1, dao.getReads());
+	}
+
+	@Test
+	public void updateFeatureAttributes_cachedFeature_shouldReadNewValue() throws Exception {
+		service.getFeature(id, LAYER_NAME);
+		service.updateFeatureAttributes(id, Collections.singletonList(createAttribute("name", "second")), LAYER_NAME);
+		assertEquals("second", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+		assertEquals(2, dao.getReads());
+	}
+
+	@Test
+	public void updateFeatureGeometry_cachedFeature_shouldReadNewGeometry() throws Exception {
+		service.getFeature(id, LAYER_NAME);
+		service.updateFeatureGeometry(id, factory.createPoint(new Coordinate(2, 2)), LAYER_NAME);
+		assertEquals(2, service.getFeature(id, LAYER_NAME).getGeom().getCoordinate().x, 0);
+	}
+
+	@Test
+	public void deleteFeature_cachedFeature_shouldNotBeReturned() throws Exception {
+		service.getFeature(id, LAYER_NAME);
+		service.deleteFeature(id, LAYER_NAME);
+		assertNull(service.getFeature(id, LAYER_NAME));
+	}
+
+	@Test
+	public void getFeature_layerChangedInDataSource_shouldReadNewValue() throws Exception {
+		service.getFeature(id, LAYER_NAME);
+		dao.updateFeatureAttributes(id, Collections.singletonList(createAttribute("name", "second")), LAYER_NAME);
+		assertEquals("first", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+
+		dao.fireLayerChanged(LAYER_NAME.toUpperCase());
+		assertEquals("second", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+	}
+
+	@Test
+	public void getFeature_cacheTtlPassed_shouldReadNewValue() throws Exception {
+		service.setCacheTtl(1);
+		service.getFeature(id, LAYER_NAME);
+		dao.updateFeatureAttributes(id, Collections.singletonList(createAttribute("name", "second")), LAYER_NAME);
+		Thread.sleep(20);
+		assertEquals("second", service.getFeature(id, LAYER_NAME).getAttribute("name").getValue());
+	}
+
+	@Test
+	public void getFeature_cachingOff_shouldAlwaysReadDataSource() throws Exception {
+		service.setCacheWeight(0);
+		service.getFeature(id, LAYER_NAME);
+		service.getFeature(id, LAYER_NAME);
+		assertEquals(2, dao.getReads());
+		assertNull(service.getCacheStatistics());
+		service.setCacheTtl(1000);
+		assertNull(service.getCacheStatistics());
+		assertEquals(1000, service.getCacheTtl());
+	}
+
+	// multi layer reads
+
+	@Test
+	public void getFeatures_manyLayers_shouldReturnFeaturesOfAllLayers() throws Exception {
+		Long riverId = service.createFeature(Collections.singletonList(createAttribute("name", "river")), factory.createPoint(new Coordinate(5, 5)), "rivers");
+		MultiLayerFeatureCursor cursor = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME, "rivers", LAYER_NAME));
+		List<String> read = new ArrayList<String>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				read.add(cursor.getLayerName() + ":" + feature.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(2, read.size());
+		assertTrue(read.containsAll(Arrays.asList(LAYER_NAME + ":" + id, "rivers:" + riverId)));
+		assertTrue(cursor.getFailedLayers().isEmpty());
+		assertEquals(0, dao.getOpenCursors());
+	}
+
+	@Test
+	public void getFeatures_slowLayers_shouldBeReadConcurrently() throws Exception {
+		dao.setReadDelay(LAYER_NAME, 500);
+		dao.setReadDelay("rivers", 500);
+		long start = System.currentTimeMillis();
+		MultiLayerFeatureCursor cursor = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME, "rivers"));
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+			}
+		} finally {
+			cursor.close();
+		}
+		assertTrue(System.currentTimeMillis() - start < 900);
+		assertTrue(cursor.getFailedLayers().isEmpty());
+	}
+
+	@Test
+	public void getFeatures_layerSlowerThanTimeout_shouldBeReportedAsFailed() throws Exception {
+		service.setLayerTimeout(200);
+		dao.setReadDelay("rivers", 5000);
+		long start = System.currentTimeMillis();
+		MultiLayerFeatureCursor cursor = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME, "rivers"));
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(Arrays.asList(id), ids);
+		assertEquals(1, cursor.getFailedLayers().size());
+		assertTrue(cursor.getFailedLayers().get("rivers") instanceof TimeoutException);
+	}
+
+	@Test
+	public void getFeatures_failingLayer_shouldBeReportedAsFailed() throws Exception {
+		LayerDataSourceNotAvailableException failure = new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		dao.setFailure("rivers", failure);
+		MultiLayerFeatureCursor cursor = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME, "rivers"));
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				cursor.next();
+				count++;
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(1, count);
+		assertEquals(Collections.singletonMap("rivers", failure), cursor.getFailedLayers());
+	}
+
+	@Test
+	public void getFeatures_cursorNotReadPastTimeout_shouldReleaseThread() throws Exception {
+		// more features than cursor queues, so layer task waits for caller
+		for (int i = 0; i < 1500; i++) {
+			service.createFeature(Collections.<Attribute>emptyList(), factory.createPoint(new Coordinate(i, i)), LAYER_NAME);
+		}
+		service.setLayerTimeout(200);
+		service.setFanOutThreads(1);
+		MultiLayerFeatureCursor cursor = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME));
+		try {
+			for (int i = 0; i < 50 && dao.getOpenCursors() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, dao.getOpenCursors());
+			Thread.sleep(500);
+			assertEquals(0, dao.getOpenCursors());
+
+			// single thread of the pool reads other layers again
+			MultiLayerFeatureCursor other = service.getFeatures(new FeatureQuery(), Arrays.asList("rivers"));
+			assertFalse(other.hasNext());
+			assertTrue(other.getFailedLayers().isEmpty());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void getFeatures_moreLayersWaitingThanAllowed_shouldRejectThem() throws Exception {
+		dao.setReadDelay(LAYER_NAME, 300);
+		dao.setReadDelay("rivers", 300);
+		service.setFanOutThreads(1);
+		service.setMaxQueuedLayers(1);
+		MultiLayerFeatureCursor first = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME, "rivers"));
+		MultiLayerFeatureCursor second = service.getFeatures(new FeatureQuery(), Arrays.asList(LAYER_NAME));
+		try {
+			assertFalse(second.hasNext());
+			assertTrue(second.getFailedLayers().get(LAYER_NAME) instanceof RejectedExecutionException);
+			int count = 0;
+			while (first.hasNext()) {
+				first.next();
+				count++;
+			}
+			assertEquals(1, count);
+			assertTrue(first.getFailedLayers().isEmpty());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	private Attribute createAttribute(String name, String value) throws Exception {
+		Attribute attribute = new Attribute(name, AttributeType.TEXT);
+		attribute.setValue(value);
+		return attribute;
+	}
+}
@@ -0,0 +1,215 @@
+package pl.wharyo.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.LayerChangeNotifier;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.attributes.Attribute;
+
+/**
+ * Keeps features of its layers in memory, counts reads by id and open cursors. Streaming reads
+ * of a layer can be slowed down or made to fail.
+ */
+class InMemoryFeatureDAO implements FeatureDAO, LayerChangeNotifier {
+
+	private final Map<String, Map<Long, Feature>> layers = new ConcurrentHashMap<String, Map<Long, Feature>>();
+	private final List<LayerChangeListener> listeners = new CopyOnWriteArrayList<LayerChangeListener>();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicInteger openCursors = new AtomicInteger();
+	private final Map<String, Long> readDelays = new ConcurrentHashMap<String, Long>();
+	private final Map<String, LayerDataSourceNotAvailableException> failures = new ConcurrentHashMap<String, LayerDataSourceNotAvailableException>();
+
+	InMemoryFeatureDAO(String... layerNames) {
+		for (String layerName: layerNames) {
+			layers.put(layerName, new ConcurrentSkipListMap<Long, Feature>());
+		}
+	}
+
+	int getReads() {
+		return reads.get();
+	}
+
+	int getOpenCursors() {
+		return openCursors.get();
+	}
+
+	/**
+	 * @param delay how long (ms) it takes to open cursor of given layer
+	 */
+	void setReadDelay(String layerName, long delay) {
+		readDelays.put(layerName, delay);
+	}
+
+	void setFailure(String layerName, LayerDataSourceNotAvailableException failure) {
+		failures.put(layerName, failure);
+	}
+
+	/**
+	 * Tells listeners that layer was changed, e.g. by somebody else.
+	 */
+	void fireLayerChanged(String layerName) {
+		for (LayerChangeListener listener: listeners) {
+			listener.layerChanged(layerName);
+		}
+	}
+
+	public Long createFeature(Feature feature, String layerName) throws LayerDataSourceNotAvailableException {
+		Long id = Long.valueOf(nextId.incrementAndGet());
+		Feature stored = feature.copy();
+		stored.setId(id);
+		getLayer(layerName).put(id, stored);
+		return id;
+	}
+
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException {
+		BatchResult result = new BatchResult(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			result.success(i, createFeature(features.get(i), layerName));
+		}
+		return result;
+	}
+
+	public Feature getFeatureById(Long id, String layerName) throws LayerDataSourceNotAvailableException {
+		reads.incrementAndGet();
+		Feature feature = getLayer(layerName).get(id);
+		return feature == null ? null : feature.copy();
+	}
+
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerDataSourceNotAvailableException {
+		return getFeatureById(id, layerName);
+	}
+
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerDataSourceNotAvailableException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (Feature feature: getLayer(layerName).values()) {
+			if (bbox == null || bbox.intersects(feature.getGeom().getEnvelopeInternal())) {
+				features.add(feature.copy());
+			}
+		}
+		return features;
+	}
+
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (Feature feature: getLayer(layerName).values()) {
+			if (geometry.intersects(feature.getGeom())) {
+				features.add(feature.copy());
+			}
+		}
+		return features;
+	}
+
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerDataSourceNotAvailableException {
+		Long delay = readDelays.get(layerName);
+		if (delay != null) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+			}
+		}
+		if (failures.containsKey(layerName)) {
+			throw failures.get(layerName);
+		}
+		final Iterator<Feature> iterator = getFeaturesInBBox(query.getBBox(), layerName).iterator();
+		openCursors.incrementAndGet();
+		return new FeatureCursor() {
+			private boolean closed;
+			public boolean hasNext() {
+				return !closed && iterator.hasNext();
+			}
+			public Feature next() throws NoSuchElementException {
+				return iterator.next();
+			}
+			public void close() {
+				if (!closed) {
+					closed = true;
+					openCursors.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerDataSourceNotAvailableException {
+		Feature feature = getLayer(layerName).get(id);
+		if (feature != null) {
+			for (Attribute attribute: attributes) {
+				feature.removeAttribute(attribute.getName());
+				feature.addAttribute(attribute);
+			}
+		}
+	}
+
+	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException {
+		Feature feature = getLayer(layerName).get(id);
+		if (feature != null) {
+			feature.setGeom(geometry);
+		}
+	}
+
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException {
+		BatchResult result = new BatchResult(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			Feature feature = features.get(i);
+			getLayer(layerName).put(feature.getId(), feature.copy());
+			result.success(i, feature.getId());
+		}
+		return result;
+	}
+
+	public void deleteFeature(Long id, String layerName) throws LayerDataSourceNotAvailableException {
+		getLayer(layerName).remove(id);
+	}
+
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerDataSourceNotAvailableException {
+		BatchResult result = new BatchResult(ids.size());
+		int i = 0;
+		for (Long id: ids) {
+			deleteFeature(id, layerName);
+			result.success(i++, id);
+		}
+		return result;
+	}
+
+	public boolean supportsLayer(String layerName) {
+		return layerName != null && layers.containsKey(layerName);
+	}
+
+	public void addLayerChangeListener(LayerChangeListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeLayerChangeListener(LayerChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	private Map<Long, Feature> getLayer(String layerName) throws LayerDataSourceNotAvailableException {
+		Map<Long, Feature> layer = layerName == null ? null : layers.get(layerName);
+		if (layer == null) {
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		return layer;
+	}
+}
@@ -0,0 +1,66 @@
+package pl.wharyo.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of bulk operation. Results are kept in the same order as given input,
+ * every item has either feature id or reason of failure.
+ */
+public class BatchResult {
+
+	private final List<Long> ids;
+	private final List<String> errors;
+	private int failures;
+
+	public BatchResult(int size) {
+		ids = new ArrayList<Long>(Collections.<Long>nCopies(size, null));
+		errors = new ArrayList<String>(Collections.<String>nCopies(size, null));
+	}
+
+	public void success(int index, Long id) {
+		if (errors.set(index, null) != null) {
+			failures--;
+		}
+		ids.set(index, id);
+	}
+
+	public void failure(int index, String reason) {
+		ids.set(index, null);
+		if (errors.set(index, reason) == null) {
+			failures++;
+		}
+	}
+
+	/**
+	 * @return feature ids in input order, null for failed items
+	 */
+	public List<Long> getIds() {
+		return Collections.unmodifiableList(ids);
+	}
+
+	public Long getId(int index) {
+		return ids.get(index);
+	}
+
+	public boolean isSuccess(int index) {
+		return errors.get(index) == null;
+	}
+
+	public String getError(int index) {
+		return errors.get(index);
+	}
+
+	public boolean hasFailures() {
+		return failures > 0;
+	}
+
+	public int getFailureCount() {
+		return failures;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,22 @@
+package pl.wharyo.dao;
+
+import java.io.Closeable;
+import java.util.NoSuchElementException;
+
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+
+/**
+ * Reads features one by one, only current feature is kept in memory.
+ * Cursor holds layer resources (open files, connection), so it must always be closed,
+ * preferably in finally block. Cursor is closed automatically after last feature was read.
+ * Single cursor must not be used by many threads.
+ */
+public interface FeatureCursor extends Closeable {
+
+	public boolean hasNext();
+
+	public Feature next() throws NoSuchElementException, UnsupportedAttributeType;
+
+	public void close();
+}
@@ -1,9 +1,9 @@
 package pl.wharyo.dao;
 
+import java.util.Collection;
 import java.util.List;
 
-import org.springframework.cache.annotation.Cacheable;
-
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 import pl.wharyo.exceptions.BrokenFeatureException;
@@ -24,16 +24,56 @@ public interface FeatureDAO {
 	// C
 	public Long createFeature(Feature feature, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException;
 	
+	/**
+	 * Creates all given features in single transaction.
+	 * @return generated ids in the same order as features
+	 */
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
+	
 	// R
 	public Feature getFeatureById(Long id, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType;
 	
+	/**
+	 * Reads feature with given attributes only. Fields of other attributes and geometry
+	 * (unless requested) are not decoded when data source allows it.
+	 * @param attributeNames names of attributes to read (case insensitive) or null for all of them
+	 * @param withGeometry false when feature should be read without geometry
+	 */
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType;
+	
+	/**
+	 * Reads features whose geometry envelope intersects given envelope (in layer CRS).
+	 */
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType;
+	
+	/**
+	 * Reads features whose geometry intersects given geometry (in layer CRS).
+	 */
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType;
+	
+	/**
+	 * Opens cursor over features matching given query. Features are read lazily,
+	 * so memory use doesn't depend on layer size. Returned cursor must be closed.
+	 */
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
+	
 	// U
 	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
 	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException;
 	
+	/**
+	 * Updates attributes and geometry (when not null) of all given features in single transaction.
+	 * Features are matched by id.
+	 */
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
+	
 	// D
 	public void deleteFeature(Long id, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
 	
-	@Cacheable
+	/**
+	 * Deletes all features with given ids in single transaction.
+	 */
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
+	
 	public boolean supportsLayer(String layerName);
 }
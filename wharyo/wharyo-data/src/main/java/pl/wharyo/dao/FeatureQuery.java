@@ -0,0 +1,70 @@
+package pl.wharyo.dao;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import pl.wharyo.dao.filter.AttributeFilter;
+
+/**
+ * Describes which features and which of their attributes should be read from layer.
+ * Empty query reads whole layer with all attributes.
+ */
+public class FeatureQuery {
+
+	private List<String> attributeNames;
+	private Envelope bbox;
+	private AttributeFilter filter;
+	private boolean withGeometry = true;
+
+	/**
+	 * @return names of attributes to read or null when all of them should be read
+	 */
+	public List<String> getAttributeNames() {
+		return attributeNames;
+	}
+
+	/**
+	 * Restricts read attributes to given ones (names are case insensitive).
+	 * Id is always read, DAOs don't decode fields of other attributes when data source allows it.
+	 */
+	public void setAttributeNames(List<String> attributeNames) {
+		this.attributeNames = attributeNames;
+	}
+
+	public boolean isWithGeometry() {
+		return withGeometry;
+	}
+
+	/**
+	 * Turns reading of geometries off, features are read without them (bbox can still be used).
+	 * Geometries are read by default.
+	 */
+	public void setWithGeometry(boolean withGeometry) {
+		this.withGeometry = withGeometry;
+	}
+
+	public Envelope getBBox() {
+		return bbox;
+	}
+
+	/**
+	 * Restricts features to those whose geometry envelope intersects given one.
+	 * Envelope has to be in layer CRS.
+	 */
+	public void setBBox(Envelope bbox) {
+		this.bbox = bbox;
+	}
+
+	public AttributeFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Restricts features to those matching given filter. Filter can use attributes which
+	 * aren't read. DAOs pass filter to data source when it can apply it.
+	 */
+	public void setFilter(AttributeFilter filter) {
+		this.filter = filter;
+	}
+}
@@ -0,0 +1,15 @@
+package pl.wharyo.dao;
+
+/**
+ * Gets notified when layers appear, disappear, change their configuration or, when data source
+ * can tell it, their features are changed.
+ */
+public interface LayerChangeListener {
+
+	public void layerChanged(String layerName);
+
+	/**
+	 * Called when it's not known which layers have changed, e.g. some change events were lost.
+	 */
+	public void allLayersChanged();
+}
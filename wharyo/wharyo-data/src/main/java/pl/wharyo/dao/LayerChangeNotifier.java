@@ -0,0 +1,12 @@
+package pl.wharyo.dao;
+
+/**
+ * Implemented by {@link FeatureDAO}s which are able to detect that set of their layers has changed.
+ * Listeners are called from DAO's own thread.
+ */
+public interface LayerChangeNotifier {
+
+	public void addLayerChangeListener(LayerChangeListener listener);
+
+	public void removeLayerChangeListener(LayerChangeListener listener);
+}
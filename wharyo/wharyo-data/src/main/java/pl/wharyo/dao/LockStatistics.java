@@ -0,0 +1,65 @@
+package pl.wharyo.dao;
+
+/**
+ * Lock usage of single layer, counted since DAO was created. Wait time is time spent
+ * between asking for the lock and getting it, so it's close to zero when there is no contention.
+ */
+public class LockStatistics {
+
+	private final long readLocks;
+	private final long readWaitNanos;
+	private final long maxReadWaitNanos;
+	private final long writeLocks;
+	private final long writeWaitNanos;
+	private final long maxWriteWaitNanos;
+
+	public LockStatistics(long readLocks, long readWaitNanos, long maxReadWaitNanos, long writeLocks, long writeWaitNanos, long maxWriteWaitNanos) {
+		this.readLocks = readLocks;
+		this.readWaitNanos = readWaitNanos;
+		this.maxReadWaitNanos = maxReadWaitNanos;
+		this.writeLocks = writeLocks;
+		this.writeWaitNanos = writeWaitNanos;
+		this.maxWriteWaitNanos = maxWriteWaitNanos;
+	}
+
+	/**
+	 * @return how many times read lock was taken
+	 */
+	public long getReadLocks() {
+		return readLocks;
+	}
+
+	/**
+	 * @return total time readers waited for the lock
+	 */
+	public long getReadWaitNanos() {
+		return readWaitNanos;
+	}
+
+	public long getMaxReadWaitNanos() {
+		return maxReadWaitNanos;
+	}
+
+	/**
+	 * @return how many times write lock was taken
+	 */
+	public long getWriteLocks() {
+		return writeLocks;
+	}
+
+	/**
+	 * @return total time writers waited for the lock
+	 */
+	public long getWriteWaitNanos() {
+		return writeWaitNanos;
+	}
+
+	public long getMaxWriteWaitNanos() {
+		return maxWriteWaitNanos;
+	}
+
+	public String toString() {
+		return "reads: " + readLocks + " (waited " + readWaitNanos / 1000000 + " ms, max " + maxReadWaitNanos / 1000000 + " ms), writes: "
+				+ writeLocks + " (waited " + writeWaitNanos / 1000000 + " ms, max " + maxWriteWaitNanos / 1000000 + " ms)";
+	}
+}
@@ -0,0 +1,175 @@
+package pl.wharyo.dao.filter;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import pl.wharyo.exceptions.InvalidFilterException;
+import pl.wharyo.model.FeatureSchema;
+
+/**
+ * Condition on attribute values of features. Filters are immutable, they can be built with
+ * factory methods of this class or parsed from expression like
+ * <code>name LIKE 'A%' AND area BETWEEN 10 AND 20.5</code>, see {@link FilterParser}.
+ * Attribute names are case insensitive. Comparison with attribute which has no value is
+ * never true, so <code>NOT area &gt; 10</code> matches features without area too.
+ */
+public abstract class AttributeFilter {
+
+	AttributeFilter() {
+	}
+
+	public abstract <T> T accept(FilterVisitor<T> visitor);
+
+	/**
+	 * Adds lower case names of attributes used by filter to given set.
+	 */
+	abstract void collectAttributeNames(Set<String> names);
+
+	/**
+	 * @return lower case names of attributes used by filter
+	 */
+	public Set<String> getAttributeNames() {
+		Set<String> names = new LinkedHashSet<String>();
+		collectAttributeNames(names);
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * @throws IllegalArgumentException when filter uses attribute which isn't in schema
+	 * or compares attribute with value of other type
+	 */
+	public FeaturePredicate compile(FeatureSchema schema) {
+		return accept(new FilterCompiler(schema));
+	}
+
+	/**
+	 * Parses expression, parsed filters are cached by expression, see {@link FilterParser}.
+	 */
+	public static AttributeFilter parse(String expression) throws InvalidFilterException {
+		return FilterParser.parse(expression);
+	}
+
+	/**
+	 * @return filter as expression which {@link #parse(String)} accepts
+	 */
+	public abstract String toString();
+
+	public static AttributeFilter equal(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.EQUAL, value);
+	}
+
+	public static AttributeFilter notEqual(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.NOT_EQUAL, value);
+	}
+
+	public static AttributeFilter less(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.LESS, value);
+	}
+
+	public static AttributeFilter lessOrEqual(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.LESS_OR_EQUAL, value);
+	}
+
+	public static AttributeFilter greater(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.GREATER, value);
+	}
+
+	public static AttributeFilter greaterOrEqual(String attributeName, Object value) {
+		return new ComparisonFilter(attributeName, ComparisonFilter.Operator.GREATER_OR_EQUAL, value);
+	}
+
+	/**
+	 * Both bounds are included.
+	 */
+	public static AttributeFilter between(String attributeName, Object lower, Object upper) {
+		return new BetweenFilter(attributeName, lower, upper);
+	}
+
+	public static AttributeFilter in(String attributeName, List<?> values) {
+		return new InFilter(attributeName, values);
+	}
+
+	/**
+	 * @param pattern SQL like pattern, '%' matches any text, '_' single character and
+	 * '\' escapes them, matching is case sensitive
+	 */
+	public static AttributeFilter like(String attributeName, String pattern) {
+		return new LikeFilter(attributeName, pattern);
+	}
+
+	public static AttributeFilter isNull(String attributeName) {
+		return new NullFilter(attributeName);
+	}
+
+	public static AttributeFilter and(AttributeFilter... filters) {
+		return new LogicalFilter(LogicalFilter.Type.AND, Arrays.asList(filters));
+	}
+
+	public static AttributeFilter or(AttributeFilter... filters) {
+		return new LogicalFilter(LogicalFilter.Type.OR, Arrays.asList(filters));
+	}
+
+	public static AttributeFilter not(AttributeFilter filter) {
+		return new NotFilter(filter);
+	}
+
+	static String checkName(String attributeName) {
+		if (attributeName == null || attributeName.length() == 0) {
+			throw new IllegalArgumentException("Attribute name cannot be null or empty string");
+		}
+		return attributeName;
+	}
+
+	/**
+	 * @return value of type attributes have: Integer is changed to Long and Float to Double
+	 */
+	static Object checkValue(Object value) {
+		if (value instanceof Long || value instanceof Double || value instanceof String || value instanceof Boolean) {
+			return value;
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		} else if (value instanceof Float) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof Date) {
+			return new Date(((Date) value).getTime());
+		} else if (value == null) {
+			throw new IllegalArgumentException("Filter value cannot be null, use isNull instead");
+		}
+		throw new IllegalArgumentException("Unsupported filter value type: " + value.getClass().getName());
+	}
+
+	static String format(Object value) {
+		if (value instanceof String) {
+			return "'" + ((String) value).replace("'", "''") + "'";
+		} else if (value instanceof Date) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return "DATE '" + format.format((Date) value) + "'";
+		}
+		return String.valueOf(value).toUpperCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * @return attribute name, quoted when it isn't plain word
+	 */
+	static String formatName(String attributeName) {
+		for (int i = 0; i < attributeName.length(); i++) {
+			char c = attributeName.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_') {
+				return "\"" + attributeName + "\"";
+			}
+		}
+		return attributeName;
+	}
+
+	static String key(String attributeName) {
+		return attributeName.toLowerCase(Locale.ENGLISH);
+	}
+}
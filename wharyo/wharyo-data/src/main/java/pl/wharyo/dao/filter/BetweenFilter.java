@@ -0,0 +1,43 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Set;
+
+/**
+ * Attribute between two values, both included.
+ */
+public final class BetweenFilter extends AttributeFilter {
+
+	private final String attributeName;
+	private final Object lower;
+	private final Object upper;
+
+	BetweenFilter(String attributeName, Object lower, Object upper) {
+		this.attributeName = checkName(attributeName);
+		this.lower = checkValue(lower);
+		this.upper = checkValue(upper);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public Object getLower() {
+		return lower;
+	}
+
+	public Object getUpper() {
+		return upper;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		names.add(key(attributeName));
+	}
+
+	public String toString() {
+		return formatName(attributeName) + " BETWEEN " + format(lower) + " AND " + format(upper);
+	}
+}
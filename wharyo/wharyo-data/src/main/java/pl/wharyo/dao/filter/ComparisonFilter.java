@@ -0,0 +1,83 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Set;
+
+/**
+ * Compares attribute with value, e.g. <code>area &gt;= 10</code>.
+ */
+public final class ComparisonFilter extends AttributeFilter {
+
+	private final String attributeName;
+	private final Operator operator;
+	private final Object value;
+
+	ComparisonFilter(String attributeName, Operator operator, Object value) {
+		this.attributeName = checkName(attributeName);
+		this.operator = operator;
+		this.value = checkValue(value);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public Operator getOperator() {
+		return operator;
+	}
+
+	/**
+	 * @return Long, Double, String, Boolean or Date
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		names.add(key(attributeName));
+	}
+
+	public String toString() {
+		return formatName(attributeName) + " " + operator.getSymbol() + " " + format(value);
+	}
+
+	public static enum Operator {
+		EQUAL("="), NOT_EQUAL("<>"), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">=");
+
+		private final String symbol;
+
+		private Operator(String symbol) {
+			this.symbol = symbol;
+		}
+
+		/**
+		 * @return operator as written in SQL and filter expressions
+		 */
+		public String getSymbol() {
+			return symbol;
+		}
+
+		/**
+		 * @param comparison result of comparing attribute value with filter value
+		 */
+		boolean accepts(int comparison) {
+			switch (this) {
+			case EQUAL:
+				return comparison == 0;
+			case NOT_EQUAL:
+				return comparison != 0;
+			case LESS:
+				return comparison < 0;
+			case LESS_OR_EQUAL:
+				return comparison <= 0;
+			case GREATER:
+				return comparison > 0;
+			default:
+				return comparison >= 0;
+			}
+		}
+	}
+}
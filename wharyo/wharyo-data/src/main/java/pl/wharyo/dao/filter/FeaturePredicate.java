@@ -0,0 +1,16 @@
+package pl.wharyo.dao.filter;
+
+import pl.wharyo.model.Feature;
+
+/**
+ * {@link AttributeFilter} compiled for single {@link pl.wharyo.model.FeatureSchema}, attribute
+ * positions and value comparisons are resolved once, so testing feature only reads its values.
+ * Predicate is immutable and can be used by many threads.
+ */
+public interface FeaturePredicate {
+
+	/**
+	 * @param feature feature bound to schema predicate was compiled for
+	 */
+	public boolean matches(Feature feature);
+}
@@ -0,0 +1,233 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Builds predicates for single schema. Numbers and logical values are compared through
+ * typed getters of feature, so testing feature doesn't box them.
+ */
+final class FilterCompiler implements FilterVisitor<FeaturePredicate> {
+
+	private final FeatureSchema schema;
+
+	FilterCompiler(FeatureSchema schema) {
+		if (schema == null) {
+			throw new IllegalArgumentException("Schema cannot be null");
+		}
+		this.schema = schema;
+	}
+
+	public FeaturePredicate visit(ComparisonFilter filter) {
+		final int position = position(filter.getAttributeName());
+		final ValueComparator comparator = comparator(position, filter.getValue());
+		final ComparisonFilter.Operator operator = filter.getOperator();
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				return feature.hasValue(position) && operator.accepts(comparator.compare(feature));
+			}
+		};
+	}
+
+	public FeaturePredicate visit(BetweenFilter filter) {
+		final int position = position(filter.getAttributeName());
+		final ValueComparator lower = comparator(position, filter.getLower());
+		final ValueComparator upper = comparator(position, filter.getUpper());
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				return feature.hasValue(position) && lower.compare(feature) >= 0 && upper.compare(feature) <= 0;
+			}
+		};
+	}
+
+	public FeaturePredicate visit(InFilter filter) {
+		final int position = position(filter.getAttributeName());
+		List<Object> values = filter.getValues();
+		AttributeType type = schema.getType(position);
+		if (type == AttributeType.LONG && allOfType(values, Long.class)) {
+			final long[] sorted = new long[values.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = (Long) values.get(i);
+			}
+			Arrays.sort(sorted);
+			return new FeaturePredicate() {
+				public boolean matches(Feature feature) {
+					return feature.hasValue(position) && Arrays.binarySearch(sorted, feature.getLong(position)) >= 0;
+				}
+			};
+		} else if (type == AttributeType.TEXT || type == AttributeType.DATE) {
+			for (Object value: values) {
+				// checks types
+				comparator(position, value);
+			}
+			final Set<Object> set = new HashSet<Object>(values);
+			return new FeaturePredicate() {
+				public boolean matches(Feature feature) {
+					return feature.hasValue(position) && set.contains(feature.getValue(position));
+				}
+			};
+		}
+		final ValueComparator[] comparators = new ValueComparator[values.size()];
+		for (int i = 0; i < comparators.length; i++) {
+			comparators[i] = comparator(position, values.get(i));
+		}
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				if (!feature.hasValue(position)) {
+					return false;
+				}
+				for (ValueComparator comparator: comparators) {
+					if (comparator.compare(feature) == 0) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	public FeaturePredicate visit(LikeFilter filter) {
+		final int position = position(filter.getAttributeName());
+		if (schema.getType(position) != AttributeType.TEXT) {
+			throw new IllegalArgumentException("Like can be used only with text attribute, " + schema.getName(position) + " is " + schema.getType(position));
+		}
+		final Pattern pattern = filter.toRegex();
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				return feature.hasValue(position) && pattern.matcher((String) feature.getValue(position)).matches();
+			}
+		};
+	}
+
+	public FeaturePredicate visit(NullFilter filter) {
+		final int position = position(filter.getAttributeName());
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				return !feature.hasValue(position);
+			}
+		};
+	}
+
+	public FeaturePredicate visit(LogicalFilter filter) {
+		final FeaturePredicate[] predicates = new FeaturePredicate[filter.getFilters().size()];
+		for (int i = 0; i < predicates.length; i++) {
+			predicates[i] = filter.getFilters().get(i).accept(this);
+		}
+		if (filter.getType() == LogicalFilter.Type.AND) {
+			return new FeaturePredicate() {
+				public boolean matches(Feature feature) {
+					for (FeaturePredicate predicate: predicates) {
+						if (!predicate.matches(feature)) {
+							return false;
+						}
+					}
+					return true;
+				}
+			};
+		}
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				for (FeaturePredicate predicate: predicates) {
+					if (predicate.matches(feature)) {
+						return true;
+					}
+				}
+				return false;
+			}
+		};
+	}
+
+	public FeaturePredicate visit(NotFilter filter) {
+		final FeaturePredicate predicate = filter.getFilter().accept(this);
+		return new FeaturePredicate() {
+			public boolean matches(Feature feature) {
+				return !predicate.matches(feature);
+			}
+		};
+	}
+
+	private int position(String attributeName) {
+		int position = schema.indexOf(attributeName);
+		if (position < 0) {
+			throw new IllegalArgumentException("Filter uses attribute which layer doesn't have: " + attributeName);
+		}
+		return position;
+	}
+
+	private boolean allOfType(List<Object> values, Class<?> type) {
+		for (Object value: values) {
+			if (!type.isInstance(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @throws IllegalArgumentException when value can't be compared with attribute
+	 */
+	private ValueComparator comparator(final int position, Object value) {
+		AttributeType type = schema.getType(position);
+		if (type == AttributeType.LONG && value instanceof Long) {
+			final long longValue = (Long) value;
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					long attrValue = feature.getLong(position);
+					return attrValue < longValue ? -1 : (attrValue == longValue ? 0 : 1);
+				}
+			};
+		} else if (type == AttributeType.LONG && value instanceof Double) {
+			final double doubleValue = (Double) value;
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					return Double.compare(feature.getLong(position), doubleValue);
+				}
+			};
+		} else if (type == AttributeType.DOUBLE && value instanceof Number) {
+			final double doubleValue = ((Number) value).doubleValue();
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					return Double.compare(feature.getDouble(position), doubleValue);
+				}
+			};
+		} else if (type == AttributeType.BOOLEAN && value instanceof Boolean) {
+			final boolean booleanValue = (Boolean) value;
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					boolean attrValue = feature.getBoolean(position);
+					return attrValue == booleanValue ? 0 : (attrValue ? 1 : -1);
+				}
+			};
+		} else if (type == AttributeType.TEXT && value instanceof String) {
+			final String stringValue = (String) value;
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					return ((String) feature.getValue(position)).compareTo(stringValue);
+				}
+			};
+		} else if (type == AttributeType.DATE && value instanceof Date) {
+			final Date dateValue = (Date) value;
+			return new ValueComparator() {
+				int compare(Feature feature) {
+					return ((Date) feature.getValue(position)).compareTo(dateValue);
+				}
+			};
+		}
+		throw new IllegalArgumentException("Attribute " + schema.getName(position) + " of type " + type + " can't be compared with " + AttributeFilter.format(value));
+	}
+
+	/**
+	 * Compares attribute value of feature, which has to be set, with filter value.
+	 */
+	private static abstract class ValueComparator {
+		abstract int compare(Feature feature);
+	}
+}
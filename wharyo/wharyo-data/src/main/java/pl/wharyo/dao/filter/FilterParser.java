@@ -0,0 +1,310 @@
+package pl.wharyo.dao.filter;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import pl.wharyo.exceptions.InvalidFilterException;
+
+/**
+ * Parses filter expressions, subset of CQL:
+ * <pre>
+ * name = 'Main street' AND (lanes &gt;= 2 OR one_way = TRUE)
+ * area BETWEEN 10 AND 20.5 AND kind IN ('a', 'b') AND NOT name LIKE 'A%'
+ * built &lt; DATE '2016-03-12' OR built IS NULL
+ * </pre>
+ * Keywords are case insensitive, attribute names can be quoted with '"'. Dates are given as
+ * yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss[.SSS], in local time unless 'Z' (UTC) is appended.
+ * Filters are immutable, so ones parsed are cached by expression and shared.
+ */
+public final class FilterParser {
+
+	private static final int MAX_CACHED_FILTERS = 1000;
+	private static final ConcurrentMap<String, AttributeFilter> cache = new ConcurrentHashMap<String, AttributeFilter>();
+
+	private final String expression;
+	private int position;
+
+	private FilterParser(String expression) {
+		this.expression = expression;
+	}
+
+	public static AttributeFilter parse(String expression) throws InvalidFilterException {
+		if (expression == null) {
+			throw new IllegalArgumentException("Filter expression cannot be null");
+		}
+		AttributeFilter filter = cache.get(expression);
+		if (filter == null) {
+			filter = new FilterParser(expression).parse();
+			if (cache.size() < MAX_CACHED_FILTERS) {
+				cache.put(expression, filter);
+			}
+		}
+		return filter;
+	}
+
+	private AttributeFilter parse() throws InvalidFilterException {
+		AttributeFilter filter = parseOr();
+		skipWhitespace();
+		if (position < expression.length()) {
+			throw error("Unexpected '" + expression.charAt(position) + "'");
+		}
+		return filter;
+	}
+
+	private AttributeFilter parseOr() throws InvalidFilterException {
+		List<AttributeFilter> filters = new ArrayList<AttributeFilter>();
+		filters.add(parseAnd());
+		while (keyword("OR")) {
+			filters.add(parseAnd());
+		}
+		return filters.size() == 1 ? filters.get(0) : new LogicalFilter(LogicalFilter.Type.OR, filters);
+	}
+
+	private AttributeFilter parseAnd() throws InvalidFilterException {
+		List<AttributeFilter> filters = new ArrayList<AttributeFilter>();
+		filters.add(parseNot());
+		while (keyword("AND")) {
+			filters.add(parseNot());
+		}
+		return filters.size() == 1 ? filters.get(0) : new LogicalFilter(LogicalFilter.Type.AND, filters);
+	}
+
+	private AttributeFilter parseNot() throws InvalidFilterException {
+		if (keyword("NOT")) {
+			return new NotFilter(parseNot());
+		} else if (symbol("(")) {
+			AttributeFilter filter = parseOr();
+			expect(")");
+			return filter;
+		}
+		return parseCondition();
+	}
+
+	private AttributeFilter parseCondition() throws InvalidFilterException {
+		String name = parseName();
+		if (keyword("IS")) {
+			boolean negated = keyword("NOT");
+			expectKeyword("NULL");
+			AttributeFilter filter = new NullFilter(name);
+			return negated ? new NotFilter(filter) : filter;
+		}
+		boolean negated = keyword("NOT");
+		AttributeFilter filter;
+		if (keyword("BETWEEN")) {
+			Object lower = parseValue();
+			expectKeyword("AND");
+			filter = new BetweenFilter(name, lower, parseValue());
+		} else if (keyword("IN")) {
+			expect("(");
+			List<Object> values = new ArrayList<Object>();
+			do {
+				values.add(parseValue());
+			} while (symbol(","));
+			expect(")");
+			filter = new InFilter(name, values);
+		} else if (keyword("LIKE")) {
+			Object pattern = parseValue();
+			if (!(pattern instanceof String)) {
+				throw error("Like pattern has to be text");
+			}
+			filter = new LikeFilter(name, (String) pattern);
+		} else if (negated) {
+			throw error("Expected BETWEEN, IN or LIKE");
+		} else {
+			filter = new ComparisonFilter(name, parseOperator(), parseValue());
+		}
+		return negated ? new NotFilter(filter) : filter;
+	}
+
+	private ComparisonFilter.Operator parseOperator() throws InvalidFilterException {
+		if (symbol("<=")) {
+			return ComparisonFilter.Operator.LESS_OR_EQUAL;
+		} else if (symbol(">=")) {
+			return ComparisonFilter.Operator.GREATER_OR_EQUAL;
+		} else if (symbol("<>") || symbol("!=")) {
+			return ComparisonFilter.Operator.NOT_EQUAL;
+		} else if (symbol("<")) {
+			return ComparisonFilter.Operator.LESS;
+		} else if (symbol(">")) {
+			return ComparisonFilter.Operator.GREATER;
+		} else if (symbol("=")) {
+			return ComparisonFilter.Operator.EQUAL;
+		}
+		throw error("Expected comparison operator");
+	}
+
+	private String parseName() throws InvalidFilterException {
+		skipWhitespace();
+		if (position < expression.length() && expression.charAt(position) == '"') {
+			int end = expression.indexOf('"', position + 1);
+			if (end < 0 || end == position + 1) {
+				throw error("Broken quoted attribute name");
+			}
+			String name = expression.substring(position + 1, end);
+			position = end + 1;
+			return name;
+		}
+		String word = word();
+		if (word == null) {
+			throw error("Expected attribute name");
+		}
+		return word;
+	}
+
+	private Object parseValue() throws InvalidFilterException {
+		skipWhitespace();
+		if (position >= expression.length()) {
+			throw error("Expected value");
+		}
+		char c = expression.charAt(position);
+		if (c == '\'') {
+			return parseText();
+		} else if (c == '-' || c == '+' || c == '.' || Character.isDigit(c)) {
+			return parseNumber();
+		}
+		int start = position;
+		String word = word();
+		if ("TRUE".equalsIgnoreCase(word)) {
+			return Boolean.TRUE;
+		} else if ("FALSE".equalsIgnoreCase(word)) {
+			return Boolean.FALSE;
+		} else if ("DATE".equalsIgnoreCase(word)) {
+			skipWhitespace();
+			if (position >= expression.length() || expression.charAt(position) != '\'') {
+				throw error("Expected date in quotes");
+			}
+			return parseDate(parseText());
+		}
+		position = start;
+		throw error("Expected value");
+	}
+
+	private String parseText() throws InvalidFilterException {
+		StringBuilder text = new StringBuilder();
+		int start = position;
+		position++;
+		while (position < expression.length()) {
+			char c = expression.charAt(position++);
+			if (c != '\'') {
+				text.append(c);
+			} else if (position < expression.length() && expression.charAt(position) == '\'') {
+				// doubled quote
+				text.append(c);
+				position++;
+			} else {
+				return text.toString();
+			}
+		}
+		position = start;
+		throw error("Unterminated text");
+	}
+
+	private Object parseNumber() throws InvalidFilterException {
+		int start = position;
+		if (expression.charAt(position) == '-' || expression.charAt(position) == '+') {
+			position++;
+		}
+		boolean decimal = false;
+		while (position < expression.length()) {
+			char c = expression.charAt(position);
+			if (c == '.' || c == 'e' || c == 'E') {
+				decimal = true;
+			} else if (!Character.isDigit(c) && !((c == '-' || c == '+') && decimal)) {
+				break;
+			}
+			position++;
+		}
+		String number = expression.substring(start, position);
+		try {
+			return decimal ? (Object) Double.valueOf(number) : (Object) Long.valueOf(number);
+		} catch (NumberFormatException e) {
+			position = start;
+			throw error("Broken number '" + number + "'");
+		}
+	}
+
+	private Date parseDate(String text) throws InvalidFilterException {
+		boolean utc = text.endsWith("Z");
+		String date = utc ? text.substring(0, text.length() - 1) : text;
+		String[] patterns = { "yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd" };
+		for (String pattern: patterns) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+			format.setLenient(false);
+			if (utc) {
+				format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			}
+			ParsePosition parsePosition = new ParsePosition(0);
+			Date parsed = format.parse(date, parsePosition);
+			if (parsed != null && parsePosition.getIndex() == date.length()) {
+				return parsed;
+			}
+		}
+		throw error("Broken date '" + text + "'");
+	}
+
+	/**
+	 * @return next word (letters, digits, '_') or null when there is none, position is moved past it
+	 */
+	private String word() {
+		skipWhitespace();
+		int start = position;
+		while (position < expression.length()) {
+			char c = expression.charAt(position);
+			if (!Character.isLetterOrDigit(c) && c != '_') {
+				break;
+			}
+			position++;
+		}
+		return position > start ? expression.substring(start, position) : null;
+	}
+
+	/**
+	 * Consumes given keyword if it's next.
+	 */
+	private boolean keyword(String keyword) {
+		int start = position;
+		if (keyword.equalsIgnoreCase(word())) {
+			return true;
+		}
+		position = start;
+		return false;
+	}
+
+	private void expectKeyword(String keyword) throws InvalidFilterException {
+		if (!keyword(keyword)) {
+			throw error("Expected " + keyword);
+		}
+	}
+
+	private boolean symbol(String symbol) {
+		skipWhitespace();
+		if (expression.startsWith(symbol, position)) {
+			position += symbol.length();
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String symbol) throws InvalidFilterException {
+		if (!symbol(symbol)) {
+			throw error("Expected '" + symbol + "'");
+		}
+	}
+
+	private void skipWhitespace() {
+		while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+			position++;
+		}
+	}
+
+	private InvalidFilterException error(String msg) {
+		return new InvalidFilterException(msg, position);
+	}
+}
@@ -0,0 +1,21 @@
+package pl.wharyo.dao.filter;
+
+/**
+ * Translates filter tree into other form, e.g. predicate or filter of data source.
+ */
+public interface FilterVisitor<T> {
+
+	public T visit(ComparisonFilter filter);
+
+	public T visit(BetweenFilter filter);
+
+	public T visit(InFilter filter);
+
+	public T visit(LikeFilter filter);
+
+	public T visit(NullFilter filter);
+
+	public T visit(LogicalFilter filter);
+
+	public T visit(NotFilter filter);
+}
@@ -0,0 +1,51 @@
+package pl.wharyo.dao.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Attribute equal to any of given values.
+ */
+public final class InFilter extends AttributeFilter {
+
+	private final String attributeName;
+	private final List<Object> values;
+
+	InFilter(String attributeName, List<?> values) {
+		this.attributeName = checkName(attributeName);
+		if (values == null || values.isEmpty()) {
+			throw new IllegalArgumentException("Filter values cannot be null or empty");
+		}
+		List<Object> checked = new ArrayList<Object>(values.size());
+		for (Object value: values) {
+			checked.add(checkValue(value));
+		}
+		this.values = Collections.unmodifiableList(checked);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public List<Object> getValues() {
+		return values;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		names.add(key(attributeName));
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder(formatName(attributeName)).append(" IN (");
+		for (int i = 0; i < values.size(); i++) {
+			builder.append(i > 0 ? ", " : "").append(format(values.get(i)));
+		}
+		return builder.append(")").toString();
+	}
+}
@@ -0,0 +1,71 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Text attribute matching SQL like pattern, see {@link AttributeFilter#like(String, String)}.
+ */
+public final class LikeFilter extends AttributeFilter {
+
+	public static final char WILDCARD = '%';
+	public static final char SINGLE_CHAR = '_';
+	public static final char ESCAPE = '\\';
+
+	private final String attributeName;
+	private final String pattern;
+
+	LikeFilter(String attributeName, String pattern) {
+		this.attributeName = checkName(attributeName);
+		if (pattern == null) {
+			throw new IllegalArgumentException("Pattern cannot be null");
+		}
+		this.pattern = pattern;
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return pattern as regular expression
+	 */
+	Pattern toRegex() {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == ESCAPE && i + 1 < pattern.length()) {
+				literal.append(pattern.charAt(++i));
+			} else if (c == WILDCARD || c == SINGLE_CHAR) {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == WILDCARD ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		names.add(key(attributeName));
+	}
+
+	public String toString() {
+		return formatName(attributeName) + " LIKE " + format(pattern);
+	}
+}
@@ -0,0 +1,58 @@
+package pl.wharyo.dao.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * All (AND) or any (OR) of filters.
+ */
+public final class LogicalFilter extends AttributeFilter {
+
+	private final Type type;
+	private final List<AttributeFilter> filters;
+
+	LogicalFilter(Type type, List<AttributeFilter> filters) {
+		if (filters == null || filters.isEmpty()) {
+			throw new IllegalArgumentException("Filters cannot be null or empty");
+		}
+		for (AttributeFilter filter: filters) {
+			if (filter == null) {
+				throw new IllegalArgumentException("Filter cannot be null");
+			}
+		}
+		this.type = type;
+		this.filters = Collections.unmodifiableList(new ArrayList<AttributeFilter>(filters));
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public List<AttributeFilter> getFilters() {
+		return filters;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		for (AttributeFilter filter: filters) {
+			filter.collectAttributeNames(names);
+		}
+	}
+
+	public String toString() {
+		StringBuilder builder = new StringBuilder("(");
+		for (int i = 0; i < filters.size(); i++) {
+			builder.append(i > 0 ? " " + type + " " : "").append(filters.get(i));
+		}
+		return builder.append(")").toString();
+	}
+
+	public static enum Type {
+		AND, OR
+	}
+}
@@ -0,0 +1,31 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Set;
+
+public final class NotFilter extends AttributeFilter {
+
+	private final AttributeFilter filter;
+
+	NotFilter(AttributeFilter filter) {
+		if (filter == null) {
+			throw new IllegalArgumentException("Filter cannot be null");
+		}
+		this.filter = filter;
+	}
+
+	public AttributeFilter getFilter() {
+		return filter;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		filter.collectAttributeNames(names);
+	}
+
+	public String toString() {
+		return "NOT (" + filter + ")";
+	}
+}
@@ -0,0 +1,31 @@
+package pl.wharyo.dao.filter;
+
+import java.util.Set;
+
+/**
+ * Attribute without value.
+ */
+public final class NullFilter extends AttributeFilter {
+
+	private final String attributeName;
+
+	NullFilter(String attributeName) {
+		this.attributeName = checkName(attributeName);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public <T> T accept(FilterVisitor<T> visitor) {
+		return visitor.visit(this);
+	}
+
+	void collectAttributeNames(Set<String> names) {
+		names.add(key(attributeName));
+	}
+
+	public String toString() {
+		return formatName(attributeName) + " IS NULL";
+	}
+}
@@ -0,0 +1,178 @@
+package pl.wharyo.dao.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import pl.wharyo.dao.filter.AttributeFilter;
+import pl.wharyo.dao.filter.BetweenFilter;
+import pl.wharyo.dao.filter.ComparisonFilter;
+import pl.wharyo.dao.filter.FilterVisitor;
+import pl.wharyo.dao.filter.InFilter;
+import pl.wharyo.dao.filter.LikeFilter;
+import pl.wharyo.dao.filter.LogicalFilter;
+import pl.wharyo.dao.filter.NotFilter;
+import pl.wharyo.dao.filter.NullFilter;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Looks up ids of features which may match {@link AttributeFilter} in attribute indexes.
+ * Visit returns sorted, distinct ids or null when part of filter can't be answered by indexes,
+ * then it doesn't narrow features down. Result is a superset, filter still has to be applied.
+ */
+class AttributeIndexLookup implements FilterVisitor<long[]> {
+
+	private final Map<String, FeatureAttributeIndex> indexes;
+
+	/**
+	 * @param indexes indexes by lower case attribute name
+	 */
+	AttributeIndexLookup(Map<String, FeatureAttributeIndex> indexes) {
+		this.indexes = indexes;
+	}
+
+	public long[] visit(ComparisonFilter filter) {
+		FeatureAttributeIndex index = index(filter.getAttributeName());
+		if (index == null) {
+			return null;
+		}
+		Object value = filter.getValue();
+		switch (filter.getOperator()) {
+		case EQUAL:
+			return index.range(value, true, value, true);
+		case LESS:
+			return index.range(null, false, value, false);
+		case LESS_OR_EQUAL:
+			return index.range(null, false, value, true);
+		case GREATER:
+			return index.range(value, false, null, false);
+		case GREATER_OR_EQUAL:
+			return index.range(value, true, null, false);
+		default:
+			// not equal matches almost everything
+			return null;
+		}
+	}
+
+	public long[] visit(BetweenFilter filter) {
+		FeatureAttributeIndex index = index(filter.getAttributeName());
+		return index == null ? null : index.range(filter.getLower(), true, filter.getUpper(), true);
+	}
+
+	public long[] visit(InFilter filter) {
+		FeatureAttributeIndex index = index(filter.getAttributeName());
+		if (index == null) {
+			return null;
+		}
+		long[] result = new long[0];
+		for (Object value: filter.getValues()) {
+			long[] ids = index.range(value, true, value, true);
+			if (ids == null) {
+				return null;
+			}
+			result = union(result, ids);
+		}
+		return result;
+	}
+
+	/**
+	 * Pattern starting with plain text is looked up as range of texts with such prefix.
+	 */
+	public long[] visit(LikeFilter filter) {
+		FeatureAttributeIndex index = index(filter.getAttributeName());
+		if (index == null || index.getType() != AttributeType.TEXT) {
+			return null;
+		}
+		String pattern = filter.getPattern();
+		StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == LikeFilter.WILDCARD || c == LikeFilter.SINGLE_CHAR) {
+				break;
+			} else if (c == LikeFilter.ESCAPE && i + 1 < pattern.length()) {
+				c = pattern.charAt(++i);
+			}
+			prefix.append(c);
+		}
+		if (prefix.length() == 0) {
+			return null;
+		} else if (prefix.length() == pattern.length()) {
+			return index.range(prefix.toString(), true, prefix.toString(), true);
+		}
+		char last = prefix.charAt(prefix.length() - 1);
+		if (last == Character.MAX_VALUE) {
+			return null;
+		}
+		// texts with prefix are below prefix with its last character increased
+		String upper = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+		return index.range(prefix.toString(), true, upper, false);
+	}
+
+	public long[] visit(NullFilter filter) {
+		// values which aren't there aren't indexed
+		return null;
+	}
+
+	public long[] visit(LogicalFilter filter) {
+		long[] result = null;
+		for (AttributeFilter child: filter.getFilters()) {
+			long[] ids = child.accept(this);
+			if (filter.getType() == LogicalFilter.Type.AND) {
+				if (ids != null) {
+					result = result == null ? ids : intersection(result, ids);
+				}
+			} else if (ids == null) {
+				return null;
+			} else {
+				result = result == null ? ids : union(result, ids);
+			}
+		}
+		return result;
+	}
+
+	public long[] visit(NotFilter filter) {
+		return null;
+	}
+
+	private FeatureAttributeIndex index(String attributeName) {
+		return indexes.get(attributeName.toLowerCase());
+	}
+
+	private static long[] union(long[] first, long[] second) {
+		long[] result = new long[first.length + second.length];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < first.length || j < second.length) {
+			long id;
+			if (j == second.length || (i < first.length && first[i] < second[j])) {
+				id = first[i++];
+			} else if (i == first.length || second[j] < first[i]) {
+				id = second[j++];
+			} else {
+				id = first[i++];
+				j++;
+			}
+			result[size++] = id;
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	private static long[] intersection(long[] first, long[] second) {
+		long[] result = new long[Math.min(first.length, second.length)];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < first.length && j < second.length) {
+			if (first[i] < second[j]) {
+				i++;
+			} else if (first[i] > second[j]) {
+				j++;
+			} else {
+				result[size++] = first[i];
+				i++;
+				j++;
+			}
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+}
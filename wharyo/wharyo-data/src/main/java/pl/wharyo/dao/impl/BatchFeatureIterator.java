@@ -0,0 +1,66 @@
+package pl.wharyo.dao.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
+
+/**
+ * Iterator reading features in batches of limited size. Resources needed to read layer,
+ * like its lock, are taken only while batch is read, not for the whole iteration, so only
+ * one batch is kept in memory and owner of iterator can write to the layer while reading it.
+ */
+abstract class BatchFeatureIterator implements FeatureIterator<SimpleFeature> {
+
+	private Iterator<SimpleFeature> batch = Collections.<SimpleFeature>emptyList().iterator();
+	private boolean exhausted;
+	private boolean closed;
+
+	/**
+	 * @return next batch, possibly empty, or null when there is nothing more to read
+	 */
+	protected abstract List<SimpleFeature> readBatch() throws IOException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException;
+
+	/**
+	 * @throws IllegalStateException when batch couldn't be read
+	 */
+	public boolean hasNext() {
+		while (!closed && !exhausted && !batch.hasNext()) {
+			List<SimpleFeature> features;
+			try {
+				features = readBatch();
+			} catch (IOException e) {
+				throw new IllegalStateException("Coulnd't connect to layer datasource", e);
+			} catch (LayerDataSourceNotAvailableException e) {
+				throw new IllegalStateException("Coulnd't connect to layer datasource", e);
+			} catch (LayerConfigurationBrokenException e) {
+				throw new IllegalStateException("Coulnd't connect to layer datasource", e);
+			}
+			if (features == null) {
+				exhausted = true;
+			} else {
+				batch = features.iterator();
+			}
+		}
+		return !closed && batch.hasNext();
+	}
+
+	public SimpleFeature next() throws NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		return batch.next();
+	}
+
+	public void close() {
+		closed = true;
+		batch = Collections.<SimpleFeature>emptyList().iterator();
+	}
+}
@@ -0,0 +1,143 @@
+package pl.wharyo.dao.impl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.exceptions.BrokenFeatureException;
+
+/**
+ * Remembers how geometry SRIDs relate to CRS of layers, so decoding EPSG code and comparing
+ * CRS happens once per SRID and layer. Decoded CRS are shared by all caches, layer entries
+ * belong to the DAO which owns the cache. Cache can be used by many threads.
+ */
+final class CrsCache {
+
+	private static final Logger logger = Logger.getLogger(CrsCache.class);
+	private static final ConcurrentMap<Integer, CoordinateReferenceSystem> crsBySrid = new ConcurrentHashMap<Integer, CoordinateReferenceSystem>();
+
+	private final ConcurrentMap<String, LayerCrs> layers = new ConcurrentHashMap<String, LayerCrs>();
+
+	static CoordinateReferenceSystem decode(int srid) throws NoSuchAuthorityCodeException, FactoryException {
+		CoordinateReferenceSystem crs = crsBySrid.get(srid);
+		if (crs == null) {
+			crs = CRS.decode("EPSG:" + srid);
+			CoordinateReferenceSystem previous = crsBySrid.putIfAbsent(srid, crs);
+			if (previous != null) {
+				crs = previous;
+			}
+		}
+		return crs;
+	}
+
+	/**
+	 * @param geometry geometry with SRID set
+	 * @param reproject whether geometry in other CRS should be transformed instead of rejected
+	 * @return given geometry when it's in layer CRS, otherwise transformed copy of it
+	 * @throws BrokenFeatureException when CRS doesn't match and reprojection is off or impossible
+	 */
+	Geometry toLayerCrs(Geometry geometry, CoordinateReferenceSystem layerCrs, String layerName, boolean reproject) throws BrokenFeatureException {
+		int srid = geometry.getSRID();
+		LayerCrs layer = getLayer(layerName, layerCrs);
+		if (layer.accepted.contains(srid)) {
+			return geometry;
+		} else if (!reproject && layer.rejected.contains(srid)) {
+			throw new BrokenFeatureException("Feature CRS doesn't match shapefile CRS");
+		}
+
+		CoordinateReferenceSystem crs;
+		try {
+			crs = decode(srid);
+		} catch (NoSuchAuthorityCodeException e) {
+			throw new BrokenFeatureException("Feature geometry contains unknown CRS");
+		} catch (FactoryException e) {
+			// Nothing we can do :(
+			return geometry;
+		}
+		if (CRS.equalsIgnoreMetadata(layer.crs, crs)) {
+			layer.accepted.add(srid);
+			return geometry;
+		}
+		layer.rejected.add(srid);
+		if (!reproject) {
+			throw new BrokenFeatureException("Feature CRS doesn't match shapefile CRS");
+		}
+		try {
+			Geometry transformed = JTS.transform(geometry, layer.getTransform(srid, crs));
+			transformed.setSRID(layer.srid);
+			return transformed;
+		} catch (FactoryException e) {
+			throw new BrokenFeatureException("Couldn't find transformation from EPSG:" + srid + " to CRS of layer: " + layerName);
+		} catch (TransformException e) {
+			throw new BrokenFeatureException("Couldn't transform feature geometry to CRS of layer: " + layerName);
+		}
+	}
+
+	/**
+	 * Forgets SRIDs checked for given layer, e.g. after layer files were replaced.
+	 */
+	void forget(String layerName) {
+		layers.remove(layerName);
+	}
+
+	private LayerCrs getLayer(String layerName, CoordinateReferenceSystem layerCrs) {
+		LayerCrs layer = layers.get(layerName);
+		// the same layer usually hands out the same CRS instance
+		if (layer != null && (layer.crs == layerCrs || CRS.equalsIgnoreMetadata(layer.crs, layerCrs))) {
+			return layer;
+		}
+		layer = new LayerCrs(layerCrs);
+		layers.put(layerName, layer);
+		return layer;
+	}
+
+	/**
+	 * SRIDs known to match or not to match CRS of one layer and transformations from the latter.
+	 */
+	private static class LayerCrs {
+		private final CoordinateReferenceSystem crs;
+		private final int srid;
+		private final Set<Integer> accepted = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		private final Set<Integer> rejected = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		private final ConcurrentMap<Integer, MathTransform> transforms = new ConcurrentHashMap<Integer, MathTransform>();
+
+		private LayerCrs(CoordinateReferenceSystem crs) {
+			this.crs = crs;
+			Integer code = null;
+			try {
+				// only identifiers are checked, so it's cheap
+				code = CRS.lookupEpsgCode(crs, false);
+			} catch (FactoryException e) {
+				logger.warn("Couldn't look up EPSG code of layer CRS");
+			}
+			this.srid = code == null ? 0 : code;
+			if (code != null) {
+				accepted.add(code);
+			}
+		}
+
+		private MathTransform getTransform(int srid, CoordinateReferenceSystem sourceCrs) throws FactoryException {
+			MathTransform transform = transforms.get(srid);
+			if (transform == null) {
+				transform = CRS.findMathTransform(sourceCrs, crs, true);
+				MathTransform previous = transforms.putIfAbsent(srid, transform);
+				if (previous != null) {
+					transform = previous;
+				}
+			}
+			return transform;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package pl.wharyo.dao.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+
+/**
+ * {@link FeatureCursor} reading rows of open result set. Connection is held until cursor
+ * is closed. Outside of transaction auto commit is switched off while cursor is open,
+ * otherwise some drivers (PostgreSQL) ignore fetch size and read whole table at once.
+ */
+class DatabaseFeatureCursor implements FeatureCursor {
+
+	private static final Logger logger = Logger.getLogger(DatabaseFeatureCursor.class);
+
+	private final DatabaseLayer layer;
+	private final DataSource dataSource;
+	private final Connection connection;
+	private final PreparedStatement statement;
+	private final ResultSet rs;
+	private final FeatureSchema schema;
+	private final int[] attributes;
+	private final boolean restoreAutoCommit;
+	private Feature next;
+	private boolean closed;
+
+	/**
+	 * Opens result set of given select, statement parameters are already bound.
+	 */
+	DatabaseFeatureCursor(DatabaseLayer layer, DataSource dataSource, Connection connection, boolean restoreAutoCommit,
+			PreparedStatement statement, int[] attributes) throws SQLException {
+		this.layer = layer;
+		this.dataSource = dataSource;
+		this.connection = connection;
+		this.restoreAutoCommit = restoreAutoCommit;
+		this.statement = statement;
+		this.attributes = attributes;
+		this.schema = layer.getSchema(attributes);
+		this.rs = statement.executeQuery();
+	}
+
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			try {
+				if (rs.next()) {
+					next = layer.readFeature(rs, schema, attributes);
+				}
+			} catch (SQLException e) {
+				logger.error("Couldn't read from given layer: " + layer.getName());
+				close();
+				throw new IllegalStateException("Coulnd't connect to layer datasource", e);
+			}
+			if (next == null) {
+				close();
+			}
+		}
+		return next != null;
+	}
+
+	public Feature next() throws NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		Feature feature = next;
+		next = null;
+		return feature;
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		next = null;
+		JdbcUtils.closeResultSet(rs);
+		JdbcUtils.closeStatement(statement);
+		if (restoreAutoCommit) {
+			try {
+				// only read, nothing to commit
+				connection.rollback();
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				logger.warn("Couldn't restore auto commit of connection for layer: " + layer.getName());
+			}
+		}
+		DataSourceUtils.releaseConnection(connection, dataSource);
+	}
+}
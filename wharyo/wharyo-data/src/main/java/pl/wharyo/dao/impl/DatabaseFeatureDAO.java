@@ -1,59 +1,735 @@
 package pl.wharyo.dao.impl;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
 import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.LayerChangeNotifier;
+import pl.wharyo.exceptions.BrokenFeatureException;
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
 import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
 import pl.wharyo.model.attributes.Attribute;
 
-public class DatabaseFeatureDAO implements FeatureDAO {
+/**
+ * {@link FeatureDAO} for layers stored in database tables (PostGIS or other database with
+ * geometry type). Table has the same name as layer and needs "id" column generated by database
+ * and single geometry column, other columns of supported types are feature attributes.
+ * Geometries are passed as WKB. Statements of layer are built once and cached,
+ * bulk operations are sent as JDBC batches in single transaction.
+ * Layers served by DAO are taken from copy of layer_config table, which is read again periodically.
+ */
+public class DatabaseFeatureDAO implements FeatureDAO, LayerChangeNotifier {
+
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	public static final long DEFAULT_REFRESH_INTERVAL = 30 * 1000L;
+	private static final String LAYER_TYPE = "DATABASE";
+
+	private static final Logger logger = Logger.getLogger(DatabaseFeatureDAO.class);
 
 	private JdbcTemplate template;
+	private TransactionTemplate transactionTemplate;
+	private final ConcurrentMap<String, DatabaseLayer> layers = new ConcurrentHashMap<String, DatabaseLayer>();
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+	private volatile LayerConfigSnapshot layerConfig;
+	private volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+	private ScheduledExecutorService refresher;
+	private final List<LayerChangeListener> listeners = new CopyOnWriteArrayList<LayerChangeListener>();
+	private final CrsCache crsCache = new CrsCache();
+	private volatile boolean reprojectGeometries;
+
 	public DatabaseFeatureDAO(JdbcTemplate template) {
 		this.template = template;
+		this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(template.getDataSource()));
 	}
-	
-	public Long createFeature(Feature feature, String layer) {
-		// TODO Auto-generated method stub
-		return null;
+
+	public Long createFeature(Feature feature, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		if (feature == null) {
+			throw new IllegalArgumentException("Feature parameter cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (feature.getGeom() == null || feature.getGeom().isEmpty()) {
+			throw new BrokenFeatureException("Feature contains empty geometry or it is null");
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final Feature toCreate = feature;
+		final Geometry geometry = FeatureWriteSupport.validateSrid(feature.getGeom(), layer.getSrid(), layerName, crsCache, reprojectGeometries);
+		KeyHolder keyHolder = new GeneratedKeyHolder();
+		try {
+			template.update(new PreparedStatementCreator() {
+				public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+					PreparedStatement statement = connection.prepareStatement(layer.getInsert(), new String[] {layer.getIdColumnName()});
+					bindInsert(statement, toCreate, geometry, layer);
+					return statement;
+				}
+			}, keyHolder);
+		} catch (DataIntegrityViolationException e) {
+			throw new BrokenFeatureException("Feature doesn't match layer table: " + e.getMostSpecificCause().getMessage());
+		} catch (DataAccessException e) {
+			logger.error("Couldn't write to given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		return keyHolder.getKey().longValue();
 	}
 
-	public Feature getFeatureById(Long id, String layerName) {
-		// TODO Auto-generated method stub
-		return null;
+	public Feature getFeatureById(Long id, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		return getFeatureById(id, null, true, layerName);
+	}
+
+	/**
+	 * Only columns of given attributes are selected.
+	 */
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		}
+
+		DatabaseLayer layer = getLayer(layerName);
+		int[] attributes = layer.findAttributes(attributeNames);
+		final Long featureId = id;
+		List<Feature> features = query(layer, layer.getSelectById(attributes, withGeometry), attributes, new PreparedStatementSetter() {
+			public void setValues(PreparedStatement statement) throws SQLException {
+				statement.setLong(1, featureId);
+			}
+		});
+		return features.isEmpty() ? null : features.get(0);
+	}
+
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (bbox == null) {
+			throw new IllegalArgumentException("Bbox cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		return findFeatures(bbox, getLayer(layerName));
 	}
-	
-	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) {
-		// TODO Auto-generated method stub
-		
+
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (geometry == null) {
+			throw new IllegalArgumentException("Geometry cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		// database only compares envelopes, exact test is done on candidates
+		List<Feature> features = new ArrayList<Feature>();
+		for (Feature feature: findFeatures(geometry.getEnvelopeInternal(), getLayer(layerName))) {
+			if (feature.getGeom() != null && geometry.intersects(feature.getGeom())) {
+				features.add(feature);
+			}
+		}
+		return features;
 	}
 
-	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) {
-		// TODO Auto-generated method stub
-		
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (query == null) {
+			throw new IllegalArgumentException("Query cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		DatabaseLayer layer = getLayer(layerName);
+		int[] attributes = layer.findAttributes(query.getAttributeNames());
+		String sql = layer.getSelect(attributes, query.isWithGeometry(), query.getBBox() != null);
+		SqlFilterBuilder filterBuilder = null;
+		if (query.getFilter() != null) {
+			// filter is applied by database, columns it uses don't have to be selected
+			filterBuilder = new SqlFilterBuilder(layer);
+			sql += (query.getBBox() != null ? " AND " : " WHERE ") + query.getFilter().accept(filterBuilder);
+		}
+		DataSource dataSource = template.getDataSource();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		boolean restoreAutoCommit = false;
+		try {
+			connection = DataSourceUtils.getConnection(dataSource);
+			if (connection.getAutoCommit() && !DataSourceUtils.isConnectionTransactional(connection, dataSource)) {
+				connection.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+			statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(fetchSize);
+			if (query.getBBox() != null) {
+				layer.setEnvelope(statement, 1, query.getBBox());
+			}
+			if (filterBuilder != null) {
+				filterBuilder.bind(statement, query.getBBox() != null ? 2 : 1);
+			}
+			return new DatabaseFeatureCursor(layer, dataSource, connection, restoreAutoCommit, statement, attributes);
+		} catch (SQLException e) {
+			JdbcUtils.closeStatement(statement);
+			if (restoreAutoCommit) {
+				try {
+					connection.setAutoCommit(true);
+				} catch (SQLException ex) {
+					// connection is released anyway
+				}
+			}
+			DataSourceUtils.releaseConnection(connection, dataSource);
+			logger.error("Couldn't read from given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} catch (DataAccessException e) {
+			logger.error("Couldn't read from given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
 	}
 
-	public void deleteFeature(Long id, String laterName) {
-		// TODO Auto-generated method stub
-		
+	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (attributes == null) {
+			throw new IllegalArgumentException("Attribute list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (attributes.size() == 0) {
+			return;
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final List<Object> values = new ArrayList<Object>();
+		final int[] positions = layer.collectAttributes(attributes, values);
+		if (positions.length == 0) {
+			return;
+		}
+		final Long featureId = id;
+		update(layer, layer.getUpdate(positions, false), new PreparedStatementSetter() {
+			public void setValues(PreparedStatement statement) throws SQLException {
+				for (int i = 0; i < positions.length; i++) {
+					layer.setValue(statement, i + 1, positions[i], values.get(i));
+				}
+				statement.setLong(positions.length + 1, featureId);
+			}
+		});
 	}
 
+	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (geometry == null) {
+			throw new IllegalArgumentException("Geometry cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (geometry.isEmpty()) {
+			throw new BrokenFeatureException("Feature contains empty geometry or it is null");
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final Long featureId = id;
+		final Geometry geom = FeatureWriteSupport.validateSrid(geometry, layer.getSrid(), layerName, crsCache, reprojectGeometries);
+		update(layer, layer.getUpdateGeometry(), new PreparedStatementSetter() {
+			public void setValues(PreparedStatement statement) throws SQLException {
+				layer.setGeometry(statement, 1, geom);
+				statement.setLong(2, featureId);
+			}
+		});
+	}
+
+	public void deleteFeature(Long id, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		DatabaseLayer layer = getLayer(layerName);
+		final Long featureId = id;
+		update(layer, layer.getDelete(), new PreparedStatementSetter() {
+			public void setValues(PreparedStatement statement) throws SQLException {
+				statement.setLong(1, featureId);
+			}
+		});
+	}
+
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final BatchResult result = new BatchResult(features.size());
+		final List<Integer> valid = new ArrayList<Integer>(features.size());
+		final List<Feature> toCreate = new ArrayList<Feature>(features.size());
+		final List<Geometry> geometries = new ArrayList<Geometry>(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			Feature feature = features.get(i);
+			if (feature == null || feature.getGeom() == null || feature.getGeom().isEmpty()) {
+				result.failure(i, "Feature contains empty geometry or it is null");
+				continue;
+			}
+			try {
+				geometries.add(FeatureWriteSupport.validateSrid(feature.getGeom(), layer.getSrid(), layerName, crsCache, reprojectGeometries));
+			} catch (BrokenFeatureException e) {
+				result.failure(i, e.getMessage());
+				continue;
+			}
+			valid.add(i);
+			toCreate.add(feature);
+		}
+		if (valid.isEmpty()) {
+			return result;
+		}
+
+		try {
+			transactionTemplate.execute(new TransactionCallback<Object>() {
+				public Object doInTransaction(TransactionStatus status) {
+					List<Long> ids = template.execute(new PreparedStatementCreator() {
+						public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+							return connection.prepareStatement(layer.getInsert(), new String[] {layer.getIdColumnName()});
+						}
+					}, new PreparedStatementCallback<List<Long>>() {
+						public List<Long> doInPreparedStatement(PreparedStatement statement) throws SQLException {
+							for (int i = 0; i < toCreate.size(); i++) {
+								bindInsert(statement, toCreate.get(i), geometries.get(i), layer);
+								statement.addBatch();
+							}
+							statement.executeBatch();
+							List<Long> ids = new ArrayList<Long>(toCreate.size());
+							ResultSet keys = statement.getGeneratedKeys();
+							try {
+								while (keys.next()) {
+									ids.add(keys.getLong(1));
+								}
+							} finally {
+								keys.close();
+							}
+							return ids;
+						}
+					});
+					if (ids.size() != valid.size()) {
+						throw new IllegalStateException("Database returned " + ids.size() + " generated ids for " + valid.size() + " features");
+					}
+					for (int i = 0; i < valid.size(); i++) {
+						result.success(valid.get(i), ids.get(i));
+					}
+					return null;
+				}
+			});
+		} catch (DataIntegrityViolationException e) {
+			markFailed(result, valid, "Couldn't write features: " + e.getMostSpecificCause().getMessage());
+		} catch (DataAccessException e) {
+			logger.error("Couldn't write to given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} catch (IllegalStateException e) {
+			markFailed(result, valid, "Couldn't write features: " + e.getMessage());
+		}
+		return result;
+	}
+
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final BatchResult result = new BatchResult(features.size());
+		// features changing the same columns share statement, so each group is one batch
+		final Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		final Map<Integer, int[]> positions = new HashMap<Integer, int[]>();
+		final Map<Integer, List<Object>> values = new HashMap<Integer, List<Object>>();
+		final Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+		final List<Integer> modified = new ArrayList<Integer>(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			Feature feature = features.get(i);
+			if (feature == null || feature.getId() == null) {
+				result.failure(i, "Feature id cannot be null");
+				continue;
+			} else if (feature.getGeom() != null && feature.getGeom().isEmpty()) {
+				result.failure(i, "Feature contains empty geometry or it is null");
+				continue;
+			} else if (feature.getGeom() != null) {
+				try {
+					geometries.put(i, FeatureWriteSupport.validateSrid(feature.getGeom(), layer.getSrid(), layerName, crsCache, reprojectGeometries));
+				} catch (BrokenFeatureException e) {
+					result.failure(i, e.getMessage());
+					continue;
+				}
+			}
+			List<Object> featureValues = new ArrayList<Object>();
+			int[] featurePositions = layer.collectAttributes(feature.getAttributes(), featureValues);
+			String sql = layer.getUpdate(featurePositions, feature.getGeom() != null);
+			List<Integer> group = groups.get(sql);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(sql, group);
+			}
+			group.add(i);
+			positions.put(i, featurePositions);
+			values.put(i, featureValues);
+			modified.add(i);
+		}
+		if (modified.isEmpty()) {
+			return result;
+		}
+
+		final List<Feature> toUpdate = features;
+		try {
+			transactionTemplate.execute(new TransactionCallback<Object>() {
+				public Object doInTransaction(TransactionStatus status) {
+					for (Map.Entry<String, List<Integer>> group: groups.entrySet()) {
+						final List<Integer> items = group.getValue();
+						int[] counts = template.batchUpdate(group.getKey(), new BatchPreparedStatementSetter() {
+							public void setValues(PreparedStatement statement, int i) throws SQLException {
+								int item = items.get(i);
+								bindUpdate(statement, toUpdate.get(item).getId(), geometries.get(item), positions.get(item), values.get(item), layer);
+							}
+
+							public int getBatchSize() {
+								return items.size();
+							}
+						});
+						for (int i = 0; i < items.size(); i++) {
+							int item = items.get(i);
+							if (counts[i] == 0) {
+								result.failure(item, "Couldn't find feature with id: " + toUpdate.get(item).getId());
+							} else {
+								result.success(item, toUpdate.get(item).getId());
+							}
+						}
+					}
+					return null;
+				}
+			});
+		} catch (DataIntegrityViolationException e) {
+			markFailed(result, modified, "Couldn't write features: " + e.getMostSpecificCause().getMessage());
+		} catch (DataAccessException e) {
+			logger.error("Couldn't write to given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		return result;
+	}
+
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (ids == null) {
+			throw new IllegalArgumentException("Id list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		final DatabaseLayer layer = getLayer(layerName);
+		final BatchResult result = new BatchResult(ids.size());
+		final List<Integer> found = new ArrayList<Integer>(ids.size());
+		final List<Long> foundIds = new ArrayList<Long>(ids.size());
+		int index = 0;
+		for (Long id: ids) {
+			if (id == null) {
+				result.failure(index, "Couldn't find feature with id: " + id);
+			} else {
+				found.add(index);
+				foundIds.add(id);
+			}
+			index++;
+		}
+		if (found.isEmpty()) {
+			return result;
+		}
+
+		try {
+			transactionTemplate.execute(new TransactionCallback<Object>() {
+				public Object doInTransaction(TransactionStatus status) {
+					int[] counts = template.batchUpdate(layer.getDelete(), new BatchPreparedStatementSetter() {
+						public void setValues(PreparedStatement statement, int i) throws SQLException {
+							statement.setLong(1, foundIds.get(i));
+						}
+
+						public int getBatchSize() {
+							return foundIds.size();
+						}
+					});
+					for (int i = 0; i < found.size(); i++) {
+						if (counts[i] == 0) {
+							result.failure(found.get(i), "Couldn't find feature with id: " + foundIds.get(i));
+						} else {
+							result.success(found.get(i), foundIds.get(i));
+						}
+					}
+					return null;
+				}
+			});
+		} catch (DataAccessException e) {
+			logger.error("Couldn't write to given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		return result;
+	}
+
+	/**
+	 * Answers from copy of layer_config, database is queried only when copy isn't loaded yet.
+	 */
 	public boolean supportsLayer(String layerName) {
 		if(StringUtils.isEmpty(layerName)) {
 			return false;
 		}
-		String[] args = {layerName, "DATABASE"};
-		String query = "SELECT count(*) FROM layer_config WHERE layer_name = ? AND layer_type = ?";
-		Integer count = template.queryForObject(query, args, Integer.class);
-		if (count > 0) {
-			return true;
-		} else {
-			return false;
+		return getLayerConfig().hasLayer(layerName, LAYER_TYPE);
+	}
+
+	/**
+	 * Reads layer_config table again. Listeners are told about every layer which was added,
+	 * removed or changed its type, columns and statements of such layers are forgotten.
+	 */
+	public void refreshLayerConfig() {
+		LayerConfigSnapshot current;
+		LayerConfigSnapshot previous;
+		synchronized (this) {
+			current = LayerConfigSnapshot.load(template);
+			previous = layerConfig;
+			layerConfig = current;
+		}
+		if (previous == null) {
+			return;
+		}
+		for (String layerName: previous.changedLayers(current)) {
+			resetLayer(layerName);
+			for (LayerChangeListener listener: listeners) {
+				listener.layerChanged(layerName);
+			}
+		}
+	}
+
+	/**
+	 * @param refreshInterval how often, in milliseconds, layer_config is read again, 0 turns periodic reading off
+	 */
+	public synchronized void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+		stopRefresher();
+		if (layerConfig != null) {
+			startRefresher();
+		}
+	}
+
+	public void addLayerChangeListener(LayerChangeListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeLayerChangeListener(LayerChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Stops reading layer_config in background.
+	 */
+	public synchronized void dispose() {
+		stopRefresher();
+	}
+
+	/**
+	 * Geometries with SRID other than SRID of layer table are transformed to it instead of being rejected.
+	 */
+	public void setReprojectGeometries(boolean reprojectGeometries) {
+		this.reprojectGeometries = reprojectGeometries;
+	}
+
+	/**
+	 * Sets number of rows fetched at once by cursors returned from {@link #getFeatures(FeatureQuery, String)}.
+	 */
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size has to be positive");
+		}
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Forgets columns and statements of given layer, e.g. after its table was altered.
+	 */
+	public void resetLayer(String layerName) {
+		layers.remove(layerName);
+		crsCache.forget(layerName);
+	}
+
+	private LayerConfigSnapshot getLayerConfig() {
+		LayerConfigSnapshot snapshot = layerConfig;
+		if (snapshot != null) {
+			return snapshot;
+		}
+		synchronized (this) {
+			if (layerConfig == null) {
+				layerConfig = LayerConfigSnapshot.load(template);
+				startRefresher();
+			}
+			return layerConfig;
+		}
+	}
+
+	private synchronized void startRefresher() {
+		if (refresher != null || refreshInterval <= 0) {
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "wharyo-layer-config-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refreshLayerConfig();
+				} catch (DataAccessException e) {
+					// task must not die, old configuration is used until next run
+					logger.error("Couldn't read layer_config table", e);
+				}
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void stopRefresher() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	private DatabaseLayer getLayer(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		DatabaseLayer layer = layers.get(layerName);
+		if (layer != null) {
+			return layer;
+		}
+		DataSource dataSource = template.getDataSource();
+		Connection connection = null;
+		try {
+			connection = DataSourceUtils.getConnection(dataSource);
+			layer = DatabaseLayer.open(connection, layerName);
+		} catch (SQLException e) {
+			logger.error("Couldn't read table of given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} catch (DataAccessException e) {
+			logger.error("Couldn't read table of given layer: " + layerName, e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+		}
+		if (layer == null) {
+			logger.error("No table found for given layer: " + layerName);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		DatabaseLayer previous = layers.putIfAbsent(layerName, layer);
+		return previous == null ? layer : previous;
+	}
+
+	private List<Feature> findFeatures(final Envelope bbox, final DatabaseLayer layer) throws LayerDataSourceNotAvailableException {
+		int[] attributes = layer.findAttributes(null);
+		return query(layer, layer.getSelect(attributes, true, true), attributes, new PreparedStatementSetter() {
+			public void setValues(PreparedStatement statement) throws SQLException {
+				layer.setEnvelope(statement, 1, bbox);
+			}
+		});
+	}
+
+	/**
+	 * @param attributes positions of attributes selected by given statement
+	 */
+	private List<Feature> query(final DatabaseLayer layer, String sql, final int[] attributes, PreparedStatementSetter setter) throws LayerDataSourceNotAvailableException {
+		final FeatureSchema schema = layer.getSchema(attributes);
+		try {
+			return template.query(sql, setter, new RowMapper<Feature>() {
+				public Feature mapRow(ResultSet rs, int rowNum) throws SQLException {
+					return layer.readFeature(rs, schema, attributes);
+				}
+			});
+		} catch (DataAccessException e) {
+			logger.error("Couldn't read from given layer: " + layer.getName(), e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+
+	private void update(DatabaseLayer layer, String sql, PreparedStatementSetter setter) throws LayerDataSourceNotAvailableException {
+		try {
+			template.update(sql, setter);
+		} catch (DataAccessException e) {
+			logger.error("Couldn't write to given layer: " + layer.getName(), e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Binds geometry and all attributes, attributes missing in feature are null.
+	 */
+	private void bindInsert(PreparedStatement statement, Feature feature, Geometry geometry, DatabaseLayer layer) throws SQLException {
+		layer.setGeometry(statement, 1, geometry);
+		List<Object> values = new ArrayList<Object>();
+		int[] positions = layer.collectAttributes(feature.getAttributes(), values);
+		Object[] row = new Object[layer.getSchema().size()];
+		for (int i = 0; i < positions.length; i++) {
+			row[positions[i]] = values.get(i);
+		}
+		for (int i = 0; i < row.length; i++) {
+			layer.setValue(statement, i + 2, i, row[i]);
+		}
+	}
+
+	/**
+	 * Binds parameters of statement given by {@link DatabaseLayer#getUpdate(int[], boolean)}.
+	 * @param geometry new geometry or null when it isn't changed
+	 */
+	private void bindUpdate(PreparedStatement statement, Long id, Geometry geometry, int[] positions, List<Object> values, DatabaseLayer layer) throws SQLException {
+		int index = 1;
+		for (int i = 0; i < positions.length; i++) {
+			layer.setValue(statement, index++, positions[i], values.get(i));
+		}
+		if (geometry != null) {
+			layer.setGeometry(statement, index++, geometry);
+		}
+		statement.setLong(index, id);
+	}
+
+	private void markFailed(BatchResult result, List<Integer> positions, String reason) {
+		for (Integer i: positions) {
+			result.failure(i, reason);
 		}
 	}
 }
@@ -0,0 +1,487 @@
+package pl.wharyo.dao.impl;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Table of database layer: its id, geometry and attribute columns. SQL of statements used
+ * on the table is built once, when layer is first used, so every call only binds parameters.
+ * Layer is immutable apart from cache of statements, it can be used by many threads.
+ */
+class DatabaseLayer {
+
+	private static final Logger logger = Logger.getLogger(DatabaseLayer.class);
+
+	private final String name;
+	private final SpatialDialect dialect;
+	private final String table;
+	private final String idColumn;
+	private final String geomColumn;
+	private final int srid;
+	private final String[] columns;
+	private final int[] sqlTypes;
+	private final FeatureSchema schema;
+	private final int[] allAttributes;
+	private final String selectById;
+	private final String insert;
+	private final String updateGeometry;
+	private final String delete;
+	/** Statements which depend on columns used, e.g. update of some attributes. */
+	private final ConcurrentMap<String, String> statements = new ConcurrentHashMap<String, String>();
+	private final GeometryFactory geomFactory = new GeometryFactory();
+
+	private DatabaseLayer(String name, SpatialDialect dialect, String table, String idColumn, String geomColumn, int srid,
+			List<String> names, List<String> columns, List<AttributeType> types, List<Integer> sqlTypes) {
+		this.name = name;
+		this.dialect = dialect;
+		this.table = table;
+		this.idColumn = idColumn;
+		this.geomColumn = geomColumn;
+		this.srid = srid;
+		this.columns = columns.toArray(new String[columns.size()]);
+		this.sqlTypes = new int[sqlTypes.size()];
+		this.allAttributes = new int[sqlTypes.size()];
+		for (int i = 0; i < this.sqlTypes.length; i++) {
+			this.sqlTypes[i] = sqlTypes.get(i);
+			this.allAttributes[i] = i;
+		}
+		this.schema = new FeatureSchema(names.toArray(new String[names.size()]), types.toArray(new AttributeType[types.size()]));
+
+		this.selectById = select(allAttributes, true) + " WHERE " + idColumn + " = ?";
+		StringBuilder insertColumns = new StringBuilder(geomColumn);
+		StringBuilder insertValues = new StringBuilder(dialect.geometryParameter(srid));
+		for (String column: this.columns) {
+			insertColumns.append(", ").append(column);
+			insertValues.append(", ?");
+		}
+		this.insert = "INSERT INTO " + table + " (" + insertColumns + ") VALUES (" + insertValues + ")";
+		this.updateGeometry = "UPDATE " + table + " SET " + geomColumn + " = " + dialect.geometryParameter(srid) + " WHERE " + idColumn + " = ?";
+		this.delete = "DELETE FROM " + table + " WHERE " + idColumn + " = ?";
+	}
+
+	/**
+	 * Reads columns of layer table. Table has the same name as the layer, optionally
+	 * preceded by schema name, its case doesn't have to match.
+	 * @return layer or null when there is no such table
+	 */
+	static DatabaseLayer open(Connection connection, String layerName) throws SQLException, LayerConfigurationBrokenException {
+		DatabaseMetaData meta = connection.getMetaData();
+		SpatialDialect dialect = SpatialDialect.forDatabase(meta.getDatabaseProductName());
+		String quote = meta.getIdentifierQuoteString() == null ? "" : meta.getIdentifierQuoteString().trim();
+		int dot = layerName.indexOf('.');
+		String schemaPattern = dot < 0 ? null : layerName.substring(0, dot);
+		String tableName = dot < 0 ? layerName : layerName.substring(dot + 1);
+
+		String[] candidates = {tableName, tableName.toLowerCase(), tableName.toUpperCase()};
+		for (String candidate: candidates) {
+			String tableSchema = null;
+			String idColumn = null;
+			String geomColumn = null;
+			List<String> names = new ArrayList<String>();
+			List<String> columns = new ArrayList<String>();
+			List<AttributeType> types = new ArrayList<AttributeType>();
+			List<Integer> sqlTypes = new ArrayList<Integer>();
+			boolean found = false;
+			ResultSet rs = meta.getColumns(null, schemaPattern, candidate, null);
+			try {
+				while (rs.next()) {
+					// name is a pattern, "_" matches any character
+					if (!candidate.equals(rs.getString("TABLE_NAME"))) {
+						continue;
+					} else if (found && !equal(tableSchema, rs.getString("TABLE_SCHEM"))) {
+						// the same table in another schema
+						continue;
+					}
+					found = true;
+					tableSchema = rs.getString("TABLE_SCHEM");
+					String column = rs.getString("COLUMN_NAME");
+					if (column.equalsIgnoreCase("id")) {
+						idColumn = column;
+					} else if ("geometry".equalsIgnoreCase(rs.getString("TYPE_NAME"))) {
+						if (geomColumn == null) {
+							geomColumn = column;
+						}
+					} else {
+						AttributeType type = toAttributeType(rs.getInt("DATA_TYPE"), rs.getInt("DECIMAL_DIGITS"));
+						if (type != null) {
+							names.add(column);
+							columns.add(quote(column, quote));
+							types.add(type);
+							sqlTypes.add(rs.getInt("DATA_TYPE"));
+						}
+					}
+				}
+			} finally {
+				rs.close();
+			}
+			if (!found) {
+				continue;
+			}
+			if (idColumn == null) {
+				logger.error("No id filed found for database layer: " + layerName);
+				throw new LayerConfigurationBrokenException("Coulnd't find proper id field in table " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
+			} else if (geomColumn == null) {
+				logger.error("No geometry column for given database layer: " + layerName);
+				throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layerName, LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+			}
+			int srid;
+			try {
+				srid = dialect.findSrid(connection, tableSchema, candidate, geomColumn);
+			} catch (SQLException e) {
+				logger.warn("Couldn't find SRID of database layer: " + layerName + ", using 0");
+				srid = 0;
+			}
+			String table = (tableSchema == null ? "" : quote(tableSchema, quote) + ".") + quote(candidate, quote);
+			return new DatabaseLayer(layerName, dialect, table, quote(idColumn, quote), quote(geomColumn, quote), srid, names, columns, types, sqlTypes);
+		}
+		return null;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return schema of all attributes
+	 */
+	FeatureSchema getSchema() {
+		return schema;
+	}
+
+	int getSrid() {
+		return srid;
+	}
+
+	/**
+	 * @param attributes positions of attributes to read
+	 * @param geometry whether geometry should be read, it's selected as null otherwise
+	 */
+	String getSelectById(int[] attributes, boolean geometry) {
+		if (attributes == allAttributes && geometry) {
+			return selectById;
+		}
+		String key = "selectId" + (geometry ? "G" : "") + key(attributes);
+		String sql = statements.get(key);
+		if (sql == null) {
+			sql = select(attributes, geometry) + " WHERE " + idColumn + " = ?";
+			statements.putIfAbsent(key, sql);
+		}
+		return sql;
+	}
+
+	/**
+	 * @return insert of geometry and all attributes, id is generated by database
+	 */
+	String getInsert() {
+		return insert;
+	}
+
+	String getUpdateGeometry() {
+		return updateGeometry;
+	}
+
+	String getDelete() {
+		return delete;
+	}
+
+	/**
+	 * @return quoted column of attribute at given position
+	 */
+	String getColumn(int attribute) {
+		return columns[attribute];
+	}
+
+	/**
+	 * @return unquoted name of id column, for reading generated keys
+	 */
+	String getIdColumnName() {
+		return idColumn.replaceAll("[\"`\\[\\]]", "");
+	}
+
+	/**
+	 * @param attributes positions of attributes to read
+	 * @param geometry whether geometry should be read, it's selected as null otherwise
+	 * @param envelope whether geometry envelope has to intersect envelope given as parameter
+	 */
+	String getSelect(int[] attributes, boolean geometry, boolean envelope) {
+		String key = "select" + (geometry ? "G" : "") + (envelope ? "E" : "") + key(attributes);
+		String sql = statements.get(key);
+		if (sql == null) {
+			sql = select(attributes, geometry);
+			if (envelope) {
+				sql += " WHERE " + geomColumn + " && " + dialect.geometryParameter(srid);
+			}
+			statements.putIfAbsent(key, sql);
+		}
+		return sql;
+	}
+
+	/**
+	 * Parameters are values of given attributes, geometry when it's set and id at the end.
+	 * @param attributes positions of attributes to update
+	 */
+	String getUpdate(int[] attributes, boolean geometry) {
+		String key = "update" + (geometry ? "G" : "") + key(attributes);
+		String sql = statements.get(key);
+		if (sql == null) {
+			StringBuilder builder = new StringBuilder("UPDATE ").append(table).append(" SET ");
+			for (int i = 0; i < attributes.length; i++) {
+				builder.append(i > 0 ? ", " : "").append(columns[attributes[i]]).append(" = ?");
+			}
+			if (geometry) {
+				builder.append(attributes.length > 0 ? ", " : "").append(geomColumn).append(" = ").append(dialect.geometryParameter(srid));
+			} else if (attributes.length == 0) {
+				// nothing to change, statement only tells whether feature exists
+				builder.append(idColumn).append(" = ").append(idColumn);
+			}
+			sql = builder.append(" WHERE ").append(idColumn).append(" = ?").toString();
+			statements.putIfAbsent(key, sql);
+		}
+		return sql;
+	}
+
+	/**
+	 * @param names attribute names, case insensitive, or null for all attributes
+	 * @return positions of attributes with given names which exist in layer
+	 */
+	int[] findAttributes(List<String> names) {
+		if (names == null) {
+			return allAttributes;
+		}
+		List<Integer> found = new ArrayList<Integer>();
+		for (int i = 0; i < schema.size(); i++) {
+			for (String name: names) {
+				if (schema.getName(i).equalsIgnoreCase(name)) {
+					found.add(i);
+					break;
+				}
+			}
+		}
+		return toArray(found);
+	}
+
+	FeatureSchema getSchema(int[] attributes) {
+		if (attributes == allAttributes) {
+			return schema;
+		}
+		String[] names = new String[attributes.length];
+		AttributeType[] types = new AttributeType[attributes.length];
+		for (int i = 0; i < attributes.length; i++) {
+			names[i] = schema.getName(attributes[i]);
+			types[i] = schema.getType(attributes[i]);
+		}
+		return new FeatureSchema(names, types);
+	}
+
+	/**
+	 * Attributes with unknown name or value of other type than column are skipped.
+	 * @param values filled with values of returned attributes
+	 * @return positions of given attributes
+	 */
+	int[] collectAttributes(List<Attribute> attributes, List<Object> values) {
+		List<Integer> positions = new ArrayList<Integer>();
+		if (attributes == null) {
+			return toArray(positions);
+		}
+		for (Attribute attr: attributes) {
+			int position = schema.indexOf(attr.getName());
+			if (position >= 0 && attr.getType() == schema.getType(position) && !positions.contains(position)) {
+				positions.add(position);
+				values.add(attr.getValue());
+			}
+		}
+		return toArray(positions);
+	}
+
+	/**
+	 * Reads row selected by {@link #getSelect(int[], boolean, boolean)} or {@link #getSelectById(int[], boolean)}.
+	 * @param schema schema of selected attributes
+	 */
+	Feature readFeature(ResultSet rs, FeatureSchema schema, int[] attributes) throws SQLException {
+		Feature feature = new Feature(schema);
+		long id = rs.getLong(1);
+		feature.setId(rs.wasNull() ? null : id);
+		byte[] wkb = rs.getBytes(2);
+		if (wkb != null) {
+			try {
+				feature.setGeom(new WKBReader(geomFactory).read(wkb));
+			} catch (ParseException e) {
+				logger.warn("Broken geometry of feature " + id + " in database layer: " + name);
+			}
+		}
+		try {
+			for (int i = 0; i < attributes.length; i++) {
+				readValue(rs, i + 3, feature, i);
+			}
+		} catch (UnsupportedAttributeType e) {
+			// values are read with types given by schema
+		}
+		return feature;
+	}
+
+	void setGeometry(PreparedStatement statement, int index, Geometry geometry) throws SQLException {
+		statement.setBytes(index, new WKBWriter().write(geometry));
+	}
+
+	/**
+	 * Binds envelope as rectangle polygon, it's compared with geometry column by "&&" operator.
+	 */
+	void setEnvelope(PreparedStatement statement, int index, Envelope envelope) throws SQLException {
+		setGeometry(statement, index, geomFactory.toGeometry(envelope));
+	}
+
+	void setValue(PreparedStatement statement, int index, int attribute, Object value) throws SQLException {
+		int sqlType = sqlTypes[attribute];
+		if (value == null) {
+			statement.setNull(index, sqlType);
+			return;
+		}
+		switch (schema.getType(attribute)) {
+		case LONG:
+			statement.setLong(index, ((Number) value).longValue());
+			break;
+		case DOUBLE:
+			statement.setDouble(index, ((Number) value).doubleValue());
+			break;
+		case BOOLEAN:
+			statement.setBoolean(index, (Boolean) value);
+			break;
+		case DATE:
+			long time = ((Date) value).getTime();
+			if (sqlType == Types.DATE) {
+				statement.setDate(index, new java.sql.Date(time));
+			} else {
+				statement.setTimestamp(index, new Timestamp(time));
+			}
+			break;
+		default:
+			statement.setString(index, value.toString());
+		}
+	}
+
+	/**
+	 * Geometry which isn't read is selected as null, so columns keep their positions.
+	 */
+	private String select(int[] attributes, boolean geometry) {
+		StringBuilder builder = new StringBuilder("SELECT ").append(idColumn).append(", ").append(geometry ? dialect.readGeometry(geomColumn) : "NULL");
+		for (int attribute: attributes) {
+			builder.append(", ").append(columns[attribute]);
+		}
+		return builder.append(" FROM ").append(table).toString();
+	}
+
+	/**
+	 * Numbers and logical values go to typed setters, so they aren't boxed.
+	 */
+	private void readValue(ResultSet rs, int index, Feature feature, int position) throws SQLException, UnsupportedAttributeType {
+		switch (feature.getSchema().getType(position)) {
+		case LONG:
+			long longValue = rs.getLong(index);
+			if (!rs.wasNull()) {
+				feature.setLong(position, longValue);
+			}
+			break;
+		case DOUBLE:
+			double doubleValue = rs.getDouble(index);
+			if (!rs.wasNull()) {
+				feature.setDouble(position, doubleValue);
+			}
+			break;
+		case BOOLEAN:
+			boolean booleanValue = rs.getBoolean(index);
+			if (!rs.wasNull()) {
+				feature.setBoolean(position, booleanValue);
+			}
+			break;
+		case DATE:
+			Timestamp timestamp = rs.getTimestamp(index);
+			feature.setValue(position, timestamp == null ? null : new Date(timestamp.getTime()));
+			break;
+		default:
+			feature.setValue(position, rs.getString(index));
+		}
+	}
+
+	private static AttributeType toAttributeType(int sqlType, int decimals) {
+		switch (sqlType) {
+		case Types.BIGINT:
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			return AttributeType.LONG;
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+			return decimals == 0 ? AttributeType.LONG : AttributeType.DOUBLE;
+		case Types.DOUBLE:
+		case Types.FLOAT:
+		case Types.REAL:
+			return AttributeType.DOUBLE;
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+			return AttributeType.TEXT;
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return AttributeType.BOOLEAN;
+		case Types.DATE:
+		case Types.TIMESTAMP:
+			return AttributeType.DATE;
+		default:
+			return null;
+		}
+	}
+
+	private static String quote(String identifier, String quote) {
+		return quote + identifier.replace(quote.isEmpty() ? "\u0000" : quote, quote + quote) + quote;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static String key(int[] attributes) {
+		StringBuilder key = new StringBuilder();
+		for (int attribute: attributes) {
+			key.append(':').append(attribute);
+		}
+		return key.toString();
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,377 @@
+package pl.wharyo.dao.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Sorted index of values of single attribute, items are feature ids. Index is kept in sidecar
+ * file next to the shapefile (<i>layer.attribute.idx</i>) together with state of layer files it
+ * was built for, file which doesn't fit current files is not loaded. File is removed on first
+ * change of the index and written again when index is saved, so file on disk is never out of date.
+ * Like in {@link FeatureSpatialIndex}, old entries of updated and deleted features stay, so lookup
+ * returns candidates which have to be checked against actual values. Features written later are
+ * candidates of every lookup, as value stored in dbf may differ from value written (dates lose time,
+ * text and numbers are cut to field size). When there are too many such changes index asks to be rebuilt.
+ */
+class FeatureAttributeIndex {
+
+	private static final int MAGIC = 0x57494458;
+	private static final int VERSION = 1;
+	private static final int MIN_CHANGES_BEFORE_REBUILD = 256;
+
+	private static final Logger logger = Logger.getLogger(FeatureAttributeIndex.class);
+
+	private final String attributeName;
+	private final AttributeType type;
+	private final File file;
+	private final Object[] keys;
+	private final long[] ids;
+	private final Set<Long> pendingIds;
+	private int changes;
+	private boolean saved;
+
+	private FeatureAttributeIndex(String attributeName, AttributeType type, File file, Object[] keys, long[] ids, Set<Long> pendingIds, int changes, boolean saved) {
+		this.attributeName = attributeName;
+		this.type = type;
+		this.file = file;
+		this.keys = keys;
+		this.ids = ids;
+		this.pendingIds = pendingIds;
+		this.changes = changes;
+		this.saved = saved;
+	}
+
+	/**
+	 * @param attributeName lower case attribute name
+	 * @param file sidecar file index is saved to
+	 */
+	static Builder builder(String attributeName, AttributeType type, File file) {
+		return new Builder(attributeName, type, file);
+	}
+
+	/**
+	 * @param fileState state of layer files index has to be built for, see {@link ShapefileLayer#getFileState()}
+	 * @return index or null when there is no file or it was built for other files or attribute type
+	 */
+	static FeatureAttributeIndex load(String attributeName, AttributeType type, File file, long[] fileState) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION || !attributeName.equals(in.readUTF()) || !type.name().equals(in.readUTF())) {
+					return null;
+				}
+				for (long state: fileState) {
+					if (in.readLong() != state) {
+						logger.info("Attribute index doesn't fit layer files, it will be rebuilt: " + file);
+						return null;
+					}
+				}
+				int changes = in.readInt();
+				int size = in.readInt();
+				Object[] keys = new Object[size];
+				long[] ids = new long[size];
+				for (int i = 0; i < size; i++) {
+					keys[i] = readKey(in, type);
+					ids[i] = in.readLong();
+				}
+				int pendingSize = in.readInt();
+				Set<Long> pendingIds = new HashSet<Long>();
+				for (int i = 0; i < pendingSize; i++) {
+					pendingIds.add(in.readLong());
+				}
+				return new FeatureAttributeIndex(attributeName, type, file, keys, ids, pendingIds, changes, true);
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			logger.warn("Broken attribute index file: " + file);
+		} catch (IOException e) {
+			logger.warn("Couldn't read attribute index file: " + file, e);
+		}
+		return null;
+	}
+
+	String getAttributeName() {
+		return attributeName;
+	}
+
+	AttributeType getType() {
+		return type;
+	}
+
+	/**
+	 * Bounds are compared with values the way filters compare them, so whole numbers can be
+	 * looked for with fractions and the other way round.
+	 * @param lower lowest value or null when there is no lower bound
+	 * @param upper highest value or null when there is no upper bound
+	 * @return sorted, distinct ids of features which may have value in given range
+	 * or null when bounds can't be compared with attribute values
+	 */
+	long[] range(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+		Object lowerKey = lower == null ? null : key(type, lower);
+		Object upperKey = upper == null ? null : key(type, upper);
+		if ((lower != null && lowerKey == null) || (upper != null && upperKey == null)) {
+			return null;
+		}
+		int from = lowerKey == null ? 0 : search(lowerKey, !lowerInclusive);
+		int to = upperKey == null ? keys.length : search(upperKey, upperInclusive);
+		long[] result;
+		int count = Math.max(to - from, 0);
+		synchronized (this) {
+			result = new long[count + pendingIds.size()];
+			for (Long id: pendingIds) {
+				result[count++] = id;
+			}
+		}
+		if (to > from) {
+			System.arraycopy(ids, from, result, 0, to - from);
+		}
+		return distinct(result, count);
+	}
+
+	/**
+	 * Registers created feature or feature whose indexed attribute was updated.
+	 */
+	synchronized void put(long id) {
+		changed();
+		pendingIds.add(id);
+	}
+
+	/**
+	 * Nothing is removed, deleted feature is just not found when candidates are read.
+	 */
+	synchronized void remove(long id) {
+		changed();
+	}
+
+	synchronized boolean needsRebuild() {
+		return changes > Math.max(MIN_CHANGES_BEFORE_REBUILD, keys.length / 8);
+	}
+
+	synchronized boolean isSaved() {
+		return saved;
+	}
+
+	/**
+	 * Writes index with its pending features to sidecar file. File is replaced only after
+	 * whole index was written.
+	 * @param fileState state of layer files index fits
+	 */
+	synchronized void save(long[] fileState) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(attributeName);
+			out.writeUTF(type.name());
+			for (long state: fileState) {
+				out.writeLong(state);
+			}
+			out.writeInt(changes);
+			out.writeInt(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				writeKey(out, type, keys[i]);
+				out.writeLong(ids[i]);
+			}
+			out.writeInt(pendingIds.size());
+			for (Long id: pendingIds) {
+				out.writeLong(id);
+			}
+		} finally {
+			out.close();
+		}
+		if ((file.exists() && !file.delete()) || !tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Couldn't replace attribute index file: " + file);
+		}
+		saved = true;
+	}
+
+	/**
+	 * File is removed before index changes for the first time, so it can't be loaded
+	 * when process dies before index is saved again.
+	 */
+	private void changed() {
+		changes++;
+		if (saved) {
+			saved = false;
+			if (file.exists() && !file.delete()) {
+				logger.warn("Couldn't remove attribute index file: " + file);
+			}
+		}
+	}
+
+	/**
+	 * @param after true to find first key greater than given one, false to find first key not less than it
+	 */
+	private int search(Object key, boolean after) {
+		int low = 0;
+		int high = keys.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(keys[mid], key);
+			if (cmp < 0 || (cmp == 0 && after)) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private static long[] distinct(long[] ids, int count) {
+		Arrays.sort(ids, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+				ids[distinct++] = ids[i];
+			}
+		}
+		return distinct == ids.length ? ids : Arrays.copyOf(ids, distinct);
+	}
+
+	/**
+	 * Dates are kept as milliseconds, numbers of whole number attribute as longs unless
+	 * given value is a fraction.
+	 * @return key of given value for attribute of given type or null when they don't fit
+	 */
+	static Object key(AttributeType type, Object value) {
+		switch (type) {
+		case LONG:
+			if (value instanceof Double || value instanceof Float) {
+				return ((Number) value).doubleValue();
+			}
+			return value instanceof Number ? (Object) ((Number) value).longValue() : null;
+		case DOUBLE:
+			return value instanceof Number ? (Object) ((Number) value).doubleValue() : null;
+		case DATE:
+			return value instanceof Date ? (Object) ((Date) value).getTime() : null;
+		case BOOLEAN:
+			return value instanceof Boolean ? value : null;
+		default:
+			return value instanceof String ? value : null;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object key, Object other) {
+		if (key instanceof Long && other instanceof Long) {
+			return ((Long) key).compareTo((Long) other);
+		} else if (key instanceof Number && other instanceof Number) {
+			return Double.compare(((Number) key).doubleValue(), ((Number) other).doubleValue());
+		}
+		return ((Comparable) key).compareTo(other);
+	}
+
+	private static void sort(Object[] keys, long[] ids, int size) {
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		final Object[] sortKeys = keys;
+		final long[] sortIds = ids;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = FeatureAttributeIndex.compare(sortKeys[a], sortKeys[b]);
+				return cmp != 0 ? cmp : (sortIds[a] < sortIds[b] ? -1 : (sortIds[a] == sortIds[b] ? 0 : 1));
+			}
+		});
+		Object[] sortedKeys = new Object[size];
+		long[] sortedIds = new long[size];
+		for (int i = 0; i < size; i++) {
+			sortedKeys[i] = keys[order[i]];
+			sortedIds[i] = ids[order[i]];
+		}
+		System.arraycopy(sortedKeys, 0, keys, 0, size);
+		System.arraycopy(sortedIds, 0, ids, 0, size);
+	}
+
+	private static Object readKey(DataInputStream in, AttributeType type) throws IOException {
+		switch (type) {
+		case LONG:
+		case DATE:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case BOOLEAN:
+			return in.readBoolean();
+		default:
+			return in.readUTF();
+		}
+	}
+
+	private static void writeKey(DataOutputStream out, AttributeType type, Object key) throws IOException {
+		switch (type) {
+		case LONG:
+		case DATE:
+			out.writeLong((Long) key);
+			break;
+		case DOUBLE:
+			out.writeDouble((Double) key);
+			break;
+		case BOOLEAN:
+			out.writeBoolean((Boolean) key);
+			break;
+		default:
+			out.writeUTF((String) key);
+		}
+	}
+
+	static class Builder {
+
+		private final String attributeName;
+		private final AttributeType type;
+		private final File file;
+		private Object[] keys = new Object[1024];
+		private long[] ids = new long[1024];
+		private int size;
+
+		private Builder(String attributeName, AttributeType type, File file) {
+			this.attributeName = attributeName;
+			this.type = type;
+			this.file = file;
+		}
+
+		/**
+		 * Values which don't fit attribute type and null values are not indexed.
+		 */
+		void add(long id, Object value) {
+			Object key = value == null ? null : key(type, value);
+			if (key == null) {
+				return;
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			keys[size] = key;
+			ids[size] = id;
+			size++;
+		}
+
+		FeatureAttributeIndex build() {
+			sort(keys, ids, size);
+			return new FeatureAttributeIndex(attributeName, type, file, Arrays.copyOf(keys, size), Arrays.copyOf(ids, size), new HashSet<Long>(), 0, false);
+		}
+	}
+}
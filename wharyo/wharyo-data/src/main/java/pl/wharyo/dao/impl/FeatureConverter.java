@@ -0,0 +1,126 @@
+package pl.wharyo.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Converts GeoTools features read by file based DAOs to model features. Converter is made
+ * for single feature type, all features it creates share one {@link FeatureSchema}.
+ */
+final class FeatureConverter {
+
+	private final SimpleFeatureType featureType;
+	private final FeatureSchema schema;
+	private final int[] sources;
+	private final int idSource;
+	private final boolean withGeometry;
+
+	private FeatureConverter(SimpleFeatureType featureType, FeatureSchema schema, int[] sources, int idSource, boolean withGeometry) {
+		this.featureType = featureType;
+		this.schema = schema;
+		this.sources = sources;
+		this.idSource = idSource;
+		this.withGeometry = withGeometry;
+	}
+
+	/**
+	 * @param attributeNames lower case names of attributes to convert, null converts all of them
+	 */
+	static FeatureConverter forType(SimpleFeatureType featureType, Set<String> attributeNames) {
+		return forType(featureType, attributeNames, true);
+	}
+
+	/**
+	 * @param withGeometry false when created features shouldn't have geometry
+	 */
+	static FeatureConverter forType(SimpleFeatureType featureType, Set<String> attributeNames, boolean withGeometry) {
+		List<String> names = new ArrayList<String>();
+		List<AttributeType> types = new ArrayList<AttributeType>();
+		List<Integer> sources = new ArrayList<Integer>();
+		int idSource = -1;
+		for (int i = 0; i < featureType.getAttributeCount(); i++) {
+			AttributeDescriptor desc = featureType.getDescriptor(i);
+			String name = desc.getLocalName();
+			AttributeType type = toAttributeType(desc.getType().getBinding());
+			if (name.equalsIgnoreCase("id")) {
+				idSource = i;
+			} else if (desc instanceof GeometryDescriptor || type == null) {
+				continue;
+			} else if (attributeNames == null || attributeNames.contains(name.toLowerCase())) {
+				names.add(name);
+				types.add(type);
+				sources.add(i);
+			}
+		}
+		int[] sourceArray = new int[sources.size()];
+		for (int i = 0; i < sourceArray.length; i++) {
+			sourceArray[i] = sources.get(i);
+		}
+		FeatureSchema schema = new FeatureSchema(names.toArray(new String[names.size()]), types.toArray(new AttributeType[types.size()]));
+		return new FeatureConverter(featureType, schema, sourceArray, idSource, withGeometry);
+	}
+
+	FeatureSchema getSchema() {
+		return schema;
+	}
+
+	boolean supports(SimpleFeatureType type) {
+		return featureType == type || featureType.equals(type);
+	}
+
+	Feature toFeature(SimpleFeature sFeature) throws UnsupportedAttributeType {
+		Feature feature = new Feature(schema);
+		if (idSource >= 0) {
+			Object id = sFeature.getAttribute(idSource);
+			feature.setId(id == null ? null : ((Number) id).longValue());
+		}
+		for (int i = 0; i < sources.length; i++) {
+			Object value = sFeature.getAttribute(sources[i]);
+			if (value == null) {
+				continue;
+			}
+			// type is known from schema, so value is unboxed without resolving it again
+			switch (schema.getType(i)) {
+			case LONG:
+				feature.setLong(i, ((Number) value).longValue());
+				break;
+			case DOUBLE:
+				feature.setDouble(i, ((Number) value).doubleValue());
+				break;
+			default:
+				feature.setValue(i, value);
+			}
+		}
+		if (withGeometry) {
+			feature.setGeom((Geometry) sFeature.getDefaultGeometry());
+		}
+		return feature;
+	}
+
+	private static AttributeType toAttributeType(Class<?> binding) {
+		if (binding == Integer.class || binding == Long.class) {
+			return AttributeType.LONG;
+		} else if (binding == Double.class || binding == Float.class) {
+			return AttributeType.DOUBLE;
+		} else if (binding == String.class) {
+			return AttributeType.TEXT;
+		} else if (binding == Date.class) {
+			return AttributeType.DATE;
+		}
+		return null;
+	}
+}
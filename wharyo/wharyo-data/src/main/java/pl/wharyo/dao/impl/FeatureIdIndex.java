@@ -0,0 +1,204 @@
+package pl.wharyo.dao.impl;
+
+import java.util.Arrays;
+
+/**
+ * Maps feature id to number of record which holds it. Ids are kept sorted in primitive
+ * arrays, so lookup is a binary search and appending new (highest) id is cheap.
+ * Ids which were written but whose record number is not known yet are kept as {@link #UNRESOLVED}.
+ * Deleting records may renumber the following ones (shapefile without .fix file), so record
+ * numbers from the lowest deleted one on are only trusted once they were checked.
+ */
+class FeatureIdIndex {
+
+	static final int ABSENT = -1;
+	static final int UNRESOLVED = -2;
+
+	private long[] ids;
+	private int[] records;
+	private int size;
+	private int renumberedFrom = Integer.MAX_VALUE;
+
+	FeatureIdIndex() {
+		this(16);
+	}
+
+	FeatureIdIndex(int capacity) {
+		ids = new long[Math.max(capacity, 16)];
+		records = new int[ids.length];
+	}
+
+	/**
+	 * Creates index from pairs read in any order. When id repeats, record read first wins.
+	 */
+	static FeatureIdIndex build(long[] ids, int[] records, int size) {
+		FeatureIdIndex index = new FeatureIdIndex(size);
+		System.arraycopy(ids, 0, index.ids, 0, size);
+		System.arraycopy(records, 0, index.records, 0, size);
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = ids[i - 1] < ids[i];
+		}
+		if (!sorted) {
+			sort(index.ids, index.records, 0, size - 1);
+			int last = 0;
+			for (int i = 1; i < size; i++) {
+				if (index.ids[i] != index.ids[last]) {
+					last++;
+					index.ids[last] = index.ids[i];
+					index.records[last] = index.records[i];
+				} else if (index.records[i] < index.records[last]) {
+					index.records[last] = index.records[i];
+				}
+			}
+			size = size == 0 ? 0 : last + 1;
+		}
+		index.size = size;
+		return index;
+	}
+
+	/**
+	 * @return record number, {@link #ABSENT} or {@link #UNRESOLVED}
+	 */
+	synchronized int get(long id) {
+		int pos = search(id);
+		return pos >= 0 ? records[pos] : ABSENT;
+	}
+
+	synchronized void put(long id, int record) {
+		int pos = search(id);
+		if (pos >= 0) {
+			records[pos] = record;
+			return;
+		}
+		pos = -(pos + 1);
+		if (size == ids.length) {
+			long[] newIds = new long[size + (size >> 1)];
+			int[] newRecords = new int[newIds.length];
+			System.arraycopy(ids, 0, newIds, 0, size);
+			System.arraycopy(records, 0, newRecords, 0, size);
+			ids = newIds;
+			records = newRecords;
+		}
+		System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+		System.arraycopy(records, pos, records, pos + 1, size - pos);
+		ids[pos] = id;
+		records[pos] = record;
+		size++;
+	}
+
+	synchronized void remove(long id) {
+		int pos = search(id);
+		if (pos >= 0) {
+			removed(records[pos]);
+			System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+			System.arraycopy(records, pos + 1, records, pos, size - pos - 1);
+			size--;
+		}
+	}
+
+	/**
+	 * Removes many ids at once, arrays are compacted in one pass instead of being shifted per id.
+	 */
+	synchronized void removeAll(long[] removed) {
+		if (removed.length == 0 || size == 0) {
+			return;
+		}
+		long[] sorted = removed.clone();
+		Arrays.sort(sorted);
+		// entries before the lowest removed id stay where they are
+		int pos = search(sorted[0]);
+		int write = pos >= 0 ? pos : -(pos + 1);
+		int next = 0;
+		for (int read = write; read < size; read++) {
+			long id = ids[read];
+			while (next < sorted.length && sorted[next] < id) {
+				next++;
+			}
+			if (next < sorted.length && sorted[next] == id) {
+				removed(records[read]);
+				continue;
+			}
+			ids[write] = id;
+			records[write] = records[read];
+			write++;
+		}
+		size = write;
+	}
+
+	/**
+	 * @return false when given record may have been renumbered since its number was put into index
+	 */
+	synchronized boolean isCurrent(int record) {
+		return record < renumberedFrom;
+	}
+
+	synchronized long getHighestId() {
+		return size == 0 ? 0L : ids[size - 1];
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void removed(int record) {
+		if (record >= 0) {
+			renumberedFrom = Math.min(renumberedFrom, record);
+		}
+	}
+
+	private int search(long id) {
+		// new ids are the highest ones, check them before searching
+		if (size > 0 && ids[size - 1] < id) {
+			return -(size + 1);
+		}
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = ids[mid];
+			if (midId < id) {
+				low = mid + 1;
+			} else if (midId > id) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static void sort(long[] ids, int[] records, int from, int to) {
+		while (from < to) {
+			long pivot = ids[(from + to) >>> 1];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (ids[i] < pivot) {
+					i++;
+				}
+				while (ids[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long id = ids[i];
+					ids[i] = ids[j];
+					ids[j] = id;
+					int record = records[i];
+					records[i] = records[j];
+					records[j] = record;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part to keep stack shallow
+			if (j - from < to - i) {
+				sort(ids, records, from, j);
+				from = i;
+			} else {
+				sort(ids, records, i, to);
+				to = j;
+			}
+		}
+	}
+}
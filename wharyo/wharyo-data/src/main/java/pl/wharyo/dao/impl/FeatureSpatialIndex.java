@@ -0,0 +1,105 @@
+package pl.wharyo.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * In-memory R-tree of feature envelopes, items are feature ids.
+ * STRtree can't be modified after it was built, so envelopes written later are kept
+ * in a pending list which is scanned on every query. Old envelopes of updated and deleted
+ * features stay in the tree, so query returns candidates which have to be checked against
+ * actual geometries. When there are too many such changes index asks to be rebuilt.
+ */
+class FeatureSpatialIndex {
+
+	private static final int NODE_CAPACITY = 10;
+	private static final int MIN_CHANGES_BEFORE_REBUILD = 256;
+
+	private final STRtree tree;
+	private final int size;
+	private final List<Envelope> pendingEnvelopes = new ArrayList<Envelope>();
+	private final List<Long> pendingIds = new ArrayList<Long>();
+	private int changes;
+
+	private FeatureSpatialIndex(STRtree tree, int size) {
+		this.tree = tree;
+		this.size = size;
+	}
+
+	static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return sorted, distinct ids of features whose envelope may intersect given one
+	 */
+	long[] query(Envelope envelope) {
+		List<?> items = tree.query(envelope);
+		long[] ids;
+		int count = items.size();
+		synchronized (this) {
+			ids = new long[count + pendingIds.size()];
+			for (int i = 0; i < pendingIds.size(); i++) {
+				if (pendingEnvelopes.get(i).intersects(envelope)) {
+					ids[count++] = pendingIds.get(i);
+				}
+			}
+		}
+		for (int i = 0; i < items.size(); i++) {
+			ids[i] = (Long) items.get(i);
+		}
+		Arrays.sort(ids, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+				ids[distinct++] = ids[i];
+			}
+		}
+		if (distinct == ids.length) {
+			return ids;
+		}
+		long[] result = new long[distinct];
+		System.arraycopy(ids, 0, result, 0, distinct);
+		return result;
+	}
+
+	/**
+	 * Registers new envelope of created or updated feature.
+	 */
+	synchronized void put(long id, Envelope envelope) {
+		pendingIds.add(id);
+		pendingEnvelopes.add(envelope);
+		changes++;
+	}
+
+	/**
+	 * Nothing is removed, deleted feature is just not found when candidates are read.
+	 */
+	synchronized void remove(long id) {
+		changes++;
+	}
+
+	synchronized boolean needsRebuild() {
+		return changes > Math.max(MIN_CHANGES_BEFORE_REBUILD, size / 8);
+	}
+
+	static class Builder {
+
+		private final STRtree tree = new STRtree(NODE_CAPACITY);
+		private int size;
+
+		void add(long id, Envelope envelope) {
+			tree.insert(envelope, Long.valueOf(id));
+			size++;
+		}
+
+		FeatureSpatialIndex build() {
+			tree.build();
+			return new FeatureSpatialIndex(tree, size);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package pl.wharyo.dao.impl;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Maps model attributes to descriptors of single feature type, worked out once per type, so
+ * writes look attributes up by name instead of comparing them with every descriptor.
+ * Plan is immutable, it's shared by all writes to the layer.
+ */
+final class FeatureWritePlan {
+
+	private final SimpleFeatureType featureType;
+	/** Lower case attribute name to descriptor position, id and geometry aren't there. */
+	private final Map<String, Integer> positions;
+	private final Name[] names;
+	/** Attribute type accepted by descriptor or null when descriptor can't be written from attribute. */
+	private final AttributeType[] types;
+	private final int idPosition;
+	private final int geometryPosition;
+
+	private FeatureWritePlan(SimpleFeatureType featureType) {
+		this.featureType = featureType;
+		int count = featureType.getAttributeCount();
+		this.positions = new HashMap<String, Integer>();
+		this.names = new Name[count];
+		this.types = new AttributeType[count];
+		int idPosition = -1;
+		int geometryPosition = -1;
+		for (int i = 0; i < count; i++) {
+			AttributeDescriptor desc = featureType.getDescriptor(i);
+			names[i] = desc.getName();
+			if (desc.getLocalName().equalsIgnoreCase("id")) {
+				idPosition = i;
+			} else if (desc instanceof GeometryDescriptor) {
+				geometryPosition = i;
+			} else {
+				types[i] = toAttributeType(desc.getType().getBinding());
+				String key = key(desc.getLocalName());
+				if (!positions.containsKey(key)) {
+					positions.put(key, i);
+				}
+			}
+		}
+		this.idPosition = idPosition;
+		this.geometryPosition = geometryPosition;
+	}
+
+	static FeatureWritePlan forType(SimpleFeatureType featureType) {
+		return new FeatureWritePlan(featureType);
+	}
+
+	boolean supports(SimpleFeatureType type) {
+		return featureType == type || featureType.equals(type);
+	}
+
+	/**
+	 * Attributes which don't match layer attributes by name (case insensitive) and type are ignored.
+	 * @param geometry geometry to write, already checked against layer
+	 * @param fid GeoTools feature id or null to let builder generate one
+	 */
+	SimpleFeature buildFeature(Feature feature, Geometry geometry, Long id, String fid, SimpleFeatureBuilder featureBuilder) {
+		if (feature.getAttributes() != null) {
+			for (Attribute attr: feature.getAttributes()) {
+				int position = find(attr);
+				if (position >= 0) {
+					featureBuilder.set(position, attr.getValue());
+				}
+			}
+		}
+		if (idPosition >= 0) {
+			featureBuilder.set(idPosition, id);
+		}
+		if (geometryPosition >= 0) {
+			featureBuilder.set(geometryPosition, geometry);
+		}
+		return featureBuilder.buildFeature(fid);
+	}
+
+	/**
+	 * Picks attributes which match layer attributes by name and type, others are ignored.
+	 */
+	void collectAttributeChanges(List<Attribute> attributes, List<Name> attrNames, List<Object> attrValues) {
+		for (Attribute attr: attributes) {
+			int position = find(attr);
+			if (position >= 0) {
+				attrNames.add(names[position]);
+				attrValues.add(attr.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return position of descriptor which can take value of given attribute or -1
+	 */
+	private int find(Attribute attr) {
+		if (attr == null || attr.getName() == null) {
+			return -1;
+		}
+		Integer position = positions.get(key(attr.getName()));
+		if (position == null || types[position] != attr.getType()) {
+			return -1;
+		}
+		return position;
+	}
+
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static AttributeType toAttributeType(Class<?> binding) {
+		if (binding == String.class) {
+			return AttributeType.TEXT;
+		} else if (binding == Long.class || binding == Integer.class) {
+			return AttributeType.LONG;
+		} else if (binding == Double.class || binding == Float.class) {
+			return AttributeType.DOUBLE;
+		} else if (binding == Date.class) {
+			return AttributeType.DATE;
+		}
+		return null;
+	}
+}
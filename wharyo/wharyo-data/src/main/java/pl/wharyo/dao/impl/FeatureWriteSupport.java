@@ -0,0 +1,90 @@
+package pl.wharyo.dao.impl;
+
+import org.apache.log4j.Logger;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.exceptions.BrokenFeatureException;
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+
+/**
+ * Checks shared by DAOs which write GeoTools features.
+ */
+final class FeatureWriteSupport {
+
+	private static final Logger logger = Logger.getLogger(FeatureWriteSupport.class);
+
+	private FeatureWriteSupport() {
+	}
+
+	/**
+	 * Checks geometry type and CRS against layer. Geometry without SRID is taken as being in layer CRS.
+	 * @param reproject whether geometry in other CRS should be transformed instead of rejected
+	 * @return geometry to write, transformed to layer CRS when needed
+	 */
+	static Geometry validateGeometry(Geometry geometry, SimpleFeatureType featureType, String layerName, CrsCache crsCache, boolean reproject) throws BrokenFeatureException, LayerConfigurationBrokenException {
+		GeometryDescriptor geomDesc = featureType.getGeometryDescriptor();
+		if (geomDesc != null) {
+			if (geometry.getSRID() <= 0) {
+				logger.warn("Saving feature with empty geometry srid");
+			} else if (geomDesc.getCoordinateReferenceSystem() != null) {
+				geometry = crsCache.toLayerCrs(geometry, geomDesc.getCoordinateReferenceSystem(), layerName, reproject);
+			}
+			if (!compareGeometryTypes(geometry, geomDesc.getType().getName().getLocalPart())) {
+				throw new BrokenFeatureException("Feature contains geometry which is not koherent with geometry type in layer: " + layerName);
+			}
+			return geometry;
+		} else {
+			logger.error("No geometry descriptor for given shapefile layer: " + layerName);
+			throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layerName, LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+		}
+	}
+	
+	/**
+	 * Checks CRS of geometry written to layer which knows only SRID of its CRS, like database table.
+	 * Geometry without SRID and layer of unknown SRID are taken as matching.
+	 * @param reproject whether geometry in other CRS should be transformed instead of rejected
+	 * @return geometry to write, transformed to layer CRS when needed
+	 */
+	static Geometry validateSrid(Geometry geometry, int layerSrid, String layerName, CrsCache crsCache, boolean reproject) throws BrokenFeatureException {
+		if (geometry.getSRID() <= 0 || layerSrid <= 0 || geometry.getSRID() == layerSrid) {
+			return geometry;
+		}
+		CoordinateReferenceSystem layerCrs;
+		try {
+			layerCrs = CrsCache.decode(layerSrid);
+		} catch (FactoryException e) {
+			logger.error("Unknown SRID of layer: " + layerName);
+			throw new BrokenFeatureException("Feature CRS doesn't match CRS of layer: " + layerName);
+		}
+		return crsCache.toLayerCrs(geometry, layerCrs, layerName, reproject);
+	}
+	
+	static boolean compareGeometryTypes(Geometry geom, String type_2) {
+		String type_1 = geom.getGeometryType();
+		if (type_1 == null && type_2 == null) {
+			return true;
+		} else if ((type_1 != null && type_2 == null) 
+				||(type_1 == null && type_2 != null)) {
+			return false;
+		}
+		if (type_1.equals(type_2)) {
+			return true;
+		} else if ((type_1.equalsIgnoreCase("LineString") || type_1.equalsIgnoreCase("MultiLineString"))
+				&& (type_2.equalsIgnoreCase("LineString") || type_2.equalsIgnoreCase("MultiLineString"))) {
+			return true;
+		} else if ((type_1.equalsIgnoreCase("Polygon") || type_1.equalsIgnoreCase("MultiPolygon"))
+				&& (type_2.equalsIgnoreCase("Polygon") || type_2.equalsIgnoreCase("MultiPolygon"))) {
+			return true;
+		} else if ((type_1.equalsIgnoreCase("Point") || type_1.equalsIgnoreCase("MultiPoint"))
+				&& (type_2.equalsIgnoreCase("Point") || type_2.equalsIgnoreCase("MultiPoint"))) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package pl.wharyo.dao.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Changes of GeoJSON layer which were not written to the layer file yet. Every change is
+ * one line appended to <i>layer.log</i> next to the layer file, so cost of a write doesn't
+ * depend on layer size:
+ * <pre>
+ * U 12 {"type": "Feature", ...}
+ * D 7
+ * </pre>
+ * Latest line of given id wins and replaying a line twice gives the same result, so lines
+ * already folded into layer file by compaction can be safely read again after a crash.
+ * Changes are kept in memory as well, log is short because compaction empties it regularly.
+ */
+class GeoJsonDeltaLog {
+
+	/** Value of deleted feature. */
+	static final byte[] DELETED = new byte[0];
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Logger logger = Logger.getLogger(GeoJsonDeltaLog.class);
+
+	private final File logFile;
+	private final File compactingFile;
+	/** Guards replacing layer file by compaction, readers of layer file take read lock. */
+	private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+	/** Only one compaction of the layer can run at a time. */
+	private final Lock compactionLock = new ReentrantLock();
+
+	private Map<Long, byte[]> changes = new LinkedHashMap<Long, byte[]>();
+	private Map<Long, byte[]> compacting;
+	private long logLength;
+	private long highestId;
+	private FileOutputStream out;
+	private boolean compactionScheduled;
+
+	private GeoJsonDeltaLog(File layerFile) {
+		String path = layerFile.getPath();
+		String base = path.substring(0, path.length() - ".geojson".length());
+		this.logFile = new File(base + ".log");
+		this.compactingFile = new File(base + ".compacting.log");
+	}
+
+	/**
+	 * Reads changes left by previous runs, also those of compaction which didn't finish.
+	 */
+	static GeoJsonDeltaLog open(File layerFile) throws IOException {
+		GeoJsonDeltaLog log = new GeoJsonDeltaLog(layerFile);
+		if (log.compactingFile.isFile()) {
+			log.compacting = new LinkedHashMap<Long, byte[]>();
+			log.replay(log.compactingFile, log.compacting);
+		}
+		if (log.logFile.isFile()) {
+			log.logLength = log.replay(log.logFile, log.changes);
+		}
+		return log;
+	}
+
+	ReadWriteLock getFileLock() {
+		return fileLock;
+	}
+
+	Lock getCompactionLock() {
+		return compactionLock;
+	}
+
+	/**
+	 * @return feature json, {@link #DELETED} or null when feature wasn't changed
+	 */
+	synchronized byte[] find(long id) {
+		byte[] value = changes.get(id);
+		if (value == null && compacting != null) {
+			value = compacting.get(id);
+		}
+		return value;
+	}
+
+	/**
+	 * @return all changes in order they were first made
+	 */
+	synchronized Map<Long, byte[]> snapshot() {
+		Map<Long, byte[]> result = new LinkedHashMap<Long, byte[]>();
+		if (compacting != null) {
+			result.putAll(compacting);
+		}
+		result.putAll(changes);
+		return result;
+	}
+
+	synchronized boolean isEmpty() {
+		return changes.isEmpty() && (compacting == null || compacting.isEmpty());
+	}
+
+	/**
+	 * Reserves ids for new features.
+	 * @param layerHighestId highest id in layer file
+	 * @return first of reserved ids
+	 */
+	synchronized long allocateIds(int count, long layerHighestId) {
+		highestId = Math.max(highestId, layerHighestId);
+		long first = highestId + 1;
+		highestId += count;
+		return first;
+	}
+
+	/**
+	 * Writes changes with single write and waits until they reach the disk. When crash
+	 * interrupts the write, incomplete last line is dropped on next start. When write fails,
+	 * whatever part of it was written is cut off, so none of the changes is applied.
+	 * @param features feature json for each id or {@link #DELETED}
+	 */
+	synchronized void append(List<Long> ids, List<byte[]> features) throws IOException {
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		for (int i = 0; i < ids.size(); i++) {
+			byte[] feature = features.get(i);
+			if (feature == DELETED) {
+				lines.write(("D " + ids.get(i) + "\n").getBytes(UTF8));
+			} else {
+				lines.write(("U " + ids.get(i) + " ").getBytes(UTF8));
+				lines.write(feature);
+				lines.write('\n');
+			}
+		}
+		if (out == null) {
+			out = new FileOutputStream(logFile, true);
+			if (out.getChannel().size() > logLength) {
+				// end of write which failed and couldn't be cut off then
+				out.getChannel().truncate(logLength);
+			}
+		}
+		try {
+			out.write(lines.toByteArray());
+			out.getChannel().force(false);
+		} catch (IOException e) {
+			try {
+				out.getChannel().truncate(logLength);
+			} catch (IOException truncateFailure) {
+				logger.error("Couldn't cut off failed write of GeoJSON log " + logFile, truncateFailure);
+			}
+			// log is opened and checked again by next write
+			closeOutput();
+			throw e;
+		}
+		logLength += lines.size();
+		for (int i = 0; i < ids.size(); i++) {
+			put(changes, ids.get(i), features.get(i));
+		}
+	}
+
+	synchronized int size() {
+		return changes.size();
+	}
+
+	synchronized long getLogLength() {
+		return logLength;
+	}
+
+	/**
+	 * @return true when compaction wasn't scheduled yet and caller should schedule it
+	 */
+	synchronized boolean markCompactionScheduled() {
+		if (compactionScheduled) {
+			return false;
+		}
+		compactionScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Moves current changes aside, so they can be folded into layer file while new changes
+	 * go to fresh log. Changes of compaction which didn't finish are taken as well.
+	 * @return changes to fold into layer file or null when there are none
+	 */
+	synchronized Map<Long, byte[]> startCompaction() throws IOException {
+		compactionScheduled = false;
+		if (changes.isEmpty() && compacting == null) {
+			return null;
+		}
+		closeOutput();
+		if (compacting == null) {
+			rename(logFile, compactingFile);
+			compacting = changes;
+		} else if (!changes.isEmpty()) {
+			appendFile(logFile, compactingFile);
+			logFile.delete();
+			compacting.putAll(changes);
+		}
+		changes = new LinkedHashMap<Long, byte[]>();
+		logLength = 0;
+		return new LinkedHashMap<Long, byte[]>(compacting);
+	}
+
+	/**
+	 * Called after layer file with compacted changes replaced the old one. Replacement is
+	 * made durable first, otherwise crash could bring back old layer file without its log.
+	 * @throws IOException when directory couldn't be synced, compacted log is kept then
+	 */
+	synchronized void finishCompaction() throws IOException {
+		syncDirectory(compactingFile.getAbsoluteFile().getParentFile());
+		if (!compactingFile.delete() && compactingFile.exists()) {
+			logger.warn("Couldn't remove compacted log: " + compactingFile);
+		}
+		compacting = null;
+	}
+
+	synchronized void close() {
+		closeOutput();
+	}
+
+	private void closeOutput() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Nothing we can do :(
+			}
+			out = null;
+		}
+	}
+
+	private long replay(File file, Map<Long, byte[]> target) throws IOException {
+		byte[] content = readFile(file);
+		int lineStart = 0;
+		for (int i = 0; i < content.length; i++) {
+			if (content[i] != '\n') {
+				continue;
+			}
+			if (!replayLine(content, lineStart, i, target)) {
+				logger.warn("Skipping broken line of GeoJSON log " + file + " at offset " + lineStart);
+			}
+			lineStart = i + 1;
+		}
+		if (lineStart < content.length) {
+			// write interrupted in the middle of a line, it was never acknowledged
+			logger.warn("Dropping incomplete end of GeoJSON log " + file);
+			truncate(file, lineStart);
+		}
+		return lineStart;
+	}
+
+	private boolean replayLine(byte[] content, int start, int end, Map<Long, byte[]> target) {
+		if (end - start < 3 || content[start + 1] != ' ') {
+			return false;
+		}
+		int idEnd = start + 2;
+		while (idEnd < end && content[idEnd] != ' ') {
+			idEnd++;
+		}
+		long id;
+		try {
+			id = Long.parseLong(new String(content, start + 2, idEnd - start - 2, UTF8));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (content[start] == 'D') {
+			put(target, id, DELETED);
+		} else if (content[start] == 'U' && idEnd < end) {
+			put(target, id, Arrays.copyOfRange(content, idEnd + 1, end));
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void put(Map<Long, byte[]> target, Long id, byte[] feature) {
+		target.put(id, feature);
+		// ids of deleted features count too, they must not be given again
+		highestId = Math.max(highestId, id);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+			byte[] buff = new byte[64 * 1024];
+			int length;
+			while ((length = in.read(buff)) > 0) {
+				content.write(buff, 0, length);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void appendFile(File from, File to) throws IOException {
+		if (!from.isFile()) {
+			return;
+		}
+		OutputStream target = new FileOutputStream(to, true);
+		try {
+			target.write(readFile(from));
+		} finally {
+			target.close();
+		}
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file, true);
+		try {
+			stream.getChannel().truncate(length);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// directories can't be opened on some platforms, e.g. Windows, renames are durable there
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if (!from.isFile()) {
+			// changes were replayed from nothing, e.g. log removed by hand
+			new FileOutputStream(to).close();
+		} else if (!from.renameTo(to)) {
+			throw new IOException("Couldn't move GeoJSON log " + from + " to " + to);
+		}
+	}
+}
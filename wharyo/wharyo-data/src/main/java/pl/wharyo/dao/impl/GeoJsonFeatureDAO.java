@@ -1,21 +1,44 @@
 package pl.wharyo.dao.impl;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.log4j.Logger;
 import org.eclipse.emf.ecore.xml.type.internal.DataValue.URI;
-import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.Name;
 import org.springframework.util.StringUtils;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
 import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
 import pl.wharyo.exceptions.BrokenFeatureException;
 import pl.wharyo.exceptions.LayerConfigurationBrokenException;
 import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
@@ -23,9 +46,28 @@ import pl.wharyo.exceptions.UnsupportedAttributeType;
 import pl.wharyo.model.Feature;
 import pl.wharyo.model.attributes.Attribute;
 
+/**
+ * GeoJSON layers are kept in <i>home/layer/layer.geojson</i>. Layer file is never rewritten
+ * by single write, changes are appended to layer log ({@link GeoJsonDeltaLog}) and merged
+ * with layer file while reading. Log is folded into layer file by background compaction.
+ */
 public class GeoJsonFeatureDAO implements FeatureDAO {
 
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
 	private final String GEOJSON_HOME;
+	/**
+	 * Layer file path to its schema and id index, rebuilt when file modification time or size changes.
+	 */
+	private final ConcurrentMap<String, GeoJsonLayer> layers = new ConcurrentHashMap<String, GeoJsonLayer>();
+	/**
+	 * Layer file path to changes not written to layer file yet.
+	 */
+	private final ConcurrentMap<String, GeoJsonDeltaLog> logs = new ConcurrentHashMap<String, GeoJsonDeltaLog>();
+	private final CrsCache crsCache = new CrsCache();
+	private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private ExecutorService compactor;
+	private static final Logger logger = Logger.getLogger(GeoJsonFeatureDAO.class);
 
 	public GeoJsonFeatureDAO(URI jsonDirectory) {
 		this(jsonDirectory.getPath());
@@ -37,65 +79,588 @@ public class GeoJsonFeatureDAO implements FeatureDAO {
 
 	public Long createFeature(Feature feature, String layerName)
 			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
-		// TODO Auto-generated method stub
-		return null;
+		if (feature == null) {
+			throw new IllegalArgumentException("Feature parameter cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (feature.getGeom() == null || feature.getGeom().isEmpty()) {
+			throw new BrokenFeatureException("Feature contains empty geometry or it is null");
+		}
+
+		// broken geometry is reported with exception here, batch would only mark it failed
+		FeatureWriteSupport.validateGeometry(feature.getGeom(), getLayer(layerName).getFeatureType(), layerName, crsCache, false);
+		return createFeatures(Collections.singletonList(feature), layerName).getId(0);
 	}
 
 	public Feature getFeatureById(Long id, String layerName)
 			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		return getFeatureById(id, null, true, layerName);
+	}
+
+	/**
+	 * Whole feature is parsed from json anyway, only values of other attributes aren't converted.
+	 */
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
 		if (StringUtils.isEmpty(layerName)) {
 			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		} else if (id == null) {
 			throw new IllegalArgumentException("Feature id cannot be null");
 		}
-		FeatureJSON in = new FeatureJSON();
-		InputStream stream;
-		SimpleFeatureType featureType;
+		GeoJsonDeltaLog log = getLog(layerName);
+		log.getFileLock().readLock().lock();
 		try {
-			stream = createInputStream(layerName);
-			featureType = in.readFeatureCollectionSchema(stream, true);
-			for(AttributeDescriptor desc: featureType.getAttributeDescriptors()) {
-				System.out.println(desc.getName() + " " + desc.getType().getBinding());
+			GeoJsonLayer layer = getLayer(layerName);
+			SimpleFeature sFeature = readFeature(id, layer, log);
+			if (sFeature == null) {
+				return null;
+			} else if (attributeNames == null && withGeometry) {
+				return layer.getConverter().toFeature(sFeature);
 			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return FeatureConverter.forType(sFeature.getFeatureType(), toKeys(attributeNames), withGeometry).toFeature(sFeature);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			// Nothing we can do :(
+		} finally {
+			log.getFileLock().readLock().unlock();
 		}
-		
-
 		return null;
 	}
 
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		if (bbox == null) {
+			throw new IllegalArgumentException("Bbox cannot be null");
+		}
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(bbox);
+		return readAll(getFeatures(query, layerName), null);
+	}
+
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		if (geometry == null) {
+			throw new IllegalArgumentException("Geometry cannot be null");
+		}
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(geometry.getEnvelopeInternal());
+		return readAll(getFeatures(query, layerName), geometry);
+	}
+
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (query == null) {
+			throw new IllegalArgumentException("Query cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		GeoJsonDeltaLog log = getLog(layerName);
+		GeoJsonLayer layer;
+		Map<Long, byte[]> changes;
+		final InputStream stream;
+		// layer file opened together with log snapshot stays consistent with it, also after compaction replaced the file
+		log.getFileLock().readLock().lock();
+		try {
+			layer = getLayer(layerName);
+			changes = log.snapshot();
+			stream = createInputStream(layerName);
+		} catch (FileNotFoundException e) {
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} finally {
+			log.getFileLock().readLock().unlock();
+		}
+		Set<String> attributeNames = toKeys(query.getAttributeNames());
+		try {
+			// features are parsed one at a time while iterating, file is never loaded as a whole;
+			// with known feature type they all share it instead of each getting its own
+			FeatureIterator<SimpleFeature> iter = layer.createParser().streamFeatureCollection(stream);
+			if (!changes.isEmpty()) {
+				iter = new GeoJsonMergingIterator(iter, changes, layer);
+			}
+			return new SimpleFeatureCursor(iter, attributeNames, query.isWithGeometry(), query.getBBox(), query.getFilter()) {
+				protected void onClose() {
+					closeQuietly(stream);
+				}
+			};
+		} catch (IOException e) {
+			closeQuietly(stream);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+
 	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName)
 			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
-		// TODO Auto-generated method stub
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (attributes == null) {
+			throw new IllegalArgumentException("Attribute list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		} else if (attributes.size() == 0) {
+			return;
+		}
 
+		Feature changes = new Feature();
+		changes.setId(id);
+		changes.setAttributes(attributes);
+		updateFeatures(Collections.singletonList(changes), layerName);
 	}
 
 	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName)
 			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
-		// TODO Auto-generated method stub
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (geometry == null) {
+			throw new IllegalArgumentException("Geometry cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
 
+		FeatureWriteSupport.validateGeometry(geometry, getLayer(layerName).getFeatureType(), layerName, crsCache, false);
+		Feature changes = new Feature();
+		changes.setId(id);
+		changes.setGeom(geometry);
+		updateFeatures(Collections.singletonList(changes), layerName);
 	}
 
 	public void deleteFeature(Long id, String layerName)
 			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
-		// TODO Auto-generated method stub
+		if (id == null) {
+			throw new IllegalArgumentException("Feature id cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		deleteFeatures(Collections.singletonList(id), layerName);
+	}
+
+	public BatchResult createFeatures(List<Feature> features, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
 
+		GeoJsonDeltaLog log = getLog(layerName);
+		BatchResult result = new BatchResult(features.size());
+		log.getFileLock().readLock().lock();
+		try {
+			GeoJsonLayer layer = getLayer(layerName);
+			SimpleFeatureType featureType = layer.getFeatureType();
+			checkIdField(featureType, layerName);
+
+			List<Integer> valid = new ArrayList<Integer>(features.size());
+			for (int i = 0; i < features.size(); i++) {
+				Feature feature = features.get(i);
+				try {
+					if (feature == null || feature.getGeom() == null || feature.getGeom().isEmpty()) {
+						throw new BrokenFeatureException("Feature contains empty geometry or it is null");
+					}
+					FeatureWriteSupport.validateGeometry(feature.getGeom(), featureType, layerName, crsCache, false);
+					valid.add(i);
+				} catch (BrokenFeatureException e) {
+					result.failure(i, e.getMessage());
+				}
+			}
+			if (valid.isEmpty()) {
+				return result;
+			}
+
+			long firstId = log.allocateIds(valid.size(), layer.getHighestId());
+			SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureType);
+			List<Long> ids = new ArrayList<Long>(valid.size());
+			List<byte[]> jsons = new ArrayList<byte[]>(valid.size());
+			try {
+				for (int i = 0; i < valid.size(); i++) {
+					long id = firstId + i;
+					Feature feature = features.get(valid.get(i));
+					SimpleFeature sFeature = layer.getWritePlan().buildFeature(feature, feature.getGeom(), id, layerName + "." + id, featureBuilder);
+					ids.add(id);
+					jsons.add(layer.encodeFeature(sFeature));
+				}
+				log.append(ids, jsons);
+				for (int i = 0; i < valid.size(); i++) {
+					result.success(valid.get(i), ids.get(i));
+				}
+			} catch (IOException e) {
+				markFailed(result, valid, "Couldn't write features: " + e.getMessage());
+			}
+		} finally {
+			log.getFileLock().readLock().unlock();
+		}
+		scheduleCompaction(log, layerName);
+		return result;
+	}
+
+	public BatchResult updateFeatures(List<Feature> features, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		// whole current version of every changed feature is logged, so reading needs only latest entry
+		GeoJsonDeltaLog log = getLog(layerName);
+		BatchResult result = new BatchResult(features.size());
+		log.getFileLock().readLock().lock();
+		try {
+			GeoJsonLayer layer = getLayer(layerName);
+			SimpleFeatureType featureType = layer.getFeatureType();
+
+			List<Integer> modified = new ArrayList<Integer>(features.size());
+			List<Long> ids = new ArrayList<Long>(features.size());
+			List<byte[]> jsons = new ArrayList<byte[]>(features.size());
+			// feature is read and written back as a whole, concurrent updates of the layer must not interleave
+			synchronized (log) {
+				try {
+					for (int i = 0; i < features.size(); i++) {
+						Feature feature = features.get(i);
+						if (feature == null || feature.getId() == null) {
+							result.failure(i, "Feature id cannot be null");
+							continue;
+						}
+						if (feature.getGeom() != null) {
+							try {
+								FeatureWriteSupport.validateGeometry(feature.getGeom(), featureType, layerName, crsCache, false);
+							} catch (BrokenFeatureException e) {
+								result.failure(i, e.getMessage());
+								continue;
+							}
+						}
+						SimpleFeature current = readFeature(feature.getId(), layer, log);
+						if (current == null) {
+							result.failure(i, "Couldn't find feature with id: " + feature.getId());
+							continue;
+						}
+						List<Name> attrNames = new ArrayList<Name>();
+						List<Object> attrValues = new ArrayList<Object>();
+						if (feature.getAttributes() != null) {
+							layer.getWritePlan().collectAttributeChanges(feature.getAttributes(), attrNames, attrValues);
+						}
+						if (feature.getGeom() != null) {
+							attrNames.add(featureType.getGeometryDescriptor().getName());
+							attrValues.add(feature.getGeom());
+						}
+						if (attrNames.isEmpty()) {
+							result.success(i, feature.getId());
+							continue;
+						}
+						for (int j = 0; j < attrNames.size(); j++) {
+							current.setAttribute(attrNames.get(j).getLocalPart(), attrValues.get(j));
+						}
+						modified.add(i);
+						ids.add(feature.getId());
+						jsons.add(layer.encodeFeature(current));
+					}
+					if (!ids.isEmpty()) {
+						log.append(ids, jsons);
+					}
+					for (int j = 0; j < modified.size(); j++) {
+						result.success(modified.get(j), ids.get(j));
+					}
+				} catch (IOException e) {
+					markFailed(result, modified, "Couldn't write features: " + e.getMessage());
+				}
+			}
+		} finally {
+			log.getFileLock().readLock().unlock();
+		}
+		scheduleCompaction(log, layerName);
+		return result;
+	}
+
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName)
+			throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (ids == null) {
+			throw new IllegalArgumentException("Id list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+
+		GeoJsonDeltaLog log = getLog(layerName);
+		BatchResult result = new BatchResult(ids.size());
+		log.getFileLock().readLock().lock();
+		try {
+			GeoJsonLayer layer = getLayer(layerName);
+			List<Integer> found = new ArrayList<Integer>(ids.size());
+			List<Long> foundIds = new ArrayList<Long>(ids.size());
+			List<byte[]> deleted = new ArrayList<byte[]>(ids.size());
+			synchronized (log) {
+				try {
+					int i = 0;
+					for (Long id: ids) {
+						if (id == null || readFeature(id, layer, log) == null) {
+							result.failure(i, "Couldn't find feature with id: " + id);
+						} else {
+							found.add(i);
+							foundIds.add(id);
+							deleted.add(GeoJsonDeltaLog.DELETED);
+						}
+						i++;
+					}
+					if (!foundIds.isEmpty()) {
+						log.append(foundIds, deleted);
+					}
+					for (int j = 0; j < found.size(); j++) {
+						result.success(found.get(j), foundIds.get(j));
+					}
+				} catch (IOException e) {
+					markFailed(result, found, "Couldn't delete features: " + e.getMessage());
+				}
+			}
+		} finally {
+			log.getFileLock().readLock().unlock();
+		}
+		scheduleCompaction(log, layerName);
+		return result;
 	}
 
 	public boolean supportsLayer(String layerName) {
-		// TODO Auto-generated method stub
-		return false;
+		if (StringUtils.isEmpty(layerName)) {
+			return false;
+		}
+		return layerFile(layerName).isFile();
+	}
+
+	/**
+	 * Writes layer file again with all logged changes applied and empties the log.
+	 * Writes can go on while it runs, they land in new log.
+	 */
+	public void compact(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		compact(getLog(layerName), layerName);
+	}
+
+	/**
+	 * @param compactionThreshold number of logged changes after which layer is compacted in background
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Stops background compaction, waiting for one which is running, and closes layer logs.
+	 * Changes which were not compacted stay in logs and are read again on next use.
+	 */
+	public void dispose() {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = compactor;
+			compactor = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (GeoJsonDeltaLog log: logs.values()) {
+			log.close();
+		}
+		logs.clear();
+		layers.clear();
+	}
+
+	private void compact(GeoJsonDeltaLog log, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		File file = layerFile(layerName);
+		File compacted = new File(file.getPath() + ".tmp");
+		log.getCompactionLock().lock();
+		try {
+			Map<Long, byte[]> changes = log.startCompaction();
+			if (changes == null) {
+				return;
+			}
+			GeoJsonLayer layer = getLayer(layerName);
+			layer.writeCompacted(compacted, changes);
+			log.getFileLock().writeLock().lock();
+			try {
+				Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				layers.remove(file.getPath());
+				// compacted log is dropped only when the move is on the disk
+				log.finishCompaction();
+			} finally {
+				log.getFileLock().writeLock().unlock();
+			}
+		} catch (IOException e) {
+			// changes stay in log, next compaction takes them again
+			logger.error("Couldn't compact GeoJSON layer: " + layerName, e);
+			compacted.delete();
+		} finally {
+			log.getCompactionLock().unlock();
+		}
+	}
+
+	private void scheduleCompaction(final GeoJsonDeltaLog log, final String layerName) {
+		if (log.size() < compactionThreshold || !log.markCompactionScheduled()) {
+			return;
+		}
+		getCompactor().execute(new Runnable() {
+			public void run() {
+				try {
+					compact(log, layerName);
+				} catch (Exception e) {
+					logger.error("Couldn't compact GeoJSON layer: " + layerName, e);
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getCompactor() {
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "wharyo-geojson-compaction");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return compactor;
+	}
+
+	/**
+	 * @return lower case names or null when names are null
+	 */
+	private Set<String> toKeys(List<String> names) {
+		if (names == null) {
+			return null;
+		}
+		Set<String> keys = new HashSet<String>();
+		for (String name: names) {
+			keys.add(name.toLowerCase());
+		}
+		return keys;
+	}
+
+	/**
+	 * @return current version of feature, from log when it was changed there, or null
+	 */
+	private SimpleFeature readFeature(long id, GeoJsonLayer layer, GeoJsonDeltaLog log) throws IOException {
+		byte[] change = log.find(id);
+		if (change == GeoJsonDeltaLog.DELETED) {
+			return null;
+		} else if (change != null) {
+			return layer.parseFeature(change);
+		}
+		return layer.readFeature(id);
+	}
+
+	private void checkIdField(SimpleFeatureType featureType, String layerName) throws LayerConfigurationBrokenException {
+		for (AttributeDescriptor attrDesc: featureType.getAttributeDescriptors()) {
+			if (attrDesc.getLocalName().equalsIgnoreCase("id")) {
+				return;
+			}
+		}
+		logger.error("No id filed found for GeoJSON layer: " + layerName);
+		throw new LayerConfigurationBrokenException("Coulnd't find proper id field in GeoJSON file " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
+	}
+
+	private void markFailed(BatchResult result, List<Integer> positions, String reason) {
+		for (Integer i: positions) {
+			result.failure(i, reason);
+		}
 	}
 
 	private InputStream createInputStream(String layerName) throws FileNotFoundException {
+		return new BufferedInputStream(new FileInputStream(layerFile(layerName)));
+	}
+
+	private File layerFile(String layerName) {
 		StringBuilder builder = new StringBuilder(GEOJSON_HOME);
 		builder.append(File.separator).append(layerName).append(File.separator).append(layerName).append(".geojson");
-		File file = new File(builder.toString());
-		return new FileInputStream(file);
+		return new File(builder.toString());
+	}
+
+	/**
+	 * Returns layer schema and id index, building them again when file was changed since last read.
+	 */
+	private GeoJsonLayer getLayer(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		File file = layerFile(layerName);
+		if (!file.isFile()) {
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		String key = file.getPath();
+		GeoJsonLayer layer = layers.get(key);
+		if (layer != null && !layer.isModifiedOnDisk()) {
+			return layer;
+		}
+		synchronized (layers) {
+			layer = layers.get(key);
+			if (layer == null || layer.isModifiedOnDisk()) {
+				try {
+					layer = GeoJsonLayer.open(file);
+				} catch (IOException e) {
+					throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+				}
+				if (layer.getFeatureType() == null || layer.getFeatureType().getGeometryDescriptor() == null) {
+					throw new LayerConfigurationBrokenException("Coulnd't find geometry field in GeoJSON file " + layerName, LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+				}
+				layers.put(key, layer);
+			}
+			return layer;
+		}
+	}
+
+	/**
+	 * Returns log of given layer, reading changes left by previous runs on first use.
+	 */
+	private GeoJsonDeltaLog getLog(String layerName) throws LayerDataSourceNotAvailableException {
+		File file = layerFile(layerName);
+		String key = file.getPath();
+		GeoJsonDeltaLog log = logs.get(key);
+		if (log != null) {
+			return log;
+		}
+		if (!file.isFile()) {
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		synchronized (logs) {
+			log = logs.get(key);
+			if (log == null) {
+				try {
+					log = GeoJsonDeltaLog.open(file);
+				} catch (IOException e) {
+					logger.error("Couldn't read log of GeoJSON layer: " + layerName, e);
+					throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+				}
+				logs.put(key, log);
+			}
+			return log;
+		}
+	}
+
+	/**
+	 * GeoJSON file has no spatial index, whole file is scanned and only matching features are kept.
+	 */
+	private List<Feature> readAll(FeatureCursor cursor, Geometry geometry) throws UnsupportedAttributeType {
+		List<Feature> features = new ArrayList<Feature>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				if (geometry == null || geometry.intersects(feature.getGeom())) {
+					features.add(feature);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return features;
+	}
+
+	private void closeQuietly(InputStream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// Nothing we can do :(
+		}
 	}
 }
@@ -0,0 +1,228 @@
+package pl.wharyo.dao.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds where features of GeoJSON feature collection start and end in the file, together
+ * with value of their "id" property. Only structure of the document is followed (nesting,
+ * member names), features themselves are not built, so scanning is much cheaper than parsing.
+ */
+class GeoJsonFeatureScanner {
+
+	// root object -> "features" array -> feature object -> "properties" object
+	private static final int FEATURE_DEPTH = 3;
+	private static final int PROPERTIES_DEPTH = 4;
+
+	/** Marks feature without id. */
+	static final long NO_ID = Long.MIN_VALUE;
+
+	private long[] ids = new long[16];
+	private long[] starts = new long[16];
+	private int[] lengths = new int[16];
+	private int featureCount;
+	private long featuresStart = -1;
+	private long featuresEnd = -1;
+
+	private boolean[] objects = new boolean[16];
+	private String[] keys = new String[16];
+	private int depth;
+	private boolean inString;
+	private boolean escape;
+	private final StringBuilder text = new StringBuilder();
+	private String lastString;
+	private boolean readingId;
+	private Long featureId;
+	private long featureStart;
+
+	void scan(InputStream in) throws IOException {
+		byte[] buff = new byte[64 * 1024];
+		long offset = 0;
+		int length;
+		while ((length = in.read(buff)) > 0) {
+			for (int i = 0; i < length; i++) {
+				accept(buff[i], offset + i);
+			}
+			offset += length;
+		}
+	}
+
+	/**
+	 * @return index of ids to feature numbers, features without id are not indexed
+	 */
+	FeatureIdIndex getIdIndex() {
+		long[] indexIds = new long[featureCount];
+		int[] records = new int[featureCount];
+		int size = 0;
+		for (int i = 0; i < featureCount; i++) {
+			if (ids[i] != NO_ID) {
+				indexIds[size] = ids[i];
+				records[size] = i;
+				size++;
+			}
+		}
+		return FeatureIdIndex.build(indexIds, records, size);
+	}
+
+	/**
+	 * @return ids of features by feature number, {@link #NO_ID} for features without id
+	 */
+	long[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return offsets of features in file, by feature number
+	 */
+	long[] getStarts() {
+		return starts;
+	}
+
+	/**
+	 * @return lengths of features in bytes, by feature number
+	 */
+	int[] getLengths() {
+		return lengths;
+	}
+
+	int getFeatureCount() {
+		return featureCount;
+	}
+
+	/**
+	 * @return offset just after opening bracket of "features" array or -1 when there is no such array
+	 */
+	long getFeaturesStart() {
+		return featuresStart;
+	}
+
+	/**
+	 * @return offset of closing bracket of "features" array or -1 when there is no such array
+	 */
+	long getFeaturesEnd() {
+		return featuresEnd;
+	}
+
+	private void accept(byte b, long position) {
+		if (inString) {
+			if (escape) {
+				escape = false;
+				collect(b);
+			} else if (b == '\\') {
+				escape = true;
+			} else if (b == '"') {
+				inString = false;
+				lastString = depth <= PROPERTIES_DEPTH ? text.toString() : null;
+			} else {
+				collect(b);
+			}
+			return;
+		}
+		switch (b) {
+		case '"':
+			inString = true;
+			text.setLength(0);
+			break;
+		case ':':
+			if (depth <= PROPERTIES_DEPTH) {
+				keys[depth] = lastString;
+				readingId = depth == PROPERTIES_DEPTH && inProperties() && "id".equals(lastString);
+				text.setLength(0);
+			}
+			break;
+		case ',':
+			finishValue();
+			keys[depth] = null;
+			break;
+		case '{':
+		case '[':
+			finishValue();
+			push(b == '{');
+			if (depth == FEATURE_DEPTH - 1 && inFeatures()) {
+				featuresStart = position + 1;
+			} else if (depth == FEATURE_DEPTH && objects[depth] && inFeatures()) {
+				featureStart = position;
+				featureId = null;
+			}
+			break;
+		case '}':
+		case ']':
+			finishValue();
+			if (depth == FEATURE_DEPTH && objects[depth] && inFeatures()) {
+				addFeature(position + 1);
+			} else if (depth == FEATURE_DEPTH - 1 && inFeatures()) {
+				featuresEnd = position;
+			}
+			depth--;
+			break;
+		default:
+			if (readingId && b > ' ') {
+				collect(b);
+			}
+		}
+	}
+
+	private void collect(byte b) {
+		if (depth <= PROPERTIES_DEPTH) {
+			// ids and names we look for are ASCII, other bytes can't make them match
+			text.append((char) (b & 0xff));
+		}
+	}
+
+	private void finishValue() {
+		if (!readingId) {
+			return;
+		}
+		readingId = false;
+		String value = text.toString().trim();
+		try {
+			featureId = Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			try {
+				featureId = (long) Double.parseDouble(value);
+			} catch (NumberFormatException ex) {
+				// not a number, feature can't be found by id
+			}
+		}
+	}
+
+	private void push(boolean object) {
+		depth++;
+		if (depth == objects.length) {
+			boolean[] newObjects = new boolean[depth * 2];
+			String[] newKeys = new String[depth * 2];
+			System.arraycopy(objects, 0, newObjects, 0, depth);
+			System.arraycopy(keys, 0, newKeys, 0, depth);
+			objects = newObjects;
+			keys = newKeys;
+		}
+		objects[depth] = object;
+		keys[depth] = null;
+	}
+
+	private boolean inFeatures() {
+		return objects[1] && !objects[2] && "features".equals(keys[1]);
+	}
+
+	private boolean inProperties() {
+		return objects[PROPERTIES_DEPTH] && inFeatures() && "properties".equals(keys[FEATURE_DEPTH]);
+	}
+
+	private void addFeature(long end) {
+		if (featureCount == starts.length) {
+			long[] newIds = new long[featureCount * 2];
+			long[] newStarts = new long[featureCount * 2];
+			int[] newLengths = new int[featureCount * 2];
+			System.arraycopy(ids, 0, newIds, 0, featureCount);
+			System.arraycopy(starts, 0, newStarts, 0, featureCount);
+			System.arraycopy(lengths, 0, newLengths, 0, featureCount);
+			ids = newIds;
+			starts = newStarts;
+			lengths = newLengths;
+		}
+		ids[featureCount] = featureId != null ? featureId : NO_ID;
+		starts[featureCount] = featureStart;
+		lengths[featureCount] = (int) (end - featureStart);
+		featureCount++;
+	}
+}
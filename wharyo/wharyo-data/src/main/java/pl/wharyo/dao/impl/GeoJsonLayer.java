@@ -0,0 +1,251 @@
+package pl.wharyo.dao.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * GeoJSON layer file as it was when it was last read: its feature type and index of
+ * feature ids to their position in the file. Valid as long as file is not modified.
+ */
+class GeoJsonLayer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long modified;
+	private final long length;
+	private final SimpleFeatureType featureType;
+	private final FeatureIdIndex idIndex;
+	private final long[] ids;
+	private final long[] starts;
+	private final int[] lengths;
+	private final int featureCount;
+	private final long featuresStart;
+	private final long featuresEnd;
+	private volatile FeatureConverter converter;
+	private volatile FeatureWritePlan writePlan;
+
+	private GeoJsonLayer(File file, long modified, long length, SimpleFeatureType featureType, GeoJsonFeatureScanner scanner) {
+		this.file = file;
+		this.modified = modified;
+		this.length = length;
+		this.featureType = featureType;
+		this.idIndex = scanner.getIdIndex();
+		this.ids = scanner.getIds();
+		this.starts = scanner.getStarts();
+		this.lengths = scanner.getLengths();
+		this.featureCount = scanner.getFeatureCount();
+		this.featuresStart = scanner.getFeaturesStart();
+		this.featuresEnd = scanner.getFeaturesEnd();
+	}
+
+	/**
+	 * Reads schema and builds id index of given file.
+	 */
+	static GeoJsonLayer open(File file) throws IOException {
+		long modified = file.lastModified();
+		long length = file.length();
+		SimpleFeatureType featureType;
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		try {
+			// all features are checked, so attributes which are null in first ones get proper type
+			featureType = new FeatureJSON().readFeatureCollectionSchema(stream, false);
+		} finally {
+			stream.close();
+		}
+		if (featureType != null && featureType.getCoordinateReferenceSystem() == null) {
+			// schema is read from features only, CRS is given once for whole collection
+			stream = new BufferedInputStream(new FileInputStream(file));
+			try {
+				CoordinateReferenceSystem crs = new FeatureJSON().readCRS(stream);
+				if (crs != null) {
+					featureType = SimpleFeatureTypeBuilder.retype(featureType, crs);
+				}
+			} finally {
+				stream.close();
+			}
+		}
+		GeoJsonFeatureScanner scanner = new GeoJsonFeatureScanner();
+		stream = new FileInputStream(file);
+		try {
+			scanner.scan(stream);
+		} finally {
+			stream.close();
+		}
+		return new GeoJsonLayer(file, modified, length, featureType, scanner);
+	}
+
+	boolean isModifiedOnDisk() {
+		return modified != file.lastModified() || length != file.length();
+	}
+
+	SimpleFeatureType getFeatureType() {
+		return featureType;
+	}
+
+	/**
+	 * @return parser which reads features with layer feature type
+	 */
+	FeatureJSON createParser() {
+		FeatureJSON json = new FeatureJSON();
+		json.setFeatureType(featureType);
+		return json;
+	}
+
+	long getHighestId() {
+		return idIndex.getHighestId();
+	}
+
+	FeatureConverter getConverter() {
+		FeatureConverter result = converter;
+		if (result == null) {
+			result = FeatureConverter.forType(featureType, null);
+			converter = result;
+		}
+		return result;
+	}
+
+	FeatureWritePlan getWritePlan() {
+		FeatureWritePlan result = writePlan;
+		if (result == null) {
+			result = FeatureWritePlan.forType(featureType);
+			writePlan = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Reads only the part of file which holds feature with given id.
+	 * @return feature or null when there is no feature with such id
+	 */
+	SimpleFeature readFeature(long id) throws IOException {
+		int record = idIndex.get(id);
+		if (record < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[lengths[record]];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(starts[record]);
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		return parseFeature(bytes);
+	}
+
+	SimpleFeature parseFeature(byte[] json) throws IOException {
+		return createParser().readFeature(new ByteArrayInputStream(json));
+	}
+
+	/**
+	 * @return feature as single line of json, null values included
+	 */
+	byte[] encodeFeature(SimpleFeature feature) throws IOException {
+		FeatureJSON json = new FeatureJSON();
+		json.setEncodeNullValues(true);
+		return json.toString(feature).getBytes(UTF8);
+	}
+
+	/**
+	 * Writes layer file with changes applied. Unchanged features are copied byte by byte,
+	 * changed ones are written in place of old ones and new ones at the end. File is on the disk
+	 * when method returns, so it can replace layer file.
+	 * @param changes feature json by id or {@link GeoJsonDeltaLog#DELETED}
+	 */
+	void writeCompacted(File target, Map<Long, byte[]> changes) throws IOException {
+		Set<Long> written = new HashSet<Long>();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		FileOutputStream targetStream = new FileOutputStream(target);
+		OutputStream out = new BufferedOutputStream(targetStream);
+		try {
+			long position = 0;
+			if (featuresStart < 0) {
+				out.write("{\n\"type\": \"FeatureCollection\",\n\"features\": [\n".getBytes(UTF8));
+			} else {
+				position = copy(in, position, featuresStart, out);
+			}
+			boolean first = true;
+			for (int i = 0; i < featureCount; i++) {
+				byte[] change = ids[i] == GeoJsonFeatureScanner.NO_ID ? null : changes.get(ids[i]);
+				if (change == GeoJsonDeltaLog.DELETED) {
+					continue;
+				}
+				first = writeSeparator(out, first);
+				if (change != null) {
+					out.write(change);
+					written.add(ids[i]);
+				} else {
+					position = skip(in, position, starts[i]);
+					position = copy(in, position, starts[i] + lengths[i], out);
+				}
+			}
+			for (Map.Entry<Long, byte[]> change: changes.entrySet()) {
+				if (change.getValue() != GeoJsonDeltaLog.DELETED && !written.contains(change.getKey())) {
+					first = writeSeparator(out, first);
+					out.write(change.getValue());
+				}
+			}
+			if (featuresEnd < 0) {
+				out.write("\n]\n}\n".getBytes(UTF8));
+			} else {
+				out.write('\n');
+				position = skip(in, position, featuresEnd);
+				copy(in, position, length, out);
+			}
+			out.flush();
+			targetStream.getFD().sync();
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	private static boolean writeSeparator(OutputStream out, boolean first) throws IOException {
+		out.write(first ? "\n".getBytes(UTF8) : ",\n".getBytes(UTF8));
+		return false;
+	}
+
+	private static long skip(InputStream in, long position, long to) throws IOException {
+		while (position < to) {
+			long skipped = in.skip(to - position);
+			if (skipped <= 0) {
+				throw new EOFException("Layer file is shorter than expected");
+			}
+			position += skipped;
+		}
+		return position;
+	}
+
+	private static long copy(InputStream in, long position, long to, OutputStream out) throws IOException {
+		byte[] buff = new byte[64 * 1024];
+		while (position < to) {
+			int length = in.read(buff, 0, (int) Math.min(buff.length, to - position));
+			if (length < 0) {
+				throw new EOFException("Layer file is shorter than expected");
+			}
+			out.write(buff, 0, length);
+			position += length;
+		}
+		return position;
+	}
+}
@@ -0,0 +1,93 @@
+package pl.wharyo.dao.impl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Features of GeoJSON layer file with changes from its log applied. Features changed
+ * in the log are skipped while reading the file, their current versions and new
+ * features follow after the last feature of the file.
+ */
+class GeoJsonMergingIterator implements FeatureIterator<SimpleFeature> {
+
+	private static final Logger logger = Logger.getLogger(GeoJsonMergingIterator.class);
+
+	private final FeatureIterator<SimpleFeature> base;
+	private final Map<Long, byte[]> changes;
+	private final Iterator<Map.Entry<Long, byte[]>> changed;
+	private final GeoJsonLayer layer;
+	private SimpleFeatureType idType;
+	private int idPosition = -1;
+	private SimpleFeature next;
+
+	/**
+	 * @param changes feature json by id or {@link GeoJsonDeltaLog#DELETED}
+	 */
+	GeoJsonMergingIterator(FeatureIterator<SimpleFeature> base, Map<Long, byte[]> changes, GeoJsonLayer layer) {
+		this.base = base;
+		this.changes = changes;
+		this.changed = changes.entrySet().iterator();
+		this.layer = layer;
+	}
+
+	public boolean hasNext() {
+		while (next == null && base.hasNext()) {
+			SimpleFeature sFeature = base.next();
+			Long id = getId(sFeature);
+			if (id == null || !changes.containsKey(id)) {
+				next = sFeature;
+			}
+		}
+		while (next == null && changed.hasNext()) {
+			byte[] json = changed.next().getValue();
+			if (json == GeoJsonDeltaLog.DELETED) {
+				continue;
+			}
+			try {
+				next = layer.parseFeature(json);
+			} catch (IOException e) {
+				logger.error("Couldn't parse feature from GeoJSON log", e);
+			}
+		}
+		return next != null;
+	}
+
+	public SimpleFeature next() throws NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		SimpleFeature result = next;
+		next = null;
+		return result;
+	}
+
+	public void close() {
+		base.close();
+	}
+
+	private Long getId(SimpleFeature sFeature) {
+		SimpleFeatureType type = sFeature.getFeatureType();
+		if (type != idType) {
+			idType = type;
+			idPosition = -1;
+			for (int i = 0; i < type.getAttributeCount(); i++) {
+				if (type.getDescriptor(i).getLocalName().equalsIgnoreCase("id")) {
+					idPosition = i;
+					break;
+				}
+			}
+		}
+		if (idPosition < 0) {
+			return null;
+		}
+		Object id = sFeature.getAttribute(idPosition);
+		return id instanceof Number ? ((Number) id).longValue() : null;
+	}
+}
@@ -0,0 +1,108 @@
+package pl.wharyo.dao.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.PropertyName;
+
+import pl.wharyo.dao.filter.AttributeFilter;
+import pl.wharyo.dao.filter.BetweenFilter;
+import pl.wharyo.dao.filter.ComparisonFilter;
+import pl.wharyo.dao.filter.FilterVisitor;
+import pl.wharyo.dao.filter.InFilter;
+import pl.wharyo.dao.filter.LikeFilter;
+import pl.wharyo.dao.filter.LogicalFilter;
+import pl.wharyo.dao.filter.NotFilter;
+import pl.wharyo.dao.filter.NullFilter;
+
+/**
+ * Translates {@link AttributeFilter} into GeoTools filter on given feature type, so data
+ * store can apply it while reading. Attribute names are matched with descriptors ignoring case.
+ */
+class GeoToolsFilterBuilder implements FilterVisitor<Filter> {
+
+	private final FilterFactory filterFactory;
+	private final SimpleFeatureType featureType;
+
+	GeoToolsFilterBuilder(FilterFactory filterFactory, SimpleFeatureType featureType) {
+		this.filterFactory = filterFactory;
+		this.featureType = featureType;
+	}
+
+	public Filter visit(ComparisonFilter filter) {
+		PropertyName property = property(filter.getAttributeName());
+		Expression value = filterFactory.literal(filter.getValue());
+		switch (filter.getOperator()) {
+		case EQUAL:
+			return filterFactory.equals(property, value);
+		case NOT_EQUAL:
+			return filterFactory.notEqual(property, value);
+		case LESS:
+			return filterFactory.less(property, value);
+		case LESS_OR_EQUAL:
+			return filterFactory.lessOrEqual(property, value);
+		case GREATER:
+			return filterFactory.greater(property, value);
+		default:
+			return filterFactory.greaterOrEqual(property, value);
+		}
+	}
+
+	public Filter visit(BetweenFilter filter) {
+		return filterFactory.between(property(filter.getAttributeName()), filterFactory.literal(filter.getLower()), filterFactory.literal(filter.getUpper()));
+	}
+
+	public Filter visit(InFilter filter) {
+		PropertyName property = property(filter.getAttributeName());
+		if (filter.getValues().size() == 1) {
+			return filterFactory.equals(property, filterFactory.literal(filter.getValues().get(0)));
+		}
+		List<Filter> filters = new ArrayList<Filter>();
+		for (Object value: filter.getValues()) {
+			filters.add(filterFactory.equals(property, filterFactory.literal(value)));
+		}
+		return filterFactory.or(filters);
+	}
+
+	public Filter visit(LikeFilter filter) {
+		return filterFactory.like(property(filter.getAttributeName()), filter.getPattern(), String.valueOf(LikeFilter.WILDCARD),
+				String.valueOf(LikeFilter.SINGLE_CHAR), String.valueOf(LikeFilter.ESCAPE), true);
+	}
+
+	public Filter visit(NullFilter filter) {
+		return filterFactory.isNull(property(filter.getAttributeName()));
+	}
+
+	public Filter visit(LogicalFilter filter) {
+		List<Filter> filters = new ArrayList<Filter>();
+		for (AttributeFilter child: filter.getFilters()) {
+			filters.add(child.accept(this));
+		}
+		if (filters.size() == 1) {
+			return filters.get(0);
+		}
+		return filter.getType() == LogicalFilter.Type.AND ? filterFactory.and(filters) : filterFactory.or(filters);
+	}
+
+	public Filter visit(NotFilter filter) {
+		return filterFactory.not(filter.getFilter().accept(this));
+	}
+
+	/**
+	 * @throws IllegalArgumentException when feature type has no such attribute
+	 */
+	private PropertyName property(String attributeName) {
+		for (AttributeDescriptor desc: featureType.getAttributeDescriptors()) {
+			if (!(desc instanceof GeometryDescriptor) && desc.getLocalName().equalsIgnoreCase(attributeName)) {
+				return filterFactory.property(desc.getLocalName());
+			}
+		}
+		throw new IllegalArgumentException("Filter uses attribute which layer doesn't have: " + attributeName);
+	}
+}
@@ -0,0 +1,112 @@
+package pl.wharyo.dao.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Hands out feature ids for a single layer. Seeded once with the highest id found in data,
+ * optionally remembers ids in a sidecar file, so ids of deleted features are not reused.
+ * File holds the highest id which may have been given out: ids are reserved in blocks
+ * of {@link #RESERVATION}, so file is written once per block, not once per id. Ids reserved
+ * but not given out are skipped when process dies, they are handed back on {@link #close()}.
+ * File is replaced atomically, so it never goes below an id which was given out.
+ */
+class IdSequence {
+
+	static final int RESERVATION = 1000;
+
+	private final File file;
+	private long current;
+	/** Highest id stored in file, ids up to it are handed out from memory. */
+	private long reserved;
+
+	/**
+	 * @param file sidecar file or null when sequence shouldn't be persisted
+	 * @throws IOException when sidecar file exists but can't be read, ids could be given twice otherwise
+	 */
+	IdSequence(long highestId, File file) throws IOException {
+		if (file != null) {
+			highestId = Math.max(highestId, read(file));
+		}
+		this.current = highestId;
+		this.reserved = highestId;
+		this.file = file;
+	}
+
+	synchronized long next() throws IOException {
+		reserve(current + 1);
+		return ++current;
+	}
+
+	/**
+	 * Reserves given number of consecutive ids.
+	 * @return first of reserved ids
+	 */
+	synchronized long next(int count) throws IOException {
+		reserve(current + count);
+		current += count;
+		return current - count + 1;
+	}
+
+	synchronized long current() {
+		return current;
+	}
+
+	/**
+	 * Stores last given id instead of reservation, so next sequence of the layer goes on without gap.
+	 * File is left alone when somebody else reserved ids in it meanwhile.
+	 */
+	synchronized void close() throws IOException {
+		if (file != null && reserved > current && file.exists() && read(file) == reserved) {
+			write(current);
+			reserved = current;
+		}
+	}
+
+	/**
+	 * Makes sure ids up to given one are stored in file before any of them is given out.
+	 */
+	private void reserve(long last) throws IOException {
+		if (file != null && last > reserved) {
+			long mark = last + RESERVATION;
+			write(mark);
+			reserved = mark;
+		}
+	}
+
+	private void write(long value) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(Long.toString(value).getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long read(File file) throws IOException {
+		if (!file.exists()) {
+			return 0L;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			if (line == null) {
+				throw new IOException("Id sequence file is empty: " + file);
+			}
+			return Long.parseLong(line.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Broken id sequence file: " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package pl.wharyo.dao.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Immutable copy of layer_config table, layer name to layer type. Snapshot is replaced
+ * as a whole when table is read again, so readers never see half loaded configuration.
+ */
+class LayerConfigSnapshot {
+
+	private final Map<String, String> layerTypes;
+
+	private LayerConfigSnapshot(Map<String, String> layerTypes) {
+		this.layerTypes = layerTypes;
+	}
+
+	static LayerConfigSnapshot load(JdbcTemplate template) {
+		final Map<String, String> layerTypes = new HashMap<String, String>();
+		template.query("SELECT layer_name, layer_type FROM layer_config", new RowCallbackHandler() {
+			public void processRow(ResultSet rs) throws SQLException {
+				layerTypes.put(rs.getString(1), rs.getString(2));
+			}
+		});
+		return new LayerConfigSnapshot(Collections.unmodifiableMap(layerTypes));
+	}
+
+	/**
+	 * @param layerName layer name, case sensitive like in database
+	 */
+	boolean hasLayer(String layerName, String layerType) {
+		return layerType.equals(layerTypes.get(layerName));
+	}
+
+	/**
+	 * @return names of layers which were added, removed or changed type in given newer snapshot
+	 */
+	Set<String> changedLayers(LayerConfigSnapshot newer) {
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, String> entry: layerTypes.entrySet()) {
+			if (!entry.getValue().equals(newer.layerTypes.get(entry.getKey()))) {
+				changed.add(entry.getKey());
+			}
+		}
+		for (String layerName: newer.layerTypes.keySet()) {
+			if (!layerTypes.containsKey(layerName)) {
+				changed.add(layerName);
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,92 @@
+package pl.wharyo.dao.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import pl.wharyo.dao.LockStatistics;
+
+/**
+ * Read/write lock of every layer. Readers of a layer run in parallel, writer has the layer
+ * for itself. Each layer has lock of its own, so layers never wait for each other.
+ * Locks are kept by layer name and outlive layers closed and opened again by registry.
+ */
+class LayerLocks {
+
+	private final ConcurrentMap<String, LayerLock> locks = new ConcurrentHashMap<String, LayerLock>();
+
+	/**
+	 * @return taken lock, caller has to unlock it
+	 */
+	Lock lockRead(String layerName) {
+		return getLock(layerName).lock(false);
+	}
+
+	/**
+	 * @return taken lock, caller has to unlock it
+	 */
+	Lock lockWrite(String layerName) {
+		return getLock(layerName).lock(true);
+	}
+
+	LockStatistics getStatistics(String layerName) {
+		LayerLock lock = locks.get(layerName);
+		if (lock == null) {
+			return new LockStatistics(0, 0, 0, 0, 0, 0);
+		}
+		return lock.getStatistics();
+	}
+
+	private LayerLock getLock(String layerName) {
+		LayerLock lock = locks.get(layerName);
+		if (lock == null) {
+			lock = new LayerLock();
+			LayerLock existing = locks.putIfAbsent(layerName, lock);
+			if (existing != null) {
+				lock = existing;
+			}
+		}
+		return lock;
+	}
+
+	private static class LayerLock {
+
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private final AtomicLong readLocks = new AtomicLong();
+		private final AtomicLong readWait = new AtomicLong();
+		private final AtomicLong maxReadWait = new AtomicLong();
+		private final AtomicLong writeLocks = new AtomicLong();
+		private final AtomicLong writeWait = new AtomicLong();
+		private final AtomicLong maxWriteWait = new AtomicLong();
+
+		Lock lock(boolean write) {
+			Lock result = write ? lock.writeLock() : lock.readLock();
+			long start = System.nanoTime();
+			result.lock();
+			long waited = System.nanoTime() - start;
+			if (write) {
+				writeLocks.incrementAndGet();
+				writeWait.addAndGet(waited);
+				updateMax(maxWriteWait, waited);
+			} else {
+				readLocks.incrementAndGet();
+				readWait.addAndGet(waited);
+				updateMax(maxReadWait, waited);
+			}
+			return result;
+		}
+
+		LockStatistics getStatistics() {
+			return new LockStatistics(readLocks.get(), readWait.get(), maxReadWait.get(), writeLocks.get(), writeWait.get(), maxWriteWait.get());
+		}
+
+		private static void updateMax(AtomicLong max, long value) {
+			long current = max.get();
+			while (value > current && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package pl.wharyo.dao.impl;
+
+import java.util.NoSuchElementException;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.filter.FeaturePredicate;
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+
+/**
+ * {@link FeatureCursor} reading records of memory mapped shapefile in file order.
+ * Bbox is checked against envelope stored in record header, so geometries and
+ * attributes of skipped records are never decoded. Filter is tested on values of
+ * attributes it uses, other attributes and geometry are decoded only for matching records.
+ */
+class MappedShapefileCursor implements FeatureCursor {
+
+	private final ShapefileMappedReader reader;
+	private final FeatureSchema schema;
+	private final int[] fields;
+	private final int idField;
+	private final boolean withGeometry;
+	private final Envelope bbox;
+	private final FeaturePredicate predicate;
+	private final FeatureSchema filterSchema;
+	private final int[] filterFields;
+	private int record;
+	private int next = -1;
+	private boolean closed;
+
+	/**
+	 * @param schema attributes to read
+	 * @param bbox envelope which feature geometry has to intersect or null
+	 */
+	MappedShapefileCursor(ShapefileMappedReader reader, FeatureSchema schema, Envelope bbox) {
+		this(reader, schema, true, bbox, null, null);
+	}
+
+	/**
+	 * @param withGeometry false when shapes shouldn't be decoded, bbox is still checked
+	 * @param predicate filter compiled for given filter schema or null
+	 * @param filterSchema attributes filter uses
+	 */
+	MappedShapefileCursor(ShapefileMappedReader reader, FeatureSchema schema, boolean withGeometry, Envelope bbox, FeaturePredicate predicate, FeatureSchema filterSchema) {
+		this.reader = reader;
+		this.schema = schema;
+		this.fields = reader.getFieldIndexes(schema);
+		this.idField = reader.getFieldIndex("id");
+		this.withGeometry = withGeometry;
+		this.bbox = bbox;
+		this.predicate = predicate;
+		this.filterSchema = filterSchema;
+		this.filterFields = predicate == null ? null : reader.getFieldIndexes(filterSchema);
+	}
+
+	public boolean hasNext() {
+		if (next < 0 && !closed) {
+			while (record < reader.getRecordCount()) {
+				record++;
+				if (!reader.isDeleted(record) && (bbox == null || reader.intersects(record, bbox)) && matches(record)) {
+					next = record;
+					break;
+				}
+			}
+			if (next < 0) {
+				close();
+			}
+		}
+		return next >= 0;
+	}
+
+	public Feature next() throws NoSuchElementException, UnsupportedAttributeType {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		int current = next;
+		next = -1;
+		return reader.readFeature(current, schema, fields, idField, withGeometry);
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		next = -1;
+		onClose();
+	}
+
+	private boolean matches(int record) {
+		if (predicate == null) {
+			return true;
+		}
+		try {
+			return predicate.matches(reader.readValues(record, filterSchema, filterFields));
+		} catch (UnsupportedAttributeType e) {
+			// field doesn't hold value of type schema expects, so it can't match either
+			return false;
+		}
+	}
+
+	/**
+	 * Called once, when cursor is closed. Releases resources cursor was opened with.
+	 */
+	protected void onClose() {
+	}
+}
@@ -0,0 +1,172 @@
+package pl.wharyo.dao.impl;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import pl.wharyo.dao.LayerChangeListener;
+
+/**
+ * Watches shapefile home directory, every layer is a subdirectory of it,
+ * and tells listeners which layers were added, removed or had their files changed.
+ */
+class ShapefileDirectoryWatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(ShapefileDirectoryWatcher.class);
+
+	private final Path directory;
+	private final List<LayerChangeListener> listeners;
+	/** Keys of watched layer directories, home directory key isn't here. */
+	private final Map<WatchKey, String> layerKeys = new ConcurrentHashMap<WatchKey, String>();
+	private WatchService watchService;
+
+	/**
+	 * @param listeners list which can be modified while watcher is running
+	 */
+	ShapefileDirectoryWatcher(String directory, List<LayerChangeListener> listeners) {
+		this.directory = Paths.get(directory);
+		this.listeners = listeners;
+	}
+
+	/**
+	 * @return false when directory can't be watched
+	 */
+	synchronized boolean start() {
+		if (watchService != null) {
+			return true;
+		}
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+			DirectoryStream<Path> layerDirs = Files.newDirectoryStream(directory);
+			try {
+				for (Path layerDir: layerDirs) {
+					watchLayer(watchService, layerDir);
+				}
+			} finally {
+				layerDirs.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Couldn't watch shapefile directory: " + directory, e);
+			stop();
+			return false;
+		}
+		Thread thread = new Thread(this, "wharyo-shapefile-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	synchronized void stop() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				// Nothing we can do :(
+			}
+			watchService = null;
+		}
+		layerKeys.clear();
+	}
+
+	public void run() {
+		WatchService service;
+		synchronized (this) {
+			service = watchService;
+		}
+		if (service == null) {
+			return;
+		}
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				String layerName = layerKeys.get(key);
+				if (layerName != null) {
+					// every write to layer files is reported, listener is told once per batch of events
+					key.pollEvents();
+					notifyListeners(layerName);
+					if (!key.reset()) {
+						// layer directory was removed, home directory reports it
+						layerKeys.remove(key);
+					}
+					continue;
+				}
+				Set<String> changed = new LinkedHashSet<String>();
+				boolean overflow = false;
+				for (WatchEvent<?> event: key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+						continue;
+					}
+					Path name = (Path) event.context();
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						watchLayer(service, directory.resolve(name));
+					}
+					changed.add(name.getFileName().toString());
+				}
+				if (overflow) {
+					notifyListeners(null);
+				}
+				for (String name: changed) {
+					notifyListeners(name);
+				}
+				if (!key.reset()) {
+					logger.warn("Shapefile directory is no longer watched: " + directory);
+					notifyListeners(null);
+					return;
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.error("Shapefile directory watcher failed: " + directory, e);
+		}
+	}
+
+	private void watchLayer(WatchService service, Path layerDir) {
+		if (!Files.isDirectory(layerDir)) {
+			return;
+		}
+		try {
+			WatchKey key = layerDir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			layerKeys.put(key, layerDir.getFileName().toString());
+		} catch (IOException e) {
+			// layer is still reported when it's added or removed
+			logger.warn("Couldn't watch layer directory: " + layerDir, e);
+		}
+	}
+
+	/**
+	 * @param layerName changed layer or null when all layers should be considered changed
+	 */
+	private void notifyListeners(String layerName) {
+		for (LayerChangeListener listener: listeners) {
+			try {
+				if (layerName == null) {
+					listener.allLayersChanged();
+				} else {
+					listener.layerChanged(layerName);
+				}
+			} catch (RuntimeException e) {
+				logger.error("Layer change listener failed", e);
+			}
+		}
+	}
+}
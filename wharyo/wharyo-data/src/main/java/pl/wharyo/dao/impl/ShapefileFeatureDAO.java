@@ -2,68 +2,115 @@ package pl.wharyo.dao.impl;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.log4j.Logger;
-import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.filter.SortByImpl;
-import org.geotools.filter.text.cql2.CQL;
-import org.geotools.filter.text.cql2.CQLException;
-import org.geotools.referencing.CRS;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.feature.type.Name;
-import org.opengis.feature.type.PropertyType;
+import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
-import org.opengis.filter.expression.PropertyName;
-import org.opengis.filter.sort.SortBy;
-import org.opengis.filter.sort.SortOrder;
-import org.opengis.referencing.FactoryException;
-import org.opengis.referencing.NoSuchAuthorityCodeException;
-import org.springframework.cache.annotation.Cacheable;
+import org.opengis.filter.identity.FeatureId;
 import org.springframework.util.StringUtils;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
 import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.LayerChangeNotifier;
+import pl.wharyo.dao.LockStatistics;
+import pl.wharyo.dao.filter.FeaturePredicate;
+import pl.wharyo.dao.impl.ShapefileWriteBuffer.PendingChange;
 import pl.wharyo.exceptions.BrokenFeatureException;
 import pl.wharyo.exceptions.LayerConfigurationBrokenException;
 import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
 import pl.wharyo.exceptions.UnsupportedAttributeType;
 import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
 import pl.wharyo.model.attributes.Attribute;
-import pl.wharyo.model.attributes.AttributeType;
 
-public class ShapefileFeatureDAO implements FeatureDAO {
+public class ShapefileFeatureDAO implements FeatureDAO, LayerChangeNotifier {
+
+	public static final int DEFAULT_FLUSH_THRESHOLD = 1000;
+	public static final long DEFAULT_FLUSH_DELAY = 1000;
+	/** Up to that many index candidates are always read by record, more only when they are small part of layer. */
+	private static final int SMALL_CANDIDATE_COUNT = 64;
+	/** How many features cursor reads at once, layer is locked only while batch is read. */
+	private static final int CURSOR_BATCH_SIZE = 1000;
 
 	private final String SHP_HOME;
+	private final ShapefileLayerRegistry registry;
+	private final LayerLocks locks = new LayerLocks();
+	private final CrsCache crsCache = new CrsCache();
+	private volatile boolean persistIdSequence;
+	private volatile boolean memoryMappedReads;
+	private volatile boolean writeBehind;
+	private volatile boolean reprojectGeometries;
+	private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	private volatile long flushDelay = DEFAULT_FLUSH_DELAY;
+	private final ConcurrentMap<String, ShapefileWriteBuffer> buffers = new ConcurrentHashMap<String, ShapefileWriteBuffer>();
+	private ScheduledExecutorService flusher;
+	private final ConcurrentMap<String, Set<String>> indexedAttributes = new ConcurrentHashMap<String, Set<String>>();
+	private final Set<String> indexBuilds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private ExecutorService indexBuilder;
+	private final List<LayerChangeListener> listeners = new CopyOnWriteArrayList<LayerChangeListener>();
+	private ShapefileDirectoryWatcher watcher;
 	private static final Logger logger = Logger.getLogger(ShapefileFeatureDAO.class);
+	private static final FilterFactory filterFactory = CommonFactoryFinder.getFilterFactory(null);
 	
 	public ShapefileFeatureDAO( URI uri) {
 		this(uri.getPath());
 	}
 	
 	public ShapefileFeatureDAO(String shapeHomeDirectory) {
+		this(shapeHomeDirectory, ShapefileLayerRegistry.DEFAULT_MAX_OPEN_LAYERS, ShapefileLayerRegistry.DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * @param maxOpenLayers how many shapefiles can be kept open at the same time
+	 * @param idleTimeoutMillis after how long unused shapefile is closed
+	 */
+	public ShapefileFeatureDAO(String shapeHomeDirectory, int maxOpenLayers, long idleTimeoutMillis) {
 		SHP_HOME = shapeHomeDirectory;
+		registry = new ShapefileLayerRegistry(shapeHomeDirectory, maxOpenLayers, idleTimeoutMillis);
 		try {
 			Class.forName("org.geotools.referencing.crs.EPSGCRSAuthorityFactory");
 		} catch (ClassNotFoundException e) {
@@ -80,57 +127,37 @@ public class ShapefileFeatureDAO implements FeatureDAO {
 			throw new BrokenFeatureException("Feature contains empty geometry or it is null");
 		}
 	
-		DataStore dStore = createDataStore(layerName);
-		SimpleFeatureStore fStore = createFeatureStore(dStore, layerName);
-		SimpleFeatureType featureType = fStore.getSchema();
-		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureType);
-		
-		PropertyName idProperty = null;
-		FilterFactory ff = CommonFactoryFinder.getFilterFactory( null );
-		for(AttributeDescriptor attrDesc: featureType.getAttributeDescriptors()) {
-			if (attrDesc.getLocalName().equalsIgnoreCase("id")) {
-				idProperty = ff.property(attrDesc.getLocalName());
-			} else {
-				Attribute attr = feature.getAttribute(attrDesc.getLocalName());
-				if (attr != null && compareAttributeTypes(attrDesc.getType(), attr)) {
-					featureBuilder.set(attrDesc.getName(), attr.getValue());
-				}
-			}
-		}
-		
-		GeometryDescriptor geomDesc = featureType.getGeometryDescriptor();
-		if (geomDesc != null) {
-			try {
-				if (feature.getGeom().getSRID() > 0 && 
-						!geomDesc.getCoordinateReferenceSystem().getCoordinateSystem()
-						.equals(CRS.decode("EPSG:" + feature.getGeom().getSRID()))) {
-					throw new BrokenFeatureException("Feature CRS doesn't match shapefile CRS");
-				} else {
-					logger.warn("Saving feature with empty geometry srid");
-				}
-			} catch (NoSuchAuthorityCodeException e) {
-				throw new BrokenFeatureException("Feature geometry contains unknown CRS");
-			} catch (FactoryException e) {
-				// Nothing we can do :(
-			}
-			if (!compareGeometryTypes(feature.getGeom(), geomDesc.getType().getName().getLocalPart())) {
-				throw new BrokenFeatureException("Feature contains geometry which is not koherent with geometry type in layer: " + layerName);
-			}
-			featureBuilder.set(geomDesc.getLocalName(), feature.getGeom());
-		} else {
-			logger.error("No geometry descriptor for given shapefile layer: " + layerName);
-			throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layerName, LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			// buffered changes go first, so changes reach the disk in order they were made
+			flushBuffer(layer);
+			return createFeature(feature, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
 		}
+	}
+	
+	private Long createFeature(Feature feature, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		String layerName = layer.getName();
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		SimpleFeatureType featureType = fStore.getSchema();
+		Geometry geometry = FeatureWriteSupport.validateGeometry(feature.getGeom(), featureType, layerName, crsCache, reprojectGeometries);
 		
+		Long nextId = allocateId(layer, fStore);
+		SimpleFeature sFeature = getWritePlan(layer, featureType).buildFeature(feature, geometry, nextId, null, new SimpleFeatureBuilder(featureType));
+		int previousCount = countRecords(layer, fStore);
 		try {
 			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
 			fStore.setTransaction(transaction);
 			try {
-				Long nextId = getCurrentId(idProperty, fStore) + 1;
-				featureBuilder.set(idProperty.getPropertyName(), nextId);
-				SimpleFeature sFeature = featureBuilder.buildFeature(null);
 				fStore.addFeatures(DataUtilities.collection(sFeature));
 				transaction.commit();
+				layer.markWritten();
+				indexAppended(layer, fStore, nextId, 1, previousCount);
+				updateSpatialIndex(layer, nextId, geometry);
+				updateAttributeIndexes(layer, nextId, null, false);
 				return nextId;
 			} catch (Exception ex) {
 				transaction.rollback();
@@ -145,53 +172,176 @@ public class ShapefileFeatureDAO implements FeatureDAO {
 	}
 
 	public Feature getFeatureById(Long id, String layerName) throws LayerConfigurationBrokenException, LayerDataSourceNotAvailableException, UnsupportedAttributeType {
+		return getFeatureById(id, null, true, layerName);
+	}
+
+	/**
+	 * Property names are passed to shapefile reader and mapped reads decode only given fields,
+	 * so other columns and shape of the record are not parsed.
+	 */
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerConfigurationBrokenException, LayerDataSourceNotAvailableException, UnsupportedAttributeType {
 		if (StringUtils.isEmpty(layerName)) {
 			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		} else if (id == null) {
 			throw new IllegalArgumentException("Feature id cannot be null");
 		}
 		
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockRead(layerName);
 		try {
-			DataStore dStore = createDataStore(layerName);
-			SimpleFeatureStore fStore = createFeatureStore(dStore, layerName);
-			Query query = createIdQuery(id, layerName);
-			
-			SimpleFeatureCollection result = fStore.getFeatures(query);
-			SimpleFeatureIterator iter = result.features();
-			if (iter.hasNext()) {
-				Feature feature = new Feature();
-				SimpleFeature resultFeature = iter.next();
-				for (Property prop: resultFeature.getProperties()) {
-					Attribute attr = null;
-					if (prop.getName().getLocalPart().equalsIgnoreCase("id")) {
-						feature.setId((Long) prop.getValue());
-					} else if (prop.getType().getBinding() == Integer.class || prop.getType().getBinding() == Long.class) {
-						attr = new Attribute(prop.getName().getLocalPart(), AttributeType.LONG);
-						attr.setValue(prop.getValue());
-					} else if (prop.getType().getBinding() == Double.class || prop.getType().getBinding() == Float.class) {
-						attr = new Attribute(prop.getName().getLocalPart(), AttributeType.DOUBLE);
-						attr.setValue(prop.getValue());
-					} else if (prop.getType().getBinding() == String.class) {
-						attr = new Attribute(prop.getName().getLocalPart(), AttributeType.TEXT);
-						attr.setValue(prop.getValue());
-					} else if (prop.getType().getBinding() == Date.class) {
-						attr = new Attribute(prop.getName().getLocalPart(), AttributeType.DATE);
-						attr.setValue(prop.getValue());
-					}
-					if (attr != null) {
-						feature.addAttribute(attr);
-					}
+			SimpleFeatureStore fStore = createFeatureStore(layer);
+			PendingChange change = getPendingChange(id, layerName);
+			if (change != null && change.isDeleted()) {
+				return null;
+			}
+			Feature feature = memoryMappedReads ? readMappedFeature(id, layer, fStore, attributeNames, withGeometry) : null;
+			if (feature == null) {
+				String[] properties = getPropertyNames(fStore.getSchema(), attributeNames, withGeometry);
+				SimpleFeature resultFeature = findFeature(id, layer, fStore, properties);
+				if (resultFeature != null) {
+					feature = properties == null ? toFeature(resultFeature, layer)
+							: FeatureConverter.forType(resultFeature.getFeatureType(), toKeys(attributeNames), withGeometry).toFeature(resultFeature);
 				}
-				feature.setGeom((Geometry) resultFeature.getDefaultGeometry());
-				iter.close();
-				return feature;
 			}
+			if (feature != null && change != null) {
+				applyPendingChange(feature, change, withGeometry);
+			}
+			return feature;
 		} catch (IOException ex) {
 			// Nothing we can do :(
+		} finally {
+			lock.unlock();
+			registry.release(layer);
 		}
 		return null;
 	}
 
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (query == null) {
+			throw new IllegalArgumentException("Query cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		
+		// query can't apply buffered changes by itself
+		flushPending(layerName);
+		final ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockRead(layerName);
+		boolean opened = false;
+		try {
+			SimpleFeatureStore fStore = createFeatureStore(layer);
+			FeaturePredicate predicate = null;
+			FeatureSchema filterSchema = null;
+			if (query.getFilter() != null) {
+				// compiled before anything is read, so filter which doesn't fit layer fails right away
+				filterSchema = FeatureConverter.forType(fStore.getSchema(), query.getFilter().getAttributeNames()).getSchema();
+				predicate = query.getFilter().compile(filterSchema);
+			}
+			long[] candidates = query.getFilter() == null ? null : findIndexedCandidates(query, layer, fStore);
+			ShapefileMappedReader reader = candidates == null && memoryMappedReads ? layer.getMappedReader() : null;
+			FeatureCursor cursor;
+			// layer stays acquired until cursor is closed, so it can't be disposed while read; lock is given
+			// back before cursor is returned, so owner of the cursor can write to the layer while reading it
+			if (reader != null) {
+				// mapping keeps files as they were when it was made, records are tested on attributes
+				// filter uses before anything else is decoded
+				cursor = new MappedShapefileCursor(reader, createSchema(query, fStore.getSchema()), query.isWithGeometry(), query.getBBox(), predicate, filterSchema) {
+					protected void onClose() {
+						registry.release(layer);
+					}
+				};
+			} else {
+				// candidates of filter are taken from attribute indexes, features in bbox from spatial index,
+				// otherwise whole layer is read in file order; bbox and filter are passed to data store,
+				// so records which don't match them are skipped before they are decoded
+				long[] ids = candidates;
+				if (ids == null && query.getBBox() != null) {
+					ids = getSpatialIndex(layer, fStore).query(query.getBBox());
+				}
+				String[] properties = getCursorProperties(query, fStore.getSchema());
+				Filter filter = createFilter(query, layer, fStore.getSchema());
+				FeatureIterator<SimpleFeature> iter = ids == null ? readRecords(layer, properties, filter) : readBatches(ids, layer, properties, filter);
+				cursor = new SimpleFeatureCursor(iter, toKeys(query.getAttributeNames()), query.isWithGeometry(), null, null) {
+					protected void onClose() {
+						registry.release(layer);
+					}
+				};
+			}
+			opened = true;
+			return cursor;
+		} catch (IOException e) {
+			logger.error("Couldn't read from given layer: " + layerName);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} finally {
+			lock.unlock();
+			if (!opened) {
+				registry.release(layer);
+			}
+		}
+	}
+
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		if (bbox == null) {
+			throw new IllegalArgumentException("Bbox cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		
+		flushPending(layerName);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockRead(layerName);
+		try {
+			return findFeatures(bbox, null, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		if (geometry == null) {
+			throw new IllegalArgumentException("Geometry cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		
+		flushPending(layerName);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockRead(layerName);
+		try {
+			return findFeatures(geometry.getEnvelopeInternal(), geometry, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	/**
+	 * Candidates are taken from spatial index and read by record number, then checked
+	 * against their actual geometry, so stale index entries never get to the result.
+	 * @param geometry exact geometry to test or null when envelope test is enough
+	 */
+	private List<Feature> findFeatures(Envelope bbox, Geometry geometry, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		List<Feature> features = new ArrayList<Feature>();
+		try {
+			long[] candidates = getSpatialIndex(layer, fStore).query(bbox);
+			for (SimpleFeature sFeature: readFeatures(candidates, layer, fStore, null, null)) {
+				Geometry geom = (Geometry) sFeature.getDefaultGeometry();
+				if (geom == null) {
+					continue;
+				}
+				if (geometry == null ? bbox.intersects(geom.getEnvelopeInternal()) : geometry.intersects(geom)) {
+					features.add(toFeature(sFeature, layer));
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Couldn't read from given layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		return features;
+	}
+
 	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
 		if (id == null) {
 			throw new IllegalArgumentException("Feature id cannot be null");
@@ -204,39 +354,42 @@ public class ShapefileFeatureDAO implements FeatureDAO {
 		}
 		
 		
-		DataStore dStore = createDataStore(layerName);
-		SimpleFeatureStore fStore = createFeatureStore(dStore, layerName);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			if (writeBehind) {
+				bufferAttributeUpdate(id, attributes, layer);
+			} else {
+				flushBuffer(layer);
+				updateFeatureAttributes(id, attributes, layer);
+			}
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	private void updateFeatureAttributes(Long id, List<Attribute> attributes, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
 		
 		List<Name> attrNames = new ArrayList<Name>();
 		List<Object> attrValues = new ArrayList<Object>();
-		int i = 0;
-		for (Attribute attr: attributes) {
-			for (AttributeDescriptor desc : fStore.getSchema().getAttributeDescriptors()) {
-				if (desc.getName().getLocalPart().equalsIgnoreCase(attr.getName())
-						&& compareAttributeTypes(desc.getType(), attr)) {
-					attrNames.add(desc.getName());
-					attrValues.add(attr.getValue());
-					i++;
-					break;
-				}
-			}
-		}
+		getWritePlan(layer, fStore.getSchema()).collectAttributeChanges(attributes, attrNames, attrValues);
 		try {	
 			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
 			fStore.setTransaction(transaction);
 			try {
-				if (i > 0) {
-					fStore.modifyFeatures(attrNames.toArray(new Name[attrNames.size()]), attrValues.toArray(), CQL.toFilter("id = " + id));
+				if (attrNames.size() > 0) {
+					fStore.modifyFeatures(attrNames.toArray(new Name[attrNames.size()]), attrValues.toArray(), idFilter(id));
 					transaction.commit();
+					layer.markWritten();
+					updateAttributeIndexes(layer, id, getLocalNames(attrNames), false);
 				}
 			} catch (IOException e) {
 				transaction.rollback();
 			} finally {
 				transaction.close();
 			}
-		} catch (CQLException e) {
-			logger.error("No id filed found for shapefile: " + layerName);
-			throw new LayerConfigurationBrokenException("Coulnd't find proper id field in shapefile " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
 		} catch (IOException e) {
 			// Transaction rollback/close fail
 		}
@@ -252,47 +405,41 @@ public class ShapefileFeatureDAO implements FeatureDAO {
 			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		}
 		
-		DataStore dStore = createDataStore(layerName);
-		SimpleFeatureStore fStore = createFeatureStore(dStore, layerName);
-		SimpleFeatureType featureType = fStore.getSchema();
-		
-		GeometryDescriptor geomDesc = featureType.getGeometryDescriptor();
-		if (geomDesc != null) {
-			try {
-				if (geometry.getSRID() > 0 && 
-						!geomDesc.getCoordinateReferenceSystem().getCoordinateSystem()
-						.equals(CRS.decode("EPSG:" + geometry.getSRID()))) {
-					throw new BrokenFeatureException("Feature CRS doesn't match shapefile CRS");
-				} else {
-					logger.warn("Saving feature with empty geometry srid");
-				}
-			} catch (NoSuchAuthorityCodeException e) {
-				throw new BrokenFeatureException("Feature geometry contains unknown CRS");
-			} catch (FactoryException e) {
-				// Nothing we can do :(
-			}
-			if (!compareGeometryTypes(geometry, geomDesc.getType().getName().getLocalPart())) {
-				throw new BrokenFeatureException("Feature contains geometry which is not koherent with geometry type in layer: " + layerName);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			if (writeBehind) {
+				bufferGeometryUpdate(id, geometry, layer);
+			} else {
+				flushBuffer(layer);
+				updateFeatureGeometry(id, geometry, layer);
 			}
-		} else {
-			logger.error("No geometry descriptor for given shapefile layer: " + layerName);
-			throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layerName, LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
 		}
+	}
+	
+	private void updateFeatureGeometry(Long id, Geometry geometry, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		String layerName = layer.getName();
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		SimpleFeatureType featureType = fStore.getSchema();
+		
+		geometry = FeatureWriteSupport.validateGeometry(geometry, featureType, layerName, crsCache, reprojectGeometries);
 		
 		try {
 			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
 			fStore.setTransaction(transaction);
 			try {
-				fStore.modifyFeatures(featureType.getGeometryDescriptor().getName(), geometry,  CQL.toFilter("id = " + id));
+				fStore.modifyFeatures(featureType.getGeometryDescriptor().getName(), geometry,  idFilter(id));
 				transaction.commit();
+				layer.markWritten();
+				updateSpatialIndex(layer, id, geometry);
 			} catch (IOException e) {
 				transaction.rollback();
 			} finally {
 				transaction.close();
 			}
-		} catch (CQLException e) {
-			logger.error("No id filed found for shapefile: " + layerName);
-			throw new LayerConfigurationBrokenException("Coulnd't find proper id field in shapefile " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
 		} catch (IOException e) {
 			// Transaction rollback/close fail
 		}
@@ -305,170 +452,1503 @@ public class ShapefileFeatureDAO implements FeatureDAO {
 			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		}
 		
-		DataStore dStore = createDataStore(layerName);
-		SimpleFeatureStore fStore = createFeatureStore(dStore, layerName);
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			if (writeBehind) {
+				bufferDelete(id, layer);
+			} else {
+				flushBuffer(layer);
+				deleteFeature(id, layer);
+			}
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	private void deleteFeature(Long id, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
 		
 		try {
 			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
 			fStore.setTransaction(transaction);
 			try {
-				fStore.removeFeatures(CQL.toFilter("id = " + id));
+				fStore.removeFeatures(idFilter(id));
 				transaction.commit();
+				layer.markWritten();
+				FeatureIdIndex index = layer.getIdIndex();
+				if (index != null) {
+					index.remove(id);
+				}
+				updateSpatialIndex(layer, id, null);
+				updateAttributeIndexes(layer, id, null, true);
 			} catch (IOException e) {
 				transaction.rollback();
 			} finally {
 				transaction.close();
 			}
-		} catch (CQLException e) {
-			logger.error("No id filed found for shapefile: " + layerName);
-			throw new LayerConfigurationBrokenException("Coulnd't find proper id field in shapefile " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
 		} catch (IOException e) {
 			// Transaction rollback/close fail
 		}
 	}
 	
-	@Cacheable
-	public boolean supportsLayer(String layerName) {
-		if(StringUtils.isEmpty(layerName)) {
-			return false;
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		}
-		File dir = new File(this.SHP_HOME);
-		if (dir.isDirectory()) {
-			for (String layerDir : dir.list()) {
-				if (layerDir.equalsIgnoreCase(layerName)) {
-					return true;
+		
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			// buffered changes go first, so changes reach the disk in order they were made
+			flushBuffer(layer);
+			return createFeatures(features, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	private BatchResult createFeatures(List<Feature> features, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		SimpleFeatureType featureType = fStore.getSchema();
+		BatchResult result = new BatchResult(features.size());
+		
+		List<Integer> valid = new ArrayList<Integer>(features.size());
+		List<Geometry> geometries = new ArrayList<Geometry>(features.size());
+		for (int i = 0; i < features.size(); i++) {
+			Feature feature = features.get(i);
+			try {
+				if (feature == null || feature.getGeom() == null || feature.getGeom().isEmpty()) {
+					throw new BrokenFeatureException("Feature contains empty geometry or it is null");
 				}
+				geometries.add(FeatureWriteSupport.validateGeometry(feature.getGeom(), featureType, layer.getName(), crsCache, reprojectGeometries));
+				valid.add(i);
+			} catch (BrokenFeatureException e) {
+				result.failure(i, e.getMessage());
 			}
-		} 
-		return false;
+		}
+		if (valid.isEmpty()) {
+			return result;
+		}
+		
+		long firstId = allocateIds(layer, fStore, valid.size());
+		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(featureType);
+		FeatureWritePlan plan = getWritePlan(layer, featureType);
+		List<SimpleFeature> sFeatures = new ArrayList<SimpleFeature>(valid.size());
+		for (int i = 0; i < valid.size(); i++) {
+			sFeatures.add(plan.buildFeature(features.get(valid.get(i)), geometries.get(i), firstId + i, null, featureBuilder));
+		}
+		int previousCount = countRecords(layer, fStore);
+		try {
+			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
+			fStore.setTransaction(transaction);
+			try {
+				fStore.addFeatures(DataUtilities.collection(sFeatures));
+				transaction.commit();
+				layer.markWritten();
+				indexAppended(layer, fStore, firstId, valid.size(), previousCount);
+				for (int i = 0; i < valid.size(); i++) {
+					updateSpatialIndex(layer, firstId + i, geometries.get(i));
+					updateAttributeIndexes(layer, firstId + i, null, false);
+					result.success(valid.get(i), firstId + i);
+				}
+			} catch (IOException e) {
+				transaction.rollback();
+				markFailed(result, valid, "Couldn't write features: " + e.getMessage());
+			} finally {
+				transaction.close();
+			}
+		} catch (IOException e) {
+			// Transaction rollback/close fail
+		}
+		return result;
 	}
 	
-	private DataStore createDataStore(String layerName) throws LayerDataSourceNotAvailableException {
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (features == null) {
+			throw new IllegalArgumentException("Feature list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
 		try {
-			StringBuilder builder = new StringBuilder(SHP_HOME);
-			builder.append(File.separator).append(layerName).append(File.separator).append(layerName).append(".shp");
-			
-			File file = new File(builder.toString());
-			
-			Map<String, Object> params = new HashMap<String, Object>();
-			params.put("url", file.toURI().toURL());
-			
-			DataStore dStore = DataStoreFinder.getDataStore(params);
-			return dStore;
-		} catch (MalformedURLException e1) {
-			logger.error("Shapefile with given name cannnot be found: " + layerName);
-			throw new IllegalArgumentException("Coulnd't create URL with given layerName parameter: " + layerName);
-		} catch (IOException e) {
-			logger.error("Couldn't connect to given layer: " + layerName);
-			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+			// buffered changes go first, so changes reach the disk in order they were made
+			flushBuffer(layer);
+			return updateFeatures(features, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
 		}
 	}
 	
-	private SimpleFeatureStore createFeatureStore(DataStore dStore, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+	private BatchResult updateFeatures(List<Feature> features, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		SimpleFeatureType featureType = fStore.getSchema();
+		FeatureWritePlan plan = getWritePlan(layer, featureType);
+		BatchResult result = new BatchResult(features.size());
+		
+		List<Integer> modified = new ArrayList<Integer>(features.size());
+		Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+		Map<Integer, List<String>> writtenNames = new HashMap<Integer, List<String>>();
 		try {
-			if (dStore.getFeatureSource(layerName) instanceof SimpleFeatureStore) {
-				if (dStore.getTypeNames() != null && dStore.getTypeNames().length != 0) {
-					String typeName = dStore.getTypeNames()[0];
-					return (SimpleFeatureStore) dStore.getFeatureSource(typeName);
-				} else {
-					logger.error("Wrong typeName configuration for given shapefile: " + layerName);
-					throw new LayerConfigurationBrokenException("Coulnd't find any typeNames for shapefile " + layerName, LayerConfigurationBrokenException.Reason.NO_ATTRIBUTE_METADATA);
+			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
+			fStore.setTransaction(transaction);
+			try {
+				for (int i = 0; i < features.size(); i++) {
+					Feature feature = features.get(i);
+					if (feature == null || feature.getId() == null) {
+						result.failure(i, "Feature id cannot be null");
+						continue;
+					}
+					if (feature.getGeom() != null) {
+						try {
+							geometries.put(i, FeatureWriteSupport.validateGeometry(feature.getGeom(), featureType, layer.getName(), crsCache, reprojectGeometries));
+						} catch (BrokenFeatureException e) {
+							result.failure(i, e.getMessage());
+							continue;
+						}
+					}
+					SimpleFeature current = findFeature(feature.getId(), layer, fStore);
+					if (current == null) {
+						result.failure(i, "Couldn't find feature with id: " + feature.getId());
+						continue;
+					}
+					List<Name> attrNames = new ArrayList<Name>();
+					List<Object> attrValues = new ArrayList<Object>();
+					if (feature.getAttributes() != null) {
+						plan.collectAttributeChanges(feature.getAttributes(), attrNames, attrValues);
+					}
+					if (feature.getGeom() != null) {
+						attrNames.add(featureType.getGeometryDescriptor().getName());
+						attrValues.add(geometries.get(i));
+					}
+					if (attrNames.size() > 0) {
+						fStore.modifyFeatures(attrNames.toArray(new Name[attrNames.size()]), attrValues.toArray(), createFeatureFilter(current));
+					}
+					writtenNames.put(i, getLocalNames(attrNames));
+					modified.add(i);
 				}
-			} else {
-				logger.error("FeatureSource doesn't implement FeatureStore: " + layerName);
-				throw new LayerDataSourceNotAvailableException("Cannot create read/write access", LayerDataSourceNotAvailableException.Reason.READONLY_ACCESS);
+				// all changes are written to disk at once
+				transaction.commit();
+				layer.markWritten();
+				for (Integer i: modified) {
+					if (geometries.containsKey(i)) {
+						updateSpatialIndex(layer, features.get(i).getId(), geometries.get(i));
+					}
+					updateAttributeIndexes(layer, features.get(i).getId(), writtenNames.get(i), false);
+					result.success(i, features.get(i).getId());
+				}
+			} catch (IOException e) {
+				transaction.rollback();
+				markFailed(result, modified, "Couldn't write features: " + e.getMessage());
+			} finally {
+				transaction.close();
 			}
 		} catch (IOException e) {
-			logger.error("Couldn't connect to given layer: " + layerName);
-			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+			// Transaction rollback/close fail
 		}
+		return result;
 	}
 	
-	private Query createIdQuery(Long id, String layerName) throws LayerConfigurationBrokenException, IOException {
-		try {
-			Query query = new Query();
-			query.setFilter(CQL.toFilter("id = " + id));
-			query.setMaxFeatures(1);
-			return query;
-		} catch (CQLException e) {
-			logger.error("No id filed found for shapefile: " + layerName);
-			throw new LayerConfigurationBrokenException("Coulnd't find proper id field in shapefile " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (ids == null) {
+			throw new IllegalArgumentException("Id list cannot be null");
+		} else if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		}
 		
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			// buffered changes go first, so changes reach the disk in order they were made
+			flushBuffer(layer);
+			return deleteFeatures(ids, layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
 	}
 	
-	private Long getCurrentId(PropertyName idProperty, SimpleFeatureStore store) {
-		if (idProperty == null || store == null) {
-			logger.error("idProperty or store cannot be null");
-			throw new IllegalArgumentException("idProperty or store cannot be null");
+	private BatchResult deleteFeatures(Collection<Long> ids, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		BatchResult result = new BatchResult(ids.size());
+		
+		List<Integer> found = new ArrayList<Integer>(ids.size());
+		List<Long> foundIds = new ArrayList<Long>(ids.size());
+		Set<FeatureId> fids = new HashSet<FeatureId>();
+		try {
+			int i = 0;
+			for (Long id: ids) {
+				SimpleFeature current = id == null ? null : findFeature(id, layer, fStore);
+				if (current == null) {
+					result.failure(i, "Couldn't find feature with id: " + id);
+				} else {
+					found.add(i);
+					foundIds.add(id);
+					fids.add(current.getIdentifier());
+				}
+				i++;
+			}
+		} catch (IOException e) {
+			logger.error("Couldn't read from given layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
 		}
-		Query query = new Query();
-		query.setMaxFeatures(1);
-		SortBy idSort = new SortByImpl(idProperty, SortOrder.DESCENDING);
-		query.setSortBy(new SortBy[]{idSort});
+		if (fids.isEmpty()) {
+			return result;
+		}
+		
 		try {
-			SimpleFeatureCollection result = store.getFeatures(query);
-			SimpleFeatureIterator iter = result.features();
-			if (iter.hasNext()) {
-				SimpleFeature feature = iter.next();
-				Long id = (Long) feature.getProperty("id").getValue();
-				iter.close();
-				return id;
+			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
+			fStore.setTransaction(transaction);
+			try {
+				fStore.removeFeatures(filterFactory.id(fids));
+				transaction.commit();
+				layer.markWritten();
+				FeatureIdIndex index = layer.getIdIndex();
+				long[] removedIds = new long[foundIds.size()];
+				for (int j = 0; j < found.size(); j++) {
+					removedIds[j] = foundIds.get(j);
+					updateSpatialIndex(layer, foundIds.get(j), null);
+					updateAttributeIndexes(layer, foundIds.get(j), null, true);
+					result.success(found.get(j), foundIds.get(j));
+				}
+				if (index != null) {
+					index.removeAll(removedIds);
+				}
+			} catch (IOException e) {
+				transaction.rollback();
+				markFailed(result, found, "Couldn't delete features: " + e.getMessage());
+			} finally {
+				transaction.close();
 			}
-			return 0L;
 		} catch (IOException e) {
-			return null;
+			// Transaction rollback/close fail
 		}
+		return result;
 	}
 	
-	private boolean compareAttributeTypes(PropertyType type, Attribute attr) {
-		switch(attr.getType()){
-			case TEXT:
-				if (type.getBinding() == String.class) 
-					return true;
-				else 
-					return false;
-			case LONG:
-				if (type.getBinding() == Long.class || type.getBinding() == Integer.class)
-					return true;
-				else 
-					return false;
-			case DOUBLE:
-				if (type.getBinding() == Double.class || type.getBinding() == Float.class) 
-					return true;
-				else 
-					return false;
-			case DATE:
-				if (type.getBinding() == Date.class)
-					return true;
-				else 
-					return false;
-			default:
-				return false;
-		}	
-	}
-	
-	private boolean compareGeometryTypes(Geometry geom, String type_2) {
-		String type_1 = geom.getGeometryType();
-		if (type_1 == null && type_2 == null) {
-			return true;
-		} else if ((type_1 != null && type_2 == null) 
-				||(type_1 == null && type_2 != null)) {
+	public boolean supportsLayer(String layerName) {
+		if(StringUtils.isEmpty(layerName)) {
 			return false;
 		}
-		if (type_1.equals(type_2)) {
-			return true;
-		} else if ((type_1.equalsIgnoreCase("LineString") || type_1.equalsIgnoreCase("MultiLineString"))
-				&& (type_2.equalsIgnoreCase("LineString") || type_2.equalsIgnoreCase("MultiLineString"))) {
-			return true;
-		} else if ((type_1.equalsIgnoreCase("Polygon") || type_1.equalsIgnoreCase("MultiPolygon"))
-				&& (type_2.equalsIgnoreCase("Polygon") || type_2.equalsIgnoreCase("MultiPolygon"))) {
-			return true;
-		} else if ((type_1.equalsIgnoreCase("Point") || type_1.equalsIgnoreCase("MultiPoint"))
-				&& (type_2.equalsIgnoreCase("Point") || type_2.equalsIgnoreCase("MultiPoint"))) {
-			return true;
-		} else {
-			return false;
+		File dir = new File(this.SHP_HOME);
+		if (dir.isDirectory()) {
+			for (String layerDir : dir.list()) {
+				if (layerDir.equalsIgnoreCase(layerName)) {
+					return true;
+				}
+			}
+		} 
+		return false;
+	}
+	
+	/**
+	 * When set, feature ids are reserved next to the shapefile (<i>layer.seq</i>),
+	 * so ids of deleted features are never given again, also after restart. Ids are reserved
+	 * in blocks, so ids of a block are skipped when process dies before layer is disposed.
+	 */
+	public void setPersistIdSequence(boolean persistIdSequence) {
+		this.persistIdSequence = persistIdSequence;
+	}
+
+	/**
+	 * When set, {@link #getFeatureById(Long, String)} and {@link #getFeatures(FeatureQuery, String)}
+	 * decode records straight from memory mapped layer files instead of going through
+	 * GeoTools data store. Mapping is dropped after every write and taken again on next read.
+	 * Mapped files can't be removed on Windows until mapping is garbage collected, so writes
+	 * replacing them may fail there.
+	 */
+	public void setMemoryMappedReads(boolean memoryMappedReads) {
+		this.memoryMappedReads = memoryMappedReads;
+	}
+
+	/**
+	 * When set, {@link #updateFeatureAttributes(Long, List, String)}, {@link #updateFeatureGeometry(Long, Geometry, String)}
+	 * and {@link #deleteFeature(Long, String)} only put the change into buffer of the layer.
+	 * Buffered changes are written together, in single commit, once there are
+	 * {@link #setFlushThreshold(int)} of them or the oldest one waits {@link #setFlushDelay(long)},
+	 * before any other write or query of the layer and on {@link #dispose()}.
+	 * {@link #getFeatureById(Long, String)} sees buffered changes right away.
+	 * Changes not written yet are lost when process dies.
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Geometries with SRID other than layer CRS are transformed to layer CRS instead of being rejected.
+	 */
+	public void setReprojectGeometries(boolean reprojectGeometries) {
+		this.reprojectGeometries = reprojectGeometries;
+	}
+
+	/**
+	 * @param modificationCheckInterval how often, in milliseconds, files of open layer are checked
+	 * for changes made by somebody else, 0 checks them on every call
+	 */
+	public void setModificationCheckInterval(long modificationCheckInterval) {
+		registry.setModificationCheckInterval(modificationCheckInterval);
+	}
+
+	/**
+	 * @param flushThreshold number of changed features after which buffer of the layer is written
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * @param flushDelay how long, in milliseconds, change can wait in buffer
+	 */
+	public void setFlushDelay(long flushDelay) {
+		this.flushDelay = flushDelay;
+	}
+
+	/**
+	 * Writes changes buffered in write-behind mode of all layers.
+	 */
+	public void flush() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		for (String layerName: buffers.keySet()) {
+			flushPending(layerName);
+		}
+	}
+
+	/**
+	 * Declares attributes of layer which are indexed. Index of each attribute is kept in sidecar file next
+	 * to the shapefile (<i>layer.attribute.idx</i>) and lets {@link #getFeatures(FeatureQuery, String)} read
+	 * only features which may match query filter (comparisons, BETWEEN, IN, LIKE with fixed prefix).
+	 * Writes of this DAO keep indexes up to date. Missing and out of date indexes are built in background,
+	 * layer is scanned until they are ready.
+	 * @param attributeNames names of indexed attributes, null or empty collection turns indexes of layer off
+	 */
+	public void setIndexedAttributes(String layerName, Collection<String> attributeNames) {
+		if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
+		}
+		if (attributeNames == null || attributeNames.isEmpty()) {
+			indexedAttributes.remove(layerName);
+			return;
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		for (String name: attributeNames) {
+			if (StringUtils.isEmpty(name)) {
+				throw new IllegalArgumentException("Attribute name cannot be null or empty string");
+			}
+			names.add(name.toLowerCase());
+		}
+		indexedAttributes.put(layerName, Collections.unmodifiableSet(names));
+	}
+
+	/**
+	 * Builds indexes of attributes declared for given layer from its data and saves them next to the
+	 * shapefile, replacing indexes in use. Layer can be read while indexes are built, writes wait.
+	 */
+	public void rebuildAttributeIndexes(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (StringUtils.isEmpty(layerName)) {
+			throw new IllegalArgumentException("LayerName parameter cannot be null or empty string");
 		}
+		Set<String> attributeNames = indexedAttributes.get(layerName);
+		if (attributeNames == null) {
+			return;
+		}
+		
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockRead(layerName);
+		try {
+			SimpleFeatureStore fStore = createFeatureStore(layer);
+			for (FeatureAttributeIndex index: buildAttributeIndexes(layer, fStore, attributeNames)) {
+				try {
+					index.save(layer.getFileState());
+				} catch (IOException e) {
+					// index is still used, it's built again after restart
+					logger.warn("Couldn't save attribute index " + index.getAttributeName() + " of layer: " + layerName, e);
+				}
+				layer.setAttributeIndex(index);
+			}
+		} catch (IOException e) {
+			logger.error("Couldn't read from given layer: " + layerName);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+
+	/**
+	 * @return how long readers and writers of given layer waited for each other
+	 */
+	public LockStatistics getLockStatistics(String layerName) {
+		return locks.getStatistics(layerName);
+	}
+
+	/**
+	 * Starts watching shapefile home directory, so listener is told about added and removed layers
+	 * and about changes of layer files, also the ones made by this DAO.
+	 */
+	public synchronized void addLayerChangeListener(LayerChangeListener listener) {
+		if (!listeners.contains(listener)) {
+			listeners.add(listener);
+		}
+		if (watcher == null) {
+			watcher = new ShapefileDirectoryWatcher(SHP_HOME, listeners);
+			if (!watcher.start()) {
+				watcher = null;
+			}
+		}
+	}
+	
+	public synchronized void removeLayerChangeListener(LayerChangeListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Closes all shapefiles kept open by this DAO and stops watching shapefile directory.
+	 */
+	public void dispose() {
+		ScheduledExecutorService executor;
+		ExecutorService builder;
+		synchronized (this) {
+			if (watcher != null) {
+				watcher.stop();
+				watcher = null;
+			}
+			executor = flusher;
+			flusher = null;
+			builder = indexBuilder;
+			indexBuilder = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (builder != null) {
+			// builds which didn't start yet are dropped, indexes are built again on next use
+			builder.shutdownNow();
+			try {
+				builder.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (String layerName: buffers.keySet()) {
+			try {
+				flushPending(layerName);
+			} catch (Exception e) {
+				logger.error("Couldn't write buffered changes of layer: " + layerName, e);
+			}
+		}
+		registry.clear();
+	}
+	
+	private SimpleFeatureStore createFeatureStore(ShapefileLayer layer) throws LayerDataSourceNotAvailableException {
+		try {
+			SimpleFeatureSource source = layer.getDataStore().getFeatureSource(layer.getTypeName());
+			if (source instanceof SimpleFeatureStore) {
+				return (SimpleFeatureStore) source;
+			} else {
+				logger.error("FeatureSource doesn't implement FeatureStore: " + layer.getName());
+				throw new LayerDataSourceNotAvailableException("Cannot create read/write access", LayerDataSourceNotAvailableException.Reason.READONLY_ACCESS);
+			}
+		} catch (IOException e) {
+			logger.error("Couldn't connect to given layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+	
+	private void bufferAttributeUpdate(Long id, List<Attribute> attributes, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		List<Name> attrNames = new ArrayList<Name>();
+		List<Object> attrValues = new ArrayList<Object>();
+		getWritePlan(layer, fStore.getSchema()).collectAttributeChanges(attributes, attrNames, attrValues);
+		if (attrNames.size() > 0 && existsBuffered(id, layer, fStore)) {
+			ShapefileWriteBuffer buffer = getBuffer(layer.getName());
+			buffer.updateAttributes(id, attrNames, attrValues);
+			buffered(buffer, layer);
+		}
+	}
+	
+	private void bufferGeometryUpdate(Long id, Geometry geometry, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		geometry = FeatureWriteSupport.validateGeometry(geometry, fStore.getSchema(), layer.getName(), crsCache, reprojectGeometries);
+		if (existsBuffered(id, layer, fStore)) {
+			ShapefileWriteBuffer buffer = getBuffer(layer.getName());
+			buffer.updateGeometry(id, geometry);
+			buffered(buffer, layer);
+		}
+	}
+	
+	private void bufferDelete(Long id, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		if (existsBuffered(id, layer, fStore)) {
+			ShapefileWriteBuffer buffer = getBuffer(layer.getName());
+			buffer.delete(id);
+			buffered(buffer, layer);
+		}
+	}
+	
+	/**
+	 * Changes of features which don't exist are dropped right away, like direct writes do.
+	 * @return true when feature exists and it wasn't deleted in buffer
+	 */
+	private boolean existsBuffered(Long id, ShapefileLayer layer, SimpleFeatureStore fStore) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		PendingChange change = getPendingChange(id, layer.getName());
+		if (change != null) {
+			return !change.isDeleted();
+		}
+		try {
+			return getIdIndex(layer, fStore).get(id) != FeatureIdIndex.ABSENT;
+		} catch (IOException e) {
+			logger.error("Couldn't read from given layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+	
+	private void buffered(ShapefileWriteBuffer buffer, ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		if (buffer.size() >= flushThreshold) {
+			flushBuffer(layer);
+		} else {
+			startFlusher();
+		}
+	}
+	
+	private ShapefileWriteBuffer getBuffer(String layerName) {
+		ShapefileWriteBuffer buffer = buffers.get(layerName);
+		if (buffer == null) {
+			buffer = new ShapefileWriteBuffer();
+			ShapefileWriteBuffer existing = buffers.putIfAbsent(layerName, buffer);
+			if (existing != null) {
+				buffer = existing;
+			}
+		}
+		return buffer;
+	}
+	
+	private PendingChange getPendingChange(Long id, String layerName) {
+		ShapefileWriteBuffer buffer = buffers.get(layerName);
+		return buffer == null ? null : buffer.get(id);
+	}
+	
+	private void applyPendingChange(Feature feature, PendingChange change, boolean withGeometry) throws UnsupportedAttributeType {
+		FeatureSchema schema = feature.getSchema();
+		for (Map.Entry<String, Object> attr: change.getAttributes().entrySet()) {
+			int position = schema.indexOf(attr.getKey());
+			if (position >= 0) {
+				feature.setValue(position, attr.getValue());
+			}
+		}
+		if (withGeometry && change.getGeometry() != null) {
+			feature.setGeom(change.getGeometry());
+		}
+	}
+	
+	/**
+	 * Takes layer write lock and writes its buffered changes, if there are any.
+	 */
+	private void flushPending(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		ShapefileWriteBuffer buffer = buffers.get(layerName);
+		if (buffer == null || buffer.isEmpty()) {
+			return;
+		}
+		ShapefileLayer layer = registry.acquire(layerName);
+		Lock lock = locks.lockWrite(layerName);
+		try {
+			flushBuffer(layer);
+		} finally {
+			lock.unlock();
+			registry.release(layer);
+		}
+	}
+	
+	/**
+	 * Writes all buffered changes of the layer in single commit. Caller holds layer write lock.
+	 * When commit fails changes stay in buffer and are written with next flush.
+	 * @throws LayerDataSourceNotAvailableException when changes couldn't be written, caller mustn't go on
+	 * with its own read or write as it would see stale data or reach the disk before buffered changes
+	 */
+	private void flushBuffer(ShapefileLayer layer) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		ShapefileWriteBuffer buffer = buffers.get(layer.getName());
+		if (buffer == null || buffer.isEmpty()) {
+			return;
+		}
+		SimpleFeatureStore fStore = createFeatureStore(layer);
+		SimpleFeatureType featureType = fStore.getSchema();
+		List<Map.Entry<Long, PendingChange>> changes = buffer.getChanges();
+		try {
+			Transaction transaction = new DefaultTransaction("wharyo_full_lock");
+			fStore.setTransaction(transaction);
+			try {
+				Set<FeatureId> removed = new HashSet<FeatureId>();
+				List<Map.Entry<Long, PendingChange>> written = new ArrayList<Map.Entry<Long, PendingChange>>();
+				for (Map.Entry<Long, PendingChange> entry: changes) {
+					SimpleFeature current = findFeature(entry.getKey(), layer, fStore);
+					if (current == null) {
+						continue;
+					}
+					written.add(entry);
+					PendingChange change = entry.getValue();
+					if (change.isDeleted()) {
+						removed.add(current.getIdentifier());
+						continue;
+					}
+					List<Name> attrNames = new ArrayList<Name>();
+					List<Object> attrValues = new ArrayList<Object>();
+					for (Map.Entry<String, Object> attr: change.getAttributes().entrySet()) {
+						attrNames.add(featureType.getDescriptor(attr.getKey()).getName());
+						attrValues.add(attr.getValue());
+					}
+					if (change.getGeometry() != null) {
+						attrNames.add(featureType.getGeometryDescriptor().getName());
+						attrValues.add(change.getGeometry());
+					}
+					fStore.modifyFeatures(attrNames.toArray(new Name[attrNames.size()]), attrValues.toArray(), createFeatureFilter(current));
+				}
+				if (!removed.isEmpty()) {
+					fStore.removeFeatures(filterFactory.id(removed));
+				}
+				// all buffered changes are written to disk at once
+				transaction.commit();
+				layer.markWritten();
+				FeatureIdIndex index = layer.getIdIndex();
+				long[] removedIds = new long[removed.size()];
+				int removedCount = 0;
+				// features which no longer exist weren't touched, so indexes stay as they are
+				for (Map.Entry<Long, PendingChange> entry: written) {
+					PendingChange change = entry.getValue();
+					if (change.isDeleted()) {
+						removedIds[removedCount++] = entry.getKey();
+						updateSpatialIndex(layer, entry.getKey(), null);
+						updateAttributeIndexes(layer, entry.getKey(), null, true);
+						continue;
+					}
+					if (change.getGeometry() != null) {
+						updateSpatialIndex(layer, entry.getKey(), change.getGeometry());
+					}
+					if (!change.getAttributes().isEmpty()) {
+						updateAttributeIndexes(layer, entry.getKey(), change.getAttributes().keySet(), false);
+					}
+				}
+				if (index != null) {
+					index.removeAll(Arrays.copyOf(removedIds, removedCount));
+				}
+				buffer.clear();
+			} catch (IOException e) {
+				transaction.rollback();
+				logger.error("Couldn't write buffered changes of layer: " + layer.getName(), e);
+				throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+			} finally {
+				transaction.close();
+			}
+		} catch (IOException e) {
+			// Transaction rollback/close fail
+			logger.error("Couldn't write buffered changes of layer: " + layer.getName(), e);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+	
+	private synchronized void startFlusher() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "wharyo-shapefile-flush");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(flushDelay / 2, 10);
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushDue();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	private void flushDue() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, ShapefileWriteBuffer> entry: buffers.entrySet()) {
+			long pendingSince = entry.getValue().getPendingSince();
+			if (pendingSince == 0 || now - pendingSince < flushDelay) {
+				continue;
+			}
+			try {
+				flushPending(entry.getKey());
+			} catch (Exception e) {
+				// task must not die, next run tries again
+				logger.error("Couldn't write buffered changes of layer: " + entry.getKey(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Reads feature straight from memory mapped layer files, record number is taken from id index.
+	 * @param attributeNames names of attributes to decode or null for all of them
+	 * @return feature or null when it has to be looked for through data store
+	 */
+	private Feature readMappedFeature(Long id, ShapefileLayer layer, SimpleFeatureStore fStore, List<String> attributeNames, boolean withGeometry) throws IOException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		int record = getIdIndex(layer, fStore).get(id);
+		if (record <= 0) {
+			// absent or written after index was built
+			return null;
+		}
+		ShapefileMappedReader reader = layer.getMappedReader();
+		if (reader == null || record > reader.getRecordCount() || reader.isDeleted(record)) {
+			return null;
+		}
+		try {
+			int idField = reader.getFieldIndex("id");
+			long recordId = idField < 0 ? ShapefileMappedReader.NO_NUMBER : reader.readLong(record, idField);
+			if (recordId == ShapefileMappedReader.NO_NUMBER || recordId != id) {
+				// index is out of date or feature ids don't follow records (.fix file)
+				return null;
+			}
+			FeatureSchema schema = attributeNames == null ? getConverter(layer, fStore.getSchema()).getSchema()
+					: FeatureConverter.forType(fStore.getSchema(), toKeys(attributeNames)).getSchema();
+			return reader.readFeature(record, schema, reader.getFieldIndexes(schema), idField, withGeometry);
+		} catch (IndexOutOfBoundsException e) {
+			logger.warn("Broken record " + record + " of memory mapped shapefile: " + layer.getName());
+			return null;
+		}
+	}
+	
+	/**
+	 * Finds feature with given id reading only its record. Record number is taken from
+	 * id index which is built on first use and kept up to date by writes.
+	 */
+	private SimpleFeature findFeature(Long id, ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		return findFeature(id, layer, fStore, null);
+	}
+	
+	/**
+	 * @param properties names of properties to read, they have to include id, or null for all of them
+	 */
+	private SimpleFeature findFeature(Long id, ShapefileLayer layer, SimpleFeatureStore fStore, String[] properties) throws IOException, LayerConfigurationBrokenException {
+		for (int attempt = 0; attempt < 2; attempt++) {
+			FeatureIdIndex index = getIdIndex(layer, fStore);
+			int record = index.get(id);
+			if (record == FeatureIdIndex.ABSENT) {
+				return null;
+			} else if (record == FeatureIdIndex.UNRESOLVED) {
+				// written by us after index was built, its record number is assigned on commit
+				SimpleFeature feature = readFirst(fStore, createIdQuery(id, properties));
+				if (feature == null) {
+					index.remove(id);
+				} else {
+					index.put(id, getRecordNumber(feature));
+				}
+				return feature;
+			}
+			SimpleFeature feature = readFirst(fStore, createRecordQuery(record, layer, properties));
+			if (feature != null && id.equals(getFeatureId(feature))) {
+				return feature;
+			}
+			// records were renumbered, e.g. shapefile without .fix file after delete
+			logger.info("Id index is out of date, rebuilding it for layer: " + layer.getName());
+			layer.setIdIndex(null);
+		}
+		return null;
+	}
+	
+	private FeatureIdIndex getIdIndex(ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		synchronized (layer) {
+			FeatureIdIndex index = layer.getIdIndex();
+			if (index == null) {
+				index = buildIdIndex(layer, fStore);
+				layer.setIdIndex(index);
+			}
+			return index;
+		}
+	}
+	
+	private FeatureIdIndex buildIdIndex(ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		String idName = getIdAttributeName(fStore.getSchema(), layer.getName());
+		Query query = new Query(layer.getTypeName(), Filter.INCLUDE, new String[]{idName});
+		long[] ids = new long[1024];
+		int[] records = new int[1024];
+		int size = 0;
+		SimpleFeatureIterator iter = fStore.getFeatures(query).features();
+		try {
+			while (iter.hasNext()) {
+				SimpleFeature feature = iter.next();
+				Long id = getFeatureId(feature);
+				int record = getRecordNumber(feature);
+				if (id == null || record < 0) {
+					continue;
+				}
+				if (size == ids.length) {
+					long[] newIds = new long[size * 2];
+					int[] newRecords = new int[size * 2];
+					System.arraycopy(ids, 0, newIds, 0, size);
+					System.arraycopy(records, 0, newRecords, 0, size);
+					ids = newIds;
+					records = newRecords;
+				}
+				ids[size] = id;
+				records[size] = record;
+				size++;
+			}
+		} finally {
+			iter.close();
+		}
+		return FeatureIdIndex.build(ids, records, size);
+	}
+	
+	/**
+	 * Appended features take records right behind the last one, so their record numbers are known
+	 * without reading them. When number of records doesn't add up, commit renumbered records
+	 * (e.g. dropped ones marked as deleted) and index is built again on next use.
+	 * @param previousCount number of records before features were appended, -1 when it isn't known
+	 */
+	private void indexAppended(ShapefileLayer layer, SimpleFeatureStore fStore, long firstId, int count, int previousCount) {
+		FeatureIdIndex index = layer.getIdIndex();
+		if (index == null) {
+			return;
+		}
+		int recordCount = previousCount < 0 ? -1 : countRecords(layer, fStore);
+		if (recordCount < 0) {
+			// found on first read
+			for (int i = 0; i < count; i++) {
+				index.put(firstId + i, FeatureIdIndex.UNRESOLVED);
+			}
+		} else if (recordCount != previousCount + count) {
+			logger.info("Records were renumbered, id index will be rebuilt for layer: " + layer.getName());
+			layer.setIdIndex(null);
+		} else {
+			// records are numbered from 1
+			for (int i = 0; i < count; i++) {
+				index.put(firstId + i, previousCount + 1 + i);
+			}
+		}
+	}
+	
+	/**
+	 * @return number of records from file headers or -1 when data store can't tell it cheaply
+	 */
+	private int countRecords(ShapefileLayer layer, SimpleFeatureStore fStore) {
+		try {
+			return fStore.getCount(new Query(layer.getTypeName()));
+		} catch (IOException e) {
+			logger.warn("Couldn't count records of layer: " + layer.getName());
+			return -1;
+		}
+	}
+	
+	private FeatureSpatialIndex getSpatialIndex(ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		synchronized (layer) {
+			FeatureSpatialIndex spatialIndex = layer.getSpatialIndex();
+			if (spatialIndex == null || spatialIndex.needsRebuild()) {
+				spatialIndex = buildSpatialIndex(layer, fStore);
+				layer.setSpatialIndex(spatialIndex);
+			}
+			return spatialIndex;
+		}
+	}
+	
+	private FeatureSpatialIndex buildSpatialIndex(ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		SimpleFeatureType featureType = fStore.getSchema();
+		GeometryDescriptor geomDesc = featureType.getGeometryDescriptor();
+		if (geomDesc == null) {
+			logger.error("No geometry descriptor for given shapefile layer: " + layer.getName());
+			throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layer.getName(), LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+		}
+		String idName = getIdAttributeName(featureType, layer.getName());
+		Query query = new Query(layer.getTypeName(), Filter.INCLUDE, new String[]{idName, geomDesc.getLocalName()});
+		FeatureSpatialIndex.Builder builder = FeatureSpatialIndex.builder();
+		SimpleFeatureIterator iter = fStore.getFeatures(query).features();
+		try {
+			while (iter.hasNext()) {
+				SimpleFeature feature = iter.next();
+				Long id = getFeatureId(feature);
+				Geometry geom = (Geometry) feature.getDefaultGeometry();
+				if (id != null && geom != null && !geom.isEmpty()) {
+					builder.add(id, geom.getEnvelopeInternal());
+				}
+			}
+		} finally {
+			iter.close();
+		}
+		return builder.build();
+	}
+	
+	private void updateSpatialIndex(ShapefileLayer layer, long id, Geometry geometry) {
+		FeatureSpatialIndex spatialIndex = layer.getSpatialIndex();
+		if (spatialIndex == null) {
+			return;
+		} else if (geometry == null) {
+			spatialIndex.remove(id);
+		} else {
+			spatialIndex.put(id, geometry.getEnvelopeInternal());
+		}
+	}
+	
+	/**
+	 * @return ids of features which may match query filter, taken from attribute indexes,
+	 * or null when indexes can't narrow features down and layer has to be scanned
+	 */
+	private long[] findIndexedCandidates(FeatureQuery query, ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		Set<String> attributeNames = indexedAttributes.get(layer.getName());
+		if (attributeNames == null) {
+			return null;
+		}
+		Map<String, FeatureAttributeIndex> indexes = new HashMap<String, FeatureAttributeIndex>();
+		for (String name: query.getFilter().getAttributeNames()) {
+			FeatureAttributeIndex index = attributeNames.contains(name) ? getAttributeIndex(layer, fStore, name) : null;
+			if (index != null) {
+				indexes.put(name, index);
+			}
+		}
+		if (indexes.isEmpty()) {
+			return null;
+		}
+		long[] candidates = query.getFilter().accept(new AttributeIndexLookup(indexes));
+		// reading big part of layer record by record is slower than scanning it
+		if (candidates == null || (candidates.length > SMALL_CANDIDATE_COUNT && candidates.length > getIdIndex(layer, fStore).size() / 4)) {
+			return null;
+		}
+		return candidates;
+	}
+	
+	/**
+	 * Index is loaded from sidecar file on first use. Missing, out of date and outgrown
+	 * indexes are built in background.
+	 * @return index ready to use or null
+	 */
+	private FeatureAttributeIndex getAttributeIndex(ShapefileLayer layer, SimpleFeatureStore fStore, String attributeName) {
+		synchronized (layer) {
+			FeatureAttributeIndex index = layer.getAttributeIndex(attributeName);
+			if (index == null) {
+				FeatureSchema schema = getConverter(layer, fStore.getSchema()).getSchema();
+				int position = schema.indexOf(attributeName);
+				if (position < 0) {
+					// layer has no such attribute, filter fails on its own
+					return null;
+				}
+				index = FeatureAttributeIndex.load(attributeName, schema.getType(position), layer.getAttributeIndexFile(attributeName), layer.getFileState());
+				if (index != null) {
+					layer.setAttributeIndex(index);
+				}
+			}
+			if (index == null || index.needsRebuild()) {
+				scheduleIndexBuild(layer.getName());
+			}
+			return index;
+		}
+	}
+	
+	private void scheduleIndexBuild(final String layerName) {
+		if (!indexBuilds.add(layerName)) {
+			return;
+		}
+		ExecutorService executor;
+		synchronized (this) {
+			if (indexBuilder == null) {
+				indexBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "wharyo-shapefile-index");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			executor = indexBuilder;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						rebuildAttributeIndexes(layerName);
+					} catch (Exception e) {
+						logger.error("Couldn't build attribute indexes of layer: " + layerName, e);
+					} finally {
+						indexBuilds.remove(layerName);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// DAO is being disposed
+			indexBuilds.remove(layerName);
+		}
+	}
+	
+	private List<FeatureAttributeIndex> buildAttributeIndexes(ShapefileLayer layer, SimpleFeatureStore fStore, Set<String> attributeNames) throws IOException, LayerConfigurationBrokenException {
+		SimpleFeatureType featureType = fStore.getSchema();
+		FeatureSchema schema = FeatureConverter.forType(featureType, attributeNames).getSchema();
+		if (schema.size() < attributeNames.size()) {
+			logger.warn("Layer " + layer.getName() + " doesn't have all indexed attributes: " + attributeNames);
+		}
+		List<String> properties = new ArrayList<String>();
+		properties.add(getIdAttributeName(featureType, layer.getName()));
+		FeatureAttributeIndex.Builder[] builders = new FeatureAttributeIndex.Builder[schema.size()];
+		for (int i = 0; i < schema.size(); i++) {
+			String name = schema.getName(i).toLowerCase();
+			builders[i] = FeatureAttributeIndex.builder(name, schema.getType(i), layer.getAttributeIndexFile(name));
+			properties.add(schema.getName(i));
+		}
+		Query query = new Query(layer.getTypeName(), Filter.INCLUDE, properties.toArray(new String[properties.size()]));
+		SimpleFeatureIterator iter = fStore.getFeatures(query).features();
+		try {
+			while (iter.hasNext()) {
+				SimpleFeature feature = iter.next();
+				Long id = getFeatureId(feature);
+				if (id == null) {
+					continue;
+				}
+				for (int i = 0; i < builders.length; i++) {
+					builders[i].add(id, feature.getAttribute(schema.getName(i)));
+				}
+			}
+		} finally {
+			iter.close();
+		}
+		List<FeatureAttributeIndex> indexes = new ArrayList<FeatureAttributeIndex>(builders.length);
+		for (FeatureAttributeIndex.Builder builder: builders) {
+			indexes.add(builder.build());
+		}
+		return indexes;
+	}
+	
+	/**
+	 * Tells attribute indexes of layer about written feature. Indexed attributes whose index
+	 * isn't loaded can't follow the change, so their files are removed.
+	 * @param attributeNames written attributes or null when feature was created or deleted
+	 */
+	private void updateAttributeIndexes(ShapefileLayer layer, long id, Collection<String> attributeNames, boolean deleted) {
+		for (FeatureAttributeIndex index: layer.getAttributeIndexes()) {
+			if (deleted) {
+				index.remove(id);
+			} else if (attributeNames == null || containsIgnoreCase(attributeNames, index.getAttributeName())) {
+				index.put(id);
+			}
+		}
+		Set<String> declared = indexedAttributes.get(layer.getName());
+		if (declared != null) {
+			for (String name: declared) {
+				File file = layer.getAttributeIndexFile(name);
+				if (layer.getAttributeIndex(name) == null && file.exists() && !file.delete()) {
+					logger.warn("Couldn't remove attribute index file: " + file);
+				}
+			}
+		}
+	}
+	
+	private List<String> getLocalNames(List<Name> names) {
+		List<String> localNames = new ArrayList<String>(names.size());
+		for (Name name: names) {
+			localNames.add(name.getLocalPart());
+		}
+		return localNames;
+	}
+	
+	/**
+	 * Reads features with given ids. Ids with known record number are read with one fid query,
+	 * others (and those whose record number turned out to be outdated) one by one.
+	 * @param properties names of properties to read, they have to include id and properties filter uses, or null for all of them
+	 * @param filter filter data store applies together with fid filter, so records it rejects aren't decoded, or null
+	 */
+	private List<SimpleFeature> readFeatures(long[] ids, ShapefileLayer layer, SimpleFeatureStore fStore, String[] properties, Filter filter) throws IOException, LayerConfigurationBrokenException {
+		List<SimpleFeature> features = new ArrayList<SimpleFeature>(ids.length);
+		if (ids.length == 0) {
+			return features;
+		}
+		FeatureIdIndex index = getIdIndex(layer, fStore);
+		Map<Integer, Long> expected = new HashMap<Integer, Long>();
+		Set<FeatureId> fids = new HashSet<FeatureId>();
+		List<Long> remaining = new ArrayList<Long>();
+		for (long id: ids) {
+			int record = index.get(id);
+			if (record >= 0) {
+				expected.put(record, id);
+				fids.add(filterFactory.featureId(layer.getTypeName() + "." + record));
+			} else if (record == FeatureIdIndex.UNRESOLVED) {
+				remaining.add(id);
+			}
+		}
+		if (!fids.isEmpty()) {
+			Filter idFilter = filterFactory.id(fids);
+			Query query = new Query(layer.getTypeName(), filter == null ? idFilter : filterFactory.and(idFilter, filter));
+			if (properties != null) {
+				query.setPropertyNames(properties);
+			}
+			boolean outdated = false;
+			SimpleFeatureIterator iter = fStore.getFeatures(query).features();
+			try {
+				while (iter.hasNext()) {
+					SimpleFeature feature = iter.next();
+					Long id = expected.remove(getRecordNumber(feature));
+					if (id != null && id.equals(getFeatureId(feature))) {
+						features.add(feature);
+					} else if (id != null) {
+						remaining.add(id);
+						outdated = true;
+					}
+				}
+			} finally {
+				iter.close();
+			}
+			// records which weren't found at all were renumbered as well, unless filter left them out
+			for (Map.Entry<Integer, Long> entry: expected.entrySet()) {
+				if (filter == null || outdated || !index.isCurrent(entry.getKey())) {
+					remaining.add(entry.getValue());
+				}
+			}
+		}
+		for (Long id: remaining) {
+			SimpleFeature feature = findFeature(id, layer, fStore, properties);
+			if (feature != null && (filter == null || filter.evaluate(feature))) {
+				features.add(feature);
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * Reads features with given ids in batches, layer read lock is held only while batch is read.
+	 * Features written between batches are read as they are after the write, deleted ones are skipped.
+	 * @param properties names of properties to read, they have to include id and properties filter uses, or null for all of them
+	 * @param filter filter features have to match or null
+	 */
+	private FeatureIterator<SimpleFeature> readBatches(final long[] ids, final ShapefileLayer layer, final String[] properties, final Filter filter) {
+		return new BatchFeatureIterator() {
+			private int position;
+			
+			protected List<SimpleFeature> readBatch() throws IOException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+				if (position >= ids.length) {
+					return null;
+				}
+				// changes owner of the cursor buffered since previous batch
+				flushPending(layer.getName());
+				Lock lock = locks.lockRead(layer.getName());
+				try {
+					long[] batch = Arrays.copyOfRange(ids, position, Math.min(ids.length, position + CURSOR_BATCH_SIZE));
+					position += batch.length;
+					return readFeatures(batch, layer, createFeatureStore(layer), properties, filter);
+				} finally {
+					lock.unlock();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Reads all records of the layer in file order, in one pass of data store iterator. Layer read
+	 * lock is held only while batch is read. Iterator stays open between batches until layer is
+	 * written; then it's opened again and records read so far are skipped: up to the last feature
+	 * read or, when it's gone, up to its record number. Records are read whatever their id is.
+	 * @param properties names of properties to read, they have to include id, or null for all of them
+	 * @param filter filter data store applies while reading, so records it rejects aren't decoded, or null
+	 */
+	private FeatureIterator<SimpleFeature> readRecords(final ShapefileLayer layer, final String[] properties, final Filter filter) {
+		return new BatchFeatureIterator() {
+			private SimpleFeatureIterator iter;
+			private long writes;
+			private int lastRecord;
+			private Long lastId;
+			/** Read while skipping records after iterator was opened again, not returned yet. */
+			private SimpleFeature pending;
+			
+			protected List<SimpleFeature> readBatch() throws IOException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+				// changes owner of the cursor buffered since previous batch
+				flushPending(layer.getName());
+				Lock lock = locks.lockRead(layer.getName());
+				try {
+					if (iter != null && (layer.getWrites() != writes || layer.isModifiedOnDisk())) {
+						// files were replaced, iterator reads what was there before
+						closeIterator();
+					}
+					if (iter == null) {
+						openIterator();
+					}
+					List<SimpleFeature> batch = new ArrayList<SimpleFeature>();
+					if (pending != null) {
+						batch.add(pending);
+						pending = null;
+					}
+					while (batch.size() < CURSOR_BATCH_SIZE && iter.hasNext()) {
+						batch.add(iter.next());
+					}
+					if (batch.isEmpty()) {
+						closeIterator();
+						return null;
+					}
+					SimpleFeature last = batch.get(batch.size() - 1);
+					lastRecord = getRecordNumber(last);
+					lastId = getFeatureId(last);
+					return batch;
+				} finally {
+					lock.unlock();
+				}
+			}
+			
+			public void close() {
+				super.close();
+				closeIterator();
+			}
+			
+			private void openIterator() throws IOException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+				writes = layer.getWrites();
+				Query query = new Query(layer.getTypeName(), filter == null ? Filter.INCLUDE : filter);
+				if (properties != null) {
+					query.setPropertyNames(properties);
+				}
+				iter = createFeatureStore(layer).getFeatures(query).features();
+				if (lastRecord == 0) {
+					return;
+				}
+				// records are rewritten in place or dropped, so last feature read can only move towards the start
+				while (iter.hasNext()) {
+					SimpleFeature feature = iter.next();
+					if (lastId != null && lastId.equals(getFeatureId(feature))) {
+						return;
+					} else if (getRecordNumber(feature) > lastRecord) {
+						pending = feature;
+						return;
+					}
+				}
+			}
+			
+			private void closeIterator() {
+				pending = null;
+				if (iter != null) {
+					iter.close();
+					iter = null;
+				}
+			}
+		};
+	}
+	
+	private Long allocateId(ShapefileLayer layer, SimpleFeatureStore fStore) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		try {
+			return getIdSequence(layer, fStore).next();
+		} catch (IOException e) {
+			logger.error("Couldn't allocate feature id for layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+	
+	private long allocateIds(ShapefileLayer layer, SimpleFeatureStore fStore, int count) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		try {
+			return getIdSequence(layer, fStore).next(count);
+		} catch (IOException e) {
+			logger.error("Couldn't allocate feature ids for layer: " + layer.getName());
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+	
+	/**
+	 * Sequence is seeded once per open layer with the highest id from id index,
+	 * so inserts don't have to look for current maximum.
+	 */
+	private IdSequence getIdSequence(ShapefileLayer layer, SimpleFeatureStore fStore) throws IOException, LayerConfigurationBrokenException {
+		synchronized (layer) {
+			IdSequence sequence = layer.getIdSequence();
+			if (sequence == null) {
+				FeatureIdIndex index = getIdIndex(layer, fStore);
+				sequence = new IdSequence(index.getHighestId(), persistIdSequence ? layer.getSequenceFile() : null);
+				layer.setIdSequence(sequence);
+			}
+			return sequence;
+		}
+	}
+	
+	private SimpleFeature readFirst(SimpleFeatureStore fStore, Query query) throws IOException {
+		SimpleFeatureIterator iter = fStore.getFeatures(query).features();
+		try {
+			if (iter.hasNext()) {
+				return iter.next();
+			}
+			return null;
+		} finally {
+			iter.close();
+		}
+	}
+	
+	private Filter createFeatureFilter(SimpleFeature feature) {
+		return filterFactory.id(Collections.singleton(feature.getIdentifier()));
+	}
+	
+	private void markFailed(BatchResult result, List<Integer> positions, String reason) {
+		for (Integer i: positions) {
+			result.failure(i, reason);
+		}
+	}
+	
+	private Query createRecordQuery(int record, ShapefileLayer layer, String[] properties) {
+		Set<FeatureId> fids = Collections.singleton(filterFactory.featureId(layer.getTypeName() + "." + record));
+		Query query = new Query(layer.getTypeName(), filterFactory.id(fids));
+		query.setMaxFeatures(1);
+		if (properties != null) {
+			query.setPropertyNames(properties);
+		}
+		return query;
+	}
+	
+	/**
+	 * Shapefile feature ids are made of type name and record number, e.g. <i>parcels.12</i>.
+	 */
+	private int getRecordNumber(SimpleFeature feature) {
+		String fid = feature.getID();
+		try {
+			return Integer.parseInt(fid.substring(fid.lastIndexOf('.') + 1));
+		} catch (NumberFormatException e) {
+			logger.warn("Unexpected shapefile feature id: " + fid);
+			return -1;
+		}
+	}
+	
+	private Long getFeatureId(SimpleFeature feature) {
+		for (Property prop: feature.getProperties()) {
+			if (prop.getName().getLocalPart().equalsIgnoreCase("id")) {
+				return prop.getValue() instanceof Number ? ((Number) prop.getValue()).longValue() : null;
+			}
+		}
+		return null;
+	}
+	
+	private String getIdAttributeName(SimpleFeatureType featureType, String layerName) throws LayerConfigurationBrokenException {
+		for (AttributeDescriptor attrDesc: featureType.getAttributeDescriptors()) {
+			if (attrDesc.getLocalName().equalsIgnoreCase("id")) {
+				return attrDesc.getLocalName();
+			}
+		}
+		logger.error("No id filed found for shapefile: " + layerName);
+		throw new LayerConfigurationBrokenException("Coulnd't find proper id field in shapefile " + layerName, LayerConfigurationBrokenException.Reason.INVALID_ID_FIELD);
+	}
+	
+	/**
+	 * Bbox and attribute filter are passed to shapefile reader, so skipped records are not even parsed.
+	 * @return filter or null when query has neither bbox nor attribute filter
+	 */
+	private Filter createFilter(FeatureQuery query, ShapefileLayer layer, SimpleFeatureType featureType) throws LayerConfigurationBrokenException {
+		Filter filter = null;
+		if (query.getBBox() != null) {
+			GeometryDescriptor geomDesc = featureType.getGeometryDescriptor();
+			if (geomDesc == null) {
+				logger.error("No geometry descriptor for given shapefile layer: " + layer.getName());
+				throw new LayerConfigurationBrokenException("Could not obtain geometry description for given layer: " + layer.getName(), LayerConfigurationBrokenException.Reason.NO_GEOMETRY_METADATA);
+			}
+			Envelope bbox = query.getBBox();
+			filter = filterFactory.bbox(filterFactory.property(geomDesc.getLocalName()), bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY(), null);
+		}
+		if (query.getFilter() != null) {
+			Filter attributeFilter = query.getFilter().accept(new GeoToolsFilterBuilder(filterFactory, featureType));
+			filter = filter == null ? attributeFilter : filterFactory.and(filter, attributeFilter);
+		}
+		return filter;
+	}
+	
+	/**
+	 * Properties cursor needs: requested attributes, attributes filter uses and geometry
+	 * when it is requested or bbox is checked. Features whose record number turned out
+	 * to be outdated are read one by one and checked against filter after they are read.
+	 */
+	private String[] getCursorProperties(FeatureQuery query, SimpleFeatureType featureType) {
+		List<String> names = query.getAttributeNames();
+		if (names != null && query.getFilter() != null) {
+			names = new ArrayList<String>(names);
+			names.addAll(query.getFilter().getAttributeNames());
+		}
+		return getPropertyNames(featureType, names, query.isWithGeometry() || query.getBBox() != null);
+	}
+	
+	/**
+	 * Id is always read.
+	 * @param attributeNames names of attributes to read or null for all of them
+	 * @return names of properties to read or null when all of them are read
+	 */
+	private String[] getPropertyNames(SimpleFeatureType featureType, List<String> attributeNames, boolean withGeometry) {
+		if (attributeNames == null && withGeometry) {
+			return null;
+		}
+		List<String> properties = new ArrayList<String>();
+		for (AttributeDescriptor attrDesc: featureType.getAttributeDescriptors()) {
+			String name = attrDesc.getLocalName();
+			if (attrDesc instanceof GeometryDescriptor) {
+				if (withGeometry) {
+					properties.add(name);
+				}
+			} else if (name.equalsIgnoreCase("id") || attributeNames == null || containsIgnoreCase(attributeNames, name)) {
+				properties.add(name);
+			}
+		}
+		return properties.toArray(new String[properties.size()]);
+	}
+	
+	private boolean containsIgnoreCase(Collection<String> names, String name) {
+		for (String n: names) {
+			if (name.equalsIgnoreCase(n)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Schema of features read by query, same one GeoTools reader would give.
+	 */
+	private FeatureSchema createSchema(FeatureQuery query, SimpleFeatureType featureType) {
+		return FeatureConverter.forType(featureType, toKeys(query.getAttributeNames())).getSchema();
+	}
+	
+	/**
+	 * @return lower case names or null when names are null
+	 */
+	private Set<String> toKeys(List<String> names) {
+		if (names == null) {
+			return null;
+		}
+		Set<String> keys = new HashSet<String>();
+		for (String name: names) {
+			keys.add(name.toLowerCase());
+		}
+		return keys;
+	}
+	
+	private Feature toFeature(SimpleFeature sFeature, ShapefileLayer layer) throws UnsupportedAttributeType {
+		return getConverter(layer, sFeature.getFeatureType()).toFeature(sFeature);
+	}
+	
+	private FeatureWritePlan getWritePlan(ShapefileLayer layer, SimpleFeatureType featureType) {
+		FeatureWritePlan plan = layer.getWritePlan();
+		if (plan == null || !plan.supports(featureType)) {
+			plan = FeatureWritePlan.forType(featureType);
+			layer.setWritePlan(plan);
+		}
+		return plan;
+	}
+	
+	private FeatureConverter getConverter(ShapefileLayer layer, SimpleFeatureType featureType) {
+		FeatureConverter converter = layer.getConverter();
+		if (converter == null || !converter.supports(featureType)) {
+			converter = FeatureConverter.forType(featureType, null);
+			layer.setConverter(converter);
+		}
+		return converter;
+	}
+	
+	private Query createIdQuery(Long id, String[] properties) {
+		Query query = new Query();
+		query.setFilter(idFilter(id));
+		query.setMaxFeatures(1);
+		if (properties != null) {
+			query.setPropertyNames(properties);
+		}
+		return query;
+	}
+	
+	/**
+	 * Built by filter factory, so nothing is parsed per call.
+	 */
+	private Filter idFilter(Long id) {
+		return filterFactory.equals(filterFactory.property("id"), filterFactory.literal(id));
 	}
 }
@@ -0,0 +1,255 @@
+package pl.wharyo.dao.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.DataStore;
+
+/**
+ * Open shapefile layer kept by {@link ShapefileLayerRegistry}. Holds the long-lived
+ * {@link DataStore} together with the on-disk state it was opened against.
+ */
+class ShapefileLayer {
+
+	private static final Logger logger = Logger.getLogger(ShapefileLayer.class);
+
+	private final String name;
+	private final DataStore dataStore;
+	private final String typeName;
+	private final File shpFile;
+	private final File dbfFile;
+
+	private long shpModified;
+	private long shpLength;
+	private long dbfModified;
+	private long dbfLength;
+	private long writes;
+
+	private FeatureIdIndex idIndex;
+	private IdSequence idSequence;
+	private FeatureSpatialIndex spatialIndex;
+	private final ConcurrentMap<String, FeatureAttributeIndex> attributeIndexes = new ConcurrentHashMap<String, FeatureAttributeIndex>();
+	private volatile FeatureConverter converter;
+	private volatile FeatureWritePlan writePlan;
+	private ShapefileMappedReader mappedReader;
+	private boolean mappingUnavailable;
+
+	private volatile long lastAccess;
+	private volatile long lastModificationCheck;
+	private int references;
+	private boolean evicted;
+
+	ShapefileLayer(String name, DataStore dataStore, String typeName, File shpFile, File dbfFile) {
+		this.name = name;
+		this.dataStore = dataStore;
+		this.typeName = typeName;
+		this.shpFile = shpFile;
+		this.dbfFile = dbfFile;
+		this.lastAccess = System.currentTimeMillis();
+		this.lastModificationCheck = lastAccess;
+		markWritten();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	DataStore getDataStore() {
+		return dataStore;
+	}
+
+	String getTypeName() {
+		return typeName;
+	}
+
+	/**
+	 * @return index of feature ids or null when it wasn't built yet
+	 */
+	synchronized FeatureIdIndex getIdIndex() {
+		return idIndex;
+	}
+
+	synchronized void setIdIndex(FeatureIdIndex idIndex) {
+		this.idIndex = idIndex;
+	}
+
+	synchronized IdSequence getIdSequence() {
+		return idSequence;
+	}
+
+	synchronized void setIdSequence(IdSequence idSequence) {
+		this.idSequence = idSequence;
+	}
+
+	/**
+	 * @return spatial index or null when it wasn't built yet or was dropped to be rebuilt
+	 */
+	synchronized FeatureSpatialIndex getSpatialIndex() {
+		return spatialIndex;
+	}
+
+	synchronized void setSpatialIndex(FeatureSpatialIndex spatialIndex) {
+		this.spatialIndex = spatialIndex;
+	}
+
+	/**
+	 * @param attributeName lower case attribute name
+	 * @return index of attribute or null when it wasn't loaded or built yet
+	 */
+	FeatureAttributeIndex getAttributeIndex(String attributeName) {
+		return attributeIndexes.get(attributeName);
+	}
+
+	Collection<FeatureAttributeIndex> getAttributeIndexes() {
+		return attributeIndexes.values();
+	}
+
+	void setAttributeIndex(FeatureAttributeIndex index) {
+		attributeIndexes.put(index.getAttributeName(), index);
+	}
+
+	/**
+	 * @return converter for features of whole layer, so they share one schema, or null
+	 */
+	FeatureConverter getConverter() {
+		return converter;
+	}
+
+	void setConverter(FeatureConverter converter) {
+		this.converter = converter;
+	}
+
+	/**
+	 * @return plan of writes to layer, reused while feature type doesn't change, or null
+	 */
+	FeatureWritePlan getWritePlan() {
+		return writePlan;
+	}
+
+	void setWritePlan(FeatureWritePlan writePlan) {
+		this.writePlan = writePlan;
+	}
+
+	/**
+	 * Maps layer files on first use, mapping is dropped when layer is written.
+	 * @return reader or null when layer can't be memory mapped
+	 */
+	synchronized ShapefileMappedReader getMappedReader() throws IOException {
+		if (mappedReader == null && !mappingUnavailable) {
+			mappedReader = ShapefileMappedReader.open(shpFile, dbfFile);
+			mappingUnavailable = mappedReader == null;
+		}
+		return mappedReader;
+	}
+
+	File getSequenceFile() {
+		String path = shpFile.getPath();
+		return new File(path.substring(0, path.length() - ".shp".length()) + ".seq");
+	}
+
+	File getAttributeIndexFile(String attributeName) {
+		String path = shpFile.getPath();
+		return new File(path.substring(0, path.length() - ".shp".length()) + "." + attributeName + ".idx");
+	}
+
+	/**
+	 * @return state of files remembered by last {@link #markWritten()}, indexes saved to disk are bound to it
+	 */
+	synchronized long[] getFileState() {
+		return new long[] { shpModified, shpLength, dbfModified, dbfLength };
+	}
+
+	/**
+	 * Remembers current state of files on disk. Must be called after every commit
+	 * done through this layer, otherwise our own writes are taken as external changes.
+	 */
+	synchronized void markWritten() {
+		shpModified = shpFile.lastModified();
+		shpLength = shpFile.length();
+		dbfModified = dbfFile.lastModified();
+		dbfLength = dbfFile.length();
+		writes++;
+		// files were replaced, mapping shows old content
+		mappedReader = null;
+		mappingUnavailable = false;
+	}
+
+	/**
+	 * @return number of commits done through this layer, readers holding files open compare it
+	 * to tell whether files were replaced since they opened them
+	 */
+	synchronized long getWrites() {
+		return writes;
+	}
+
+	synchronized boolean isModifiedOnDisk() {
+		return shpModified != shpFile.lastModified() || shpLength != shpFile.length()
+				|| dbfModified != dbfFile.lastModified() || dbfLength != dbfFile.length();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	void touch(long now) {
+		lastAccess = now;
+	}
+
+	long getLastModificationCheck() {
+		return lastModificationCheck;
+	}
+
+	void setLastModificationCheck(long lastModificationCheck) {
+		this.lastModificationCheck = lastModificationCheck;
+	}
+
+	// reference counting is guarded by registry lock
+
+	int getReferences() {
+		return references;
+	}
+
+	void retain() {
+		references++;
+	}
+
+	void release() {
+		references--;
+	}
+
+	boolean isEvicted() {
+		return evicted;
+	}
+
+	void setEvicted(boolean evicted) {
+		this.evicted = evicted;
+	}
+
+	/**
+	 * Saves attribute indexes changed since they were loaded, then closes data store.
+	 */
+	void dispose() {
+		for (FeatureAttributeIndex index: attributeIndexes.values()) {
+			if (!index.isSaved()) {
+				try {
+					index.save(getFileState());
+				} catch (IOException e) {
+					logger.warn("Couldn't save attribute index " + index.getAttributeName() + " of layer: " + name, e);
+				}
+			}
+		}
+		IdSequence sequence = getIdSequence();
+		if (sequence != null) {
+			try {
+				sequence.close();
+			} catch (IOException e) {
+				logger.warn("Couldn't store id sequence of layer: " + name, e);
+			}
+		}
+		dataStore.dispose();
+	}
+}
@@ -0,0 +1,229 @@
+package pl.wharyo.dao.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
+
+/**
+ * Keeps shapefile data stores open between calls. Number of open layers is bounded,
+ * least recently used and idle layers are disposed, idle ones are looked for whenever
+ * layer is acquired or released. Layer is reopened when its files have been changed
+ * by somebody else.
+ */
+class ShapefileLayerRegistry {
+
+	static final int DEFAULT_MAX_OPEN_LAYERS = 32;
+	static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+	static final long DEFAULT_MODIFICATION_CHECK_INTERVAL = 1000L;
+
+	private static final Logger logger = Logger.getLogger(ShapefileLayerRegistry.class);
+
+	private final String shpHome;
+	private final int maxOpenLayers;
+	private final long idleTimeout;
+	private volatile long modificationCheckInterval = DEFAULT_MODIFICATION_CHECK_INTERVAL;
+	// access ordered, eldest entry is least recently used one
+	private final LinkedHashMap<String, ShapefileLayer> layers = new LinkedHashMap<String, ShapefileLayer>(16, 0.75f, true);
+
+	ShapefileLayerRegistry(String shpHome, int maxOpenLayers, long idleTimeout) {
+		if (maxOpenLayers < 1) {
+			throw new IllegalArgumentException("Max open layers must be greater than 0");
+		}
+		this.shpHome = shpHome;
+		this.maxOpenLayers = maxOpenLayers;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @param modificationCheckInterval how often (ms) files of open layer are checked for changes, 0 checks on every acquire
+	 */
+	void setModificationCheckInterval(long modificationCheckInterval) {
+		if (modificationCheckInterval < 0) {
+			throw new IllegalArgumentException("Modification check interval cannot be negative");
+		}
+		this.modificationCheckInterval = modificationCheckInterval;
+	}
+
+	/**
+	 * Returns open layer with given name. Every acquired layer has to be given back with {@link #release(ShapefileLayer)}.
+	 */
+	ShapefileLayer acquire(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		long now = System.currentTimeMillis();
+		List<ShapefileLayer> toDispose = new ArrayList<ShapefileLayer>();
+		try {
+			synchronized (this) {
+				ShapefileLayer layer = layers.get(layerName);
+				if (layer != null && now - layer.getLastModificationCheck() >= modificationCheckInterval) {
+					layer.setLastModificationCheck(now);
+					if (layer.isModifiedOnDisk()) {
+						logger.info("Shapefile changed on disk, reopening layer: " + layerName);
+						layers.remove(layerName);
+						addIfDisposable(evict(layer), toDispose);
+						layer = null;
+					}
+				}
+				if (layer != null) {
+					layer.retain();
+					layer.touch(now);
+					evictExcessive(now, toDispose);
+					return layer;
+				}
+			}
+		} finally {
+			dispose(toDispose);
+		}
+
+		// opening is slow, other layers shouldn't wait for it
+		ShapefileLayer opened = open(layerName);
+		try {
+			synchronized (this) {
+				ShapefileLayer result = layers.get(layerName);
+				if (result != null) {
+					toDispose.add(opened);
+				} else {
+					layers.put(layerName, opened);
+					result = opened;
+				}
+				result.retain();
+				result.touch(now);
+				evictExcessive(now, toDispose);
+				return result;
+			}
+		} finally {
+			dispose(toDispose);
+		}
+	}
+
+	void release(ShapefileLayer layer) {
+		long now = System.currentTimeMillis();
+		List<ShapefileLayer> toDispose = new ArrayList<ShapefileLayer>();
+		synchronized (this) {
+			layer.release();
+			if (layer.isEvicted()) {
+				if (layer.getReferences() == 0) {
+					toDispose.add(layer);
+				}
+			} else {
+				// it was used until now
+				layer.touch(now);
+			}
+			// layers nobody asks for anymore are closed too
+			evictExcessive(now, toDispose);
+		}
+		dispose(toDispose);
+	}
+
+	/**
+	 * Forgets given layer, data store will be disposed as soon as nobody uses it.
+	 */
+	void invalidate(String layerName) {
+		List<ShapefileLayer> toDispose = new ArrayList<ShapefileLayer>();
+		synchronized (this) {
+			ShapefileLayer layer = layers.remove(layerName);
+			if (layer != null) {
+				addIfDisposable(evict(layer), toDispose);
+			}
+		}
+		dispose(toDispose);
+	}
+
+	void clear() {
+		List<ShapefileLayer> toDispose = new ArrayList<ShapefileLayer>();
+		synchronized (this) {
+			for (ShapefileLayer layer: layers.values()) {
+				addIfDisposable(evict(layer), toDispose);
+			}
+			layers.clear();
+		}
+		dispose(toDispose);
+	}
+
+	synchronized int size() {
+		return layers.size();
+	}
+
+	private void evictExcessive(long now, List<ShapefileLayer> toDispose) {
+		Iterator<ShapefileLayer> iter = layers.values().iterator();
+		while (iter.hasNext()) {
+			ShapefileLayer layer = iter.next();
+			boolean idle = now - layer.getLastAccess() > idleTimeout;
+			if ((layers.size() > maxOpenLayers || idle) && layer.getReferences() == 0) {
+				iter.remove();
+				addIfDisposable(evict(layer), toDispose);
+			}
+		}
+	}
+
+	/**
+	 * Marks layer as evicted and returns it when it can be disposed right away.
+	 */
+	private ShapefileLayer evict(ShapefileLayer layer) {
+		layer.setEvicted(true);
+		if (layer.getReferences() == 0) {
+			return layer;
+		}
+		return null;
+	}
+
+	private void addIfDisposable(ShapefileLayer layer, List<ShapefileLayer> toDispose) {
+		if (layer != null) {
+			toDispose.add(layer);
+		}
+	}
+
+	private void dispose(List<ShapefileLayer> toDispose) {
+		for (ShapefileLayer layer: toDispose) {
+			layer.dispose();
+		}
+		toDispose.clear();
+	}
+
+	private ShapefileLayer open(String layerName) throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		StringBuilder builder = new StringBuilder(shpHome);
+		builder.append(File.separator).append(layerName).append(File.separator).append(layerName);
+		File shpFile = new File(builder.toString() + ".shp");
+		File dbfFile = new File(builder.toString() + ".dbf");
+		if (!shpFile.isFile()) {
+			logger.error("Shapefile with given name cannnot be found: " + layerName);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+		DataStore dStore = null;
+		try {
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("url", shpFile.toURI().toURL());
+			dStore = DataStoreFinder.getDataStore(params);
+			if (dStore == null) {
+				throw new IOException("No data store found for: " + shpFile);
+			}
+			String[] typeNames = dStore.getTypeNames();
+			if (typeNames == null || typeNames.length == 0) {
+				dStore.dispose();
+				logger.error("Wrong typeName configuration for given shapefile: " + layerName);
+				throw new LayerConfigurationBrokenException("Coulnd't find any typeNames for shapefile " + layerName, LayerConfigurationBrokenException.Reason.NO_ATTRIBUTE_METADATA);
+			}
+			return new ShapefileLayer(layerName, dStore, typeNames[0], shpFile, dbfFile);
+		} catch (MalformedURLException e) {
+			logger.error("Shapefile with given name cannnot be found: " + layerName);
+			throw new IllegalArgumentException("Coulnd't create URL with given layerName parameter: " + layerName);
+		} catch (IOException e) {
+			if (dStore != null) {
+				dStore.dispose();
+			}
+			logger.error("Couldn't connect to given layer: " + layerName);
+			throw new LayerDataSourceNotAvailableException("Coulnd't connect to layer datasource", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+		}
+	}
+}
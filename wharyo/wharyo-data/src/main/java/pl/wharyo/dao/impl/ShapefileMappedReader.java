@@ -0,0 +1,549 @@
+package pl.wharyo.dao.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.FeatureSchema;
+
+/**
+ * Read-only view of shapefile mapped into memory. Record is found through its offset
+ * in .shx file and its geometry and attributes are decoded straight from mapped .shp
+ * and .dbf files, nothing else is read. Mapped pages live in OS page cache, so all
+ * threads reading the layer share them.
+ * <p>
+ * Values are decoded the same way GeoTools does it, so features read here are equal to
+ * ones read through data store. Only 2D shape types are supported, layer of other type
+ * can't be opened and has to be read through data store.
+ * <p>
+ * Reader only reads buffers at absolute positions, so it can be used by many threads.
+ * Mapping is valid until the files are replaced, reader must be dropped after every write.
+ */
+class ShapefileMappedReader {
+
+	private static final Logger logger = Logger.getLogger(ShapefileMappedReader.class);
+	private static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+	private static final int HEADER_LENGTH = 100;
+	private static final int NULL_SHAPE = 0;
+	private static final int POINT = 1;
+	private static final int POLYLINE = 3;
+	private static final int POLYGON = 5;
+	private static final int MULTIPOINT = 8;
+	/** Returned by {@link #readLong(int, int)} for empty value, whole number fields are too short to hold it. */
+	static final long NO_NUMBER = Long.MIN_VALUE;
+
+	private final ByteBuffer shp;
+	private final ByteBuffer shx;
+	private final ByteBuffer dbf;
+	private final int recordCount;
+	private final int dbfHeaderLength;
+	private final int dbfRecordLength;
+	private final int dbfRecordCount;
+	private final String[] fieldNames;
+	private final char[] fieldTypes;
+	private final int[] fieldOffsets;
+	private final int[] fieldLengths;
+	private final int[] fieldDecimals;
+	private final Charset charset;
+	private final GeometryFactory geomFactory = new GeometryFactory();
+
+	private ShapefileMappedReader(ByteBuffer shp, ByteBuffer shx, ByteBuffer dbf, Charset charset) {
+		this.shp = shp.order(ByteOrder.LITTLE_ENDIAN);
+		this.shx = shx.order(ByteOrder.BIG_ENDIAN);
+		this.dbf = dbf.order(ByteOrder.LITTLE_ENDIAN);
+		this.charset = charset;
+		this.recordCount = (shx.limit() - HEADER_LENGTH) / 8;
+		this.dbfRecordCount = dbf.getInt(4);
+		this.dbfHeaderLength = dbf.getShort(8) & 0xffff;
+		this.dbfRecordLength = dbf.getShort(10) & 0xffff;
+		List<String> names = new ArrayList<String>();
+		List<Integer> descriptors = new ArrayList<Integer>();
+		for (int position = 32; position + 32 <= dbfHeaderLength && dbf.get(position) != 0x0d; position += 32) {
+			names.add(readName(dbf, position));
+			descriptors.add(position);
+		}
+		int count = names.size();
+		this.fieldNames = names.toArray(new String[count]);
+		this.fieldTypes = new char[count];
+		this.fieldOffsets = new int[count];
+		this.fieldLengths = new int[count];
+		this.fieldDecimals = new int[count];
+		// first byte of every record is its deletion flag
+		int offset = 1;
+		for (int i = 0; i < count; i++) {
+			int position = descriptors.get(i);
+			fieldTypes[i] = Character.toUpperCase((char) dbf.get(position + 11));
+			fieldOffsets[i] = offset;
+			fieldLengths[i] = dbf.get(position + 16) & 0xff;
+			fieldDecimals[i] = dbf.get(position + 17) & 0xff;
+			offset += fieldLengths[i];
+		}
+	}
+
+	/**
+	 * @return reader or null when layer can't be read this way, e.g. it has no .shx file,
+	 * it is too big to be mapped as a whole or its shape type is not supported
+	 */
+	static ShapefileMappedReader open(File shpFile, File dbfFile) throws IOException {
+		String base = shpFile.getPath().substring(0, shpFile.getPath().length() - ".shp".length());
+		File shxFile = new File(base + ".shx");
+		if (!shxFile.isFile() || !dbfFile.isFile()) {
+			logger.info("Shapefile has no .shx or .dbf file, it can't be memory mapped: " + shpFile);
+			return null;
+		} else if (shpFile.length() > Integer.MAX_VALUE || dbfFile.length() > Integer.MAX_VALUE) {
+			logger.info("Shapefile is too big to be memory mapped: " + shpFile);
+			return null;
+		}
+		ByteBuffer shp = map(shpFile);
+		int shapeType = shp.order(ByteOrder.LITTLE_ENDIAN).getInt(32);
+		if (shapeType != NULL_SHAPE && shapeType != POINT && shapeType != POLYLINE && shapeType != POLYGON && shapeType != MULTIPOINT) {
+			logger.info("Shape type " + shapeType + " can't be read from memory mapped shapefile: " + shpFile);
+			return null;
+		}
+		return new ShapefileMappedReader(shp, map(shxFile), map(dbfFile), readCharset(new File(base + ".cpg")));
+	}
+
+	/**
+	 * @return number of records, including deleted ones
+	 */
+	int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param record record number, starting from 1 like in shapefile feature ids
+	 */
+	boolean isDeleted(int record) {
+		return record > dbfRecordCount || dbf.get(dbfRecordStart(record)) == '*';
+	}
+
+	/**
+	 * Checks envelope stored in record header, geometry itself isn't decoded.
+	 */
+	boolean intersects(int record, Envelope bbox) {
+		int content = contentStart(record);
+		int shapeType = shp.getInt(content);
+		if (shapeType == NULL_SHAPE) {
+			return false;
+		} else if (shapeType == POINT) {
+			return bbox.intersects(shp.getDouble(content + 4), shp.getDouble(content + 12));
+		}
+		return bbox.intersects(new Envelope(shp.getDouble(content + 4), shp.getDouble(content + 20), shp.getDouble(content + 12), shp.getDouble(content + 28)));
+	}
+
+	/**
+	 * @return position of field with given name, case insensitive, or -1
+	 */
+	int getFieldIndex(String name) {
+		for (int i = 0; i < fieldNames.length; i++) {
+			if (fieldNames[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return positions of fields holding attributes of given schema
+	 */
+	int[] getFieldIndexes(FeatureSchema schema) {
+		int[] fields = new int[schema.size()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = getFieldIndex(schema.getName(i));
+		}
+		return fields;
+	}
+
+	/**
+	 * @param fields positions of fields for schema attributes, see {@link #getFieldIndexes(FeatureSchema)}
+	 * @param idField position of id field or -1
+	 * @param withGeometry false when shape shouldn't be decoded
+	 */
+	Feature readFeature(int record, FeatureSchema schema, int[] fields, int idField, boolean withGeometry) throws UnsupportedAttributeType {
+		Feature feature = readValues(record, schema, fields);
+		if (idField >= 0) {
+			long id = readLong(record, idField);
+			feature.setId(id == NO_NUMBER ? null : id);
+		}
+		if (withGeometry) {
+			feature.setGeom(readGeometry(record));
+		}
+		return feature;
+	}
+
+	/**
+	 * Reads only attribute values, without id and geometry.
+	 */
+	Feature readValues(int record, FeatureSchema schema, int[] fields) throws UnsupportedAttributeType {
+		Feature feature = new Feature(schema);
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] >= 0) {
+				readValue(feature, i, record, fields[i]);
+			}
+		}
+		return feature;
+	}
+
+	/**
+	 * Decodes numbers and logical values straight into typed setters of feature, so no
+	 * wrapper is created for them. Other values go through {@link #readField(int, int)}.
+	 */
+	private void readValue(Feature feature, int position, int record, int field) throws UnsupportedAttributeType {
+		int start = dbfRecordStart(record) + fieldOffsets[field];
+		int length = fieldLengths[field];
+		char fieldType = fieldTypes[field];
+		switch (feature.getSchema().getType(position)) {
+		case LONG:
+			if (isWholeNumber(field)) {
+				long value = readWholeNumber(start, length);
+				if (value != NO_NUMBER) {
+					feature.setLong(position, value);
+				}
+				return;
+			}
+			break;
+		case DOUBLE:
+			if ((fieldType == 'N' || fieldType == 'F') && !isWholeNumber(field)) {
+				String number = readText(start, length);
+				try {
+					if (number.length() > 0) {
+						feature.setDouble(position, Double.parseDouble(number));
+					}
+				} catch (NumberFormatException e) {
+					// left empty, like by readField
+				}
+				return;
+			}
+			break;
+		case BOOLEAN:
+			if (fieldType == 'L') {
+				byte b = dbf.get(start);
+				if (b == 'T' || b == 't' || b == 'Y' || b == 'y') {
+					feature.setBoolean(position, true);
+				} else if (b == 'F' || b == 'f' || b == 'N' || b == 'n') {
+					feature.setBoolean(position, false);
+				}
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+		feature.setValue(position, readField(record, field));
+	}
+
+	/**
+	 * Reads numeric field as long, without boxing it when field holds whole numbers.
+	 * @return value or {@link #NO_NUMBER} when value is empty or isn't a number
+	 */
+	long readLong(int record, int field) {
+		if (isWholeNumber(field)) {
+			return readWholeNumber(dbfRecordStart(record) + fieldOffsets[field], fieldLengths[field]);
+		}
+		Object value = readField(record, field);
+		return value instanceof Number ? ((Number) value).longValue() : NO_NUMBER;
+	}
+
+	private boolean isWholeNumber(int field) {
+		return (fieldTypes[field] == 'N' || fieldTypes[field] == 'F') && fieldDecimals[field] == 0 && fieldLengths[field] < 19;
+	}
+
+	/**
+	 * @return Integer, Long or Double for numeric fields (depending on their size and
+	 * decimal count), String, Date, Boolean or null when value is empty
+	 */
+	Object readField(int record, int field) {
+		int start = dbfRecordStart(record) + fieldOffsets[field];
+		int length = fieldLengths[field];
+		switch (fieldTypes[field]) {
+		case 'C':
+			return readText(start, length);
+		case 'N':
+		case 'F':
+			if (isWholeNumber(field)) {
+				long value = readWholeNumber(start, length);
+				if (value == NO_NUMBER) {
+					return null;
+				}
+				return length < 10 ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value);
+			}
+			String number = readText(start, length);
+			try {
+				return number.length() == 0 ? null : Double.valueOf(number);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		case 'D':
+			return readDate(start, length);
+		case 'L':
+			byte b = dbf.get(start);
+			if (b == 'T' || b == 't' || b == 'Y' || b == 'y') {
+				return Boolean.TRUE;
+			} else if (b == 'F' || b == 'f' || b == 'N' || b == 'n') {
+				return Boolean.FALSE;
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return geometry of the same type GeoTools reads, i.e. polygons and lines are
+	 * always multi geometries, or null for null shape
+	 */
+	Geometry readGeometry(int record) {
+		int content = contentStart(record);
+		int shapeType = shp.getInt(content);
+		switch (shapeType) {
+		case POINT:
+			return geomFactory.createPoint(new Coordinate(shp.getDouble(content + 4), shp.getDouble(content + 12)));
+		case MULTIPOINT:
+			return geomFactory.createMultiPoint(readCoordinates(content + 40, shp.getInt(content + 36)));
+		case POLYLINE:
+			Coordinate[][] parts = readParts(content);
+			LineString[] lines = new LineString[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				lines[i] = geomFactory.createLineString(parts[i]);
+			}
+			return geomFactory.createMultiLineString(lines);
+		case POLYGON:
+			return createPolygons(readParts(content));
+		default:
+			return null;
+		}
+	}
+
+	private int contentStart(int record) {
+		// offsets in .shx are in 16 bit words and point to record header
+		return shx.getInt(HEADER_LENGTH + (record - 1) * 8) * 2 + 8;
+	}
+
+	private int dbfRecordStart(int record) {
+		return dbfHeaderLength + (record - 1) * dbfRecordLength;
+	}
+
+	private Coordinate[][] readParts(int content) {
+		int partCount = shp.getInt(content + 36);
+		int pointCount = shp.getInt(content + 40);
+		int points = content + 44 + partCount * 4;
+		Coordinate[][] parts = new Coordinate[partCount][];
+		for (int i = 0; i < partCount; i++) {
+			int first = shp.getInt(content + 44 + i * 4);
+			int last = i + 1 < partCount ? shp.getInt(content + 48 + i * 4) : pointCount;
+			parts[i] = readCoordinates(points + first * 16, last - first);
+		}
+		return parts;
+	}
+
+	private Coordinate[] readCoordinates(int position, int count) {
+		Coordinate[] coords = new Coordinate[count];
+		for (int i = 0; i < count; i++) {
+			coords[i] = new Coordinate(shp.getDouble(position + i * 16), shp.getDouble(position + i * 16 + 8));
+		}
+		return coords;
+	}
+
+	/**
+	 * Outer rings are clockwise and holes counterclockwise. Hole goes to the smallest
+	 * outer ring containing it, hole outside of all of them is taken as outer ring.
+	 */
+	private Geometry createPolygons(Coordinate[][] rings) {
+		List<LinearRing> shells = new ArrayList<LinearRing>();
+		List<LinearRing> holes = new ArrayList<LinearRing>();
+		for (Coordinate[] ring: rings) {
+			Coordinate[] closed = close(ring);
+			if (closed.length < 4) {
+				continue;
+			}
+			if (CGAlgorithms.isCCW(closed)) {
+				holes.add(geomFactory.createLinearRing(closed));
+			} else {
+				shells.add(geomFactory.createLinearRing(closed));
+			}
+		}
+		if (shells.isEmpty()) {
+			// wrong orientation, every ring is taken as separate polygon
+			shells = holes;
+			holes = new ArrayList<LinearRing>();
+		}
+		List<List<LinearRing>> shellHoles = new ArrayList<List<LinearRing>>();
+		for (int i = 0; i < shells.size(); i++) {
+			shellHoles.add(new ArrayList<LinearRing>());
+		}
+		for (LinearRing hole: holes) {
+			int shell = findShell(hole, shells);
+			if (shell < 0) {
+				shells.add(hole);
+				shellHoles.add(new ArrayList<LinearRing>());
+			} else {
+				shellHoles.get(shell).add(hole);
+			}
+		}
+		Polygon[] polygons = new Polygon[shells.size()];
+		for (int i = 0; i < polygons.length; i++) {
+			List<LinearRing> polygonHoles = shellHoles.get(i);
+			polygons[i] = geomFactory.createPolygon(shells.get(i), polygonHoles.toArray(new LinearRing[polygonHoles.size()]));
+		}
+		return geomFactory.createMultiPolygon(polygons);
+	}
+
+	private int findShell(LinearRing hole, List<LinearRing> shells) {
+		Envelope holeEnvelope = hole.getEnvelopeInternal();
+		int result = -1;
+		Envelope resultEnvelope = null;
+		for (int i = 0; i < shells.size(); i++) {
+			Envelope envelope = shells.get(i).getEnvelopeInternal();
+			if (!envelope.contains(holeEnvelope) || (resultEnvelope != null && !resultEnvelope.contains(envelope))) {
+				continue;
+			}
+			Coordinate[] shellCoords = shells.get(i).getCoordinates();
+			for (Coordinate coord: hole.getCoordinates()) {
+				// hole can touch its shell, one point strictly inside is enough
+				if (CGAlgorithms.isOnLine(coord, shellCoords)) {
+					continue;
+				}
+				if (CGAlgorithms.isPointInRing(coord, shellCoords)) {
+					result = i;
+					resultEnvelope = envelope;
+				}
+				break;
+			}
+		}
+		return result;
+	}
+
+	private Coordinate[] close(Coordinate[] ring) {
+		if (ring.length == 0 || ring[0].equals2D(ring[ring.length - 1])) {
+			return ring;
+		}
+		Coordinate[] closed = new Coordinate[ring.length + 1];
+		System.arraycopy(ring, 0, closed, 0, ring.length);
+		closed[ring.length] = new Coordinate(ring[0]);
+		return closed;
+	}
+
+	private String readText(int start, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = dbf.get(start + i);
+		}
+		return new String(bytes, charset).trim();
+	}
+
+	/**
+	 * Parses digits in place, without creating string for every value.
+	 * @return value or {@link #NO_NUMBER} when value is empty or broken
+	 */
+	private long readWholeNumber(int start, int length) {
+		int position = start;
+		int end = start + length;
+		while (position < end && dbf.get(position) == ' ') {
+			position++;
+		}
+		boolean negative = false;
+		if (position < end && (dbf.get(position) == '-' || dbf.get(position) == '+')) {
+			negative = dbf.get(position) == '-';
+			position++;
+		}
+		long value = 0;
+		int digits = 0;
+		for (; position < end; position++) {
+			byte b = dbf.get(position);
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits++;
+			} else if (b == ' ' || b == '.') {
+				// fraction of field declared without decimals is dropped, like GeoTools does
+				break;
+			} else {
+				// e.g. '*' which marks value not fitting into the field
+				return NO_NUMBER;
+			}
+		}
+		if (digits == 0) {
+			return NO_NUMBER;
+		}
+		return negative ? -value : value;
+	}
+
+	private Object readDate(int start, int length) {
+		if (length < 8) {
+			return null;
+		}
+		int[] parts = new int[8];
+		for (int i = 0; i < 8; i++) {
+			byte b = dbf.get(start + i);
+			if (b < '0' || b > '9') {
+				return null;
+			}
+			parts[i] = b - '0';
+		}
+		int year = parts[0] * 1000 + parts[1] * 100 + parts[2] * 10 + parts[3];
+		int month = parts[4] * 10 + parts[5];
+		int day = parts[6] * 10 + parts[7];
+		if (year == 0) {
+			return null;
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return calendar.getTime();
+	}
+
+	private static String readName(ByteBuffer dbf, int position) {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 11 && dbf.get(position + i) != 0; i++) {
+			name.append((char) (dbf.get(position + i) & 0xff));
+		}
+		return name.toString().trim();
+	}
+
+	private static Charset readCharset(File cpgFile) {
+		if (!cpgFile.isFile()) {
+			return DEFAULT_CHARSET;
+		}
+		try {
+			String name = new String(Files.readAllBytes(cpgFile.toPath()), DEFAULT_CHARSET).trim();
+			return Charset.forName(name);
+		} catch (Exception e) {
+			logger.warn("Unknown charset given in " + cpgFile + ", using " + DEFAULT_CHARSET.name());
+			return DEFAULT_CHARSET;
+		}
+	}
+
+	/**
+	 * Channel is closed right away, mapping stays valid until buffer is garbage collected.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+}
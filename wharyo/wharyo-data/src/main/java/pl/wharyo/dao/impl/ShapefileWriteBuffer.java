@@ -0,0 +1,112 @@
+package pl.wharyo.dao.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opengis.feature.type.Name;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Changes of shapefile layer which were accepted but not written yet. Change of a feature
+ * which already has one waiting is merged with it, so feature edited many times is written once.
+ * Buffer is changed only by holder of layer write lock and read by holders of read lock.
+ */
+class ShapefileWriteBuffer {
+
+	private final Map<Long, PendingChange> changes = new LinkedHashMap<Long, PendingChange>();
+	/** Time of oldest change waiting to be written, 0 when buffer is empty. */
+	private volatile long pendingSince;
+
+	/**
+	 * @return change waiting for given feature or null
+	 */
+	PendingChange get(Long id) {
+		return changes.get(id);
+	}
+
+	/**
+	 * @param names attribute names, as given by layer feature type
+	 */
+	void updateAttributes(Long id, List<Name> names, List<Object> values) {
+		PendingChange change = getOrCreate(id);
+		for (int i = 0; i < names.size(); i++) {
+			change.attributes.put(names.get(i).getLocalPart(), values.get(i));
+		}
+	}
+
+	void updateGeometry(Long id, Geometry geometry) {
+		getOrCreate(id).geometry = geometry;
+	}
+
+	void delete(Long id) {
+		PendingChange change = getOrCreate(id);
+		change.deleted = true;
+		// nothing else will be written for deleted feature
+		change.attributes.clear();
+		change.geometry = null;
+	}
+
+	/**
+	 * @return changes in order features were first changed
+	 */
+	List<Map.Entry<Long, PendingChange>> getChanges() {
+		return new ArrayList<Map.Entry<Long, PendingChange>>(changes.entrySet());
+	}
+
+	int size() {
+		return changes.size();
+	}
+
+	boolean isEmpty() {
+		return pendingSince == 0;
+	}
+
+	long getPendingSince() {
+		return pendingSince;
+	}
+
+	void clear() {
+		changes.clear();
+		pendingSince = 0;
+	}
+
+	private PendingChange getOrCreate(Long id) {
+		PendingChange change = changes.get(id);
+		if (change == null) {
+			change = new PendingChange();
+			changes.put(id, change);
+			if (pendingSince == 0) {
+				pendingSince = System.currentTimeMillis();
+			}
+		}
+		return change;
+	}
+
+	static class PendingChange {
+
+		private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		private Geometry geometry;
+		private boolean deleted;
+
+		/**
+		 * @return new attribute values by attribute name
+		 */
+		Map<String, Object> getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return new geometry or null when geometry wasn't changed
+		 */
+		Geometry getGeometry() {
+			return geometry;
+		}
+
+		boolean isDeleted() {
+			return deleted;
+		}
+	}
+}
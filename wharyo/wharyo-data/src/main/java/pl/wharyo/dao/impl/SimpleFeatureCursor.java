@@ -0,0 +1,126 @@
+package pl.wharyo.dao.impl;
+
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.filter.AttributeFilter;
+import pl.wharyo.dao.filter.FeaturePredicate;
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+
+/**
+ * {@link FeatureCursor} on top of GeoTools iterator. Features are converted lazily,
+ * so only one feature is in memory at a time. Restrictions which data source
+ * can't apply itself (bbox, attribute filter, attribute names) are applied while reading.
+ */
+class SimpleFeatureCursor implements FeatureCursor {
+
+	private final FeatureIterator<SimpleFeature> iterator;
+	private final Set<String> attributeNames;
+	private final boolean withGeometry;
+	private final Envelope bbox;
+	private final AttributeFilter filter;
+	private FeatureConverter converter;
+	/** Converts attributes filter uses, predicate is compiled for its schema. */
+	private FeatureConverter filterConverter;
+	private FeaturePredicate predicate;
+	private SimpleFeature next;
+	private boolean closed;
+
+	/**
+	 * @param attributeNames lower case names of attributes to convert or null for all
+	 * @param bbox envelope which feature geometry has to intersect or null
+	 */
+	SimpleFeatureCursor(FeatureIterator<SimpleFeature> iterator, Set<String> attributeNames, Envelope bbox) {
+		this(iterator, attributeNames, true, bbox, null);
+	}
+
+	/**
+	 * @param withGeometry false when returned features shouldn't have geometry, bbox is still checked
+	 * @param filter filter to apply or null, it's compiled when first feature is read
+	 * @throws IllegalArgumentException from {@link #hasNext()} when filter doesn't fit features
+	 */
+	SimpleFeatureCursor(FeatureIterator<SimpleFeature> iterator, Set<String> attributeNames, boolean withGeometry, Envelope bbox, AttributeFilter filter) {
+		this.iterator = iterator;
+		this.attributeNames = attributeNames;
+		this.withGeometry = withGeometry;
+		this.bbox = bbox;
+		this.filter = filter;
+	}
+
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			while (iterator.hasNext()) {
+				SimpleFeature sFeature = iterator.next();
+				if (accept(sFeature)) {
+					next = sFeature;
+					break;
+				}
+			}
+			if (next == null) {
+				close();
+			}
+		}
+		return next != null;
+	}
+
+	public Feature next() throws NoSuchElementException, UnsupportedAttributeType {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No more features");
+		}
+		SimpleFeature sFeature = next;
+		next = null;
+		// all features usually share the same type, so schema is created once per cursor
+		if (converter == null || !converter.supports(sFeature.getFeatureType())) {
+			converter = FeatureConverter.forType(sFeature.getFeatureType(), attributeNames, withGeometry);
+		}
+		return converter.toFeature(sFeature);
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		next = null;
+		try {
+			iterator.close();
+		} finally {
+			onClose();
+		}
+	}
+
+	/**
+	 * Called once, after iterator was closed. Releases resources cursor was opened with.
+	 */
+	protected void onClose() {
+	}
+
+	private boolean accept(SimpleFeature sFeature) {
+		if (bbox != null) {
+			Geometry geom = (Geometry) sFeature.getDefaultGeometry();
+			if (geom == null || !bbox.intersects(geom.getEnvelopeInternal())) {
+				return false;
+			}
+		}
+		if (filter == null) {
+			return true;
+		}
+		if (filterConverter == null || !filterConverter.supports(sFeature.getFeatureType())) {
+			filterConverter = FeatureConverter.forType(sFeature.getFeatureType(), filter.getAttributeNames());
+			predicate = filter.compile(filterConverter.getSchema());
+		}
+		try {
+			return predicate.matches(filterConverter.toFeature(sFeature));
+		} catch (UnsupportedAttributeType e) {
+			return false;
+		}
+	}
+}
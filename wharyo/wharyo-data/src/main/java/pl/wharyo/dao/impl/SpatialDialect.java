@@ -0,0 +1,71 @@
+package pl.wharyo.dao.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Differences between databases in handling geometry columns. Geometries always travel
+ * as WKB, dialect only tells how to turn WKB parameter into geometry and back.
+ */
+enum SpatialDialect {
+
+	/** PostgreSQL with PostGIS, geometry columns usually have SRID constraint. */
+	POSTGIS {
+		String readGeometry(String column) {
+			return "ST_AsBinary(" + column + ")";
+		}
+
+		String geometryParameter(int srid) {
+			return "ST_GeomFromWKB(?, " + srid + ")";
+		}
+
+		int findSrid(Connection connection, String schema, String table, String column) throws SQLException {
+			PreparedStatement statement = connection.prepareStatement("SELECT Find_SRID(?, ?, ?)");
+			try {
+				statement.setString(1, schema);
+				statement.setString(2, table);
+				statement.setString(3, column);
+				ResultSet rs = statement.executeQuery();
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				statement.close();
+			}
+		}
+	},
+
+	/** Database which reads and writes geometry column as WKB itself, e.g. H2. */
+	GENERIC {
+		String readGeometry(String column) {
+			return column;
+		}
+
+		String geometryParameter(int srid) {
+			return "?";
+		}
+
+		int findSrid(Connection connection, String schema, String table, String column) {
+			return 0;
+		}
+	};
+
+	/**
+	 * @return select expression giving WKB of geometry column
+	 */
+	abstract String readGeometry(String column);
+
+	/**
+	 * @return expression which makes geometry from single WKB parameter
+	 */
+	abstract String geometryParameter(int srid);
+
+	abstract int findSrid(Connection connection, String schema, String table, String column) throws SQLException;
+
+	static SpatialDialect forDatabase(String productName) {
+		if (productName != null && productName.toLowerCase().contains("postgres")) {
+			return POSTGIS;
+		}
+		return GENERIC;
+	}
+}
@@ -0,0 +1,150 @@
+package pl.wharyo.dao.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import pl.wharyo.dao.filter.AttributeFilter;
+import pl.wharyo.dao.filter.BetweenFilter;
+import pl.wharyo.dao.filter.ComparisonFilter;
+import pl.wharyo.dao.filter.FilterVisitor;
+import pl.wharyo.dao.filter.InFilter;
+import pl.wharyo.dao.filter.LikeFilter;
+import pl.wharyo.dao.filter.LogicalFilter;
+import pl.wharyo.dao.filter.NotFilter;
+import pl.wharyo.dao.filter.NullFilter;
+import pl.wharyo.model.FeatureSchema;
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Translates {@link AttributeFilter} into SQL condition on columns of database layer, values
+ * are collected as statement parameters. Under NOT, conditions on columns are made false for
+ * NULL instead of unknown, so filter matches the same rows it would match in memory.
+ * Builder collects parameters, it's used for single statement.
+ */
+class SqlFilterBuilder implements FilterVisitor<String> {
+
+	private final DatabaseLayer layer;
+	private final FeatureSchema schema;
+	private final List<Integer> attributes = new ArrayList<Integer>();
+	private final List<Object> values = new ArrayList<Object>();
+	private int negations;
+
+	SqlFilterBuilder(DatabaseLayer layer) {
+		this.layer = layer;
+		this.schema = layer.getSchema();
+	}
+
+	/**
+	 * Binds values of translated filter, in order they appear in condition.
+	 * @param index index of first parameter
+	 */
+	void bind(PreparedStatement statement, int index) throws SQLException {
+		for (int i = 0; i < values.size(); i++) {
+			int attribute = attributes.get(i);
+			Object value = values.get(i);
+			if (value instanceof Double && schema.getType(attribute) == AttributeType.LONG) {
+				// compared with fraction, it mustn't be cut to whole number
+				statement.setDouble(index + i, (Double) value);
+			} else {
+				layer.setValue(statement, index + i, attribute, value);
+			}
+		}
+	}
+
+	public String visit(ComparisonFilter filter) {
+		int attribute = attribute(filter.getAttributeName(), filter.getValue());
+		return notNull(attribute, layer.getColumn(attribute) + " " + filter.getOperator().getSymbol() + " " + parameter(attribute, filter.getValue()));
+	}
+
+	public String visit(BetweenFilter filter) {
+		int attribute = attribute(filter.getAttributeName(), filter.getLower());
+		attribute(filter.getAttributeName(), filter.getUpper());
+		return notNull(attribute, layer.getColumn(attribute) + " BETWEEN " + parameter(attribute, filter.getLower()) + " AND " + parameter(attribute, filter.getUpper()));
+	}
+
+	public String visit(InFilter filter) {
+		StringBuilder builder = null;
+		int attribute = -1;
+		for (Object value: filter.getValues()) {
+			attribute = attribute(filter.getAttributeName(), value);
+			builder = builder == null ? new StringBuilder(layer.getColumn(attribute)).append(" IN (") : builder.append(", ");
+			builder.append(parameter(attribute, value));
+		}
+		return notNull(attribute, builder.append(")").toString());
+	}
+
+	public String visit(LikeFilter filter) {
+		int attribute = attribute(filter.getAttributeName(), filter.getPattern());
+		return notNull(attribute, layer.getColumn(attribute) + " LIKE " + parameter(attribute, filter.getPattern()) + " ESCAPE '" + LikeFilter.ESCAPE + "'");
+	}
+
+	public String visit(NullFilter filter) {
+		int attribute = schema.indexOf(filter.getAttributeName());
+		if (attribute < 0) {
+			throw new IllegalArgumentException("Filter uses attribute which layer doesn't have: " + filter.getAttributeName());
+		}
+		return layer.getColumn(attribute) + " IS NULL";
+	}
+
+	public String visit(LogicalFilter filter) {
+		StringBuilder builder = new StringBuilder("(");
+		for (AttributeFilter child: filter.getFilters()) {
+			builder.append(builder.length() > 1 ? " " + filter.getType() + " " : "").append(child.accept(this));
+		}
+		return builder.append(")").toString();
+	}
+
+	public String visit(NotFilter filter) {
+		negations++;
+		try {
+			return "NOT (" + filter.getFilter().accept(this) + ")";
+		} finally {
+			negations--;
+		}
+	}
+
+	private String notNull(int attribute, String condition) {
+		if (negations == 0) {
+			return condition;
+		}
+		return "(" + condition + " AND " + layer.getColumn(attribute) + " IS NOT NULL)";
+	}
+
+	private String parameter(int attribute, Object value) {
+		attributes.add(attribute);
+		values.add(value);
+		return "?";
+	}
+
+	/**
+	 * @throws IllegalArgumentException when layer has no such attribute or it can't be compared with value
+	 */
+	private int attribute(String attributeName, Object value) {
+		int attribute = schema.indexOf(attributeName);
+		if (attribute < 0) {
+			throw new IllegalArgumentException("Filter uses attribute which layer doesn't have: " + attributeName);
+		}
+		AttributeType type = schema.getType(attribute);
+		boolean matches;
+		switch (type) {
+		case LONG:
+		case DOUBLE:
+			matches = value instanceof Number;
+			break;
+		case BOOLEAN:
+			matches = value instanceof Boolean;
+			break;
+		case DATE:
+			matches = value instanceof java.util.Date;
+			break;
+		default:
+			matches = value instanceof String;
+		}
+		if (!matches) {
+			throw new IllegalArgumentException("Attribute " + schema.getName(attribute) + " of type " + type + " can't be compared with " + value);
+		}
+		return attribute;
+	}
+}
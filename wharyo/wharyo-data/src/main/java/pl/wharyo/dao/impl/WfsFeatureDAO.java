@@ -1,59 +1,88 @@
 package pl.wharyo.dao.impl;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
 import pl.wharyo.dao.FeatureDAO;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
 import pl.wharyo.model.Feature;
 import pl.wharyo.model.attributes.Attribute;
 
+/**
+ * Placeholder for layers served by WFS, which aren't supported yet. It supports no layer,
+ * so {@link pl.wharyo.services.FeatureService} never routes to it, and every call made
+ * straight to it fails with {@link LayerDataSourceNotAvailableException}.
+ */
 public class WfsFeatureDAO implements FeatureDAO {
 
 	public WfsFeatureDAO(JdbcTemplate template) {
-		// TODO Auto-generated constructor stub
 	}
 
-	public Long createFeature(Feature feature, String layer) {
-		// TODO Auto-generated method stub
-		return null;
+	public Long createFeature(Feature feature, String layer) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public List<Feature> getAllFeatures(String layerName) {
-		// TODO Auto-generated method stub
-		return null;
+	public List<Feature> getFeaturesInBBox(Envelope bbox, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public Feature getFeatureById(Long id, String layerName) {
-		// TODO Auto-generated method stub
-		return null;
+	public List<Feature> getFeaturesIntersecting(Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) {
-		// TODO Auto-generated method stub
-		
+	public FeatureCursor getFeatures(FeatureQuery query, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) {
-		// TODO Auto-generated method stub
-		
+	public Feature getFeatureById(Long id, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public void updateFeature(Feature feature, String layerName) {
-		// TODO Auto-generated method stub
-		
+	public Feature getFeatureById(Long id, List<String> attributeNames, boolean withGeometry, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
-	public void deleteFeature(Long id, String laterName) {
-		// TODO Auto-generated method stub
-		
+	public void updateFeatureAttributes(Long id, List<Attribute> attributes, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public void updateFeatureGeometry(Long id, Geometry geometry, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public void updateFeature(Feature feature, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public void deleteFeature(Long id, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public BatchResult createFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public BatchResult updateFeatures(List<Feature> features, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
+	}
+
+	public BatchResult deleteFeatures(Collection<Long> ids, String layerName) throws LayerDataSourceNotAvailableException {
+		throw notSupported();
 	}
 
 	public boolean supportsLayer(String layerName) {
-		// TODO Auto-generated method stub
 		return false;
 	}
 
+	private LayerDataSourceNotAvailableException notSupported() {
+		return new LayerDataSourceNotAvailableException("WFS layers are not supported", LayerDataSourceNotAvailableException.Reason.CONNECTION_UNAVAILABLE);
+	}
 }
@@ -0,0 +1,18 @@
+package pl.wharyo.exceptions;
+
+public class InvalidFilterException extends Exception {
+
+	private final int position;
+
+	public InvalidFilterException(String msg, int position) {
+		super(msg + " at position " + position);
+		this.position = position;
+	}
+
+	/**
+	 * @return position in filter expression where parsing failed
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
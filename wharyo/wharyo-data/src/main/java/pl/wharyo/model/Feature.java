@@ -1,35 +1,68 @@
 package pl.wharyo.model;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.util.StringUtils;
 
 import com.vividsolutions.jts.geom.Geometry;
 
+import pl.wharyo.exceptions.UnsupportedAttributeType;
 import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
 
 /**
  * Class which describes single portion of spatial data.
+ * Feature read from layer is usually bound to {@link FeatureSchema} shared by whole layer and
+ * keeps only its values, {@link Attribute}s returned for it are views over these values.
+ * Adding attribute which is not in schema or removing one unbinds feature from schema.
  * @author cegli
  *
  */
 public class Feature {
 
+	private static final Object PRIMITIVE = new Object();
+
 	private Long id;
 	private Geometry geom;
-	private List<Attribute> attributes;
-	
+	private FeatureSchema schema;
+	private Object[] values;
+	/**
+	 * Values of LONG, DOUBLE (raw bits) and BOOLEAN (0 or 1) attributes, valid where
+	 * values array holds {@link #PRIMITIVE} marker, so they are never boxed while read.
+	 */
+	private long[] primitives;
+	/**
+	 * Attributes of feature which is not bound to schema, in insertion order, keyed by
+	 * lower case name, so there is at most one attribute with given name regardless of case.
+	 */
+	private Map<String, Attribute> attributes;
+
 	public Feature() {
-		attributes = new ArrayList<Attribute>();
+		attributes = new LinkedHashMap<String, Attribute>();
 	}
-	
+
 	public Feature(Geometry geom, List<Attribute> attributes) {
 		this();
 		this.geom = geom;
-		this.attributes = attributes;
+		setAttributes(attributes);
 	}
-	
+
+	/**
+	 * Creates feature bound to given schema, all attributes are present with null values.
+	 */
+	public Feature(FeatureSchema schema) {
+		if (schema == null) {
+			throw new IllegalArgumentException("Schema cannot be null");
+		}
+		this.schema = schema;
+		this.values = new Object[schema.size()];
+		this.primitives = new long[schema.size()];
+	}
+
 	public Long getId() {
 		return id;
 	}
@@ -42,41 +75,258 @@ public class Feature {
 	public void setGeom(Geometry geom) {
 		this.geom = geom;
 	}
-	
+
+	/**
+	 * @return schema or null when feature isn't bound to any
+	 */
+	public FeatureSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Reads value by its position in schema, without creating attribute view.
+	 * LONG, DOUBLE and BOOLEAN values are boxed on every call, use typed getters to avoid it.
+	 */
+	public Object getValue(int position) {
+		checkBound();
+		Object value = values[position];
+		if (value == PRIMITIVE) {
+			return Attribute.box(schema.getType(position), primitives[position]);
+		}
+		return value;
+	}
+
+	/**
+	 * Sets value by its position in schema. Value has to match attribute type given by schema.
+	 */
+	public void setValue(int position, Object value) throws UnsupportedAttributeType {
+		checkBound();
+		AttributeType type = Attribute.typeOf(value);
+		if (type != null && type != schema.getType(position)) {
+			throw new UnsupportedAttributeType("Attribute " + schema.getName(position) + " requires value of type " + schema.getType(position));
+		}
+		if (type == AttributeType.LONG) {
+			setPrimitive(position, ((Number) value).longValue());
+		} else if (type == AttributeType.DOUBLE) {
+			setPrimitive(position, Double.doubleToRawLongBits(((Number) value).doubleValue()));
+		} else if (type == AttributeType.BOOLEAN) {
+			setPrimitive(position, ((Boolean) value).booleanValue() ? 1L : 0L);
+		} else {
+			values[position] = value;
+		}
+	}
+
+	/**
+	 * @return false when attribute at given position has no value
+	 */
+	public boolean hasValue(int position) {
+		checkBound();
+		return values[position] != null;
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't LONG or has no value
+	 */
+	public long getLong(int position) {
+		checkPrimitive(position, AttributeType.LONG);
+		return primitives[position];
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't DOUBLE or has no value
+	 */
+	public double getDouble(int position) {
+		checkPrimitive(position, AttributeType.DOUBLE);
+		return Double.longBitsToDouble(primitives[position]);
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't BOOLEAN or has no value
+	 */
+	public boolean getBoolean(int position) {
+		checkPrimitive(position, AttributeType.BOOLEAN);
+		return primitives[position] != 0;
+	}
+
+	/**
+	 * Sets value of LONG attribute without boxing it and without resolving its type.
+	 */
+	public void setLong(int position, long value) throws UnsupportedAttributeType {
+		checkType(position, AttributeType.LONG);
+		setPrimitive(position, value);
+	}
+
+	public void setDouble(int position, double value) throws UnsupportedAttributeType {
+		checkType(position, AttributeType.DOUBLE);
+		setPrimitive(position, Double.doubleToRawLongBits(value));
+	}
+
+	public void setBoolean(int position, boolean value) throws UnsupportedAttributeType {
+		checkType(position, AttributeType.BOOLEAN);
+		setPrimitive(position, value ? 1L : 0L);
+	}
+
+	private void setPrimitive(int position, long value) {
+		primitives[position] = value;
+		values[position] = PRIMITIVE;
+	}
+
+	private void checkType(int position, AttributeType required) throws UnsupportedAttributeType {
+		checkBound();
+		if (schema.getType(position) != required) {
+			throw new UnsupportedAttributeType("Attribute " + schema.getName(position) + " requires value of type " + schema.getType(position));
+		}
+	}
+
+	private void checkPrimitive(int position, AttributeType required) {
+		checkBound();
+		if (schema.getType(position) != required) {
+			throw new IllegalStateException("Attribute " + schema.getName(position) + " is not of type " + required);
+		} else if (values[position] == null) {
+			throw new IllegalStateException("Attribute " + schema.getName(position) + " has no value");
+		}
+	}
+
+	private void checkBound() {
+		if (schema == null) {
+			throw new IllegalStateException("Feature is not bound to schema");
+		}
+	}
+
+	/**
+	 * @return copy of attributes in order they were added, changes of the list don't affect feature
+	 */
+	public List<Attribute> getAttributes() {
+		if (schema != null) {
+			List<Attribute> result = new ArrayList<Attribute>(values.length);
+			for (int i = 0; i < values.length; i++) {
+				result.add(new SchemaAttribute(this, i));
+			}
+			return result;
+		}
+		return new ArrayList<Attribute>(attributes.values());
+	}
+
+	/**
+	 * Replaces all attributes. Like with {@link #addAttribute(Attribute)}, attribute whose name
+	 * differs only by case from one already added is skipped.
+	 */
+	public void setAttributes(List<Attribute> attributes) {
+		unbind(false);
+		this.attributes.clear();
+		if (attributes != null) {
+			for (Attribute attr: attributes) {
+				addAttribute(attr);
+			}
+		}
+	}
+
+	/**
+	 * @param name attribute name, case sensitive
+	 */
 	public Attribute getAttribute(String name) {
 		if (StringUtils.isEmpty(name)) {
 			return null;
 		}
-		for (Attribute attr: attributes) {
-			if (name.equals(attr.getName())) {
-				return attr;
+		if (schema != null) {
+			int position = schema.indexOf(name);
+			if (position >= 0 && name.equals(schema.getName(position))) {
+				return new SchemaAttribute(this, position);
 			}
+			return null;
+		}
+		Attribute attr = attributes.get(FeatureSchema.key(name));
+		if (attr != null && name.equals(attr.getName())) {
+			return attr;
 		}
 		return null;
 	}
-	
+
 	public void addAttribute(Attribute attribute) {
 		if (attribute == null || attribute.getName() == null) {
 			return;
 		}
-		for (Attribute attr: attributes) {
-			if (attribute.getName().equalsIgnoreCase(attr.getName())) {
+		if (schema != null) {
+			if (schema.indexOf(attribute.getName()) >= 0) {
 				return;
 			}
+			unbind(true);
+		}
+		String key = FeatureSchema.key(attribute.getName());
+		if (!attributes.containsKey(key)) {
+			attributes.put(key, attribute);
 		}
-		attributes.add(attribute);
 	}
-	
+
+	/**
+	 * @param name attribute name, case insensitive
+	 */
 	public void removeAttribute(String name) {
 		if (StringUtils.isEmpty(name)) {
 			return;
 		}
-		for (Attribute attr: attributes) {
-			if (name.equalsIgnoreCase(attr.getName())) {
-				attributes.remove(attr);
+		if (schema != null) {
+			if (schema.indexOf(name) < 0) {
 				return;
 			}
+			unbind(true);
+		}
+		attributes.remove(FeatureSchema.key(name));
+	}
+
+	/**
+	 * @return deep copy of feature, bound to the same schema if this one is bound,
+	 * changes of the copy (including its geometry and dates) don't affect this feature
+	 */
+	public Feature copy() {
+		Feature copy;
+		if (schema != null) {
+			copy = new Feature(schema);
+			for (int i = 0; i < values.length; i++) {
+				copy.values[i] = values[i] instanceof Date ? new Date(((Date) values[i]).getTime()) : values[i];
+			}
+			System.arraycopy(primitives, 0, copy.primitives, 0, primitives.length);
+		} else {
+			copy = new Feature();
+			for (Attribute attr: attributes.values()) {
+				Attribute attrCopy = new Attribute(attr.getName(), attr.getType());
+				Object value = attr.getValue();
+				try {
+					attrCopy.setValue(value instanceof Date ? new Date(((Date) value).getTime()) : value);
+				} catch (UnsupportedAttributeType e) {
+					// value was accepted by original attribute
+				}
+				copy.addAttribute(attrCopy);
+			}
+		}
+		copy.id = id;
+		copy.geom = geom == null ? null : (Geometry) geom.clone();
+		return copy;
+	}
+
+	/**
+	 * Moves values to standalone attributes. Attribute views handed out before are no longer
+	 * connected with this feature afterwards.
+	 */
+	private void unbind(boolean keepValues) {
+		if (schema == null) {
+			return;
+		}
+		attributes = new LinkedHashMap<String, Attribute>();
+		if (keepValues) {
+			for (int i = 0; i < values.length; i++) {
+				Attribute attr = new Attribute(schema.getName(i), schema.getType(i));
+				try {
+					attr.setValue(getValue(i));
+				} catch (UnsupportedAttributeType e) {
+					// values were checked when they were set
+				}
+				attributes.put(FeatureSchema.key(attr.getName()), attr);
+			}
 		}
+		schema = null;
+		values = null;
+		primitives = null;
 	}
-	
+
 }
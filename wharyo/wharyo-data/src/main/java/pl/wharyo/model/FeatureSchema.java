@@ -0,0 +1,63 @@
+package pl.wharyo.model;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import pl.wharyo.model.attributes.AttributeType;
+
+/**
+ * Names and types of attributes shared by all features read from one layer. Features bound
+ * to schema keep only array of values, attribute name and type is stored once per layer.
+ * Schema is immutable.
+ */
+public final class FeatureSchema {
+
+	private final String[] names;
+	private final AttributeType[] types;
+	private final Map<String, Integer> positions;
+
+	public FeatureSchema(String[] names, AttributeType[] types) {
+		if (names == null || types == null || names.length != types.length) {
+			throw new IllegalArgumentException("Every attribute name needs exactly one type");
+		}
+		this.names = names.clone();
+		this.types = types.clone();
+		this.positions = new HashMap<String, Integer>();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null || names[i].length() == 0 || types[i] == null) {
+				throw new IllegalArgumentException("Attribute name and type cannot be null");
+			} else if (positions.put(key(names[i]), i) != null) {
+				throw new IllegalArgumentException("Attribute names have to be unique: " + names[i]);
+			}
+		}
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int position) {
+		return names[position];
+	}
+
+	public AttributeType getType(int position) {
+		return types[position];
+	}
+
+	/**
+	 * @param name attribute name, case insensitive
+	 * @return position of attribute or -1 when there is no such attribute
+	 */
+	public int indexOf(String name) {
+		if (name == null) {
+			return -1;
+		}
+		Integer position = positions.get(key(name));
+		return position == null ? -1 : position;
+	}
+
+	static String key(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+}
@@ -0,0 +1,56 @@
+package pl.wharyo.model;
+
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.attributes.Attribute;
+
+/**
+ * Attribute of schema bound {@link Feature}. Holds no value itself, reads and writes go
+ * straight to feature values. Type is given by schema and can't be changed.
+ */
+class SchemaAttribute extends Attribute {
+
+	private final Feature feature;
+	private final int position;
+
+	SchemaAttribute(Feature feature, int position) {
+		super(feature.getSchema().getName(position), feature.getSchema().getType(position));
+		this.feature = feature;
+		this.position = position;
+	}
+
+	public Object getValue() {
+		return feature.getValue(position);
+	}
+
+	public void setValue(Object value) throws UnsupportedAttributeType {
+		feature.setValue(position, value);
+	}
+
+	public boolean hasValue() {
+		return feature.hasValue(position);
+	}
+
+	public long getLong() {
+		return feature.getLong(position);
+	}
+
+	public double getDouble() {
+		return feature.getDouble(position);
+	}
+
+	public boolean getBoolean() {
+		return feature.getBoolean(position);
+	}
+
+	public void setLong(long value) throws UnsupportedAttributeType {
+		feature.setLong(position, value);
+	}
+
+	public void setDouble(double value) throws UnsupportedAttributeType {
+		feature.setDouble(position, value);
+	}
+
+	public void setBoolean(boolean value) throws UnsupportedAttributeType {
+		feature.setBoolean(position, value);
+	}
+}
@@ -11,6 +11,9 @@ public class Attribute {
 	private String name;
 	private Object value;
 	private AttributeType type;
+	/** Value of LONG, DOUBLE (raw bits) or BOOLEAN (0 or 1) attribute set by typed setter. */
+	private long primitive;
+	private boolean primitiveSet;
 	
 	public Attribute(String name, AttributeType type) {
 		if (StringUtils.isEmpty(name)) {
@@ -28,6 +31,9 @@ public class Attribute {
 	}
 
 	public Object getValue() {
+		if (primitiveSet) {
+			return box(type, primitive);
+		}
 		return value;
 	};
 	
@@ -38,21 +44,110 @@ public class Attribute {
 	public void setValue(Object value) throws UnsupportedAttributeType {
 		resolveAttributeType(value);
 		this.value = value;
+		this.primitiveSet = false;
 	};
+
+	/**
+	 * @return false when attribute has no value
+	 */
+	public boolean hasValue() {
+		return primitiveSet || value != null;
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't LONG or has no value
+	 */
+	public long getLong() {
+		checkType(AttributeType.LONG);
+		return primitiveSet ? primitive : ((Number) value).longValue();
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't DOUBLE or has no value
+	 */
+	public double getDouble() {
+		checkType(AttributeType.DOUBLE);
+		return primitiveSet ? Double.longBitsToDouble(primitive) : ((Number) value).doubleValue();
+	}
+
+	/**
+	 * @throws IllegalStateException when attribute isn't BOOLEAN or has no value
+	 */
+	public boolean getBoolean() {
+		checkType(AttributeType.BOOLEAN);
+		return primitiveSet ? primitive != 0 : ((Boolean) value).booleanValue();
+	}
+
+	/**
+	 * Sets value and LONG type without boxing it, value is boxed only when {@link #getValue()} is called.
+	 */
+	public void setLong(long value) throws UnsupportedAttributeType {
+		setPrimitive(AttributeType.LONG, value);
+	}
+
+	public void setDouble(double value) throws UnsupportedAttributeType {
+		setPrimitive(AttributeType.DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	public void setBoolean(boolean value) throws UnsupportedAttributeType {
+		setPrimitive(AttributeType.BOOLEAN, value ? 1L : 0L);
+	}
+
+	private void setPrimitive(AttributeType type, long value) {
+		this.type = type;
+		this.value = null;
+		this.primitive = value;
+		this.primitiveSet = true;
+	}
+
+	private void checkType(AttributeType required) {
+		if (type != required) {
+			throw new IllegalStateException("Attribute " + name + " is not of type " + required);
+		} else if (!hasValue()) {
+			throw new IllegalStateException("Attribute " + name + " has no value");
+		}
+	}
+
+	/**
+	 * @param value value stored like by typed setters
+	 * @return boxed value of LONG, DOUBLE or BOOLEAN type
+	 */
+	public static Object box(AttributeType type, long value) {
+		switch (type) {
+		case LONG:
+			return Long.valueOf(value);
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		case BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		default:
+			throw new IllegalArgumentException("Type " + type + " has no primitive value");
+		}
+	}
 	
 	private void resolveAttributeType(Object value) throws UnsupportedAttributeType {
+		if (value == null && type != null) {
+			return;
+		}
+		this.type = typeOf(value);
+	}
+	
+	/**
+	 * @return type of given value or null for null value
+	 */
+	public static AttributeType typeOf(Object value) throws UnsupportedAttributeType {
 		if (value instanceof Long || value instanceof Integer) {
-			this.type = AttributeType.LONG;
+			return AttributeType.LONG;
 		} else if (value instanceof Float || value instanceof Double) {
-			this.type = AttributeType.DOUBLE;
+			return AttributeType.DOUBLE;
 		} else if (value instanceof String) {
-			this.type = AttributeType.TEXT;
+			return AttributeType.TEXT;
 		} else if (value instanceof Boolean) {
-			this.type = AttributeType.BOOLEAN;
+			return AttributeType.BOOLEAN;
 		} else if (value instanceof Date) {
-			this.type = AttributeType.DATE;
-		} else if (value == null && type != null) {
-			return;
+			return AttributeType.DATE;
+		} else if (value == null) {
+			return null;
 		} else {
 			throw new UnsupportedAttributeType("Couldn't resolve value type");
 		}
@@ -0,0 +1,367 @@
+package pl.wharyo.dao.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.filter.AttributeFilter;
+import pl.wharyo.exceptions.BrokenFeatureException;
+import pl.wharyo.exceptions.InvalidFilterException;
+import pl.wharyo.exceptions.LayerConfigurationBrokenException;
+import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
+import pl.wharyo.exceptions.UnsupportedAttributeType;
+import pl.wharyo.model.Feature;
+import pl.wharyo.model.attributes.Attribute;
+import pl.wharyo.model.attributes.AttributeType;
+
+public class DatabaseFeatureDAOTest {
+
+	private DatabaseFeatureDAO dao;
+	private JdbcTemplate template;
+	private WKTReader reader;
+	private final String WKT = "POLYGON ((10 10, 20 10, 20 20, 10 20, 10 10))";
+	private final String OTHER_WKT = "POLYGON ((100 100, 120 100, 120 120, 100 120, 100 100))";
+	private final static String LAYER_NAME = "parcels";
+
+	@Before
+	public void setUp() throws Exception {
+		DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:wharyo;DB_CLOSE_DELAY=-1");
+		template = new JdbcTemplate(dataSource);
+		template.execute("CREATE TABLE layer_config (id BIGINT AUTO_INCREMENT PRIMARY KEY, layer_name VARCHAR(255), layer_type VARCHAR(20))");
+		template.execute("CREATE TABLE \"parcels\" (\"id\" BIGINT AUTO_INCREMENT PRIMARY KEY, \"name\" VARCHAR(80), \"area\" DOUBLE, "
+				+ "\"surveyed\" DATE, \"geom\" GEOMETRY)");
+		template.execute("CREATE TABLE \"no_geometry\" (\"id\" BIGINT AUTO_INCREMENT PRIMARY KEY, \"name\" VARCHAR(80))");
+		template.update("INSERT INTO layer_config (layer_name, layer_type) VALUES (?, ?)", LAYER_NAME, "DATABASE");
+		dao = new DatabaseFeatureDAO(template);
+		reader = new WKTReader();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		dao.dispose();
+		template.execute("DROP ALL OBJECTS");
+	}
+
+	@Test
+	public void supportsLayer_configuredLayer_shouldReturnTrue() {
+		assertTrue(dao.supportsLayer(LAYER_NAME));
+		assertFalse(dao.supportsLayer("fake_layername"));
+	}
+
+	@Test
+	public void supportsLayer_layerConfigChanged_shouldAnswerFromSnapshotUntilRefresh() {
+		final List<String> changed = new CopyOnWriteArrayList<String>();
+		dao.addLayerChangeListener(new LayerChangeListener() {
+			public void layerChanged(String layerName) {
+				changed.add(layerName);
+			}
+			public void allLayersChanged() {
+			}
+		});
+		assertTrue(dao.supportsLayer(LAYER_NAME));
+		template.update("DELETE FROM layer_config WHERE layer_name = ?", LAYER_NAME);
+		template.update("INSERT INTO layer_config (layer_name, layer_type) VALUES (?, ?)", "roads", "DATABASE");
+
+		assertTrue(dao.supportsLayer(LAYER_NAME));
+		assertFalse(dao.supportsLayer("roads"));
+
+		dao.refreshLayerConfig();
+
+		assertFalse(dao.supportsLayer(LAYER_NAME));
+		assertTrue(dao.supportsLayer("roads"));
+		assertEquals(2, changed.size());
+		assertTrue(changed.containsAll(Arrays.asList(LAYER_NAME, "roads")));
+	}
+
+	@Test(expected=LayerDataSourceNotAvailableException.class)
+	public void createFeature_notExistingLayerName_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		dao.createFeature(new Feature(reader.read(WKT), null), "fake_layername");
+	}
+
+	@Test(expected=LayerConfigurationBrokenException.class)
+	public void createFeature_tableWithoutGeometry_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		dao.createFeature(new Feature(reader.read(WKT), null), "no_geometry");
+	}
+
+	@Test(expected=BrokenFeatureException.class)
+	public void createFeature_brokenFeatureNullGeometry_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException {
+		dao.createFeature(new Feature(), LAYER_NAME);
+	}
+
+	@Test
+	public void createFeature_properFeatureWithAttributes_shouldBeReadBack() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Date surveyed = new GregorianCalendar(2016, Calendar.MARCH, 12).getTime();
+		Feature feature = new Feature(reader.read(WKT), Arrays.asList(
+				attribute("name", AttributeType.TEXT, "parcel"),
+				attribute("area", AttributeType.DOUBLE, 100.5),
+				attribute("surveyed", AttributeType.DATE, surveyed),
+				attribute("fake_name", AttributeType.TEXT, "ignored")));
+
+		Long id = dao.createFeature(feature, LAYER_NAME);
+		assertNotNull(id);
+
+		Feature read = dao.getFeatureById(id, LAYER_NAME);
+		assertEquals(id, read.getId());
+		assertTrue(read.getGeom().equalsExact(reader.read(WKT)));
+		assertEquals("parcel", read.getAttribute("name").getValue());
+		assertEquals(100.5, read.getAttribute("area").getValue());
+		assertEquals(surveyed, read.getAttribute("surveyed").getValue());
+		assertEquals(3, read.getAttributes().size());
+	}
+
+	@Test
+	public void getFeatureById_numericAttributes_shouldBeReadByTypedGetters() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), Arrays.asList(attribute("area", AttributeType.DOUBLE, 100.5))), LAYER_NAME);
+
+		Feature read = dao.getFeatureById(id, LAYER_NAME);
+		int area = read.getSchema().indexOf("area");
+		assertEquals(100.5, read.getDouble(area), 0.0);
+		assertTrue(read.getAttribute("area").hasValue());
+		assertFalse(read.getAttribute("name").hasValue());
+		assertNull(read.getAttribute("name").getValue());
+	}
+
+	@Test
+	public void getFeatureById_projection_shouldReadOnlyGivenAttributesWithoutGeometry() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), Arrays.asList(
+				attribute("name", AttributeType.TEXT, "parcel"),
+				attribute("area", AttributeType.DOUBLE, 100.5))), LAYER_NAME);
+
+		Feature read = dao.getFeatureById(id, Arrays.asList("AREA", "fake_name"), false, LAYER_NAME);
+		assertEquals(id, read.getId());
+		assertNull(read.getGeom());
+		assertEquals(1, read.getAttributes().size());
+		assertEquals(100.5, read.getAttribute("area").getValue());
+
+		read = dao.getFeatureById(id, Arrays.asList("name"), true, LAYER_NAME);
+		assertTrue(read.getGeom().equalsExact(reader.read(WKT)));
+		assertEquals("parcel", read.getAttribute("name").getValue());
+		assertNull(read.getAttribute("area"));
+	}
+
+	@Test
+	public void getFeatureById_idNotExists_shouldReturnNull() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		assertNull(dao.getFeatureById(-1L, LAYER_NAME));
+	}
+
+	@Test
+	public void updateFeatureAttributes_someAttributesContainInvalidValueTypes_shouldUpdateValidOnes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "before"))), LAYER_NAME);
+
+		dao.updateFeatureAttributes(id, Arrays.asList(attribute("NAME", AttributeType.TEXT, "after"), attribute("area", AttributeType.TEXT, "wrong")), LAYER_NAME);
+
+		Feature read = dao.getFeatureById(id, LAYER_NAME);
+		assertEquals("after", read.getAttribute("name").getValue());
+		assertNull(read.getAttribute("area").getValue());
+	}
+
+	@Test
+	public void updateFeatureGeometry_properGeometry_shouldUpdateGeometry() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+
+		dao.updateFeatureGeometry(id, reader.read(OTHER_WKT), LAYER_NAME);
+
+		assertTrue(dao.getFeatureById(id, LAYER_NAME).getGeom().equalsExact(reader.read(OTHER_WKT)));
+	}
+
+	@Test
+	public void deleteFeature_idExists_shouldDeleteFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+
+		dao.deleteFeature(id, LAYER_NAME);
+
+		assertNull(dao.getFeatureById(id, LAYER_NAME));
+	}
+
+	@Test
+	public void createFeatures_someFeaturesBroken_shouldCreateValidOnesInOrder() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = new ArrayList<Feature>();
+		features.add(new Feature(reader.read(WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "first"))));
+		features.add(new Feature());
+		features.add(new Feature(reader.read(OTHER_WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "third"))));
+
+		BatchResult result = dao.createFeatures(features, LAYER_NAME);
+
+		assertEquals(1, result.getFailureCount());
+		assertFalse(result.isSuccess(1));
+		assertEquals("first", dao.getFeatureById(result.getId(0), LAYER_NAME).getAttribute("name").getValue());
+		assertEquals("third", dao.getFeatureById(result.getId(2), LAYER_NAME).getAttribute("name").getValue());
+	}
+
+	@Test
+	public void updateFeatures_oneIdNotExists_shouldUpdateOthers() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Long first = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+		Long second = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+		Feature withAttributes = new Feature(null, Arrays.asList(attribute("name", AttributeType.TEXT, "renamed")));
+		withAttributes.setId(first);
+		Feature withGeometry = new Feature(reader.read(OTHER_WKT), null);
+		withGeometry.setId(second);
+		Feature missing = new Feature(null, Arrays.asList(attribute("name", AttributeType.TEXT, "missing")));
+		missing.setId(-1L);
+
+		BatchResult result = dao.updateFeatures(Arrays.asList(withAttributes, missing, withGeometry), LAYER_NAME);
+
+		assertTrue(result.isSuccess(0));
+		assertFalse(result.isSuccess(1));
+		assertTrue(result.isSuccess(2));
+		assertEquals("renamed", dao.getFeatureById(first, LAYER_NAME).getAttribute("name").getValue());
+		assertTrue(dao.getFeatureById(second, LAYER_NAME).getGeom().equalsExact(reader.read(OTHER_WKT)));
+	}
+
+	@Test
+	public void deleteFeatures_someIdsExist_shouldDeleteExistingOnes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Long first = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+		Long second = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+
+		BatchResult result = dao.deleteFeatures(Arrays.asList(first, -1L, second), LAYER_NAME);
+
+		assertEquals(1, result.getFailureCount());
+		assertFalse(result.isSuccess(1));
+		assertNull(dao.getFeatureById(first, LAYER_NAME));
+		assertNull(dao.getFeatureById(second, LAYER_NAME));
+	}
+
+	@Test
+	public void getFeaturesInBBox_bboxAroundOneFeature_shouldReturnOnlyThisFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read(WKT), null), LAYER_NAME);
+		dao.createFeature(new Feature(reader.read(OTHER_WKT), null), LAYER_NAME);
+
+		List<Feature> features = dao.getFeaturesInBBox(new Envelope(0, 15, 0, 15), LAYER_NAME);
+
+		assertEquals(1, features.size());
+		assertEquals(id, features.get(0).getId());
+	}
+
+	@Test
+	public void getFeaturesIntersecting_pointOutsideFeatureButInsideEnvelope_shouldReturnNothing() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Long id = dao.createFeature(new Feature(reader.read("POLYGON ((0 0, 10 0, 0 10, 0 0))"), null), LAYER_NAME);
+
+		assertTrue(dao.getFeaturesIntersecting(reader.read("POINT (8 8)"), LAYER_NAME).isEmpty());
+		List<Feature> features = dao.getFeaturesIntersecting(reader.read("POINT (2 2)"), LAYER_NAME);
+		assertEquals(1, features.size());
+		assertEquals(id, features.get(0).getId());
+	}
+
+	@Test
+	public void getFeatures_bboxAndAttributeNames_shouldReadMatchingFeaturesWithSelectedAttributes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 10; i++) {
+			Geometry geom = reader.read(i % 2 == 0 ? WKT : OTHER_WKT);
+			features.add(new Feature(geom, Arrays.asList(attribute("name", AttributeType.TEXT, "f" + i), attribute("area", AttributeType.DOUBLE, (double) i))));
+		}
+		dao.createFeatures(features, LAYER_NAME);
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(new Envelope(0, 50, 0, 50));
+		query.setAttributeNames(Arrays.asList("NAME"));
+
+		dao.setFetchSize(2);
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				assertEquals(1, feature.getAttributes().size());
+				assertNotNull(feature.getAttribute("name").getValue());
+				assertNotNull(feature.getGeom());
+				count++;
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(5, count);
+	}
+
+	@Test
+	public void getFeatures_withoutGeometry_shouldStillApplyBBox() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		dao.createFeature(new Feature(reader.read(WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "inside"))), LAYER_NAME);
+		dao.createFeature(new Feature(reader.read(OTHER_WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "outside"))), LAYER_NAME);
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(new Envelope(0, 50, 0, 50));
+		query.setWithGeometry(false);
+
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		try {
+			assertTrue(cursor.hasNext());
+			Feature feature = cursor.next();
+			assertEquals("inside", feature.getAttribute("name").getValue());
+			assertNull(feature.getGeom());
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void getFeatures_filterExpression_shouldReadMatchingFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException, InvalidFilterException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 10; i++) {
+			features.add(new Feature(reader.read(WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "f" + i), attribute("area", AttributeType.DOUBLE, (double) i))));
+		}
+		features.add(new Feature(reader.read(WKT), Arrays.asList(attribute("name", AttributeType.TEXT, "no area"))));
+		dao.createFeatures(features, LAYER_NAME);
+
+		FeatureQuery query = new FeatureQuery();
+		query.setAttributeNames(Arrays.asList("name"));
+		query.setFilter(AttributeFilter.parse("area BETWEEN 2 AND 5 AND name IN ('f2', 'f3', 'f5', 'f7') OR name LIKE 'f9%'"));
+		assertEquals(Arrays.asList("f2", "f3", "f5", "f9"), readNames(dao.getFeatures(query, LAYER_NAME)));
+
+		// features without area don't have area greater than 3 either
+		query.setFilter(AttributeFilter.parse("NOT area > 3.5"));
+		assertEquals(Arrays.asList("f0", "f1", "f2", "f3", "no area"), readNames(dao.getFeatures(query, LAYER_NAME)));
+
+		query.setFilter(AttributeFilter.and(AttributeFilter.isNull("area"), AttributeFilter.like("NAME", "no\\_area")));
+		assertEquals(0, readNames(dao.getFeatures(query, LAYER_NAME)).size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void getFeatures_filterOnUnknownAttribute_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, InvalidFilterException {
+		FeatureQuery query = new FeatureQuery();
+		query.setFilter(AttributeFilter.parse("fake_name = 'x'"));
+		dao.getFeatures(query, LAYER_NAME);
+	}
+
+	private List<String> readNames(FeatureCursor cursor) throws UnsupportedAttributeType {
+		List<String> names = new ArrayList<String>();
+		try {
+			while (cursor.hasNext()) {
+				names.add((String) cursor.next().getAttribute("name").getValue());
+			}
+		} finally {
+			cursor.close();
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	private Attribute attribute(String name, AttributeType type, Object value) throws UnsupportedAttributeType {
+		Attribute attribute = new Attribute(name, type);
+		attribute.setValue(value);
+		return attribute;
+	}
+}
@@ -14,6 +14,7 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
@@ -24,11 +25,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureQuery;
 import pl.wharyo.exceptions.BrokenFeatureException;
 import pl.wharyo.exceptions.LayerConfigurationBrokenException;
 import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
@@ -57,6 +61,7 @@ public class GeoJsonFeatureDAOTest {
 
 	@After
 	public void tearDown() throws Exception {
+		dao.dispose();
 		clearGeoJson();
 	}
 	
@@ -521,6 +526,187 @@ public class GeoJsonFeatureDAOTest {
 	
 	// support layer
 	
+	// streaming read
+	
+	@Test
+	public void getFeatures_emptyQuery_shouldReadAllFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				assertNotNull(feature.getGeom());
+				assertNotNull(feature.getAttribute("name"));
+				ids.add(feature.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+	}
+	
+	@Test
+	public void getFeatures_bboxAndAttributeNames_shouldReadMatchingFeaturesWithSelectedAttributes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(reader.read(WKT).getEnvelopeInternal());
+		query.setAttributeNames(Arrays.asList("NAME"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		try {
+			assertTrue(cursor.hasNext());
+			Feature feature = cursor.next();
+			assertEquals(new Long(1L), feature.getId());
+			assertEquals("name1", feature.getAttribute("name").getValue());
+			assertNull(feature.getAttribute("count"));
+			assertNotNull(feature.getGeom());
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	// read by id
+	
+	@Test
+	public void getFeatureById_idExists_shouldReadOnlyThisFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		Feature feature = dao.getFeatureById(2L, LAYER_NAME);
+		assertNotNull(feature);
+		assertEquals(new Long(2L), feature.getId());
+		assertEquals("name2", feature.getAttribute("name").getValue());
+		assertEquals(new Double(2.22), feature.getAttribute("count").getValue());
+		assertNotNull(feature.getGeom());
+	}
+	
+	@Test
+	public void getFeatureById_idNotExists_shouldReturnNull() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		assertNull(dao.getFeatureById(100L, LAYER_NAME));
+	}
+	
+	@Test(expected=LayerDataSourceNotAvailableException.class)
+	public void getFeatureById_notExistingLayerName_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		dao.getFeatureById(1L, "fake_layername");
+	}
+	
+	@Test
+	public void getFeatureById_fileChangedOnDisk_shouldReadNewData() throws Exception {
+		assertEquals("name1", dao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		File file = new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.geojson");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		out.write(("{ \"type\": \"FeatureCollection\", \"features\": [\n"
+				+ "{ \"type\": \"Feature\", \"properties\": { \"id\": 7, \"name\": \"name7\", \"count\": 7.77 }, \"geometry\": { \"type\": \"Point\", \"coordinates\": [ 348000.0, 650000.0 ] } },\n"
+				+ "{ \"type\": \"Feature\", \"properties\": { \"id\": 1, \"name\": \"changed\", \"count\": 1.0 }, \"geometry\": { \"type\": \"Point\", \"coordinates\": [ 348001.0, 650001.0 ] } }\n"
+				+ "] }").getBytes("UTF-8"));
+		out.close();
+		// modification time may have coarse resolution, size change is detected anyway
+		assertEquals("changed", dao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		assertEquals("name7", dao.getFeatureById(7L, LAYER_NAME).getAttribute("name").getValue());
+		assertNull(dao.getFeatureById(2L, LAYER_NAME));
+	}
+	
+	// append log
+	
+	@Test
+	public void createFeature_layerFileNotRewritten_shouldReadFeatureFromLog() throws Exception {
+		File file = new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.geojson");
+		long length = file.length();
+		Feature feature = new Feature();
+		Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+		textAttr.setValue("logged");
+		feature.addAttribute(textAttr);
+		feature.setGeom(reader.read(WKT));
+		Long id = dao.createFeature(feature, LAYER_NAME);
+		
+		assertEquals(length, file.length());
+		assertTrue(new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.log").length() > 0);
+		assertEquals("logged", dao.getFeatureById(id, LAYER_NAME).getAttribute("name").getValue());
+	}
+	
+	@Test
+	public void getFeatures_afterUpdateAndDelete_shouldMergeLog() throws Exception {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+		textAttr.setValue("changed");
+		attributes.add(textAttr);
+		dao.updateFeatureAttributes(1L, attributes, LAYER_NAME);
+		dao.deleteFeature(2L, LAYER_NAME);
+		
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				if (feature.getId() == 1L) {
+					assertEquals("changed", feature.getAttribute("name").getValue());
+					assertEquals(new Double(1.11), feature.getAttribute("count").getValue());
+				}
+				ids.add(feature.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(3L, 1L), ids);
+		assertNull(dao.getFeatureById(2L, LAYER_NAME));
+	}
+	
+	@Test
+	public void getFeatureById_newDAOInstance_shouldReplayLog() throws Exception {
+		dao.deleteFeature(3L, LAYER_NAME);
+		dao.dispose();
+		dao = new GeoJsonFeatureDAO("src/test/resources/test_geojson_copy");
+		assertNull(dao.getFeatureById(3L, LAYER_NAME));
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+	}
+	
+	@Test
+	public void compact_afterChanges_shouldWriteThemToLayerFileAndEmptyLog() throws Exception {
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long id = dao.createFeature(feature, LAYER_NAME);
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute doubleAttr = new Attribute("count", AttributeType.DOUBLE);
+		doubleAttr.setValue(4.44);
+		attributes.add(doubleAttr);
+		dao.updateFeatureAttributes(2L, attributes, LAYER_NAME);
+		dao.deleteFeature(1L, LAYER_NAME);
+		
+		dao.compact(LAYER_NAME);
+		assertFalse(new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.compacting.log").exists());
+		assertEquals(0, new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.log").length());
+		
+		dao.dispose();
+		dao = new GeoJsonFeatureDAO("src/test/resources/test_geojson_copy");
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+		assertEquals(new Double(4.44), dao.getFeatureById(2L, LAYER_NAME).getAttribute("count").getValue());
+		assertEquals("name3", dao.getFeatureById(3L, LAYER_NAME).getAttribute("name").getValue());
+		assertNotNull(dao.getFeatureById(id, LAYER_NAME));
+		List<Feature> all = dao.getFeaturesInBBox(new Envelope(0, 1000000, 0, 1000000), LAYER_NAME);
+		assertEquals(3, all.size());
+	}
+	
+	@Test
+	public void appendToLog_failedWriteLeftPartOfLine_shouldCutItOff() throws Exception {
+		File file = new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.geojson");
+		File logFile = new File("src/test/resources/test_geojson_copy/test_geojson/test_geojson.log");
+		GeoJsonDeltaLog log = GeoJsonDeltaLog.open(file);
+		log.append(Arrays.asList(1L), Arrays.asList(GeoJsonDeltaLog.DELETED));
+		log.close();
+		// what write interrupted by a full disk could leave
+		OutputStream out = new FileOutputStream(logFile, true);
+		out.write("U 2 {\"type\": \"Fea".getBytes("UTF-8"));
+		out.close();
+		log.append(Arrays.asList(3L), Arrays.asList(GeoJsonDeltaLog.DELETED));
+		log.close();
+		assertEquals(log.getLogLength(), logFile.length());
+		
+		GeoJsonDeltaLog replayed = GeoJsonDeltaLog.open(file);
+		try {
+			assertTrue(replayed.find(1L) == GeoJsonDeltaLog.DELETED);
+			assertNull(replayed.find(2L));
+			assertTrue(replayed.find(3L) == GeoJsonDeltaLog.DELETED);
+		} finally {
+			replayed.close();
+		}
+	}
+	
 	@Test
 	public void supportsLayer_nullLayerName_shouldReturnFalse() {
 		assertFalse(dao.supportsLayer(null));
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -13,23 +14,44 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 
+import pl.wharyo.dao.BatchResult;
+import pl.wharyo.dao.FeatureCursor;
+import pl.wharyo.dao.FeatureQuery;
+import pl.wharyo.dao.LayerChangeListener;
+import pl.wharyo.dao.LockStatistics;
+import pl.wharyo.dao.filter.AttributeFilter;
 import pl.wharyo.exceptions.BrokenFeatureException;
+import pl.wharyo.exceptions.InvalidFilterException;
 import pl.wharyo.exceptions.LayerConfigurationBrokenException;
 import pl.wharyo.exceptions.LayerDataSourceNotAvailableException;
 import pl.wharyo.exceptions.UnsupportedAttributeType;
@@ -57,6 +79,7 @@ public class ShapefileFeatureDAOTest {
 
 	@After
 	public void tearDown() throws Exception {
+		dao.dispose();
 		clearShp();
 	}
 	
@@ -64,17 +87,41 @@ public class ShapefileFeatureDAOTest {
 		File shp_folder = new File("src/test/resources/test_shapefile");
 		File shp_folder_copy = new File("src/test/resources/test_shapefile_copy/test_shapefile");
 		for (String shp_part_name: shp_folder.list()) {
-			File shp_part = new File(shp_folder, shp_part_name);
-			File shp_part_copy = new File(shp_folder_copy, shp_part_name);
-			InputStream in = new BufferedInputStream(new FileInputStream(shp_part));
-			OutputStream out = new BufferedOutputStream(new FileOutputStream(shp_part_copy));
-			byte[] buff = new byte[1024];
-			int length;
-			while ((length = in.read(buff)) > 0) {
-				out.write(buff, 0, length);
+			copyFile(new File(shp_folder, shp_part_name), new File(shp_folder_copy, shp_part_name));
+		}
+	}
+	
+	private void copyFile(File source, File target) throws Exception {
+		InputStream in = new BufferedInputStream(new FileInputStream(source));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+		byte[] buff = new byte[1024];
+		int length;
+		while ((length = in.read(buff)) > 0) {
+			out.write(buff, 0, length);
+		}
+		in.close();
+		out.close();
+	}
+	
+	/**
+	 * Appends records with given ids straight to layer files, like other tools writing shapefile do.
+	 */
+	private void appendRecords(Long... ids) throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("url", new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.shp").toURI().toURL());
+		DataStore store = DataStoreFinder.getDataStore(params);
+		try {
+			SimpleFeatureStore fStore = (SimpleFeatureStore) store.getFeatureSource(store.getTypeNames()[0]);
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(fStore.getSchema());
+			List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+			for (Long id: ids) {
+				builder.set("id", id);
+				builder.set(fStore.getSchema().getGeometryDescriptor().getLocalName(), reader.read(WKT));
+				features.add(builder.buildFeature(null));
 			}
-			in.close();
-			out.close();
+			fStore.addFeatures(DataUtilities.collection(features));
+		} finally {
+			store.dispose();
 		}
 	}
 	
@@ -164,6 +211,62 @@ public class ShapefileFeatureDAOTest {
 		assertTrue(geom.equals(resultFeature.getGeom()));	
 	}
 	
+	@Test
+	public void createFeature_consecutiveFeatures_shouldReturnConsecutiveIds() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		assertEquals(new Long(4), dao.createFeature(feature, LAYER_NAME));
+		assertEquals(new Long(5), dao.createFeature(feature, LAYER_NAME));
+		assertEquals(new Long(6), dao.createFeature(feature, LAYER_NAME));
+	}
+	
+	@Test
+	public void createFeature_persistedSequenceAfterDeleteAndReopen_shouldNotReuseId() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		dao.setPersistIdSequence(true);
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long id = dao.createFeature(feature, LAYER_NAME);
+		dao.deleteFeature(id, LAYER_NAME);
+		dao.dispose();
+		assertEquals(new Long(id + 1), dao.createFeature(feature, LAYER_NAME));
+	}
+	
+	@Test
+	public void createFeature_persistedSequenceNotDisposed_shouldSkipReservedIds() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, ParseException {
+		dao.setPersistIdSequence(true);
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long id = dao.createFeature(feature, LAYER_NAME);
+		assertEquals(new Long(id + 1), dao.createFeature(feature, LAYER_NAME));
+		
+		// like after process died, reserved ids can't be told from given ones
+		ShapefileFeatureDAO otherDao = new ShapefileFeatureDAO("src/test/resources/test_shapefile_copy");
+		otherDao.setPersistIdSequence(true);
+		try {
+			assertEquals(new Long(id + IdSequence.RESERVATION + 1), otherDao.createFeature(feature, LAYER_NAME));
+		} finally {
+			otherDao.dispose();
+		}
+	}
+	
+	@Test
+	public void createFeature_persistedSequenceFileBroken_shouldThrowException() throws Exception {
+		dao.setPersistIdSequence(true);
+		File sequenceFile = new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.seq");
+		OutputStream out = new FileOutputStream(sequenceFile);
+		out.write("12a".getBytes("UTF-8"));
+		out.close();
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		try {
+			dao.createFeature(feature, LAYER_NAME);
+			fail("Ids given before file was broken could be given again");
+		} catch (LayerDataSourceNotAvailableException e) {
+			// expected
+		}
+		assertEquals(3, dao.getFeaturesInBBox(new Envelope(0, 1000000, 0, 1000000), LAYER_NAME).size());
+	}
+	
 	@Test(expected=BrokenFeatureException.class)
 	public void createFeature_wrongGeometryType_shouldThrowException() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
 		Feature feature = new Feature();
@@ -257,6 +360,27 @@ public class ShapefileFeatureDAOTest {
 
 	}
 	
+	@Test
+	public void createFeatures_attributeNamesInOtherCase_shouldWriteAttributes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 3; i++) {
+			Attribute textAttr = new Attribute("NAME", AttributeType.TEXT);
+			textAttr.setValue("test" + i);
+			Attribute idAttr = new Attribute("id", AttributeType.LONG);
+			idAttr.setValue(100L);
+			features.add(new Feature(reader.read(WKT), Arrays.asList(textAttr, idAttr)));
+		}
+
+		BatchResult result = dao.createFeatures(features, LAYER_NAME);
+
+		assertFalse(result.hasFailures());
+		for (int i = 0; i < 3; i++) {
+			Feature resultFeature = dao.getFeatureById(result.getId(i), LAYER_NAME);
+			assertEquals(result.getId(i), resultFeature.getId());
+			assertEquals("test" + i, resultFeature.getAttribute("name").getValue());
+		}
+	}
+
 	// update attribute tests
 	
 	@Test(expected=IllegalArgumentException.class)
@@ -308,6 +432,19 @@ public class ShapefileFeatureDAOTest {
 		assertEquals(calendar.getTime(), feature.getAttribute("date").getValue());
 	}
 	
+	@Test
+	public void getFeatureById_numericAttribute_shouldBeReadByTypedGetter() throws UnsupportedAttributeType, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
+		Attribute doubleAttr = new Attribute("count", AttributeType.DOUBLE);
+		doubleAttr.setDouble(4.44);
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(doubleAttr);
+		dao.updateFeatureAttributes(1L, attributes, LAYER_NAME);
+
+		Feature feature = dao.getFeatureById(1L, LAYER_NAME);
+		assertEquals(4.44, feature.getAttribute("count").getDouble(), 0.0);
+		assertEquals(new Double(4.44), feature.getAttribute("count").getValue());
+	}
+	
 	@Test
 	public void updateFeatureAttributes_someAttributesContainInvalidNames_shouldIgnoreBrokenAttributes() throws UnsupportedAttributeType, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException {
 		List<Attribute> attributes = new ArrayList<Attribute>();
@@ -464,7 +601,21 @@ public class ShapefileFeatureDAOTest {
 		geom.setSRID(2179);
 		dao.updateFeatureGeometry(1L, geom, LAYER_NAME);
 	}
-	
+
+	@Test
+	public void updateFeatureGeometry_otherGeometryCRSWithReprojection_shouldStoreTransformedGeometry() throws ParseException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType {
+		//EPSG:4326 has latitude first, central meridian of EPSG:2180 is 19
+		Geometry geom = reader.read("POLYGON ((52 19, 52 19.001, 52.001 19.001, 52.001 19, 52 19))");
+		geom.setSRID(4326);
+		dao.setReprojectGeometries(true);
+		dao.updateFeatureGeometry(1L, geom, LAYER_NAME);
+		dao.updateFeatureGeometry(2L, geom, LAYER_NAME);
+		Feature feature = dao.getFeatureById(1L, LAYER_NAME);
+		assertEquals(500000, feature.getGeom().getCentroid().getX(), 100);
+		assertTrue(feature.getGeom().getCentroid().getY() > 400000 && feature.getGeom().getCentroid().getY() < 500000);
+		assertTrue(dao.getFeatureById(2L, LAYER_NAME).getGeom().equalsExact(feature.getGeom()));
+	}
+
 	@Test
 	public void updateFeatureGeometry_properGeometry_shouldUpdateGeometry() throws ParseException, LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType {
 		Geometry geom = reader.read(WKT);
@@ -521,8 +672,686 @@ public class ShapefileFeatureDAOTest {
 		
 	}
 	
+	// batch operations
+	
+	@Test
+	public void createFeatures_someFeaturesBroken_shouldCreateValidOnesInOrder() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 3; i++) {
+			Feature feature = new Feature();
+			feature.setGeom(reader.read(WKT));
+			features.add(feature);
+		}
+		features.get(1).setGeom(reader.read(BAD_WKT));
+		BatchResult result = dao.createFeatures(features, LAYER_NAME);
+		assertEquals(3, result.size());
+		assertEquals(1, result.getFailureCount());
+		assertFalse(result.isSuccess(1));
+		assertNull(result.getId(1));
+		assertEquals(new Long(result.getId(0) + 1), result.getId(2));
+		assertNotNull(dao.getFeatureById(result.getId(0), LAYER_NAME));
+		assertNotNull(dao.getFeatureById(result.getId(2), LAYER_NAME));
+	}
+	
+	@Test
+	public void createFeatures_idIndexBuilt_shouldFindEachNewFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		// index is built, new features get record numbers from write
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 3; i++) {
+			Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+			textAttr.setValue("new" + i);
+			Feature feature = new Feature();
+			feature.setGeom(reader.read(WKT));
+			feature.addAttribute(textAttr);
+			features.add(feature);
+		}
+		BatchResult result = dao.createFeatures(features, LAYER_NAME);
+		Feature single = new Feature();
+		single.setGeom(reader.read(WKT));
+		Long singleId = dao.createFeature(single, LAYER_NAME);
+		
+		for (int i = 2; i >= 0; i--) {
+			Feature feature = dao.getFeatureById(result.getId(i), LAYER_NAME);
+			assertEquals(result.getId(i), feature.getId());
+			assertEquals("new" + i, feature.getAttribute("name").getValue());
+		}
+		assertEquals(singleId, dao.getFeatureById(singleId, LAYER_NAME).getId());
+		assertEquals(new Long(2), dao.getFeatureById(2L, LAYER_NAME).getId());
+	}
+	
+	@Test
+	public void updateFeatures_oneIdNotExists_shouldUpdateOthers() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (long id = 1; id <= 4; id++) {
+			Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+			textAttr.setValue("batch" + id);
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			attributes.add(textAttr);
+			Feature feature = new Feature();
+			feature.setId(id);
+			feature.setAttributes(attributes);
+			features.add(feature);
+		}
+		features.get(0).setGeom(reader.read(WKT));
+		BatchResult result = dao.updateFeatures(features, LAYER_NAME);
+		assertEquals(1, result.getFailureCount());
+		assertFalse(result.isSuccess(3));
+		for (long id = 1; id <= 3; id++) {
+			assertEquals("batch" + id, dao.getFeatureById(id, LAYER_NAME).getAttribute("name").getValue());
+		}
+		assertTrue(reader.read(WKT).equalsExact(dao.getFeatureById(1L, LAYER_NAME).getGeom(), 0.0001));
+	}
+	
+	@Test
+	public void deleteFeatures_someIdsExist_shouldDeleteExistingOnes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		BatchResult result = dao.deleteFeatures(Arrays.asList(1L, 4L, 3L), LAYER_NAME);
+		assertTrue(result.isSuccess(0));
+		assertFalse(result.isSuccess(1));
+		assertTrue(result.isSuccess(2));
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+		assertNotNull(dao.getFeatureById(2L, LAYER_NAME));
+		assertNull(dao.getFeatureById(3L, LAYER_NAME));
+	}
+	
+	// streaming read
+	
+	@Test
+	public void getFeatures_emptyQuery_shouldReadAllFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				assertNotNull(feature.getGeom());
+				assertNotNull(feature.getAttribute("name"));
+				ids.add(feature.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+	}
+	
+	@Test
+	public void getFeatures_recordsWithoutIdOrWithRepeatedId_shouldReadAllRecords() throws Exception {
+		appendRecords(null, 2L);
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(1L, 2L, 3L, null, 2L), ids);
+	}
+	
+	@Test
+	public void getFeatures_bboxAndAttributeNames_shouldReadMatchingFeaturesWithSelectedAttributes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(reader.read(WKT).getEnvelopeInternal());
+		query.setAttributeNames(Arrays.asList("NAME"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		try {
+			assertTrue(cursor.hasNext());
+			Feature feature = cursor.next();
+			assertEquals(new Long(1L), feature.getId());
+			assertEquals("name1", feature.getAttribute("name").getValue());
+			assertNull(feature.getAttribute("count"));
+			assertNotNull(feature.getGeom());
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	@Test
+	public void getFeatures_filterOnAttributeNotSelected_shouldReadMatchingFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, InvalidFilterException {
+		FeatureQuery query = new FeatureQuery();
+		query.setAttributeNames(Arrays.asList("count"));
+		query.setFilter(AttributeFilter.parse("name <> 'name1'"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				assertNull(feature.getAttribute("name"));
+				ids.add(feature.getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(2L, 3L), ids);
+	}
+	
+	@Test
+	public void getFeatures_bboxAndFilterAfterRecordsRenumbered_shouldReadMatchingFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, InvalidFilterException {
+		Envelope bbox = new Envelope(0, 1000000, 0, 1000000);
+		assertEquals(3, dao.getFeaturesInBBox(bbox, LAYER_NAME).size());
+		// records behind deleted one may move, while indexes still point to old ones
+		dao.deleteFeature(1L, LAYER_NAME);
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(bbox);
+		query.setFilter(AttributeFilter.parse("name = 'name3' OR name = 'name1'"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(3L), ids);
+	}
+	
+	// attribute indexes
+	
+	@Test
+	public void getFeatures_filterOnIndexedAttribute_shouldReadMatchingFeaturesAfterWrites() throws Exception {
+		File indexFile = new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.name.idx");
+		dao.setIndexedAttributes(LAYER_NAME, Arrays.asList("NAME"));
+		dao.rebuildAttributeIndexes(LAYER_NAME);
+		assertTrue(indexFile.isFile());
+		assertEquals(Arrays.asList(2L), readIds("name = 'name2'"));
+		
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+		textAttr.setValue("renamed");
+		attributes.add(textAttr);
+		dao.updateFeatureAttributes(2L, attributes, LAYER_NAME);
+		dao.deleteFeature(3L, LAYER_NAME);
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		feature.setAttributes(attributes);
+		Long newId = dao.createFeature(feature, LAYER_NAME);
+		// file doesn't follow writes until index is saved again
+		assertFalse(indexFile.exists());
+		
+		assertEquals(new ArrayList<Long>(), readIds("name = 'name2'"));
+		assertEquals(Arrays.asList(2L, newId), readIds("name IN ('renamed', 'name3')"));
+		assertEquals(Arrays.asList(1L), readIds("name LIKE 'name%'"));
+		
+		dao.dispose();
+		assertTrue(indexFile.isFile());
+		dao = new ShapefileFeatureDAO("src/test/resources/test_shapefile_copy");
+		dao.setIndexedAttributes(LAYER_NAME, Arrays.asList("name"));
+		assertEquals(Arrays.asList(2L, newId), readIds("name = 'renamed'"));
+	}
+	
+	@Test
+	public void getFeatures_indexNotBuilt_shouldScanLayerAndBuildIndexInBackground() throws Exception {
+		File indexFile = new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.count.idx");
+		dao.setIndexedAttributes(LAYER_NAME, Arrays.asList("count"));
+		assertEquals(Arrays.asList(2L, 3L), readIds("count > 2"));
+		for (int i = 0; i < 50 && !indexFile.isFile(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(indexFile.isFile());
+		assertEquals(Arrays.asList(2L, 3L), readIds("count > 2"));
+		assertEquals(Arrays.asList(1L), readIds("count BETWEEN 1 AND 2"));
+	}
+	
+	@Test(timeout=10000)
+	public void getFeatures_filterOnIndexedAttributeWhileWriting_shouldReadProjectedCandidates() throws Exception {
+		dao.setIndexedAttributes(LAYER_NAME, Arrays.asList("name"));
+		dao.rebuildAttributeIndexes(LAYER_NAME);
+		FeatureQuery query = new FeatureQuery();
+		query.setFilter(AttributeFilter.parse("name IN ('name1', 'name3')"));
+		query.setAttributeNames(Arrays.asList("count"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				assertNull(feature.getAttribute("name"));
+				assertNotNull(feature.getAttribute("count"));
+				ids.add(feature.getId());
+				// candidates are read in batches, layer isn't locked between them
+				dao.deleteFeature(2L, LAYER_NAME);
+			}
+		} finally {
+			cursor.close();
+		}
+		Collections.sort(ids);
+		assertEquals(Arrays.asList(1L, 3L), ids);
+	}
+	
+	private List<Long> readIds(String filter) throws Exception {
+		FeatureQuery query = new FeatureQuery();
+		query.setFilter(AttributeFilter.parse(filter));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+	
+	// spatial queries
+	
+	@Test
+	public void getFeaturesInBBox_bboxAroundOneFeature_shouldReturnOnlyThisFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		List<Feature> features = dao.getFeaturesInBBox(reader.read(WKT).getEnvelopeInternal(), LAYER_NAME);
+		assertEquals(1, features.size());
+		assertEquals(new Long(1L), features.get(0).getId());
+	}
+	
+	@Test
+	public void getFeaturesInBBox_afterCreateUpdateAndDelete_shouldReturnCurrentFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		Envelope firstBBox = reader.read(WKT).getEnvelopeInternal();
+		Envelope secondBBox = new Envelope(348012, 348025, 650002, 650015);
+		assertEquals(1, dao.getFeaturesInBBox(secondBBox, LAYER_NAME).size());
+		
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long newId = dao.createFeature(feature, LAYER_NAME);
+		dao.updateFeatureGeometry(2L, reader.read(WKT), LAYER_NAME);
+		dao.deleteFeature(1L, LAYER_NAME);
+		
+		List<Long> ids = new ArrayList<Long>();
+		for (Feature f: dao.getFeaturesInBBox(firstBBox, LAYER_NAME)) {
+			ids.add(f.getId());
+		}
+		assertEquals(Arrays.asList(2L, newId), ids);
+		assertTrue(dao.getFeaturesInBBox(secondBBox, LAYER_NAME).isEmpty());
+	}
+	
+	@Test
+	public void getFeaturesIntersecting_pointInsideFeature_shouldReturnOnlyThisFeature() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		Geometry point = reader.read(WKT).getInteriorPoint();
+		List<Feature> features = dao.getFeaturesIntersecting(point, LAYER_NAME);
+		assertEquals(1, features.size());
+		assertEquals(new Long(1L), features.get(0).getId());
+		assertTrue(dao.getFeaturesIntersecting(geomFactory.createPoint(new Coordinate(0, 0)), LAYER_NAME).isEmpty());
+	}
+	
+	// read by id
+	
+	@Test
+	public void getFeatureById_idNotExists_shouldReturnNull() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		assertNull(dao.getFeatureById(100L, LAYER_NAME));
+	}
+	
+	@Test
+	public void getFeatureById_projection_shouldReadOnlyGivenAttributesWithoutGeometry() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		for (boolean mapped: new boolean[] {false, true}) {
+			dao.setMemoryMappedReads(mapped);
+			Feature feature = dao.getFeatureById(2L, Arrays.asList("NAME"), false, LAYER_NAME);
+			assertEquals(new Long(2), feature.getId());
+			assertNull(feature.getGeom());
+			assertEquals(1, feature.getAttributes().size());
+			assertEquals("name2", feature.getAttribute("name").getValue());
+			assertNull(feature.getAttribute("count"));
+		}
+	}
+	
+	@Test
+	public void getFeatureById_afterCreatesAndDeletes_shouldFindRemainingFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		assertNotNull(dao.getFeatureById(3L, LAYER_NAME));
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long firstId = dao.createFeature(feature, LAYER_NAME);
+		Long secondId = dao.createFeature(feature, LAYER_NAME);
+		dao.deleteFeature(2L, LAYER_NAME);
+		dao.deleteFeature(firstId, LAYER_NAME);
+		
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+		assertNull(dao.getFeatureById(2L, LAYER_NAME));
+		assertEquals(new Long(3), dao.getFeatureById(3L, LAYER_NAME).getId());
+		assertNull(dao.getFeatureById(firstId, LAYER_NAME));
+		assertEquals(secondId, dao.getFeatureById(secondId, LAYER_NAME).getId());
+	}
+	
+	// layer locks
+
+	@Test
+	public void getFeatures_openCursor_shouldNotBlockReadersOrWriters() throws Exception {
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		final List<Object> results = new CopyOnWriteArrayList<Object>();
+		Thread readerThread = new Thread() {
+			public void run() {
+				try {
+					results.add(dao.getFeatureById(1L, LAYER_NAME));
+				} catch (Exception e) {
+					results.add(e);
+				}
+			}
+		};
+		Thread writerThread = new Thread() {
+			public void run() {
+				try {
+					dao.deleteFeature(1L, LAYER_NAME);
+				} catch (Exception e) {
+					results.add(e);
+				}
+			}
+		};
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			readerThread.start();
+			readerThread.join(5000);
+			assertEquals(1, results.size());
+			assertTrue(results.get(0) instanceof Feature);
+
+			writerThread.start();
+			writerThread.join(5000);
+			assertFalse(writerThread.isAlive());
+			assertEquals(1, results.size());
+
+			// feature deleted before its batch was read is skipped
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(2L, 3L), ids);
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+
+		LockStatistics statistics = dao.getLockStatistics(LAYER_NAME);
+		assertEquals(1, statistics.getWriteLocks());
+		assertTrue(statistics.getMaxWriteWaitNanos() < 500000000L);
+	}
+	
+	@Test(timeout=10000)
+	public void getFeatures_writesWhileIterating_shouldNotDeadlock() throws Exception {
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				Feature feature = cursor.next();
+				ids.add(feature.getId());
+				Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+				textAttr.setValue("updated" + feature.getId());
+				dao.updateFeatureAttributes(feature.getId(), Collections.singletonList(textAttr), LAYER_NAME);
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(Arrays.asList(1L, 2L, 3L), ids);
+		assertEquals("updated1", dao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		assertEquals("updated3", dao.getFeatureById(3L, LAYER_NAME).getAttribute("name").getValue());
+	}
+	
+	@Test(timeout=60000)
+	public void getFeatures_deleteBehindCursorBetweenBatches_shouldNotSkipOrRepeatFeatures() throws Exception {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < 2500; i++) {
+			Feature feature = new Feature();
+			feature.setGeom(reader.read(WKT));
+			features.add(feature);
+		}
+		dao.createFeatures(features, LAYER_NAME);
+		FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		List<Long> ids = new ArrayList<Long>();
+		try {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+				if (ids.size() == 1200) {
+					// records behind cursor move towards the start of the file
+					dao.deleteFeature(2L, LAYER_NAME);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(2503, ids.size());
+		assertEquals(2503, new HashSet<Long>(ids).size());
+	}
+	
+	@Test(timeout=10000)
+	public void getFeatures_cursorClosedByOtherThread_shouldReleaseLayer() throws Exception {
+		final FeatureCursor cursor = dao.getFeatures(new FeatureQuery(), LAYER_NAME);
+		assertTrue(cursor.hasNext());
+		final List<Object> results = new CopyOnWriteArrayList<Object>();
+		Thread closingThread = new Thread() {
+			public void run() {
+				try {
+					cursor.close();
+				} catch (Exception e) {
+					results.add(e);
+				}
+			}
+		};
+		closingThread.start();
+		closingThread.join();
+		assertTrue(results.isEmpty());
+		assertFalse(cursor.hasNext());
+		dao.deleteFeature(1L, LAYER_NAME);
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+	}
+
+	// write-behind
+
+	@Test
+	public void updateFeatureAttributes_writeBehind_shouldBeVisibleBeforeFlushAndWrittenOnce() throws Exception {
+		dao.setWriteBehind(true);
+		dao.setFlushDelay(60000);
+		File dbf = new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.dbf");
+		byte[] before = Files.readAllBytes(dbf.toPath());
+		for (int i = 0; i < 100; i++) {
+			List<Attribute> attributes = new ArrayList<Attribute>();
+			Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+			textAttr.setValue("name" + i);
+			attributes.add(textAttr);
+			dao.updateFeatureAttributes(1L, attributes, LAYER_NAME);
+		}
+		dao.deleteFeature(2L, LAYER_NAME);
+		dao.updateFeatureGeometry(3L, reader.read(WKT), LAYER_NAME);
+
+		assertEquals("name99", dao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		assertNull(dao.getFeatureById(2L, LAYER_NAME));
+		assertTrue(reader.read(WKT).equals(dao.getFeatureById(3L, LAYER_NAME).getGeom()));
+		assertTrue(Arrays.equals(before, Files.readAllBytes(dbf.toPath())));
+
+		// query flushes buffered changes first
+		List<Long> ids = new ArrayList<Long>();
+		for (Feature f: dao.getFeaturesInBBox(reader.read(WKT).getEnvelopeInternal(), LAYER_NAME)) {
+			ids.add(f.getId());
+		}
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains(1L) && ids.contains(3L));
+		assertFalse(Arrays.equals(before, Files.readAllBytes(dbf.toPath())));
+	}
+
+	@Test
+	public void deleteFeature_writeBehindThenDispose_shouldWriteBufferedChanges() throws Exception {
+		dao.setWriteBehind(true);
+		dao.setFlushDelay(60000);
+		dao.deleteFeature(1L, LAYER_NAME);
+		dao.dispose();
+
+		ShapefileFeatureDAO otherDao = new ShapefileFeatureDAO("src/test/resources/test_shapefile_copy");
+		try {
+			assertNull(otherDao.getFeatureById(1L, LAYER_NAME));
+			assertNotNull(otherDao.getFeatureById(2L, LAYER_NAME));
+		} finally {
+			otherDao.dispose();
+		}
+	}
+
+	@Test
+	public void getFeaturesInBBox_writeBehindFlushFails_shouldThrowAndKeepBufferedChanges() throws Exception {
+		dao.setWriteBehind(true);
+		dao.setFlushDelay(60000);
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+		textAttr.setValue("updated1");
+		attributes.add(textAttr);
+		dao.updateFeatureAttributes(1L, attributes, LAYER_NAME);
+
+		File dbf = new File("src/test/resources/test_shapefile_copy/test_shapefile/test_shapefile.dbf");
+		File moved = new File(dbf.getPath() + ".moved");
+		assertTrue(dbf.renameTo(moved));
+		try {
+			dao.getFeaturesInBBox(reader.read(WKT).getEnvelopeInternal(), LAYER_NAME);
+			fail("Query mustn't run when buffered changes couldn't be written");
+		} catch (LayerDataSourceNotAvailableException e) {
+			// expected
+		} finally {
+			assertTrue(moved.renameTo(dbf));
+		}
+
+		// changes are still buffered and written with next flush
+		assertEquals("updated1", dao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		dao.getFeaturesInBBox(reader.read(WKT).getEnvelopeInternal(), LAYER_NAME);
+		ShapefileFeatureDAO otherDao = new ShapefileFeatureDAO("src/test/resources/test_shapefile_copy");
+		try {
+			assertEquals("updated1", otherDao.getFeatureById(1L, LAYER_NAME).getAttribute("name").getValue());
+		} finally {
+			otherDao.dispose();
+		}
+	}
+
+	// memory mapped reads
+
+	@Test
+	public void getFeatureById_memoryMappedReads_shouldReadSameFeatureAsDataStore() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		Feature expected = dao.getFeatureById(1L, LAYER_NAME);
+		dao.setMemoryMappedReads(true);
+		Feature feature = dao.getFeatureById(1L, LAYER_NAME);
+		assertEquals(expected.getId(), feature.getId());
+		assertEquals("name1", feature.getAttribute("name").getValue());
+		assertEquals(expected.getAttribute("count").getValue(), feature.getAttribute("count").getValue());
+		assertEquals(expected.getAttribute("date").getValue(), feature.getAttribute("date").getValue());
+		assertTrue(reader.read(WKT).equals(feature.getGeom()));
+		assertNull(dao.getFeatureById(100L, LAYER_NAME));
+	}
+
+	@Test
+	public void getFeatureById_memoryMappedReadsAfterWrites_shouldReadCurrentFeatures() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, BrokenFeatureException, UnsupportedAttributeType, ParseException {
+		dao.setMemoryMappedReads(true);
+		assertEquals("name2", dao.getFeatureById(2L, LAYER_NAME).getAttribute("name").getValue());
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		Attribute textAttr = new Attribute("name", AttributeType.TEXT);
+		textAttr.setValue("test");
+		attributes.add(textAttr);
+		dao.updateFeatureAttributes(2L, attributes, LAYER_NAME);
+		dao.deleteFeature(1L, LAYER_NAME);
+		Feature feature = new Feature();
+		feature.setGeom(reader.read(WKT));
+		Long newId = dao.createFeature(feature, LAYER_NAME);
+
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+		assertEquals("test", dao.getFeatureById(2L, LAYER_NAME).getAttribute("name").getValue());
+		assertEquals(new Long(3), dao.getFeatureById(3L, LAYER_NAME).getId());
+		assertEquals(newId, dao.getFeatureById(newId, LAYER_NAME).getId());
+	}
+
+	@Test
+	public void getFeatures_memoryMappedReadsBboxAndAttributeNames_shouldReadMatchingFeaturesWithSelectedAttributes() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType, ParseException {
+		dao.setMemoryMappedReads(true);
+		FeatureQuery query = new FeatureQuery();
+		query.setBBox(reader.read(WKT).getEnvelopeInternal());
+		query.setAttributeNames(Arrays.asList("NAME"));
+		FeatureCursor cursor = dao.getFeatures(query, LAYER_NAME);
+		try {
+			assertTrue(cursor.hasNext());
+			Feature feature = cursor.next();
+			assertEquals(new Long(1L), feature.getId());
+			assertEquals("name1", feature.getAttribute("name").getValue());
+			assertNull(feature.getAttribute("count"));
+			assertTrue(reader.read(WKT).equals(feature.getGeom()));
+			assertFalse(cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+	}
+
+	// open layers
+
+	@Test
+	public void getFeatureById_afterDispose_shouldReopenLayer() throws LayerDataSourceNotAvailableException, LayerConfigurationBrokenException, UnsupportedAttributeType {
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+		dao.dispose();
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+	}
+	
+	@Test
+	public void getFeatureById_shapefileReplacedOnDisk_shouldReadNewData() throws Exception {
+		dao.setModificationCheckInterval(0);
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+		dao.deleteFeature(1L, LAYER_NAME);
+		assertNull(dao.getFeatureById(1L, LAYER_NAME));
+		copyShp();
+		assertNotNull(dao.getFeatureById(1L, LAYER_NAME));
+	}
+	
+	@Test
+	public void release_otherLayerIdle_shouldCloseIt() throws Exception {
+		File otherDir = new File("src/test/resources/test_shapefile_copy/other_layer");
+		assertTrue(otherDir.mkdir());
+		ShapefileLayerRegistry registry = new ShapefileLayerRegistry("src/test/resources/test_shapefile_copy", ShapefileLayerRegistry.DEFAULT_MAX_OPEN_LAYERS, 50);
+		try {
+			for (File file: new File("src/test/resources/test_shapefile").listFiles()) {
+				copyFile(file, new File(otherDir, file.getName().replace(LAYER_NAME, "other_layer")));
+			}
+			ShapefileLayer layer = registry.acquire(LAYER_NAME);
+			ShapefileLayer other = registry.acquire("other_layer");
+			registry.release(layer);
+			Thread.sleep(200);
+			registry.release(other);
+			assertEquals(1, registry.size());
+			assertTrue(layer.isEvicted());
+			assertFalse(other.isEvicted());
+		} finally {
+			registry.clear();
+			for (File file: otherDir.listFiles()) {
+				file.delete();
+			}
+			otherDir.delete();
+		}
+	}
+	
 	// support layer
 	
+	@Test
+	public void addLayerChangeListener_layerDirectoryCreated_shouldNotifyListener() throws Exception {
+		final List<String> changed = new CopyOnWriteArrayList<String>();
+		dao.addLayerChangeListener(new LayerChangeListener() {
+			public void layerChanged(String layerName) {
+				changed.add(layerName);
+			}
+			public void allLayersChanged() {
+			}
+		});
+		File layerDir = new File("src/test/resources/test_shapefile_copy/new_layer");
+		try {
+			assertTrue(layerDir.mkdir());
+			for (int i = 0; i < 50 && !changed.contains("new_layer"); i++) {
+				Thread.sleep(100);
+			}
+			assertTrue(changed.contains("new_layer"));
+		} finally {
+			layerDir.delete();
+		}
+	}
+	
+	@Test
+	public void addLayerChangeListener_layerFileWritten_shouldNotifyListener() throws Exception {
+		final List<String> changed = new CopyOnWriteArrayList<String>();
+		dao.addLayerChangeListener(new LayerChangeListener() {
+			public void layerChanged(String layerName) {
+				changed.add(layerName);
+			}
+			public void allLayersChanged() {
+			}
+		});
+		dao.deleteFeature(1L, LAYER_NAME);
+		for (int i = 0; i < 50 && !changed.contains(LAYER_NAME); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(changed.contains(LAYER_NAME));
+	}
+	
 	@Test
 	public void supportsLayer_nullLayerName_shouldReturnFalse() {
 		assertFalse(dao.supportsLayer(null));